@@ -2,6 +2,7 @@ package norswap.sigh;
 
 import norswap.autumn.positions.Span;
 import norswap.sigh.ast.*;
+import norswap.sigh.lp.Term;
 import norswap.sigh.scopes.DeclarationContext;
 import norswap.sigh.scopes.DeclarationKind;
 import norswap.sigh.scopes.RootScope;
@@ -147,8 +148,10 @@ public final class SemanticAnalysis
         walker.register(QueryDeclarationNode.class,     PRE_VISIT,  analysis::queryDecl);
         walker.register(FactDeclarationNode.class,      PRE_VISIT,  analysis::factDecl);
         walker.register(ClauseDeclarationNode.class,    PRE_VISIT,  analysis::clauseDecl);
+        walker.register(AggregateNode.class,            PRE_VISIT,  analysis::aggregate);
       // walker.register(AtomNode.class,                 PRE_VISIT,  analysis::factCall);
         walker.register(AtomNode.class,                 PRE_VISIT,  analysis::atomTmp);
+        walker.register(ComparisonNode.class,           PRE_VISIT,  analysis::comparison);
 
         walker.register(TermNode.class,                 PRE_VISIT,  analysis::termLiteral);
         //
@@ -156,6 +159,9 @@ public final class SemanticAnalysis
         walker.register(RootNode.class,                 POST_VISIT, analysis::popScope);
         walker.register(BlockNode.class,                POST_VISIT, analysis::popScope);
         walker.register(FunDeclarationNode.class,       POST_VISIT, analysis::popScope);
+        walker.register(FactDeclarationNode.class,      POST_VISIT, analysis::popScope);
+        walker.register(ClauseDeclarationNode.class,    POST_VISIT, analysis::popScope);
+        walker.register(QueryDeclarationNode.class,     POST_VISIT, analysis::popScope);
 
         // statements
         walker.register(ExpressionStatementNode.class,  PRE_VISIT,  node -> {});
@@ -876,7 +882,7 @@ public final class SemanticAnalysis
         R.set(node,"scope",scope);
         int cpt=node.left_atom.terms.size();
 
-        for(int i=0;i<node.right_atoms.size();i++){ cpt+= node.right_atoms.get(i).terms.size();}
+        for(int i=0;i<node.right_atoms.size();i++){ cpt+= allTerms(node.right_atoms.get(i)).size();}
 
         Attribute[] dependencies = new Attribute[cpt];
         Attribute[] dependecies_= new Attribute[cpt];
@@ -888,12 +894,13 @@ public final class SemanticAnalysis
         cpt=node.left_atom.terms.size();
 
         for(int i=0;i<node.right_atoms.size();i++){
-           for(int j=0;j<node.right_atoms.get(i).terms.size();j++){
-               dependencies[cpt+j]= node.right_atoms.get(i).terms.get(j).attr("type");
+           List<ExpressionNode> terms = allTerms(node.right_atoms.get(i));
+           for(int j=0;j<terms.size();j++){
+               dependencies[cpt+j]= terms.get(j).attr("type");
             //   dependecies_[cpt+j]= node.right_atoms.get(i).terms.get(j).attr("name");
 
            }
-           cpt+=node.right_atoms.get(i).terms.size();
+           cpt+=terms.size();
         }
         R.rule()
             .using(dependencies)
@@ -918,17 +925,56 @@ public final class SemanticAnalysis
                 }
             });**/
 
+        // clauses must be range-restricted: every head variable must appear in the body
+        for (ExpressionNode term: node.left_atom.terms) {
+            if (!(term instanceof ReferenceNode)) continue;
+            String name = ((ReferenceNode) term).name;
+            boolean inBody = node.right_atoms.stream().anyMatch(atom -> allTerms(atom).stream()
+                .anyMatch(it -> it instanceof ReferenceNode
+                    && ((ReferenceNode) it).name.equals(name)));
+            if (!inBody)
+                R.error(new SemanticError(
+                    "head variable " + name + " does not appear in the clause body", null, node));
+        }
+
+        // compared variables must be bound by a body atom or be the result of an aggregate
+        for (ComparisonNode comparison: node.comparisons) {
+            String name = comparedVariable(comparison);
+            if (name == null) continue;
+            boolean bound = node.right_atoms.stream().anyMatch(atom ->
+                atom instanceof AggregateNode
+                    ? variables(atom).indexOf(name) == 0
+                    : variables(atom).contains(name));
+            if (!bound)
+                R.error(new SemanticError("compared variable " + name
+                    + " does not appear in a body atom or as an aggregate result", null, node));
+        }
+
 
     }
     // ---------------------------------------------------------------------------------------------
 
     private void queryDecl(QueryDeclarationNode node){
+        if (node.limit != null && node.limit < 1)
+            R.error(new SemanticError("query limit must be at least 1", null, node));
+        if (node.atom instanceof AggregateNode
+                && (node.limit != null || node.mode != QueryDeclarationNode.Mode.ANSWERS))
+            R.error(new SemanticError("aggregate queries take no modifier", null, node));
+        if (node.atom instanceof AggregateNode && !node.comparisons.isEmpty())
+            R.error(new SemanticError("aggregate queries take no comparison", null, node));
+        for (ComparisonNode comparison: node.comparisons) {
+            String name = comparedVariable(comparison);
+            if (name != null && !(node.atom instanceof AggregateNode)
+                    && !variables(node.atom).contains(name))
+                R.error(new SemanticError(
+                    "compared variable " + name + " does not appear in the query", null, node));
+        }
         scope.declare(node.name(),node);
         scope= new Scope(node,scope);
         R.set(node,"scope",scope);
 
-        Attribute[] dependencies = new Attribute[node.atom.terms.size()];
-        forEachIndexed(node.atom.terms,(i,term)->{
+        Attribute[] dependencies = new Attribute[allTerms(node.atom).size()];
+        forEachIndexed(allTerms(node.atom),(i,term)->{
             dependencies[i]= term.attr("type");
          //   System.out.println(term.attr("name"));
         });
@@ -955,6 +1001,85 @@ public final class SemanticAnalysis
 
     }
 
+    // ---------------------------------------------------------------------------------------------
+
+    private void aggregate (AggregateNode node)
+    {
+        int expected = node.name.equals("count") ? 1 : 2;
+        if (!Arrays.asList("count", "sum", "min", "max").contains(node.name)) {
+            R.error(new SemanticError("unknown aggregate: " + node.name, null, node));
+            return;
+        }
+        if (node.terms.size() != expected) {
+            R.error(new SemanticError(node.name + " takes " + (expected == 1
+                ? "a result variable" : "a result and a value variable"), null, node));
+            return;
+        }
+        String result = ((ReferenceNode) node.terms.get(0)).name;
+        if (variables(node.atom).contains(result))
+            R.error(new SemanticError(
+                "result variable " + result + " appears in the aggregated atom", null, node));
+        String value = expected == 2 ? ((ReferenceNode) node.terms.get(1)).name : null;
+        if (value != null && !variables(node.atom).contains(value))
+            R.error(new SemanticError(
+                "value variable " + value + " does not appear in the aggregated atom", null, node));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void comparison (ComparisonNode node)
+    {
+        if (comparedVariable(node) == null) {
+            R.error(new SemanticError(
+                "a comparison must be between a variable and a number", null, node));
+            return;
+        }
+        ExpressionNode variable = node.left instanceof ReferenceNode ? node.left : node.right;
+        R.rule()
+            .using(variable, "type")
+            .by(r -> {
+                if (!(r.get(0) instanceof TermType))
+                    r.error("non term type found where term type required instead of "
+                        + r.get(0).toString(), node);
+            });
+    }
+
+    /**
+     * The name of the variable compared to a number by {@code node}, or null if the comparison
+     * isn't between a variable and a number.
+     */
+    private static String comparedVariable (ComparisonNode node)
+    {
+        boolean swapped = node.left instanceof TermNode;
+        ExpressionNode variable = swapped ? node.right : node.left;
+        ExpressionNode number = swapped ? node.left : node.right;
+        return variable instanceof ReferenceNode && number instanceof TermNode
+                && Term.of(((TermNode) number).id).numeric
+            ? ((ReferenceNode) variable).name
+            : null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The terms of an atom, followed by those of the aggregated atom if it is an aggregate.
+     */
+    private static List<ExpressionNode> allTerms (AtomNode atom)
+    {
+        if (!(atom instanceof AggregateNode)) return atom.terms;
+        List<ExpressionNode> terms = new ArrayList<>(atom.terms);
+        terms.addAll(((AggregateNode) atom).atom.terms);
+        return terms;
+    }
+
+    private static List<String> variables (AtomNode atom)
+    {
+        List<String> names = new ArrayList<>();
+        for (ExpressionNode term: atom.terms)
+            if (term instanceof ReferenceNode) names.add(((ReferenceNode) term).name);
+        return names;
+    }
+
     // ---------------------------------------------------------------------------------------------
     private void factDecl(FactDeclarationNode node){
         scope.declare(node.name,node);
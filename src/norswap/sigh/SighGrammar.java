@@ -67,6 +67,7 @@ public class SighGrammar extends Grammar
     public rule HASHTAG         = word("#");
     public rule QUERY           = word("-?");
     public rule NECK_OP         = word(":-");
+    public rule BAR             = word("|");
     public rule LOGIC_P         = word("LP");
     public rule LOGIC_PC         = word("LPC");
   //  public rule LOGIC_PQ         = word("LPQ");
@@ -122,8 +123,8 @@ public class SighGrammar extends Grammar
 
     // ==== SYNTACTIC =========================================================
 
-    // #harry
-    public rule term = seq(HASHTAG,identifier)
+    // #harry, #42 (numeric terms are what aggregates sum and compare)
+    public rule term = seq(HASHTAG,choice(identifier,number.word()))
         .push($-> new TermNode($.span(),$.str()));
     // #harry,#louis,#david,#Riadh
    public rule terms = lazy(() ->
@@ -134,7 +135,12 @@ public class SighGrammar extends Grammar
     public rule varLP= identifier
        .push($->new ReferenceNode($.span(),$.str()));
 
-   public rule idNterm= choice(term,varLP); //introduced so facts and clause and query take in #a term or x variable
+    // 42 is the numeric term #42, so that facts can hold integers, ex LP price(#apple, 3)
+    public rule numberTerm = number
+        .push($ -> new TermNode($.span(), "#" + Long.parseLong($.str())))
+        .word();
+
+   public rule idNterm= choice(term,numberTerm,varLP); //introduced so facts and clause and query take in #a term or x variable
     public rule idNterms = lazy(() ->
         this.idNterm.sep(0,COMMA)
             .as_list(ExpressionNode.class));
@@ -171,9 +177,27 @@ public class SighGrammar extends Grammar
         seq(identifier,LPAREN,idNterms,RPAREN)
             .push($->new AtomNode($.span(),$.$[0],$.$[1]));
 
-    //atoms ->   song(22,taylor swift),singer(taylor swift), project(data science)
+    // an aggregate binds its result variable to a function of the answers to an atom, grouped
+    // by the variables shared with the rest of the clause
+    // ex count(n | edge(x, y)), sum(s, t | sale(x, t))
+    public rule aggregate =
+        seq(identifier,LPAREN,varLP.sep(1,COMMA).as_list(ExpressionNode.class),BAR,atom,RPAREN)
+            .push($->new AggregateNode($.span(),$.$[0],$.$[1],$.$[2]));
+
+    // a comparison between a variable and a number, ex p < 10 or 3 <= n
+    public rule lp_cmp_op = choice(
+        LANGLE_EQUAL.as_val(BinaryOperator.LOWER_EQUAL),
+        RANGLE_EQUAL.as_val(BinaryOperator.GREATER_EQUAL),
+        LANGLE      .as_val(BinaryOperator.LOWER),
+        RANGLE      .as_val(BinaryOperator.GREATER));
+
+    public rule comparison =
+        seq(idNterm, lp_cmp_op, idNterm)
+            .push($ -> new ComparisonNode($.span(), $.$[0], $.$[1], $.$[2]));
+
+    //atoms ->   song(22,taylor swift),singer(taylor swift), count(n | song(x, y)), n > 2
     public rule atoms = lazy(() ->
-        this.atom.sep(0,COMMA)
+        choice(this.aggregate,this.atom,this.comparison).sep(0,COMMA)
             .as_list(ExpressionNode.class));
 
     // a clause has the form A :- B, C,D... where A,B,C and D are atoms
@@ -187,8 +211,19 @@ public class SighGrammar extends Grammar
         .push($-> new FactDeclarationNode($.span(),$.$[0],$.$[1]));
 
     //in our language we expect LP -? open(saturday)
-    public rule query = seq(QUERY,atom)
-        .push($-> new QueryDeclarationNode($.span(),$.$[0]));
+    // -?[n] open(x) prints at most n answers, and stops looking for answers after the n-th
+    // -?[explain] open(x) prints how the query would be answered, without answering it
+    // -?[profile] open(x) prints the answers, then what the engine did to find them
+    public rule query_modifier = seq(LSQUARE, choice(
+            integer,
+            word("explain").push($ -> QueryDeclarationNode.Mode.EXPLAIN),
+            word("profile").push($ -> QueryDeclarationNode.Mode.PROFILE)),
+        RSQUARE);
+
+    // -? price(x, p), p < 10 only prints the answers satisfying the comparisons
+    public rule query = seq(QUERY,query_modifier.or_push_null(),choice(aggregate,atom),
+            seq(COMMA, comparison).at_least(0).as_list(ComparisonNode.class))
+        .push($-> new QueryDeclarationNode($.span(),$.$[1],$.$[0],$.$[2]));
 
 
     //------------------------------------------------------------//
@@ -6,6 +6,7 @@ import norswap.autumn.ParseResult;
 import norswap.sigh.ast.SighNode;
 import norswap.sigh.ast.RootNode;
 import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.lp.LogicEngine;
 import norswap.uranium.AttributeTreeFormatter;
 import norswap.uranium.Reactor;
 import norswap.uranium.SemanticError;
@@ -27,12 +28,64 @@ public final class SighRunner
             .wellFormednessCheck(false)
             .get();
 
+    private LogicEngine.Strategy strategy = LogicEngine.Strategy.TABLED;
+    private int parallelism = 1;
+    private long queryTimeout = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * How logic programming queries are answered (default: tabled top-down resolution).
+     */
+    public LogicEngine.Strategy strategy() {
+        return strategy;
+    }
+
+    public void setStrategy (LogicEngine.Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of threads used to evaluate logic programming clauses bottom-up (default: 1).
+     *
+     * <p>Only the {@link LogicEngine.Strategy#BOTTOM_UP} strategy evaluates clauses in parallel:
+     * under the other strategies, including the default one, this setting has no effect.
+     */
+    public int parallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism (int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be >= 1");
+        this.parallelism = parallelism;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Time after which logic programming queries are cancelled, in milliseconds (default: 0, i.e.
+     * no timeout). See {@link LogicEngine#timeout()}.
+     */
+    public long queryTimeout() {
+        return queryTimeout;
+    }
+
+    public void setQueryTimeout (long queryTimeout) {
+        if (queryTimeout < 0) throw new IllegalArgumentException("query timeout must be >= 0");
+        this.queryTimeout = queryTimeout;
+    }
+
     // ---------------------------------------------------------------------------------------------
 
     public Object run(String input) {
         Reactor reactor = new Reactor();
         Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
         Interpreter interpreter = new Interpreter(reactor);
+        interpreter.logic().setStrategy(strategy);
+        interpreter.logic().setParallelism(parallelism);
+        interpreter.logic().setTimeout(queryTimeout);
 
         ParseResult result = Autumn.parse(grammar.root, input, parseOptions);
         if (!result.fullMatch) {
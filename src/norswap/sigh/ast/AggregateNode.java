@@ -0,0 +1,22 @@
+package norswap.sigh.ast;
+
+import norswap.autumn.positions.Span;
+import norswap.utils.Util;
+
+// an aggregate over the answers to an atom, ex count(n | edge(x, y)) or sum(s, t | sale(x, t)):
+// the name is the aggregation function, the terms are the result (and value) variables
+public class AggregateNode extends AtomNode {
+
+    /** The atom whose answers are aggregated. */
+    public final AtomNode atom;
+
+    public AggregateNode (Span span, Object function, Object variables, Object atom) {
+        super(span, function, variables);
+        this.atom = Util.cast(atom, AtomNode.class);
+    }
+
+    @Override public String contents () {
+        return name + "(" + String.join(", ", terms.stream().map(ExpressionNode::contents)
+            .toArray(String[]::new)) + " | " + atom.name + atom.contents() + ")";
+    }
+}
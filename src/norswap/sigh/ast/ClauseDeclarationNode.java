@@ -2,6 +2,7 @@ package norswap.sigh.ast;
 
 import norswap.autumn.positions.Span;
 import norswap.utils.Util;
+import java.util.ArrayList;
 import java.util.List;
 
 
@@ -11,10 +12,20 @@ public class ClauseDeclarationNode extends DeclarationNode {
     public final AtomNode left_atom;
     public final List<AtomNode> right_atoms;
 
+    /** The comparisons of the body, ex p < 10 (parsed among the atoms, but kept apart). */
+    public final List<ComparisonNode> comparisons;
+
+    @SuppressWarnings("unchecked")
     public ClauseDeclarationNode (Span span, Object left_atom, Object right_atoms) {
         super(span);
         this.left_atom= Util.cast(left_atom, AtomNode.class);
-        this.right_atoms=Util.cast(right_atoms,List.class);
+        List<ExpressionNode> body = Util.cast(right_atoms, List.class);
+        this.right_atoms = new ArrayList<>();
+        this.comparisons = new ArrayList<>();
+        for (ExpressionNode node: body) {
+            if (node instanceof ComparisonNode) comparisons.add((ComparisonNode) node);
+            else this.right_atoms.add((AtomNode) node);
+        }
     }
 
 
@@ -0,0 +1,22 @@
+package norswap.sigh.ast;
+
+import norswap.autumn.positions.Span;
+import norswap.utils.Util;
+
+// a comparison between a variable and a number in a clause body or query, ex p < 10 or 3 <= n
+public final class ComparisonNode extends ExpressionNode
+{
+    public final ExpressionNode left, right;
+    public final BinaryOperator operator;
+
+    public ComparisonNode (Span span, Object left, Object operator, Object right) {
+        super(span);
+        this.left = Util.cast(left, ExpressionNode.class);
+        this.right = Util.cast(right, ExpressionNode.class);
+        this.operator = Util.cast(operator, BinaryOperator.class);
+    }
+
+    @Override public String contents () {
+        return String.format("%s %s %s", left.contents(), operator.string, right.contents());
+    }
+}
@@ -2,6 +2,7 @@ package norswap.sigh.ast;
 
 import norswap.autumn.positions.Span;
 import norswap.utils.Util;
+import java.util.ArrayList;
 import java.util.List;
 
 public class QueryDeclarationNode extends DeclarationNode{
@@ -14,9 +15,43 @@ public class QueryDeclarationNode extends DeclarationNode{
 
     }**/
   public final AtomNode atom;
+
+  /** What the query prints. */
+  public enum Mode {
+      /** The answers. */
+      ANSWERS,
+      /** How the query would be answered ({@code -?[explain]}), without answering it. */
+      EXPLAIN,
+      /** The answers, then what was done to find them ({@code -?[profile]}). */
+      PROFILE
+  }
+
+  /** Maximum number of answers to print, or null to print all of them. */
+  public final Long limit;
+
+  public final Mode mode;
+
+  /** The comparisons restricting the answers, ex p < 10 in -? price(x, p), p < 10. */
+  public final List<ComparisonNode> comparisons;
+
   public QueryDeclarationNode(Span span, Object node){
+      this(span, node, null);
+  }
+
+  /**
+   * @param modifier null, the limit ({@link IntLiteralNode}) or the {@link Mode} of the query
+   */
+  public QueryDeclarationNode(Span span, Object node, Object modifier){
+      this(span, node, modifier, new ArrayList<ComparisonNode>());
+  }
+
+  @SuppressWarnings("unchecked")
+  public QueryDeclarationNode(Span span, Object node, Object modifier, Object comparisons){
       super(span);
       this.atom=Util.cast(node,AtomNode.class);
+      this.limit= modifier instanceof IntLiteralNode ? ((IntLiteralNode) modifier).value : null;
+      this.mode= modifier instanceof Mode ? (Mode) modifier : Mode.ANSWERS;
+      this.comparisons= Util.cast(comparisons, List.class);
   }
 
     @Override
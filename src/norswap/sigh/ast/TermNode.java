@@ -1,6 +1,7 @@
 package norswap.sigh.ast;
 
 import norswap.autumn.positions.Span;
+import norswap.sigh.lp.TermDictionary;
 import norswap.utils.Util;
 
 // a term is a symbol that is representative of a predicate, variable... (we'll use it as a primitive type)
@@ -10,9 +11,13 @@ public class TermNode extends ExpressionNode {
 
     public final String value;
 
+    /** Id of the term in {@link TermDictionary#GLOBAL}, assigned at parse time. */
+    public final int id;
+
     public TermNode (Span span, Object value) {
         super(span);
         this.value = Util.cast(value, String.class);
+        this.id = TermDictionary.GLOBAL.intern(this.value);
        // System.out.println("yo inside term constructor: "+name);
     }
     public String value(){return value;}
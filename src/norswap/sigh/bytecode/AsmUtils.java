@@ -143,6 +143,20 @@ public final class AsmUtils {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Emits a virtual invocation on the visitor for a method with the given name and parameter
+     * types in the class.
+     */
+    public static void invokeVirtual (
+            MethodVisitor visitor, Class<?> klass, String method,
+            Class<?>... parameterTypes) {
+
+        visitor.visitMethodInsn(INVOKEVIRTUAL, slashBinaryName(klass), method,
+            methodDescriptor(klass, method, parameterTypes), false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Returns a {@link Handle} for a the static method with the given Emits a static invocation on
      * the visitor for a method with the given name and parameter types in the class.
@@ -2,6 +2,13 @@ package norswap.sigh.bytecode;
 
 import norswap.sigh.ast.*;
 import norswap.sigh.interpreter.Constructor;
+import norswap.sigh.lp.Aggregate;
+import norswap.sigh.lp.Atom;
+import norswap.sigh.lp.Comparison;
+import norswap.sigh.lp.CompiledRule;
+import norswap.sigh.lp.LogicEngine;
+import norswap.sigh.lp.Rule;
+import norswap.sigh.lp.Term;
 import norswap.sigh.scopes.Scope;
 import norswap.sigh.scopes.SyntheticDeclarationNode;
 import norswap.sigh.types.*;
@@ -14,10 +21,15 @@ import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static norswap.sigh.ast.BinaryOperator.*;
@@ -30,8 +42,8 @@ import static org.objectweb.asm.Opcodes.*;
 /**
  * <h2>Limitations</h2>
  * <ul>
- *     <li>The compiled code currently doesn't support closures (using variables in functions that
- *     are declared in some surroudning scopes outside the function).</li>
+ *     <li>Nested functions are compiled to static methods named after them, so functions declared
+ *     in different scopes must have different names.</li>
  * </ul>
  *
  * <h2>Data Representation</h2>
@@ -45,10 +57,52 @@ import static org.objectweb.asm.Opcodes.*;
  *     arrays, object arrays (e.g. {@code Object[][]}).</li>
  *     <li>Structs: A Java class encoding the structure, in the default package and using the
  *     structure's name.</li>
- *     <li>TODO: Functions: a {@link MethodHandle} to the method that implements the function in
- *     bytecode.</li>
+ *     <li>Functions: a {@link MethodHandle} to the method that implements the function in
+ *     bytecode, called with {@link MethodHandle#invokeExact} when the function is a value.</li>
  *     <li>Types: the {@link Class} object for the type representation. {@code Type} itself (the
  *     type of types) is represented by {@code Class.class}.</li>
+ *     <li>{@code Term}: {@link Term}</li>
+ * </ul>
+ *
+ * <h2>Closures</h2>
+ * <ul>
+ *     <li>The variables that a function captures from the functions or top-level code enclosing
+ *     it (see {@link Captures}) are passed to it as extra parameters, after its declared
+ *     parameters. Functions that capture nothing are compiled and called as other functions.</li>
+ *     <li>Captured variables that are never assigned after their declaration are passed by value.
+ *     The others are held in cells (arrays of one element) wherever they are used, and the cells
+ *     are passed instead, so that assignments are seen by all the functions.</li>
+ *     <li>When a function that captures variables is used as a value, its method handle is bound
+ *     to the captured values (see {@link MethodHandles#insertArguments}).</li>
+ * </ul>
+ *
+ * <h2>Templates</h2>
+ * <ul>
+ *     <li>Template functions are compiled once for each type argument they are called with, to a
+ *     method named after the function and the type argument (e.g. {@code sum$Int}), in which the
+ *     template parameter is replaced by the type argument. Templates that are never called are not
+ *     compiled.</li>
+ * </ul>
+ *
+ * <h2>Logic Programming</h2>
+ * <ul>
+ *     <li>The facts and rules of the program are held by a {@link LogicEngine} stored in the static
+ *     {@code logic} field of the container class. It answers queries with the same default
+ *     strategy as the interpreter's engine, unless configured otherwise through that field.</li>
+ *     <li>Each clause is compiled to a class implementing {@link CompiledRule} (see {@link
+ *     RuleCompiler}), named after the container with a {@code $Rule<N>} suffix. Bottom-up
+ *     evaluation runs it instead of its generic join.</li>
+ *     <li>Each query is compiled in the same way (as a rule whose head and body are the query
+ *     atom, in a {@code $Query<N>} class), and run through {@link SighRuntime#query}. Queries
+ *     with a limit ({@code -?[n]}) are not compiled: their answers are pulled lazily from the
+ *     engine. Neither are {@code -?[explain]} and {@code -?[profile]} queries, which are run
+ *     through {@link SighRuntime#explain} and {@link SighRuntime#profile}.</li>
+ *     <li>Clauses and queries with aggregates are not compiled either: the engine rewrites the
+ *     former (see {@link LogicEngine}), and the latter are run through {@link
+ *     SighRuntime#aggregate}.</li>
+ *     <li>The {@link Rule} and {@link Aggregate} objects of the clauses and queries are built once
+ *     from their parts, in the static initializer of the container, and held in its static {@code
+ *     $logic<N>} fields.</li>
  * </ul>
  *
  * <h2>Useful Links</h2>
@@ -61,18 +115,14 @@ import static org.objectweb.asm.Opcodes.*;
  */
 public class BytecodeCompiler
 {
-    // TODO: test with the interpreter tests (merge)
-    //       test getting actual return value from run
     // TODO: reference resolution test
     // TODO: check that a string variable is equal to itself
     // TODO: test with existing example source files
-    // TODO: inner methods should have name mangling
     // TODO: complete documentation (null, runtime, ...)
     // TODO: check (type) utils for ASM & GeneratorAdapter
     // TODO: prune util classes?
     // TODO: add a top type, and make print take it and convert
     //       (further: is operator, casts, flow casts)
-    // TODO: function objects
     // TODO: simplify with https://asm.ow2.io/javadoc/org/objectweb/asm/commons/GeneratorAdapter.html ?
 
     // ---------------------------------------------------------------------------------------------
@@ -99,6 +149,7 @@ public class BytecodeCompiler
         visitor.register(UnaryExpressionNode.class,      this::unaryExpression);
         visitor.register(BinaryExpressionNode.class,     this::binaryExpression);
         visitor.register(AssignmentNode.class,           this::assignment);
+        visitor.register(TermNode.class,                 this::termLiteral);
 
         // statement groups & declarations
         visitor.register(RootNode.class,                 this::root);
@@ -108,11 +159,16 @@ public class BytecodeCompiler
         visitor.register(ParameterNode.class,            this::parameter);
         visitor.register(FunDeclarationNode.class,       this::funDecl);
         visitor.register(StructDeclarationNode.class,    this::structDecl);
+        visitor.register(FactDeclarationNode.class,      this::factDecl);
+        visitor.register(ClauseDeclarationNode.class,    this::clauseDecl);
+        visitor.register(QueryDeclarationNode.class,     this::queryDecl);
+        visitor.register(GenericDeclarationNode.class,   this::genericDecl);
 
         // statements
         visitor.register(ExpressionStatementNode.class,  this::expressionStmt);
         visitor.register(IfNode.class,                   this::ifStmt);
         visitor.register(WhileNode.class,                this::whileStmt);
+        visitor.register(ForNode.class,                  this::forStmt);
         visitor.register(ReturnNode.class,               this::returnStmt);
     }
 
@@ -132,11 +188,26 @@ public class BytecodeCompiler
      * defined in the source unit. */
     ArrayList<Pair<String, ClassWriter>> structs = new ArrayList<>();
 
+    /** The classes implementing the clauses and queries of the source unit. */
+    private final ArrayList<GeneratedClass> rules = new ArrayList<>();
+
+    /** Number of compiled queries, used to name their classes. */
+    private int queryCounter = 0;
+
+    /** Whether the source unit uses logic programming, i.e. needs a {@code logic} field. */
+    private boolean usesLogic = false;
+
+    /** Rules and aggregates held in the {@code $logic<N>} fields of the container, in order. */
+    private final ArrayList<Object> logicConstants = new ArrayList<>();
+
     /* MethodVisitor for current method. */
     private MethodVisitor method;
 
-    /** Maps variables in a scope to a variable index. */
-    private final HashMap<Pair<Scope, String>, Integer> variables = new HashMap<>();
+    /** Maps variables in a scope to a variable index, in the current method. */
+    private HashMap<Pair<Scope, String>, Integer> variables = new HashMap<>();
+
+    /** Variables captured by the functions of the source unit. */
+    private Captures captures;
 
     /** Counter used to number variables in {@link #variables}. */
     private int variableCounter = 0;
@@ -144,6 +215,15 @@ public class BytecodeCompiler
     /** Whether we are in top-level code. */
     private boolean topLevel;
 
+    /** Return type of the function being compiled, if not in top-level code. */
+    private Type returnType;
+
+    /** Type arguments of the template instances being compiled, by template parameter. */
+    private final HashMap<GenericDeclarationNode, Type> typeArguments = new HashMap<>();
+
+    /** Names of the methods compiled for the instances of template functions. */
+    private final HashSet<String> instances = new HashSet<>();
+
     // ---------------------------------------------------------------------------------------------
 
     /**
@@ -153,11 +233,13 @@ public class BytecodeCompiler
     public CompilationResult compile (String binaryName, SighNode root)
     {
         this.containerName = binaryName.replace('.', '/');
+        this.captures = Captures.analyze(reactor, root);
         run(root);
         GeneratedClass mainClass = new GeneratedClass(containerName, container.toByteArray());
         List<GeneratedClass> structClasses = structs.stream()
             .map(it -> new GeneratedClass(it.a, it.b.toByteArray()))
             .collect(Collectors.toList());
+        structClasses.addAll(rules);
 
         return new CompilationResult(mainClass, structClasses);
     }
@@ -186,6 +268,7 @@ public class BytecodeCompiler
         method.visitInsn(ARETURN);
         method.visitEnd();
         method.visitMaxs(-1, -1);
+        if (usesLogic) logicField();
         container.visitEnd();
 
         // Traditional java main method to run standalone.
@@ -208,17 +291,51 @@ public class BytecodeCompiler
 
     private Object funDecl (FunDeclarationNode node)
     {
+        // templates are compiled when called, see #instance
+        if (node.genericParam == null)
+            function(node, node.name, reactor.get(node, "type"));
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the function declared by {@code node}, whose type is {@code type}, to a static
+     * method of the container called {@code name}.
+     */
+    private void function (FunDeclarationNode node, String name, FunType type)
+    {
+        HashMap<Pair<Scope, String>, Integer> surroundingVariables = variables;
         int surroundingVariableCounter = variableCounter;
         MethodVisitor surroundingMethod = method;
         boolean surroundingIsTopLevel = topLevel;
+        Type surroundingReturnType = returnType;
 
+        variables = new HashMap<>();
         variableCounter = 0;
         topLevel = false;
+        returnType = type.returnType;
         node.parameters.forEach(this::run);
+        for (DeclarationNode variable: captures.captured(node))
+            registerVariable(variable, asmType(variableType(variable)));
 
-        String descriptor = methodDescriptor(reactor.get(node, "type"));
-        method = container.visitMethod(ACC_PUBLIC | ACC_STATIC, node.name, descriptor, null, null);
+        String descriptor = functionDescriptor(node, type);
+        method = container.visitMethod(ACC_PUBLIC | ACC_STATIC, name, descriptor, null, null);
         method.visitCode();
+
+        // move the parameters held in cells to their cell
+        for (ParameterNode parameter: node.parameters) {
+            if (!captures.isCell(parameter)) continue;
+            org.objectweb.asm.Type asmType = nodeAsmType(parameter);
+            newCell(type(parameter));
+            method.visitInsn(DUP);
+            loadConstant(method, 0);
+            method.visitVarInsn(asmType.getOpcode(ILOAD), varIndex(parameter));
+            method.visitInsn(asmType.getOpcode(IASTORE));
+            int cell = registerVariable(parameter, asmType(variableType(parameter)));
+            method.visitVarInsn(ASTORE, cell);
+        }
+
         run(node.block);
 
         // NOTE: The current semantic analysis check guarantee that there is we unconditionally
@@ -233,8 +350,85 @@ public class BytecodeCompiler
         method.visitMaxs(-1, -1);
 
         method = surroundingMethod;
+        variables = surroundingVariables;
         variableCounter = surroundingVariableCounter;
         topLevel = surroundingIsTopLevel;
+        returnType = surroundingReturnType;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the name of the method implementing {@code template} for the type argument {@code
+     * argument}, compiling it the first time the instance is called.
+     */
+    private String instance (FunDeclarationNode template, Type argument)
+    {
+        String name = template.name + "$" + argument.name().replace("[]", "$Array");
+        if (!instances.add(name)) return name;
+        Type surroundingArgument = typeArguments.put(template.genericParam, argument);
+        function(template, name, instanceType(template, argument));
+        bind(template.genericParam, surroundingArgument);
+        return name;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the type of the instance of {@code template} for the type argument {@code argument}.
+     */
+    private FunType instanceType (FunDeclarationNode template, Type argument)
+    {
+        Type surroundingArgument = typeArguments.put(template.genericParam, argument);
+        Type returnType = substitute(reactor.get(template.returnType, "value"));
+        Type[] paramTypes = template.parameters.stream()
+            .map(it -> substitute(reactor.get(it, "type")))
+            .toArray(Type[]::new);
+        bind(template.genericParam, surroundingArgument);
+        return new FunType(returnType, paramTypes);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the descriptor of the method implementing the function declared by {@code node},
+     * whose type is {@code type}: its parameters are followed by the variables it captures.
+     */
+    private String functionDescriptor (FunDeclarationNode node, FunType type)
+    {
+        List<DeclarationNode> captured = captures.captured(node);
+        int arity = type.paramTypes.length;
+        Type[] paramTypes = Arrays.copyOf(type.paramTypes, arity + captured.size());
+        for (int i = 0; i < captured.size(); ++i)
+            paramTypes[arity + i] = variableType(captured.get(i));
+        return methodDescriptor(type.returnType, paramTypes);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes the variables captured by {@code function}, in the order of its extra parameters.
+     */
+    private void loadCaptures (FunDeclarationNode function)
+    {
+        for (DeclarationNode variable: captures.captured(function))
+            method.visitVarInsn(asmType(variableType(variable)).getOpcode(ILOAD),
+                varIndex(variable));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Binds {@code param} to {@code argument}, or unbinds it if {@code argument} is null. */
+    private void bind (GenericDeclarationNode param, Type argument)
+    {
+        if (argument == null) typeArguments.remove(param);
+        else typeArguments.put(param, argument);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object genericDecl (GenericDeclarationNode node) {
+        // bound when the template is instantiated
         return null;
     }
 
@@ -255,6 +449,13 @@ public class BytecodeCompiler
         return null;
     }
 
+    private Object termLiteral (TermNode node) {
+        // term ids are only valid within a JVM, so intern the term by name at run time
+        method.visitLdcInsn(node.value);
+        invokeStatic(method, Term.class, "of", String.class);
+        return null;
+    }
+
     // ---------------------------------------------------------------------------------------------
 
     private Object parenthesized (ParenthesizedNode node) {
@@ -265,7 +466,7 @@ public class BytecodeCompiler
 
     private Object arrayLiteral (ArrayLiteralNode node)
     {
-        ArrayType type = reactor.get(node, "type");
+        ArrayType type = (ArrayType) type(node);
         Type compType = type.componentType;
 
         method.visitLdcInsn(node.components.size());
@@ -283,9 +484,11 @@ public class BytecodeCompiler
         } else if (compType instanceof StringType) {
             method.visitTypeInsn(ANEWARRAY, "java/lang/String");
         } else if (compType instanceof TypeType) {
-            method.visitTypeInsn(ANEWARRAY, "norswap/sigh/types/TypeType");
+            method.visitTypeInsn(ANEWARRAY, "java/lang/Class");
+        } else if (compType instanceof TermType) {
+            method.visitTypeInsn(ANEWARRAY, "norswap/sigh/lp/Term");
         } else if (compType instanceof FunType) {
-            throw new UnsupportedOperationException("TODO"); // TODO
+            method.visitTypeInsn(ANEWARRAY, "java/lang/invoke/MethodHandle");
         } else if (compType instanceof NullType) {
             method.visitTypeInsn(ANEWARRAY, "norswap/sigh/bytecode/Null");
         } else if (compType instanceof VoidType || compType instanceof ArrayType) {
@@ -316,8 +519,8 @@ public class BytecodeCompiler
 
         run(node.left);
 
-        Type left  = reactor.get(node.left, "type");
-        Type right = reactor.get(node.right, "type");
+        Type left  = type(node.left);
+        Type right = type(node.right);
 
         // promote long to double for mixed operations
         if (enablesPromotion(node.operator) && left instanceof IntType && right instanceof FloatType)
@@ -359,6 +562,8 @@ public class BytecodeCompiler
             case LOWER_EQUAL:
                 comparison(node.operator, IFLE, -1, -1, left, right); break;
 
+            case XOR: method.visitInsn(IXOR); break;
+
             // default: throw an exception
         }
 
@@ -420,15 +625,18 @@ public class BytecodeCompiler
             method.visitLdcInsn("null");
         } else if (type instanceof ArrayType) {
             Type component = ((ArrayType) type).componentType;
-            if (component.isPrimitive())
+            if (component.isPrimitive() && !(component instanceof TermType))
                 invokeStatic(method, Arrays.class, "toString", javaArrayClass(component));
             else
                 invokeStatic(method, Arrays.class, "deepToString", Object[].class);
         } else if (type instanceof TypeType) {
-            // String.valueOf -> Type#toString -> Type#name
+            invokeStatic(method, SighRuntime.class, "typeName", Class.class);
+        } else if (type instanceof TermType) {
+            // String.valueOf -> Term#toString -> Term#name
             invokeStatic(method, String.class, "valueOf", Object.class);
         } else if (type instanceof FunType) {
-            throw new UnsupportedOperationException("TODO"); // TODO
+            // String.valueOf -> MethodHandle#toString
+            invokeStatic(method, String.class, "valueOf", Object.class);
         } else if (type instanceof StructType) {
             // String.valueOf -> Object#toString (or override)
             invokeStatic(method, String.class, "valueOf", Object.class);
@@ -498,10 +706,15 @@ public class BytecodeCompiler
 
     private Object unaryExpression (UnaryExpressionNode node)
     {
-        // there is only NOT
-        assert node.operator == UnaryOperator.NOT;
-
         run(node.operand);
+
+        // ++ and -- don't assign their operand
+        if (node.operator != UnaryOperator.NOT) {
+            loadConstant(method, 1L);
+            method.visitInsn(node.operator == UnaryOperator.INCRE ? LADD : LSUB);
+            return null;
+        }
+
         Label falseLabel = new Label();
         Label endLabel = new Label();
         method.visitJumpInsn(IF_ZERO, falseLabel);
@@ -529,41 +742,60 @@ public class BytecodeCompiler
     private Object funCall (FunCallNode node)
     {
         FunType funType = reactor.get(node.function, "type");
+        DeclarationNode decl = node.function instanceof ReferenceNode
+            ? reactor.get(node.function, "decl")
+            : null;
 
-        // The function part can either be a reference, in which case we emit a call,
-        // or a more complex expression, which will evaluate to a lambda.
+        // The function part can either be a reference to a function, in which case we emit a call,
+        // or a more complex expression, which will evaluate to a method handle.
 
-        if (node.function instanceof ReferenceNode) {
-            DeclarationNode decl = reactor.get(node.function, "decl");
-            if (decl instanceof SyntheticDeclarationNode) {
-                return builtin(funType, decl.name(), node.arguments);
-            }
-            else if (decl instanceof FunDeclarationNode) {
-                runArguments(funType, node.arguments);
-                method.visitMethodInsn(INVOKESTATIC, containerName,
-                    decl.name(), methodDescriptor(funType), false);
-            }
-            else { // TODO
-                throw new UnsupportedOperationException("variables or parameters containing a function value");
+        if (decl instanceof SyntheticDeclarationNode) {
+            return builtin(funType, decl.name(), node.arguments);
+        }
+        else if (decl instanceof FunDeclarationNode) {
+            FunDeclarationNode fun = (FunDeclarationNode) decl;
+            String name = fun.name;
+            if (fun.genericParam != null) {
+                Type argument = typeArgument(node);
+                funType = instanceType(fun, argument);
+                name = instance(fun, argument);
             }
+            runArguments(funType, node.arguments);
+            loadCaptures(fun);
+            method.visitMethodInsn(INVOKESTATIC, containerName,
+                name, functionDescriptor(fun, funType), false);
         }
         else if (node.function instanceof ConstructorNode) {
-            StructDeclarationNode decl = reactor.get(((ConstructorNode) node.function).ref, "decl");
-            String binaryName = structBinaryName(reactor.get(decl, "declared"));
+            StructDeclarationNode structDecl =
+                reactor.get(((ConstructorNode) node.function).ref, "decl");
+            String binaryName = structBinaryName(reactor.get(structDecl, "declared"));
             method.visitTypeInsn(NEW, binaryName);
             method.visitInsn(DUP);
             runArguments(funType, node.arguments);
             String descriptor = methodDescriptor(VoidType.INSTANCE, funType.paramTypes);
             method.visitMethodInsn(INVOKESPECIAL, binaryName, "<init>", descriptor, false);
         }
-        else
-            throw new UnsupportedOperationException("complex expression evaluating to a function value");
+        else {
+            run(node.function);
+            runArguments(funType, node.arguments);
+            method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle",
+                "invokeExact", methodDescriptor(funType), false);
+        }
 
         return null;
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns the type argument of a call to a template function.
+     */
+    private Type typeArgument (FunCallNode node) {
+        return substitute(reactor.get(node.expectedReturnType, "value"));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object builtin (FunType funType, String name, List<ExpressionNode> arguments)
     {
         assert name.equals("print"); // only one at the moment
@@ -586,7 +818,7 @@ public class BytecodeCompiler
     {
         Vanilla.forEachIndexed(arguments, (i, arg) -> {
             run(arg);
-            implicitConversion(funType.paramTypes[i], reactor.get(arg, "type"));
+            implicitConversion(funType.paramTypes[i], type(arg));
         });
     }
 
@@ -594,12 +826,7 @@ public class BytecodeCompiler
 
     private Object expressionStmt (ExpressionStatementNode node) {
         run(node.expression);
-        if (node.expression instanceof AssignmentNode)
-            pop(reactor.get(node.expression, "type"));
-        else if (node.expression instanceof FunCallNode) {
-            Type type = reactor.get(node.expression, "type");
-            if (!(type instanceof VoidType)) pop(type);
-        }
+        discard(type(node.expression));
         return null;
     }
 
@@ -617,18 +844,19 @@ public class BytecodeCompiler
         }
 
         run(node.expression);
+        Type type = type(node.expression);
 
         if (topLevel) {
-            Type type = reactor.get(node.expression, "type");
-            if (type instanceof IntType)
-                invokeStatic(method, Long.class, "valueOf", long.class);
-            else if (type instanceof FloatType)
-                invokeStatic(method, Double.class, "valueOf", double.class);
-            else if (type instanceof BoolType)
-                invokeStatic(method, Boolean.class, "valueOf", boolean.class);
+            box(type);
+            if (type instanceof NullType) {
+                method.visitInsn(POP);
+                method.visitFieldInsn(GETSTATIC, "norswap/sigh/bytecode/Null", "INSTANCE",
+                    "Lnorswap/sigh/bytecode/Null;");
+            }
             method.visitInsn(ARETURN);
         } else {
-            method.visitInsn(nodeAsmType(node.expression).getOpcode(IRETURN));
+            implicitConversion(returnType, type);
+            method.visitInsn(asmType(returnType).getOpcode(IRETURN));
         }
 
         return null;
@@ -677,13 +905,36 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
+    private Object forStmt (ForNode node)
+    {
+        Label startLabel = new Label();
+        Label endLabel = new Label();
+        run(node.initialization);
+        method.visitLabel(startLabel);
+        run(node.condition);
+        method.visitJumpInsn(IFEQ, endLabel);
+        run(node.body);
+        run(node.indec);
+        discard(type(node.indec));
+        method.visitJumpInsn(GOTO, startLabel);
+        method.visitLabel(endLabel);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object reference (ReferenceNode node)
     {
         DeclarationNode decl = reactor.get(node, "decl");
 
-        // TODO distinguish local variables from closures
         if (decl instanceof VarDeclarationNode || decl instanceof ParameterNode) {
-            method.visitVarInsn(nodeAsmType(node).getOpcode(ILOAD), varIndex(node));
+            if (captures.isCell(decl)) {
+                method.visitVarInsn(ALOAD, varIndex(node));
+                loadConstant(method, 0);
+                method.visitInsn(nodeAsmType(node).getOpcode(IALOAD));
+            } else {
+                method.visitVarInsn(nodeAsmType(node).getOpcode(ILOAD), varIndex(node));
+            }
         }
         else if (decl instanceof StructDeclarationNode) {
             // NOTE: This is not used when the reference is part of a constructor call, the
@@ -695,32 +946,54 @@ public class BytecodeCompiler
             // NOTE: This is not used when the reference is part of a function call, the resolution
             // is handled in #funCall.
 
-            // TODO proper handling/representation of function object
-            //  For now I use a method handle. There is no way to use it in the language however.
+            FunDeclarationNode fun = (FunDeclarationNode) decl;
             method.visitLdcInsn(new Handle(
-                H_INVOKESTATIC, containerName, decl.name(),
-                methodDescriptor(reactor.get(decl, "type")), false));
+                H_INVOKESTATIC, containerName, fun.name,
+                functionDescriptor(fun, reactor.get(fun, "type")), false));
+
+            List<DeclarationNode> captured = captures.captured(fun);
+            if (!captured.isEmpty()) {
+                // bind the extra parameters to the captured variables
+                loadConstant(method, fun.parameters.size());
+                loadConstant(method, captured.size());
+                method.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+                for (int i = 0; i < captured.size(); ++i) {
+                    DeclarationNode variable = captured.get(i);
+                    Type type = variableType(variable);
+                    method.visitInsn(DUP);
+                    loadConstant(method, i);
+                    method.visitVarInsn(asmType(type).getOpcode(ILOAD), varIndex(variable));
+                    box(type);
+                    method.visitInsn(AASTORE);
+                }
+                invokeStatic(method, MethodHandles.class, "insertArguments",
+                    MethodHandle.class, int.class, Object[].class);
+            }
         }
         else if (decl instanceof SyntheticDeclarationNode) {
+            // class constants can't be primitive: load the TYPE field of the wrapper class
             switch (decl.name()) {
                 case "Bool":
-                    method.visitLdcInsn(org.objectweb.asm.Type.getType(boolean.class));
+                    method.visitFieldInsn(GETSTATIC, "java/lang/Boolean", "TYPE", CLASS_DESCRIPTOR);
                     break;
                 case "Int":
-                    method.visitLdcInsn(org.objectweb.asm.Type.getType(long.class));
+                    method.visitFieldInsn(GETSTATIC, "java/lang/Long", "TYPE", CLASS_DESCRIPTOR);
                     break;
                 case "Float":
-                    method.visitLdcInsn(org.objectweb.asm.Type.getType(double.class));
+                    method.visitFieldInsn(GETSTATIC, "java/lang/Double", "TYPE", CLASS_DESCRIPTOR);
                     break;
                 case "String":
                     method.visitLdcInsn(org.objectweb.asm.Type.getType(String.class));
                     break;
                 case "Void":
-                    method.visitLdcInsn(org.objectweb.asm.Type.getType(void.class));
+                    method.visitFieldInsn(GETSTATIC, "java/lang/Void", "TYPE", CLASS_DESCRIPTOR);
                     break;
                 case "Type":
                     method.visitLdcInsn(org.objectweb.asm.Type.getType(Class.class));
                     break;
+                case "Term":
+                    method.visitLdcInsn(org.objectweb.asm.Type.getType(Term.class));
+                    break;
                 case "print":
                     // TODO cf FunDeclarationNode case above
                     method.visitLdcInsn(staticHandle(SighRuntime.class, "print", String.class));
@@ -735,15 +1008,28 @@ public class BytecodeCompiler
         return null;
     }
 
+    private static final String CLASS_DESCRIPTOR = "Ljava/lang/Class;";
+
     // ---------------------------------------------------------------------------------------------
 
     private Object varDecl (VarDeclarationNode node)
     {
         org.objectweb.asm.Type type = nodeAsmType(node);
-        int index = registerVariable(node, type);
+        boolean cell = captures.isCell(node);
+        int index = registerVariable(node, cell ? asmType(variableType(node)) : type);
+        if (cell) {
+            newCell(type(node));
+            method.visitInsn(DUP);
+            loadConstant(method, 0);
+        }
         run(node.initializer);
         implicitConversion(node, node.initializer);
-        method.visitVarInsn(type.getOpcode(ISTORE), index);
+        if (cell) {
+            method.visitInsn(type.getOpcode(IASTORE));
+            method.visitVarInsn(ASTORE, index);
+        } else {
+            method.visitVarInsn(type.getOpcode(ISTORE), index);
+        }
         // LATER: method.visitLocalVariable for debug information
         // https://stackoverflow.com/questions/28633731
         return null;
@@ -760,7 +1046,16 @@ public class BytecodeCompiler
 
     public Object assignment (AssignmentNode node)
     {
-        if (node.left instanceof ReferenceNode) {
+        if (node.left instanceof ReferenceNode && captures.isCell(reactor.get(node.left, "decl"))) {
+            ReferenceNode left = (ReferenceNode) node.left;
+            method.visitVarInsn(ALOAD, varIndex(left));
+            loadConstant(method, 0);
+            run(node.right);
+            Type type = implicitConversion(node, node.right);
+            dup_x2(type);
+            method.visitInsn(nodeAsmType(node).getOpcode(IASTORE));
+        }
+        else if (node.left instanceof ReferenceNode) {
             ReferenceNode left = (ReferenceNode) node.left;
             run(node.right);
             Type type = implicitConversion(node, node.right);
@@ -783,8 +1078,8 @@ public class BytecodeCompiler
             run(node.right);
             Type type = implicitConversion(node, node.right);
             dup_x1(type);
-            StructType structType = reactor.get(left.stem, "type");
-            Type fieldType = reactor.get(node, "type");
+            StructType structType = (StructType) type(left.stem);
+            Type fieldType = type(node);
             method.visitFieldInsn(PUTFIELD, structBinaryName(structType), left.fieldName,
                 fieldDescriptor(fieldType));
         }
@@ -836,9 +1131,16 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object fieldAccess (FieldAccessNode node) {
+    private Object fieldAccess (FieldAccessNode node)
+    {
         run(node.stem);
-        String binaryName = asmType(reactor.get(node.stem, "type")).getClassName();
+        Type stemType = type(node.stem);
+        if (stemType instanceof ArrayType) { // length is the only field of arrays
+            method.visitInsn(ARRAYLENGTH);
+            method.visitInsn(I2L);
+            return null;
+        }
+        String binaryName = asmType(stemType).getClassName();
         method.visitFieldInsn(GETFIELD, binaryName, node.fieldName, nodeFieldDescriptor(node));
         return null;
     }
@@ -850,6 +1152,294 @@ public class BytecodeCompiler
         return null;
     }
 
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Declares the static {@code logic} field of the container and its {@code $logic<N>} fields
+     * (see {@link #loadLogicConstant}), and initializes them in the static initializer.
+     */
+    private void logicField ()
+    {
+        container.visitField(ACC_PUBLIC | ACC_STATIC, "logic", LOGIC_DESCRIPTOR, null, null);
+        MethodVisitor clinit = container.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        clinit.visitCode();
+        invokeStatic(clinit, SighRuntime.class, "logicEngine");
+        clinit.visitFieldInsn(PUTSTATIC, containerName, "logic", LOGIC_DESCRIPTOR);
+        for (int i = 0; i < logicConstants.size(); ++i) {
+            Object constant = logicConstants.get(i);
+            String descriptor = AsmUtils.fieldDescriptor(constant.getClass());
+            container.visitField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL,
+                "$logic" + i, descriptor, null, null);
+            IdentityHashMap<String[], Integer> varNames = new IdentityHashMap<>();
+            if (constant instanceof Rule)
+                newRule(clinit, (Rule) constant, varNames);
+            else
+                newAggregate(clinit, (Aggregate) constant, varNames);
+            clinit.visitFieldInsn(PUTSTATIC, containerName, "$logic" + i, descriptor);
+        }
+        clinit.visitInsn(RETURN);
+        clinit.visitMaxs(-1, -1);
+        clinit.visitEnd();
+    }
+
+    private static final String LOGIC_DESCRIPTOR = AsmUtils.fieldDescriptor(LogicEngine.class);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes a copy of {@code rule}, built from its parts with {@code visitor}. The variable names
+     * arrays shared by its atoms are created once and kept in local variables, whose indexes are
+     * recorded in {@code varNames}.
+     */
+    private static void newRule (
+            MethodVisitor visitor, Rule rule, IdentityHashMap<String[], Integer> varNames)
+    {
+        visitor.visitTypeInsn(NEW, slashBinaryName(Rule.class));
+        visitor.visitInsn(DUP);
+        newAtom(visitor, rule.head, varNames);
+        newArray(visitor, Atom.class, rule.body, atom -> newAtom(visitor, atom, varNames));
+        newArray(visitor, Aggregate.class, rule.aggregates,
+            aggregate -> newAggregate(visitor, aggregate, varNames));
+        newArray(visitor, Comparison.class, rule.comparisons,
+            comparison -> newComparison(visitor, comparison, varNames));
+        // the body atoms are bounded by the comparisons again
+        visitor.visitMethodInsn(INVOKESPECIAL, slashBinaryName(Rule.class), "<init>",
+            AsmUtils.methodDescriptor(void.class,
+                Atom.class, Atom[].class, Aggregate[].class, Comparison[].class),
+            false);
+    }
+
+    /**
+     * Pushes a copy of {@code atom}, see {@link #newRule}. Term ids are only valid within a JVM, so
+     * the constants are interned by name.
+     */
+    private static void newAtom (
+            MethodVisitor visitor, Atom atom, IdentityHashMap<String[], Integer> varNames)
+    {
+        visitor.visitTypeInsn(NEW, slashBinaryName(Atom.class));
+        visitor.visitInsn(DUP);
+        visitor.visitLdcInsn(atom.predicate);
+        loadConstant(visitor, atom.arity());
+        visitor.visitIntInsn(NEWARRAY, T_INT);
+        for (int i = 0; i < atom.arity(); ++i) {
+            if (atom.vars[i] != Atom.CONSTANT) continue;
+            visitor.visitInsn(DUP);
+            loadConstant(visitor, i);
+            visitor.visitLdcInsn(Term.of(atom.terms[i]).name);
+            invokeStatic(visitor, Term.class, "of", String.class);
+            visitor.visitFieldInsn(GETFIELD, slashBinaryName(Term.class), "id", "I");
+            visitor.visitInsn(IASTORE);
+        }
+        loadConstant(visitor, atom.arity());
+        visitor.visitIntInsn(NEWARRAY, T_INT);
+        for (int i = 0; i < atom.arity(); ++i) {
+            visitor.visitInsn(DUP);
+            loadConstant(visitor, i);
+            loadConstant(visitor, atom.vars[i]);
+            visitor.visitInsn(IASTORE);
+        }
+        loadVarNames(visitor, atom.varNames, varNames);
+        visitor.visitMethodInsn(INVOKESPECIAL, slashBinaryName(Atom.class), "<init>",
+            AsmUtils.methodDescriptor(void.class, String.class, int[].class, int[].class,
+                String[].class),
+            false);
+    }
+
+    /**
+     * Pushes a copy of {@code aggregate}, see {@link #newRule}.
+     */
+    private static void newAggregate (
+            MethodVisitor visitor, Aggregate aggregate, IdentityHashMap<String[], Integer> varNames)
+    {
+        visitor.visitTypeInsn(NEW, slashBinaryName(Aggregate.class));
+        visitor.visitInsn(DUP);
+        visitor.visitFieldInsn(GETSTATIC, slashBinaryName(Aggregate.Function.class),
+            aggregate.function.name(), AsmUtils.fieldDescriptor(Aggregate.Function.class));
+        loadConstant(visitor, aggregate.result);
+        loadConstant(visitor, aggregate.value);
+        newAtom(visitor, aggregate.atom, varNames);
+        visitor.visitMethodInsn(INVOKESPECIAL, slashBinaryName(Aggregate.class), "<init>",
+            AsmUtils.methodDescriptor(void.class,
+                Aggregate.Function.class, int.class, int.class, Atom.class),
+            false);
+    }
+
+    /**
+     * Pushes a copy of {@code comparison}, see {@link #newRule}.
+     */
+    private static void newComparison (
+            MethodVisitor visitor, Comparison comparison,
+            IdentityHashMap<String[], Integer> varNames)
+    {
+        visitor.visitTypeInsn(NEW, slashBinaryName(Comparison.class));
+        visitor.visitInsn(DUP);
+        loadConstant(visitor, comparison.var);
+        visitor.visitFieldInsn(GETSTATIC, slashBinaryName(Comparison.Operator.class),
+            comparison.operator.name(), AsmUtils.fieldDescriptor(Comparison.Operator.class));
+        visitor.visitLdcInsn(comparison.value);
+        loadVarNames(visitor, comparison.varNames, varNames);
+        visitor.visitMethodInsn(INVOKESPECIAL, slashBinaryName(Comparison.class), "<init>",
+            AsmUtils.methodDescriptor(void.class,
+                int.class, Comparison.Operator.class, long.class, String[].class),
+            false);
+    }
+
+    /**
+     * Pushes a new array holding the given elements, each pushed by {@code newElement}.
+     */
+    private static <T> void newArray (
+            MethodVisitor visitor, Class<T> type, T[] elements, Consumer<T> newElement)
+    {
+        loadConstant(visitor, elements.length);
+        visitor.visitTypeInsn(ANEWARRAY, slashBinaryName(type));
+        for (int i = 0; i < elements.length; ++i) {
+            visitor.visitInsn(DUP);
+            loadConstant(visitor, i);
+            newElement.accept(elements[i]);
+            visitor.visitInsn(AASTORE);
+        }
+    }
+
+    /**
+     * Pushes a copy of the {@code names} array, which is created the first time and stored in the
+     * local variable recorded for it in {@code varNames}, so that its copy is shared as well.
+     */
+    private static void loadVarNames (
+            MethodVisitor visitor, String[] names, IdentityHashMap<String[], Integer> varNames)
+    {
+        Integer local = varNames.get(names);
+        if (local != null) {
+            visitor.visitVarInsn(ALOAD, local);
+            return;
+        }
+        loadConstant(visitor, names.length);
+        visitor.visitTypeInsn(ANEWARRAY, slashBinaryName(String.class));
+        for (int i = 0; i < names.length; ++i) {
+            visitor.visitInsn(DUP);
+            loadConstant(visitor, i);
+            visitor.visitLdcInsn(names[i]);
+            visitor.visitInsn(AASTORE);
+        }
+        visitor.visitInsn(DUP);
+        visitor.visitVarInsn(ASTORE, varNames.size());
+        varNames.put(names, varNames.size());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes {@code constant} (a {@link Rule} or an {@link Aggregate}), which is held in a static
+     * field of the container, so that it is built once rather than each time it is used.
+     */
+    private void loadLogicConstant (Object constant)
+    {
+        logicConstants.add(constant);
+        method.visitFieldInsn(GETSTATIC, containerName, "$logic" + (logicConstants.size() - 1),
+            AsmUtils.fieldDescriptor(constant.getClass()));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object factDecl (FactDeclarationNode node)
+    {
+        usesLogic = true;
+        method.visitFieldInsn(GETSTATIC, containerName, "logic", LOGIC_DESCRIPTOR);
+        method.visitLdcInsn(node.name);
+        loadConstant(method, node.terms.size());
+        method.visitIntInsn(NEWARRAY, T_INT);
+        int i = 0;
+        for (ExpressionNode term: node.terms) {
+            method.visitInsn(DUP);
+            loadConstant(method, i++);
+            run(term);
+            method.visitFieldInsn(GETFIELD, "norswap/sigh/lp/Term", "id", "I");
+            method.visitInsn(IASTORE);
+        }
+        invokeVirtual(method, LogicEngine.class, "addFact", String.class, int[].class);
+        method.visitInsn(POP);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object clauseDecl (ClauseDeclarationNode node)
+    {
+        usesLogic = true;
+        Rule rule = Rule.of(node);
+        if (rule.aggregates.length > 0 || rule.comparisons.length > 0) { // not compiled
+            method.visitFieldInsn(GETSTATIC, containerName, "logic", LOGIC_DESCRIPTOR);
+            loadLogicConstant(rule);
+            invokeVirtual(method, LogicEngine.class, "addRule", Rule.class);
+            return null;
+        }
+        String binaryName = containerName + "$Rule" + (rules.size() - queryCounter);
+        rules.add(RuleCompiler.compile(binaryName, rule));
+
+        method.visitFieldInsn(GETSTATIC, containerName, "logic", LOGIC_DESCRIPTOR);
+        loadLogicConstant(rule);
+        newInstance(binaryName);
+        invokeVirtual(method, LogicEngine.class, "addRule", Rule.class, CompiledRule.class);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object queryDecl (QueryDeclarationNode node)
+    {
+        usesLogic = true;
+        if (node.atom instanceof AggregateNode) {
+            method.visitFieldInsn(GETSTATIC, containerName, "logic", LOGIC_DESCRIPTOR);
+            loadLogicConstant(Aggregate.of((AggregateNode) node.atom));
+            invokeStatic(method, SighRuntime.class, "aggregate",
+                LogicEngine.class, Aggregate.class);
+            return null;
+        }
+        Atom atom = Atom.translate(Collections.singletonList(node.atom))[0];
+        Rule query = new Rule(atom, new Atom[] { atom }, new Aggregate[0],
+            Comparison.of(node.comparisons, atom.varNames));
+
+        if (node.mode != QueryDeclarationNode.Mode.ANSWERS) { // the rule isn't compiled
+            method.visitFieldInsn(GETSTATIC, containerName, "logic", LOGIC_DESCRIPTOR);
+            loadLogicConstant(query);
+            invokeStatic(method, SighRuntime.class,
+                node.mode == QueryDeclarationNode.Mode.EXPLAIN ? "explain" : "profile",
+                LogicEngine.class, Rule.class);
+            return null;
+        }
+
+        // answers are pulled from a stream, the rule isn't compiled
+        if (node.limit != null || query.comparisons.length > 0) {
+            method.visitFieldInsn(GETSTATIC, containerName, "logic", LOGIC_DESCRIPTOR);
+            loadLogicConstant(query);
+            method.visitLdcInsn(node.limit != null ? node.limit : Long.MAX_VALUE);
+            invokeStatic(method, SighRuntime.class, "query",
+                LogicEngine.class, Rule.class, long.class);
+            return null;
+        }
+
+        String binaryName = containerName + "$Query" + queryCounter++;
+        rules.add(RuleCompiler.compile(binaryName, query));
+
+        method.visitFieldInsn(GETSTATIC, containerName, "logic", LOGIC_DESCRIPTOR);
+        loadLogicConstant(query);
+        newInstance(binaryName);
+        invokeStatic(method, SighRuntime.class, "query",
+            LogicEngine.class, Rule.class, CompiledRule.class);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes a new instance of the given class, using its no-argument constructor.
+     */
+    private void newInstance (String binaryName)
+    {
+        method.visitTypeInsn(NEW, binaryName);
+        method.visitInsn(DUP);
+        method.visitMethodInsn(INVOKESPECIAL, binaryName, "<init>", "()V", false);
+    }
+
     // =============================================================================================
     // region [Utilities]
     // =============================================================================================
@@ -859,7 +1449,7 @@ public class BytecodeCompiler
      * given node.
      */
     private org.objectweb.asm.Type nodeAsmType (SighNode node) {
-        return asmType(reactor.get(node, "type"));
+        return asmType(type(node));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -868,7 +1458,68 @@ public class BytecodeCompiler
      * Return the JVM field descriptor for the given node, which must have a {@code type} attribute.
      */
     private String nodeFieldDescriptor (SighNode node) {
-        return fieldDescriptor(reactor.get(node, "type"));
+        return fieldDescriptor(type(node));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the {@code type} attribute of the given node, in which the template parameters are
+     * replaced by the type arguments of the template instances being compiled.
+     *
+     * <p>Semantic analysis gives the template parameter as type to the calls of template functions
+     * and to the binary expressions over values of template types (or no type at all, when the
+     * operands are calls): their actual type is derived from the type argument of the call and from
+     * the types of the operands.
+     */
+    private Type type (SighNode node)
+    {
+        Type type = reactor.get(node, "type");
+        if (type != null && !(type instanceof GenericType))
+            return substitute(type);
+        else if (node instanceof FunCallNode && ((FunCallNode) node).expectedReturnType != null) {
+            FunCallNode call = (FunCallNode) node;
+            FunDeclarationNode template = reactor.get(call.function, "decl");
+            return instanceType(template, typeArgument(call)).returnType;
+        }
+        else if (node instanceof BinaryExpressionNode) {
+            BinaryExpressionNode binary = (BinaryExpressionNode) node;
+            Type left = type(binary.left);
+            Type right = type(binary.right);
+            boolean string = left instanceof StringType || right instanceof StringType;
+            if (binary.operator == ADD && string)
+                return StringType.INSTANCE;
+            else if (isArithmetic(binary.operator))
+                return left instanceof FloatType || right instanceof FloatType
+                    ? FloatType.INSTANCE
+                    : IntType.INSTANCE;
+            else
+                return BoolType.INSTANCE;
+        }
+        else if (node instanceof ParenthesizedNode)
+            return type(((ParenthesizedNode) node).expression);
+        else
+            return substitute(type);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Replaces the template parameters in {@code type} by their type arguments.
+     */
+    private Type substitute (Type type)
+    {
+        if (type instanceof GenericType) {
+            Type argument = typeArguments.get(((GenericType) type).node);
+            if (argument == null) throw new Error("unbound template parameter: " + type);
+            return argument;
+        }
+        else if (type instanceof ArrayType) {
+            Type component = ((ArrayType) type).componentType;
+            Type substituted = substitute(component);
+            return substituted == component ? type : new ArrayType(substituted);
+        }
+        return type;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -904,6 +1555,55 @@ public class BytecodeCompiler
         return variables.get(new Pair<>((Scope) reactor.get(node, "scope"), node.name));
     }
 
+    /**
+     * Returns the variable index for the given variable or parameter declaration.
+     */
+    private int varIndex (DeclarationNode node) {
+        return variables.get(new Pair<>((Scope) reactor.get(node, "scope"), node.name()));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the type of the local variable holding the given variable or parameter: an array
+     * of one element if it is held in a cell, see {@link Captures}.
+     */
+    private Type variableType (DeclarationNode node) {
+        return captures.isCell(node) ? new ArrayType(type(node)) : type(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes a new cell (array of one element) for a variable of the given type.
+     */
+    private void newCell (Type type)
+    {
+        org.objectweb.asm.Type asmType = asmType(type);
+        loadConstant(method, 1);
+        switch (asmType.getSort()) {
+            case org.objectweb.asm.Type.LONG:    method.visitIntInsn(NEWARRAY, T_LONG);    break;
+            case org.objectweb.asm.Type.DOUBLE:  method.visitIntInsn(NEWARRAY, T_DOUBLE);  break;
+            case org.objectweb.asm.Type.BOOLEAN: method.visitIntInsn(NEWARRAY, T_BOOLEAN); break;
+            default: method.visitTypeInsn(ANEWARRAY, asmType.getInternalName());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Boxes the value at the top of the stack, of type {@code type}, if it is primitive.
+     */
+    private void box (Type type)
+    {
+        if (type instanceof IntType)
+            invokeStatic(method, Long.class, "valueOf", long.class);
+        else if (type instanceof FloatType)
+            invokeStatic(method, Double.class, "valueOf", double.class);
+        else if (type instanceof BoolType)
+            invokeStatic(method, Boolean.class, "valueOf", boolean.class);
+    }
+
     // ---------------------------------------------------------------------------------------------
 
     /**
@@ -925,7 +1625,7 @@ public class BytecodeCompiler
      * Like {@link #implicitConversion(Type, Type)}, using the type attributes of the passed nodes.
      */
     private Type implicitConversion (SighNode left, SighNode right) {
-        return implicitConversion((Type) reactor.get(left,  "type"), reactor.get(right, "type"));
+        return implicitConversion(type(left), type(right));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -980,6 +1680,17 @@ public class BytecodeCompiler
             method.visitInsn(POP);
     }
 
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pops the value of an expression whose value is not used, of type {@code type}, unless it is
+     * void.
+     */
+    private void discard (Type type) {
+        if (!(type instanceof VoidType))
+            pop(type);
+    }
+
     // endregion
     // ---------------------------------------------------------------------------------------------
 }
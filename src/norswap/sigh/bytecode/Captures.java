@@ -0,0 +1,163 @@
+package norswap.sigh.bytecode;
+
+import norswap.sigh.ast.*;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * Finds the variables that the functions of a source unit capture from the functions (or the
+ * top-level code) that enclose them, for {@link BytecodeCompiler}.
+ *
+ * <p>A function captures the variables (and parameters) declared outside of it that it uses. It
+ * also captures the variables captured by the functions it calls or uses as values, unless it
+ * declares them itself: these functions receive their captured variables as extra parameters, so
+ * their callers must have them at hand.
+ *
+ * <p>Captured variables that are assigned after their declaration are held in cells, so that the
+ * functions sharing them see each other's assignments. The others are passed by value.
+ */
+final class Captures
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+
+    /** Functions enclosing the node being visited, innermost first. */
+    private final ArrayDeque<FunDeclarationNode> enclosing = new ArrayDeque<>();
+
+    /** Function declaring each variable and parameter (top-level variables are absent). */
+    private final HashMap<DeclarationNode, FunDeclarationNode> owners = new HashMap<>();
+
+    /** Variables, parameters and functions referenced in the body of each function, outside of
+     * the functions it declares. */
+    private final LinkedHashMap<FunDeclarationNode, LinkedHashSet<DeclarationNode>> uses =
+        new LinkedHashMap<>();
+
+    /** Variables and parameters that are assigned after their declaration. */
+    private final HashSet<DeclarationNode> assigned = new HashSet<>();
+
+    /** Variables captured by each function, in a fixed order. */
+    private final HashMap<FunDeclarationNode, LinkedHashSet<DeclarationNode>> captured =
+        new HashMap<>();
+
+    private final HashSet<DeclarationNode> cells = new HashSet<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Captures (Reactor reactor) {
+        this.reactor = reactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Finds the variables captured by the functions declared in the source unit whose root node is
+     * {@code root}, which must have been analyzed by {@code reactor}.
+     */
+    static Captures analyze (Reactor reactor, SighNode root)
+    {
+        Captures captures = new Captures(reactor);
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+
+        walker.register(FunDeclarationNode.class,  PRE_VISIT,  captures::enterFunction);
+        walker.register(FunDeclarationNode.class,  POST_VISIT, node -> captures.enclosing.pop());
+        walker.register(VarDeclarationNode.class,  PRE_VISIT,  captures::declaration);
+        walker.register(ParameterNode.class,       PRE_VISIT,  captures::declaration);
+        walker.register(ReferenceNode.class,       PRE_VISIT,  captures::reference);
+        walker.register(AssignmentNode.class,      PRE_VISIT,  captures::assignment);
+        walker.registerFallback(PRE_VISIT,  node -> {});
+        walker.registerFallback(POST_VISIT, node -> {});
+
+        walker.walk(root);
+        captures.propagate();
+        return captures;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the variables captured by {@code function}, in the order in which it receives them.
+     */
+    List<DeclarationNode> captured (FunDeclarationNode function) {
+        return new ArrayList<>(captured.get(function));
+    }
+
+    /**
+     * Whether the given variable or parameter is held in a cell.
+     */
+    boolean isCell (DeclarationNode variable) {
+        return cells.contains(variable);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void enterFunction (FunDeclarationNode node)
+    {
+        enclosing.push(node);
+        uses.put(node, new LinkedHashSet<>());
+        captured.put(node, new LinkedHashSet<>());
+    }
+
+    private void declaration (DeclarationNode node)
+    {
+        if (!enclosing.isEmpty())
+            owners.put(node, enclosing.peek());
+    }
+
+    private void reference (ReferenceNode node)
+    {
+        DeclarationNode decl = reactor.get(node, "decl");
+        if (enclosing.isEmpty()) return;
+        if (decl instanceof VarDeclarationNode || decl instanceof ParameterNode
+                || decl instanceof FunDeclarationNode)
+            uses.get(enclosing.peek()).add(decl);
+    }
+
+    private void assignment (AssignmentNode node)
+    {
+        if (node.left instanceof ReferenceNode)
+            assigned.add(reactor.get(node.left, "decl"));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Computes the captured variables of every function, iterating until a fixpoint is reached,
+     * since functions can call each other recursively.
+     */
+    private void propagate ()
+    {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (FunDeclarationNode function: uses.keySet()) {
+                LinkedHashSet<DeclarationNode> captures = captured.get(function);
+                for (DeclarationNode decl: uses.get(function)) {
+                    if (!(decl instanceof FunDeclarationNode)) {
+                        if (owners.get(decl) != function) changed |= captures.add(decl);
+                        continue;
+                    }
+                    for (DeclarationNode variable: captured.get(decl))
+                        if (owners.get(variable) != function) changed |= captures.add(variable);
+                }
+            }
+        }
+
+        for (LinkedHashSet<DeclarationNode> captures: captured.values())
+            for (DeclarationNode variable: captures)
+                if (assigned.contains(variable)) cells.add(variable);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
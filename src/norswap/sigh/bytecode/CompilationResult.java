@@ -22,7 +22,8 @@ public final class CompilationResult
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * The generated classes corresponding to structures defined in the source unit.
+     * The other generated classes: the structures defined in the source unit, and the compiled
+     * clauses and queries (see {@link BytecodeCompiler}).
      */
     public final List<GeneratedClass> structures;
 
@@ -0,0 +1,524 @@
+package norswap.sigh.bytecode;
+
+import norswap.sigh.lp.Atom;
+import norswap.sigh.lp.CompiledRule;
+import norswap.sigh.lp.FactStore;
+import norswap.sigh.lp.HashIndex;
+import norswap.sigh.lp.Relation;
+import norswap.sigh.lp.Rule;
+import norswap.sigh.lp.Term;
+import norswap.sigh.lp.TermDictionary;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import java.util.HashMap;
+import java.util.function.Consumer;
+
+import static norswap.sigh.bytecode.AsmUtils.*;
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Compiles a {@link Rule} to a class implementing {@link CompiledRule}.
+ *
+ * <p>The class has one static method {@code fire$K} per body atom {@code K}, which joins the body
+ * with atom {@code K} in the outermost loop. The other atoms follow in a fixed order: at each
+ * step, the atom with the most bound columns (constants and variables bound by previous atoms).
+ * Each atom becomes a loop whose shape depends on its bound columns:
+ *
+ * <ul>
+ *     <li>no bound column: a loop over the rows of the relation;</li>
+ *     <li>all columns bound: a single lookup in the relation's deduplication set;</li>
+ *     <li>otherwise: a loop over the rows of the group of a {@link HashIndex} on the bound
+ *     columns (built before the join starts).</li>
+ * </ul>
+ *
+ * <p>Variables live in JVM locals (one per rule variable) rather than in a bindings array, and
+ * the term ids of constants are looked up once per call.
+ */
+final class RuleCompiler
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final String RULE     = slashBinaryName(CompiledRule.class);
+    private static final String STORE    = slashBinaryName(FactStore.class);
+    private static final String RELATION = slashBinaryName(Relation.class);
+    private static final String INDEX    = slashBinaryName(HashIndex.class);
+    private static final String TERM     = slashBinaryName(Term.class);
+    private static final String CONSUMER = slashBinaryName(Consumer.class);
+
+    private static final String FIRE_DESCRIPTOR =
+        "(L" + STORE + ";[I[IL" + CONSUMER + ";)Z";
+
+    // parameters of the fire$K methods
+    private static final int STORE_PARAM = 0, FROM_PARAM = 1, TO_PARAM = 2, OUT_PARAM = 3;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Rule rule;
+    private MethodVisitor method;
+
+    private int localCounter;
+    private int[] varLocals;
+    private HashMap<Integer, Integer> constantLocals;
+    private int headLocal;
+
+    // per body atom
+    private int[] relationLocals, indexLocals, keyLocals, fromLocals, endLocals;
+
+    /** Bitmask of the columns looked up in an index or in the deduplication set, per atom. */
+    private int[] masks;
+
+    /** Whether the variable is bound before the atom currently emitted. */
+    private boolean[] bound;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private RuleCompiler (Rule rule) {
+        this.rule = rule;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles {@code rule} to a class with the given slash-separated binary name, which has a
+     * public no-argument constructor.
+     */
+    static GeneratedClass compile (String binaryName, Rule rule)
+    {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        writer.visit(V1_8, ACC_PUBLIC | ACC_FINAL, binaryName, null, "java/lang/Object",
+            new String[] { RULE });
+
+        MethodVisitor init = writer.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(RETURN);
+        init.visitMaxs(-1, -1);
+        init.visitEnd();
+
+        int n = rule.body.length;
+        MethodVisitor fire = writer.visitMethod(ACC_PUBLIC, "fire",
+            "(IL" + STORE + ";[I[IL" + CONSUMER + ";)Z", null, null);
+        fire.visitCode();
+        Label[] cases = new Label[n];
+        for (int k = 0; k < n; ++k) cases[k] = new Label();
+        Label fallback = new Label();
+        fire.visitVarInsn(ILOAD, 1);
+        fire.visitTableSwitchInsn(0, n - 1, fallback, cases);
+        for (int k = 0; k <= n; ++k) {
+            fire.visitLabel(k < n ? cases[k] : fallback);
+            for (int param = 2; param <= 5; ++param)
+                fire.visitVarInsn(ALOAD, param);
+            fire.visitMethodInsn(INVOKESTATIC, binaryName, "fire$" + (k < n ? k : 0),
+                FIRE_DESCRIPTOR, false);
+            fire.visitInsn(IRETURN);
+        }
+        fire.visitMaxs(-1, -1);
+        fire.visitEnd();
+
+        for (int k = 0; k < n; ++k) {
+            MethodVisitor method = writer.visitMethod(ACC_PRIVATE | ACC_STATIC, "fire$" + k,
+                FIRE_DESCRIPTOR, null, null);
+            new RuleCompiler(rule).fireMethod(method, k);
+        }
+
+        writer.visitEnd();
+        return new GeneratedClass(binaryName, writer.toByteArray());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the order in which the body atoms are joined when atom {@code first} comes first.
+     */
+    static int[] order (Rule rule, int first)
+    {
+        Atom[] body = rule.body;
+        int[] order = new int[body.length];
+        boolean[] placed = new boolean[body.length];
+        boolean[] bound = new boolean[rule.varCount()];
+        order[0] = first;
+        placed[first] = true;
+        bind(body[first], bound);
+
+        for (int k = 1; k < order.length; ++k) {
+            int best = -1;
+            int bestBound = -1;
+            for (int i = 0; i < body.length; ++i) {
+                if (placed[i]) continue;
+                int count = 0;
+                for (int var: body[i].vars)
+                    if (var == Atom.CONSTANT || bound[var]) ++count;
+                if (count > bestBound) {
+                    best = i;
+                    bestBound = count;
+                }
+            }
+            order[k] = best;
+            placed[best] = true;
+            bind(body[best], bound);
+        }
+        return order;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void bind (Atom atom, boolean[] bound) {
+        for (int var: atom.vars)
+            if (var != Atom.CONSTANT) bound[var] = true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int newLocal() {
+        return localCounter++;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void fireMethod (MethodVisitor method, int first)
+    {
+        this.method = method;
+        int[] order = order(rule, first);
+        int n = rule.body.length;
+        localCounter = 4;
+        relationLocals = new int[n];
+        indexLocals = new int[n];
+        keyLocals = new int[n];
+        fromLocals = new int[n];
+        endLocals = new int[n];
+        masks = new int[n];
+        constantLocals = new HashMap<>();
+
+        method.visitCode();
+        prologue(order);
+
+        bound = new boolean[rule.varCount()];
+        emitLevel(order, 0);
+
+        loadConstant(method, 1);
+        method.visitInsn(IRETURN);
+        method.visitMaxs(-1, -1);
+        method.visitEnd();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Looks up the constants, relations and indexes used by the join, and computes the row range
+     * of each atom.
+     */
+    private void prologue (int[] order)
+    {
+        varLocals = new int[rule.varCount()];
+        for (int var = 0; var < varLocals.length; ++var)
+            varLocals[var] = newLocal();
+
+        for (Atom atom: rule.body) loadConstants(atom);
+        loadConstants(rule.head);
+
+        boolean[] bound = new boolean[rule.varCount()];
+        for (int i: order) {
+            Atom atom = rule.body[i];
+
+            // relation = store.find(key); if (relation == null) return true;
+            relationLocals[i] = newLocal();
+            method.visitVarInsn(ALOAD, STORE_PARAM);
+            method.visitLdcInsn(atom.key());
+            method.visitMethodInsn(INVOKEVIRTUAL, STORE, "find",
+                "(Ljava/lang/String;)L" + RELATION + ";", false);
+            method.visitInsn(DUP);
+            method.visitVarInsn(ASTORE, relationLocals[i]);
+            Label exists = new Label();
+            method.visitJumpInsn(IFNONNULL, exists);
+            loadConstant(method, 1);
+            method.visitInsn(IRETURN);
+            method.visitLabel(exists);
+
+            // from = from[i]; end = Math.min(to[i], relation.size());
+            fromLocals[i] = newLocal();
+            method.visitVarInsn(ALOAD, FROM_PARAM);
+            loadConstant(method, i);
+            method.visitInsn(IALOAD);
+            method.visitVarInsn(ISTORE, fromLocals[i]);
+            endLocals[i] = newLocal();
+            method.visitVarInsn(ALOAD, TO_PARAM);
+            loadConstant(method, i);
+            method.visitInsn(IALOAD);
+            method.visitVarInsn(ALOAD, relationLocals[i]);
+            method.visitMethodInsn(INVOKEVIRTUAL, RELATION, "size", "()I", false);
+            method.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "min", "(II)I", false);
+            method.visitVarInsn(ISTORE, endLocals[i]);
+
+            int mask = 0;
+            boolean allBound = true;
+            for (int j = 0; j < atom.arity(); ++j) {
+                int var = atom.vars[j];
+                if (var != Atom.CONSTANT && !bound[var]) allBound = false;
+                else if (j < 31) mask |= 1 << j;
+            }
+
+            if (allBound && atom.arity() > 0) {
+                masks[i] = -1; // deduplication set
+                keyLocals[i] = newArray(atom.arity());
+            } else if (mask != 0) {
+                // index = store.prepareIndex(relation, mask); if (index == null) return false;
+                masks[i] = mask;
+                indexLocals[i] = newLocal();
+                method.visitVarInsn(ALOAD, STORE_PARAM);
+                method.visitVarInsn(ALOAD, relationLocals[i]);
+                loadConstant(method, mask);
+                method.visitMethodInsn(INVOKEVIRTUAL, STORE, "prepareIndex",
+                    "(L" + RELATION + ";I)L" + INDEX + ";", false);
+                method.visitInsn(DUP);
+                method.visitVarInsn(ASTORE, indexLocals[i]);
+                Label built = new Label();
+                method.visitJumpInsn(IFNONNULL, built);
+                loadConstant(method, 0);
+                method.visitInsn(IRETURN);
+                method.visitLabel(built);
+                keyLocals[i] = newArray(Integer.bitCount(mask));
+            }
+            bind(atom, bound);
+        }
+
+        headLocal = newArray(rule.head.arity());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Stores the term id of each constant of {@code atom} in a local, if not done yet.
+     */
+    private void loadConstants (Atom atom)
+    {
+        for (int j = 0; j < atom.arity(); ++j) {
+            if (atom.vars[j] != Atom.CONSTANT || constantLocals.containsKey(atom.terms[j]))
+                continue;
+            int local = newLocal();
+            constantLocals.put(atom.terms[j], local);
+            // the id isn't known at compile time: the class may run in another JVM
+            method.visitLdcInsn(TermDictionary.GLOBAL.name(atom.terms[j]));
+            method.visitMethodInsn(INVOKESTATIC, TERM, "of", "(Ljava/lang/String;)L" + TERM + ";",
+                false);
+            method.visitFieldInsn(GETFIELD, TERM, "id", "I");
+            method.visitVarInsn(ISTORE, local);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Allocates an {@code int} array of the given size in a new local, and returns the local.
+     */
+    private int newArray (int size)
+    {
+        int local = newLocal();
+        loadConstant(method, size);
+        method.visitIntInsn(NEWARRAY, T_INT);
+        method.visitVarInsn(ASTORE, local);
+        return local;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes the value at position {@code j} of {@code atom}, which must be a constant or a bound
+     * variable.
+     */
+    private void loadValue (Atom atom, int j)
+    {
+        int var = atom.vars[j];
+        method.visitVarInsn(ILOAD, var == Atom.CONSTANT
+            ? constantLocals.get(atom.terms[j])
+            : varLocals[var]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the loop for atom {@code order[k]}, enclosing the loops of the following atoms, or the
+     * emission of the head tuple if {@code k == order.length}.
+     */
+    private void emitLevel (int[] order, int k)
+    {
+        if (k == order.length) {
+            Atom head = rule.head;
+            for (int j = 0; j < head.arity(); ++j) {
+                method.visitVarInsn(ALOAD, headLocal);
+                loadConstant(method, j);
+                loadValue(head, j);
+                method.visitInsn(IASTORE);
+            }
+            method.visitVarInsn(ALOAD, OUT_PARAM);
+            method.visitVarInsn(ALOAD, headLocal);
+            method.visitMethodInsn(INVOKEINTERFACE, CONSUMER, "accept", "(Ljava/lang/Object;)V",
+                true);
+            return;
+        }
+
+        int i = order[k];
+        Atom atom = rule.body[i];
+        boolean[] before = bound.clone();
+        Label exit = new Label();
+
+        if (masks[i] == -1)
+            emitCheck(atom, i, order, k, exit);
+        else if (masks[i] != 0)
+            emitProbe(atom, i, order, k, exit);
+        else
+            emitScan(atom, i, order, k, exit);
+
+        method.visitLabel(exit);
+        bound = before;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Atom with all columns bound: {@code row = relation.rowOf(key)}, then checks that {@code row}
+     * is in range.
+     */
+    private void emitCheck (Atom atom, int i, int[] order, int k, Label exit)
+    {
+        fillKey(atom, i, -1);
+        int row = newLocal();
+        method.visitVarInsn(ALOAD, relationLocals[i]);
+        method.visitVarInsn(ALOAD, keyLocals[i]);
+        method.visitMethodInsn(INVOKEVIRTUAL, RELATION, "rowOf", "([I)I", false);
+        method.visitVarInsn(ISTORE, row);
+        method.visitVarInsn(ILOAD, row);
+        method.visitVarInsn(ILOAD, fromLocals[i]);
+        method.visitJumpInsn(IF_ICMPLT, exit);
+        method.visitVarInsn(ILOAD, row);
+        method.visitVarInsn(ILOAD, endLocals[i]);
+        method.visitJumpInsn(IF_ICMPGE, exit);
+        emitLevel(order, k + 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Atom with some columns bound: loops over the rows of the index group for the bound values.
+     */
+    private void emitProbe (Atom atom, int i, int[] order, int k, Label exit)
+    {
+        int index = indexLocals[i];
+        int group = newLocal(), rows = newLocal(), size = newLocal(), j = newLocal();
+        int row = newLocal();
+
+        fillKey(atom, i, masks[i]);
+        method.visitVarInsn(ALOAD, index);
+        method.visitVarInsn(ALOAD, keyLocals[i]);
+        method.visitMethodInsn(INVOKEVIRTUAL, INDEX, "find", "([I)I", false);
+        method.visitVarInsn(ISTORE, group);
+        method.visitVarInsn(ILOAD, group);
+        method.visitJumpInsn(IFLT, exit);
+
+        method.visitVarInsn(ALOAD, index);
+        method.visitVarInsn(ILOAD, group);
+        method.visitMethodInsn(INVOKEVIRTUAL, INDEX, "groupRows", "(I)[I", false);
+        method.visitVarInsn(ASTORE, rows);
+        method.visitVarInsn(ALOAD, index);
+        method.visitVarInsn(ILOAD, group);
+        method.visitMethodInsn(INVOKEVIRTUAL, INDEX, "groupSize", "(I)I", false);
+        method.visitVarInsn(ISTORE, size);
+
+        Label loop = new Label(), next = new Label();
+        loadConstant(method, 0);
+        method.visitVarInsn(ISTORE, j);
+        method.visitLabel(loop);
+        method.visitVarInsn(ILOAD, j);
+        method.visitVarInsn(ILOAD, size);
+        method.visitJumpInsn(IF_ICMPGE, exit);
+
+        method.visitVarInsn(ALOAD, rows);
+        method.visitVarInsn(ILOAD, j);
+        method.visitInsn(IALOAD);
+        method.visitVarInsn(ISTORE, row);
+        method.visitVarInsn(ILOAD, row);
+        method.visitVarInsn(ILOAD, fromLocals[i]);
+        method.visitJumpInsn(IF_ICMPLT, next);
+        method.visitVarInsn(ILOAD, row);
+        method.visitVarInsn(ILOAD, endLocals[i]);
+        method.visitJumpInsn(IF_ICMPGE, exit); // rows are ascending
+
+        unifyRow(atom, i, row, masks[i], next);
+        emitLevel(order, k + 1);
+
+        method.visitLabel(next);
+        method.visitIincInsn(j, 1);
+        method.visitJumpInsn(GOTO, loop);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Atom without bound columns: loops over the rows in range.
+     */
+    private void emitScan (Atom atom, int i, int[] order, int k, Label exit)
+    {
+        int row = newLocal();
+        Label loop = new Label(), next = new Label();
+        method.visitVarInsn(ILOAD, fromLocals[i]);
+        method.visitVarInsn(ISTORE, row);
+        method.visitLabel(loop);
+        method.visitVarInsn(ILOAD, row);
+        method.visitVarInsn(ILOAD, endLocals[i]);
+        method.visitJumpInsn(IF_ICMPGE, exit);
+
+        unifyRow(atom, i, row, 0, next);
+        emitLevel(order, k + 1);
+
+        method.visitLabel(next);
+        method.visitIincInsn(row, 1);
+        method.visitJumpInsn(GOTO, loop);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Fills the key array of atom {@code i} with the values of the columns in {@code mask} (all
+     * columns if -1).
+     */
+    private void fillKey (Atom atom, int i, int mask)
+    {
+        int slot = 0;
+        for (int j = 0; j < atom.arity(); ++j) {
+            if (mask != -1 && (j >= 31 || (mask & (1 << j)) == 0)) continue;
+            method.visitVarInsn(ALOAD, keyLocals[i]);
+            loadConstant(method, slot++);
+            loadValue(atom, j);
+            method.visitInsn(IASTORE);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Unifies {@code atom} with the row in local {@code row} of relation {@code i}: checks the
+     * columns that are bound but not covered by {@code mask} (jumping to {@code fail} on
+     * mismatch), and binds the free variables.
+     */
+    private void unifyRow (Atom atom, int i, int row, int mask, Label fail)
+    {
+        for (int j = 0; j < atom.arity(); ++j) {
+            if (j < 31 && (mask & (1 << j)) != 0) continue;
+            int var = atom.vars[j];
+            method.visitVarInsn(ALOAD, relationLocals[i]);
+            method.visitVarInsn(ILOAD, row);
+            loadConstant(method, j);
+            method.visitMethodInsn(INVOKEVIRTUAL, RELATION, "get", "(II)I", false);
+            if (var == Atom.CONSTANT || bound[var]) {
+                loadValue(atom, j);
+                method.visitJumpInsn(IF_ICMPNE, fail);
+            } else {
+                method.visitVarInsn(ISTORE, varLocals[var]);
+                bound[var] = true; // later occurrences in the atom must agree
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
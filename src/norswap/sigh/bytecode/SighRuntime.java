@@ -1,5 +1,13 @@
 package norswap.sigh.bytecode;
 
+import norswap.sigh.lp.Aggregate;
+import norswap.sigh.lp.AnswerStream;
+import norswap.sigh.lp.Atom;
+import norswap.sigh.lp.CompiledRule;
+import norswap.sigh.lp.LogicEngine;
+import norswap.sigh.lp.QueryCancelledException;
+import norswap.sigh.lp.Rule;
+
 public final class SighRuntime
 {
     /**
@@ -22,4 +30,107 @@ public final class SighRuntime
         System.out.println(string);
         return string;
     }
+
+    /**
+     * Returns the name of the Sigh type whose runtime representation is {@code type}: this is how
+     * types are converted to strings.
+     */
+    public static String typeName (Class<?> type)
+    {
+        if (type == null)           return "null";
+        if (type == long.class)     return "Int";
+        if (type == double.class)   return "Float";
+        if (type == boolean.class)  return "Bool";
+        if (type == void.class)     return "Void";
+        if (type == Class.class)    return "Type";
+        if (type.isArray())         return typeName(type.getComponentType()) + "[]";
+        return type.getSimpleName(); // String, Term and structures
+    }
+
+    /**
+     * Creates the engine holding the facts and rules of a compiled program. It has the engine's
+     * default configuration, like the interpreter's engine, so that both give the same answers
+     * and plans. It can be configured through the {@code logic} field of the compiled class
+     * before the program is run: compiled rules are only used by bottom-up evaluation.
+     */
+    public static LogicEngine logicEngine() {
+        return new LogicEngine();
+    }
+
+    /**
+     * Implementation of Sigh queries: prints each answer to the query, with the query's variables
+     * replaced by their values. Like all queries, it prints why it stopped if it is cancelled (see
+     * {@link LogicEngine#timeout()}).
+     *
+     * @param query the query as a rule whose head and body are the query atom, followed by its
+     *              comparisons (which bound the body atom)
+     * @param compiled the compiled version of that rule
+     */
+    public static void query (LogicEngine engine, Rule query, CompiledRule compiled)
+    {
+        Atom atom = query.body[0];
+        cancellable(() -> engine.query(atom, compiled, b -> System.out.println(atom.toString(b))));
+    }
+
+    /**
+     * Implementation of Sigh queries with a limit: prints at most {@code limit} answers to the
+     * query, pulled lazily from the engine.
+     *
+     * @param query the query as a rule whose head and body are the query atom, followed by its
+     *              comparisons (which bound the body atom)
+     */
+    public static void query (LogicEngine engine, Rule query, long limit)
+    {
+        Atom atom = query.body[0];
+        cancellable(() -> {
+            try (AnswerStream answers = engine.stream(atom, limit)) {
+                while (answers.hasNext())
+                    System.out.println(atom.toString(answers.next()));
+            }
+        });
+    }
+
+    /**
+     * Implementation of aggregate queries: prints the aggregate with its result, if it has one.
+     */
+    public static void aggregate (LogicEngine engine, Aggregate aggregate) {
+        cancellable(() ->
+            engine.query(aggregate, b -> System.out.println(aggregate.toString(b))));
+    }
+
+    /**
+     * Implementation of {@code -?[explain]} queries: prints how the engine would answer the query.
+     *
+     * @param query the query as a rule whose head and body are the query atom, followed by its
+     *              comparisons (which bound the body atom)
+     */
+    public static void explain (LogicEngine engine, Rule query) {
+        System.out.print(engine.explain(query.body[0]));
+    }
+
+    /**
+     * Implementation of {@code -?[profile]} queries: prints each answer to the query, then what
+     * the engine did to find them.
+     *
+     * @param query the query as a rule whose head and body are the query atom, followed by its
+     *              comparisons (which bound the body atom)
+     */
+    public static void profile (LogicEngine engine, Rule query)
+    {
+        Atom atom = query.body[0];
+        cancellable(() ->
+            System.out.print(engine.profile(atom, b -> System.out.println(atom.toString(b)))));
+    }
+
+    /**
+     * Runs {@code query}, printing why it stopped if it is cancelled, like the interpreter.
+     */
+    private static void cancellable (Runnable query)
+    {
+        try {
+            query.run();
+        } catch (QueryCancelledException e) {
+            System.out.println(e.getMessage());
+        }
+    }
 }
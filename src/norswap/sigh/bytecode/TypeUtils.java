@@ -1,6 +1,8 @@
 package norswap.sigh.bytecode;
 
+import norswap.sigh.lp.Term;
 import norswap.sigh.types.*;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Array;
 
 /**
@@ -45,9 +47,11 @@ public final class TypeUtils {
         else if (type instanceof ArrayType)
             return javaArrayClass(((ArrayType) type).componentType);
         else if (type instanceof TypeType)
-            return Type.class;
+            return Class.class;
+        else if (type instanceof TermType)
+            return Term.class;
         else if (type instanceof FunType)
-            throw new UnsupportedOperationException(); // TODO
+            return MethodHandle.class;
         else if (type instanceof StructType)
             return Object.class; // the proper class type is not available at compile time
         else
@@ -80,9 +84,11 @@ public final class TypeUtils {
         else if (type instanceof ArrayType)
             return Array.newInstance(javaClass(((ArrayType) type).componentType)).getClass();
         else if (type instanceof TypeType)
-            return Type[].class;
+            return Class[].class;
+        else if (type instanceof TermType)
+            return Term[].class;
         else if (type instanceof FunType)
-            throw new UnsupportedOperationException(); // TODO
+            return MethodHandle[].class;
         else if (type instanceof StructType)
             return Object[].class; // the proper class type is not available at compile time
         else
@@ -111,9 +117,11 @@ public final class TypeUtils {
         else if (type instanceof ArrayType)
             return "[" + fieldDescriptor(((ArrayType) type).componentType);
         else if (type instanceof TypeType)
-            return "Lnorswap/sigh/types/Type;";
+            return "Ljava/lang/Class;";
+        else if (type instanceof TermType)
+            return "Lnorswap/sigh/lp/Term;";
         else if (type instanceof FunType)
-            throw new UnsupportedOperationException(); // TODO
+            return "Ljava/lang/invoke/MethodHandle;";
         else if (type instanceof StructType)
             return "L" + structBinaryName((StructType) type) + ";";
         else
@@ -1,6 +1,16 @@
 package norswap.sigh.interpreter;
 
 import norswap.sigh.ast.*;
+import norswap.sigh.lp.Aggregate;
+import norswap.sigh.lp.AggregateException;
+import norswap.sigh.lp.AnswerStream;
+import norswap.sigh.lp.Atom;
+import norswap.sigh.lp.Comparison;
+import norswap.sigh.lp.FactStore;
+import norswap.sigh.lp.LogicEngine;
+import norswap.sigh.lp.QueryCancelledException;
+import norswap.sigh.lp.Rule;
+import norswap.sigh.lp.Term;
 import norswap.sigh.scopes.DeclarationKind;
 import norswap.sigh.scopes.RootScope;
 import norswap.sigh.scopes.Scope;
@@ -13,6 +23,7 @@ import norswap.utils.exceptions.Exceptions;
 import norswap.utils.exceptions.NoStackException;
 import norswap.utils.visitors.ValuedVisitor;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -35,6 +46,7 @@ import static norswap.utils.Vanilla.map;
  * <ul>
  *     <li>{@code Int}, {@code Float}, {@code Bool}: {@link Long}, {@link Double}, {@link Boolean}</li>
  *     <li>{@code String}: {@link String}</li>
+ *     <li>{@code Term}: {@link Term} (interned, compared by identity)</li>
  *     <li>{@code null}: {@link Null#INSTANCE}</li>
  *     <li>Arrays: {@code Object[]}</li>
  *     <li>Structs: {@code HashMap<String, Object>}</li>
@@ -43,6 +55,13 @@ import static norswap.utils.Vanilla.map;
  *     represented by {@link Constructor}</li>
  *     <li>Types: the corresponding {@link StructDeclarationNode}</li>
  * </ul>
+ *
+ * <p>Logic programming statements operate on the interpreter's {@link LogicEngine}: {@code LP}
+ * facts and {@code LPC} clauses are added to it, and {@code -?} queries print every answer,
+ * using the engine's query strategy (tabled resolution by default). Queries with a limit ({@code
+ * -?[n]}) pull at most {@code n} answers from an {@link AnswerStream}. A query that exceeds the
+ * engine's {@link LogicEngine#timeout() timeout} prints what it did before being cancelled instead
+ * of its remaining answers, and the program goes on.
  */
 public final class Interpreter
 {
@@ -53,6 +72,7 @@ public final class Interpreter
     private ScopeStorage storage = null;
     private RootScope rootScope;
     private ScopeStorage rootStorage;
+    private final LogicEngine logic = new LogicEngine();
 
     // ---------------------------------------------------------------------------------------------
 
@@ -83,6 +103,9 @@ public final class Interpreter
         visitor.register(RootNode.class,                 this::root);
         visitor.register(BlockNode.class,                this::block);
         visitor.register(VarDeclarationNode.class,       this::varDecl);
+        visitor.register(FactDeclarationNode.class,      this::factDecl);
+        visitor.register(ClauseDeclarationNode.class,    this::clauseDecl);
+        visitor.register(QueryDeclarationNode.class,     this::queryDecl);
         // no need to visitor other declarations! (use fallback)
 
         // statements
@@ -107,6 +130,24 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns the logic engine holding the facts and clauses of the interpreted program.
+     */
+    public LogicEngine logic() {
+        return logic;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the store holding the facts asserted or derived by the interpreted program.
+     */
+    public FactStore facts() {
+        return logic.facts();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object run (SighNode node) {
         try {
             return visitor.apply(node);
@@ -150,7 +191,9 @@ public final class Interpreter
     }
 
     //LP
-    private String termLiteral(TermNode node) {return node.value;}
+    private Term termLiteral (TermNode node) {
+        return Term.of(node.id);
+    }
 
     //----------------------------------------------------------------------------------------------
 
@@ -201,6 +244,13 @@ public final class Interpreter
             return numericOp(node, floating, (Number) left, (Number) right);
         }
 
+        if (leftType instanceof TermType)
+            // terms are interned
+            switch (node.operator) {
+                case EQUALITY:   return left == right;
+                case NOT_EQUALS: return left != right;
+            }
+
         switch (node.operator) {
             case EQUALITY:
                 return  leftType.isPrimitive() ? left.equals(right) : left == right;
@@ -224,7 +274,6 @@ public final class Interpreter
     private boolean xorOp (BinaryExpressionNode node)
     {
         boolean left = get(node.left);
-        System.out.println(left ^ (boolean) get(node.right));
         return  left ^ (boolean) get(node.right);
     }
 
@@ -345,13 +394,13 @@ public final class Interpreter
 
     private Object unaryExpression (UnaryExpressionNode node)
     {
-        // there is only NOT
+        // ++ and -- don't assign their operand
         if(node.operator == UnaryOperator.NOT)
             return ! (boolean) get(node.operand);
         else if (node.operator == UnaryOperator.INCRE)
-            return Integer.valueOf(get(node.operand).toString())+1;
+            return (long) get(node.operand) + 1;
          else
-           return Integer.valueOf(get(node.operand).toString())-1;
+           return (long) get(node.operand) - 1;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -488,8 +537,8 @@ public final class Interpreter
             return ((FunDeclarationNode) arg).name;
         else if (arg instanceof StructDeclarationNode)
             return ((StructDeclarationNode) arg).name;
-        else if (arg instanceof TermNode)
-            return ((TermNode) arg).value;
+        else if (arg instanceof Term)
+            return ((Term) arg).name;
         else if (arg instanceof Constructor)
             return "$" + ((Constructor) arg).declaration.name;
         else
@@ -569,6 +618,70 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
+    private Void factDecl (FactDeclarationNode node)
+    {
+        int[] tuple = new int[node.terms.size()];
+        for (int i = 0; i < tuple.length; ++i)
+            tuple[i] = this.<Term>get(node.terms.get(i)).id;
+        logic.addFact(node.name, tuple);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Void clauseDecl (ClauseDeclarationNode node) {
+        logic.addRule(Rule.of(node));
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Void queryDecl (QueryDeclarationNode node)
+    {
+        try {
+            answer(node);
+        } catch (QueryCancelledException e) {
+            System.out.println(e.getMessage());
+        } catch (AggregateException e) {
+            throw new PassthroughException(e);
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void answer (QueryDeclarationNode node)
+    {
+        if (node.atom instanceof AggregateNode) {
+            Aggregate aggregate = Aggregate.of((AggregateNode) node.atom);
+            logic.query(aggregate,
+                bindings -> System.out.println(aggregate.toString(bindings)));
+            return;
+        }
+        Atom query = Atom.translate(Collections.singletonList(node.atom))[0];
+        Atom atom = query.bounded(Comparison.of(node.comparisons, query.varNames));
+        if (node.mode == QueryDeclarationNode.Mode.EXPLAIN) {
+            System.out.print(logic.explain(atom));
+            return;
+        }
+        if (node.mode == QueryDeclarationNode.Mode.PROFILE) {
+            System.out.print(logic.profile(atom,
+                bindings -> System.out.println(atom.toString(bindings))));
+            return;
+        }
+        if (node.limit == null) {
+            logic.query(atom,
+                bindings -> System.out.println(atom.toString(bindings)));
+            return;
+        }
+        try (AnswerStream answers = logic.stream(atom, node.limit)) {
+            while (answers.hasNext())
+                System.out.println(atom.toString(answers.next()));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private void assign (Scope scope, String name, Object value, Type targetType)
     {
         if (value instanceof Long && targetType instanceof FloatType)
@@ -0,0 +1,275 @@
+package norswap.sigh.lp;
+
+import norswap.sigh.ast.AggregateNode;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * An aggregate atom, such as {@code count(n | edge(x, y))} or {@code sum(s, t | sale(x, t))}: binds
+ * its result variable ({@code n}, {@code s}) to the number of answers to its atom, or to the sum,
+ * minimum or maximum of its value variable ({@code t}) over these answers. The atom shares its
+ * variable numbering with the rule or query the aggregate belongs to.
+ *
+ * <p>In a rule, the answers are grouped by the variables of the atom that also appear in the head,
+ * in the body atoms, or as the result of another aggregate, and the aggregate has one result per
+ * group. Aggregates over the same atom, e.g. {@code sum(s, t | sale(x, t)), max(m, t | sale(x,
+ * t))}, are therefore computed independently. A group only exists if it has answers, so that e.g. a count is never 0,
+ * except when nothing is grouped (in queries, or when the atom shares no variable with the rest of
+ * the rule): then a count or sum over no answers is 0, while a minimum or maximum has no result.
+ *
+ * <p>Sums, minimums and maximums are computed over numeric terms such as {@code #42} or {@code
+ * #-3}, and all results are numeric terms.
+ *
+ * <p>Answers are folded into the {@link Accumulator} of their group as they are produced, and are
+ * never stored: computing an aggregate takes memory proportional to the number of groups, not to
+ * the number of answers.
+ */
+public final class Aggregate
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The aggregation function.
+     */
+    public enum Function
+    {
+        /** The number of answers. */
+        COUNT,
+        /** The sum of the values. */
+        SUM,
+        /** The smallest value. */
+        MIN,
+        /** The largest value. */
+        MAX;
+
+        @Override public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public final Function function;
+
+    /** Number of the variable bound to the result. */
+    public final int result;
+
+    /** Number of the aggregated variable, or {@link Atom#CONSTANT} for {@link Function#COUNT}. */
+    public final int value;
+
+    /** The atom whose answers are aggregated. */
+    public final Atom atom;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Aggregate (Function function, int result, int value, Atom atom)
+    {
+        if ((function == Function.COUNT) != (value == Atom.CONSTANT))
+            throw new IllegalArgumentException(function == Function.COUNT
+                ? "count takes no value variable"
+                : function + " requires a value variable");
+        if (contains(atom, result))
+            throw new IllegalArgumentException(
+                "result variable " + atom.varNames[result] + " appears in the aggregated atom");
+        if (value != Atom.CONSTANT && !contains(atom, value))
+            throw new IllegalArgumentException("value variable " + atom.varNames[value]
+                + " does not appear in the aggregated atom");
+        this.function = function;
+        this.result = result;
+        this.value = value;
+        this.atom = atom;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static boolean contains (Atom atom, int var)
+    {
+        for (int v: atom.vars)
+            if (v == var) return true;
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Translates the given aggregate node (typically a query) to the engine representation, see
+     * {@link Atom#translate}.
+     */
+    public static Aggregate of (AggregateNode node)
+    {
+        Atom[] atoms = Atom.translate(Arrays.asList(node, node.atom));
+        return of(atoms[0], atoms[1]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Builds an aggregate from an atom holding its result and value variables, named after its
+     * function (e.g. {@code sum(s, t)}), and its aggregated atom.
+     */
+    static Aggregate of (Atom variables, Atom atom)
+    {
+        Function function;
+        try {
+            function = Function.valueOf(variables.predicate.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown aggregate: " + variables.predicate);
+        }
+        int expected = function == Function.COUNT ? 1 : 2;
+        if (variables.arity() != expected || variables.vars[0] == Atom.CONSTANT
+                || expected == 2 && variables.vars[1] == Atom.CONSTANT)
+            throw new IllegalArgumentException(function + " takes " + (expected == 1
+                ? "a result variable" : "a result and a value variable"));
+        return new Aggregate(function, variables.vars[0],
+            expected == 2 ? variables.vars[1] : Atom.CONSTANT, atom);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parses an aggregate written like its {@link #toString()}, e.g. {@code count(n | edge(x, y))}.
+     * See {@link Rule#parse}.
+     */
+    public static Aggregate parse (String aggregate)
+    {
+        Rule rule = Rule.parse("aggregate() :- " + aggregate);
+        if (rule.body.length != 0 || rule.aggregates.length != 1)
+            throw new IllegalArgumentException("malformed aggregate: " + aggregate);
+        return rule.aggregates[0];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number denoted by the term with the given id (e.g. 42 for {@code #42}).
+     *
+     * @throws AggregateException if the term isn't numeric
+     */
+    long number (int term)
+    {
+        Term t = Term.of(term);
+        if (!t.numeric)
+            throw new AggregateException(
+                "cannot " + function + " non-numeric term " + t.name + " in " + this);
+        return t.number;
+    }
+
+    /**
+     * Returns the id of the term denoting {@code number}.
+     */
+    static int term (long number) {
+        return TermDictionary.GLOBAL.intern("#" + number);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Renders the aggregate with its result variable replaced by its value in {@code bindings}
+     * (if bound), e.g. {@code count(#3 | edge(x, y))}.
+     */
+    public String toString (int[] bindings)
+    {
+        int result = bindings[this.result];
+        StringBuilder b = new StringBuilder(function.toString()).append('(')
+            .append(result == Atom.UNBOUND
+                ? atom.varNames[this.result]
+                : TermDictionary.GLOBAL.name(result));
+        if (value != Atom.CONSTANT) b.append(", ").append(atom.varNames[value]);
+        return b.append(" | ").append(atom).append(')').toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return toString(atom.freshBindings());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Folds the answers to an aggregate's atom, grouped by the values of some of its variables,
+     * into one running value per group.
+     *
+     * <p>Groups are numbered in order of appearance by a hash set of their keys (a {@link
+     * Relation} whose row numbers are the group numbers), and the running values are kept in an
+     * array indexed by group number.
+     */
+    static final class Accumulator
+    {
+        private final Aggregate aggregate;
+        private final int[] groupVars;
+
+        /** Keys of the groups, or null if nothing is grouped. */
+        private final Relation groups;
+
+        private final int[] key;
+        private long[] values = new long[16];
+        private int size = 0;
+
+        Accumulator (Aggregate aggregate, int[] groupVars)
+        {
+            this.aggregate = aggregate;
+            this.groupVars = groupVars;
+            this.key = new int[groupVars.length];
+            this.groups = groupVars.length == 0 ? null
+                : new Relation("groups", groupVars.length, false, FactStore.Storage.HEAP);
+        }
+
+        /**
+         * Folds the answer with the given bindings (which must bind the group and value variables)
+         * into the value of its group.
+         */
+        void add (int[] bindings)
+        {
+            int group = 0;
+            if (groups != null) {
+                for (int i = 0; i < key.length; ++i) key[i] = bindings[groupVars[i]];
+                group = groups.rowOf(key);
+            }
+            long x = aggregate.function == Function.COUNT
+                ? 1
+                : aggregate.number(bindings[aggregate.value]);
+
+            if (groups == null ? size == 0 : group < 0) {
+                if (groups != null) {
+                    groups.add(key);
+                    group = size;
+                }
+                if (++size > values.length)
+                    values = Arrays.copyOf(values, values.length * 2);
+                values[group] = x;
+                return;
+            }
+            switch (aggregate.function) {
+                case COUNT:
+                case SUM: values[group] = Math.addExact(values[group], x); break;
+                case MIN: values[group] = Math.min(values[group], x); break;
+                case MAX: values[group] = Math.max(values[group], x); break;
+            }
+        }
+
+        /**
+         * Calls {@code onResult} with a tuple holding the key of each group followed by its result
+         * (see the class documentation of {@link Aggregate} for groups without answers). The
+         * tuple is reused between calls.
+         */
+        void results (Consumer<int[]> onResult)
+        {
+            int[] tuple = new int[groupVars.length + 1];
+            if (groups == null && size == 0) {
+                if (aggregate.function == Function.COUNT || aggregate.function == Function.SUM) {
+                    tuple[0] = term(0);
+                    onResult.accept(tuple);
+                }
+                return;
+            }
+            for (int group = 0; group < size; ++group) {
+                for (int i = 0; i < groupVars.length; ++i) tuple[i] = groups.get(group, i);
+                tuple[groupVars.length] = term(values[group]);
+                onResult.accept(tuple);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
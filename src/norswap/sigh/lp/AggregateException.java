@@ -0,0 +1,13 @@
+package norswap.sigh.lp;
+
+/**
+ * Thrown when an {@link Aggregate} can't fold the answers to its atom: when the value of a sum,
+ * min or max is bound to a non-numeric term. This is an error of the program (or of its facts)
+ * rather than of the engine.
+ */
+public final class AggregateException extends IllegalArgumentException
+{
+    AggregateException (String message) {
+        super(message);
+    }
+}
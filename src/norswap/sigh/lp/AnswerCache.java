@@ -0,0 +1,260 @@
+package norswap.sigh.lp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Caches the answers to the queries of a {@link LogicEngine}, so that repeating a query between
+ * fact insertions doesn't evaluate it again.
+ *
+ * <p>Queries are identified by their atom: predicate, constants, which positions hold the same
+ * variable, and the bounds of its positions (see {@link Comparison}). The answers are stored as a
+ * relation of ground instances of the atom.
+ *
+ * <p>Every predicate has a version counter, incremented when a fact is asserted for it. An entry
+ * records the versions of the predicates its query depends on (through the rules) when it was
+ * computed, and is only reused while all these versions are unchanged: inserting a fact
+ * invalidates exactly the entries of the queries that depend on its predicate. Adding a rule
+ * clears the whole cache.
+ *
+ * <p>The total number of answers held by the cache is bounded by {@link #maxAnswers()}: the least
+ * recently used entries are evicted when it is exceeded, and queries with more answers are not
+ * cached at all.
+ */
+public final class AnswerCache
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** All entries, in access order (least recently used first). */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Version of each predicate (by {@code name/arity} key), absent = 0. */
+    private final HashMap<String, Long> versions = new HashMap<>();
+
+    private boolean enabled = true;
+    private long maxAnswers = 1L << 20;
+    private long answerCount = 0;
+
+    // statistics
+    private long hits, misses, invalidations, evictions;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether queries are cached (default: true). Disabling the cache clears it.
+     */
+    public boolean enabled() {
+        return enabled;
+    }
+
+    public void setEnabled (boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Maximum total number of answers held by the cache (default: 2^20).
+     */
+    public long maxAnswers() {
+        return maxAnswers;
+    }
+
+    public void setMaxAnswers (long maxAnswers) {
+        if (maxAnswers < 0) throw new IllegalArgumentException("max answers must be >= 0");
+        this.maxAnswers = maxAnswers;
+        enforceLimit();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the version of the predicate with the given {@code name/arity} key.
+     */
+    public long version (String key) {
+        return versions.getOrDefault(key, 0L);
+    }
+
+    /**
+     * Increments the version of the predicate with the given {@code name/arity} key, which
+     * invalidates the entries that depend on it.
+     */
+    void bump (String key) {
+        versions.merge(key, 1L, Long::sum);
+    }
+
+    /**
+     * Returns the current versions of the given predicates.
+     */
+    long[] versions (String[] keys)
+    {
+        long[] result = new long[keys.length];
+        for (int i = 0; i < keys.length; ++i) result[i] = version(keys[i]);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Drops all entries.
+     */
+    void clear()
+    {
+        entries.clear();
+        answerCount = 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the cached answers to {@code query}, or null if there are none or if they are stale
+     * (in which case they are dropped).
+     */
+    Relation get (Atom query)
+    {
+        Key key = new Key(query);
+        Entry entry = entries.get(key);
+        if (entry != null && !Arrays.equals(versions(entry.dependencies), entry.versions)) {
+            entries.remove(key);
+            answerCount -= entry.answers.size();
+            ++invalidations;
+            entry = null;
+        }
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        return entry.answers;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Caches the answers to {@code query}, computed when the given dependencies had the given
+     * versions.
+     */
+    void put (Atom query, String[] dependencies, long[] versions, Relation answers)
+    {
+        if (answers.size() > maxAnswers) return;
+        Entry old = entries.put(new Key(query), new Entry(dependencies, versions, answers));
+        if (old != null) answerCount -= old.answers.size();
+        answerCount += answers.size();
+        enforceLimit();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void enforceLimit()
+    {
+        Iterator<Entry> it = entries.values().iterator();
+        while (answerCount > maxAnswers && it.hasNext()) {
+            answerCount -= it.next().answers.size();
+            it.remove();
+            ++evictions;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of cached queries. */
+    public int entryCount() { return entries.size(); }
+
+    /** Number of answers held by the cache. */
+    public long answerCount() { return answerCount; }
+
+    /** Number of queries answered from the cache. */
+    public long hits() { return hits; }
+
+    /** Number of queries that had to be evaluated (including stale entries). */
+    public long misses() { return misses; }
+
+    /** Number of entries dropped because a predicate they depend on changed. */
+    public long invalidations() { return invalidations; }
+
+    /** Number of entries dropped to respect the answer limit. */
+    public long evictions() { return evictions; }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return String.format(
+            "answer cache: %d entries (%d answers), %d hits, %d misses, %d invalidations, "
+                + "%d evictions",
+            entries.size(), answerCount, hits, misses, invalidations, evictions);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A query atom: its predicate, for each argument, its constant or {@code ~n} for its {@code
+     * n}-th distinct variable, and its bounds (whether each argument is bounded, its lower and
+     * upper bound), or null if it has none.
+     */
+    private static final class Key
+    {
+        final String predicateKey;
+        final int[] shape;
+        final long[] bounds;
+        final int hash;
+
+        Key (Atom atom)
+        {
+            this.predicateKey = atom.key();
+            this.shape = new int[atom.arity()];
+            int[] vars = new int[shape.length];
+            int count = 0;
+            for (int i = 0; i < shape.length; ++i) {
+                if (atom.vars[i] == Atom.CONSTANT) {
+                    shape[i] = atom.terms[i];
+                    continue;
+                }
+                int n = 0;
+                while (n < count && vars[n] != atom.vars[i]) ++n;
+                if (n == count) vars[count++] = atom.vars[i];
+                shape[i] = ~n;
+            }
+            this.bounds = atom.hasBounds() ? new long[3 * shape.length] : null;
+            for (int i = 0; bounds != null && i < shape.length; ++i) {
+                if (!atom.bounded(i)) continue;
+                bounds[3 * i] = 1;
+                bounds[3 * i + 1] = atom.lower(i);
+                bounds[3 * i + 2] = atom.upper(i);
+            }
+            this.hash = 31 * (31 * predicateKey.hashCode() + Arrays.hashCode(shape))
+                + Arrays.hashCode(bounds);
+        }
+
+        @Override public boolean equals (Object o)
+        {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return predicateKey.equals(other.predicateKey) && Arrays.equals(shape, other.shape)
+                && Arrays.equals(bounds, other.bounds);
+        }
+
+        @Override public int hashCode () {
+            return hash;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Entry
+    {
+        final String[] dependencies;
+        final long[] versions;
+        final Relation answers;
+
+        Entry (String[] dependencies, long[] versions, Relation answers) {
+            this.dependencies = dependencies;
+            this.versions = versions;
+            this.answers = answers;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
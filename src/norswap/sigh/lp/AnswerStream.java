@@ -0,0 +1,142 @@
+package norswap.sigh.lp;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A lazy, pull-based stream of the answers to a query (see {@link LogicEngine#stream}).
+ *
+ * <p>Each answer is found when it is pulled, by unifying the query atom with the next candidate
+ * row of a relation: a full scan or the rows of an index group. A fully bound query has at most
+ * one answer, the query itself, which is looked up when the stream is opened. The stream holds no
+ * answers itself, so its memory use is constant regardless of the number of answers.
+ *
+ * <p>{@link #next()} returns the bindings of the answer: the array is reused between answers and
+ * only valid until the next call to {@link #hasNext()} or {@link #next()}. Copy it to keep it.
+ *
+ * <p>The stream ends after {@code limit} answers, or when {@link #close()} is called, which
+ * releases its reference to the underlying relation. Tuples added to the relation after the stream
+ * was opened are not visited.
+ */
+public final class AnswerStream implements Iterator<int[]>, AutoCloseable
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Atom atom;
+    private final int[] bindings;
+    private final int[] free;
+
+    /** Relation whose rows are visited, null once the stream is closed. */
+    private Relation relation;
+
+    /** Rows to visit, or null to visit rows {@code [position, end)} directly. */
+    private int[] rows;
+
+    private int position;
+    private final int end;
+
+    /** Number of answers that can still be returned. */
+    private long remaining;
+
+    /** Whether {@link #bindings} hold an answer that wasn't returned yet. */
+    private boolean ready = false;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a stream of the bindings extending {@code bindings} (which the stream takes over)
+     * that unify {@code atom} with the rows of {@code relation} listed in {@code rows[from, end)},
+     * or with the rows {@code [from, end)} if {@code rows} is null.
+     */
+    AnswerStream (Atom atom, int[] bindings, Relation relation, int[] rows, int from, int end,
+                  long limit)
+    {
+        if (limit < 0) throw new IllegalArgumentException("limit must be >= 0");
+        this.atom = atom;
+        this.bindings = bindings;
+        this.free = FactStore.freeVariables(atom, bindings);
+        this.relation = relation;
+        this.rows = rows;
+        this.position = from;
+        this.end = end;
+        this.remaining = limit;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a stream without answers.
+     */
+    static AnswerStream empty (Atom atom, int[] bindings) {
+        return new AnswerStream(atom, bindings, null, null, 0, 0, 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a stream whose only answer (if {@code limit > 0}) is {@code bindings}, which must
+     * bind all the variables of {@code atom}.
+     */
+    static AnswerStream single (Atom atom, int[] bindings, long limit)
+    {
+        AnswerStream stream = empty(atom, bindings);
+        stream.ready = limit > 0;
+        return stream;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public boolean hasNext()
+    {
+        if (ready) return true;
+        if (relation == null) return false;
+        if (remaining == 0) {
+            close();
+            return false;
+        }
+
+        for (int var: free) bindings[var] = Atom.UNBOUND;
+        while (position < end) {
+            int row = rows == null ? position : rows[position];
+            ++position;
+            if (atom.unify(relation, row, bindings)) {
+                --remaining;
+                return ready = true;
+            }
+        }
+        close();
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int[] next()
+    {
+        if (!hasNext()) throw new NoSuchElementException();
+        ready = false;
+        return bindings;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Stops the stream: no more answers will be returned.
+     */
+    @Override public void close()
+    {
+        relation = null;
+        rows = null;
+        ready = false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The query atom, whose variables are bound by the answers.
+     */
+    public Atom atom() {
+        return atom;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,329 @@
+package norswap.sigh.lp;
+
+import norswap.sigh.ast.AtomNode;
+import norswap.sigh.ast.ExpressionNode;
+import norswap.sigh.ast.ReferenceNode;
+import norswap.sigh.ast.TermNode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The engine representation of an atom such as {@code song(x, #taylor)}: a predicate name and, for
+ * each argument position, either a constant (an interned term id) or a variable.
+ *
+ * <p>Variables are numbered densely within the rule or query the atom belongs to, and their values
+ * are kept in a bindings array indexed by variable number, holding {@link #UNBOUND} for variables
+ * that have no value yet.
+ *
+ * <p>The {@link Comparison comparisons} of a rule or query bound the positions of its atoms that
+ * hold the compared variables (see {@link #bounded}): the atom only matches tuples whose values at
+ * these positions are numeric terms within the bounds.
+ */
+public final class Atom
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Marker for positions of {@link #vars} holding a constant. */
+    public static final int CONSTANT = -1;
+
+    /** Marker for unbound variables in a bindings array. */
+    public static final int UNBOUND = Integer.MIN_VALUE;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public final String predicate;
+
+    /** Term id at each constant position (unused at variable positions). */
+    public final int[] terms;
+
+    /** Variable number at each variable position, or {@link #CONSTANT}. */
+    public final int[] vars;
+
+    /** Variable names, indexed by variable number (shared by all atoms of a rule or query). */
+    public final String[] varNames;
+
+    /** Whether each position is bounded, or null if none is. */
+    private final boolean[] bounded;
+
+    /** Inclusive bounds of the numbers at the bounded positions, or null if none is bounded. */
+    private final long[] lower, upper;
+
+    /** Cached {@link #key()}. */
+    private String key;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Atom (String predicate, int[] terms, int[] vars, String[] varNames) {
+        this(predicate, terms, vars, varNames, null, null, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Atom (String predicate, int[] terms, int[] vars, String[] varNames,
+                  boolean[] bounded, long[] lower, long[] upper)
+    {
+        if (terms.length != vars.length)
+            throw new IllegalArgumentException("terms and vars must have the same length");
+        this.predicate = predicate;
+        this.terms = terms;
+        this.vars = vars;
+        this.varNames = varNames;
+        this.bounded = bounded;
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Translates the given atom nodes (typically the atoms of a rule or query) to the engine
+     * representation. Terms become constants (using the id assigned at parse time) and references
+     * become variables, numbered in order of first appearance and shared between the atoms.
+     */
+    public static Atom[] translate (List<AtomNode> nodes)
+    {
+        ArrayList<String> names = new ArrayList<>();
+        for (AtomNode node: nodes)
+            for (ExpressionNode term: node.terms)
+                if (term instanceof ReferenceNode && !names.contains(((ReferenceNode) term).name))
+                    names.add(((ReferenceNode) term).name);
+
+        String[] varNames = names.toArray(new String[0]);
+        Atom[] atoms = new Atom[nodes.size()];
+
+        for (int i = 0; i < atoms.length; ++i) {
+            AtomNode node = nodes.get(i);
+            int[] terms = new int[node.terms.size()];
+            int[] vars = new int[terms.length];
+            for (int j = 0; j < terms.length; ++j) {
+                ExpressionNode term = node.terms.get(j);
+                if (term instanceof TermNode) {
+                    terms[j] = ((TermNode) term).id;
+                    vars[j] = CONSTANT;
+                } else {
+                    vars[j] = names.indexOf(((ReferenceNode) term).name);
+                }
+            }
+            atoms[i] = new Atom(node.name, terms, vars, varNames);
+        }
+        return atoms;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns this atom with the positions holding the variables of {@code comparisons} bounded by
+     * them (in addition to its own bounds), or the atom itself if it holds none of them.
+     */
+    public Atom bounded (Comparison... comparisons)
+    {
+        boolean[] bounded = null;
+        long[] lower = null, upper = null;
+        for (Comparison comparison: comparisons) {
+            for (int i = 0; i < vars.length; ++i) {
+                if (vars[i] != comparison.var) continue;
+                if (bounded == null) {
+                    bounded = this.bounded != null ? this.bounded.clone() : new boolean[arity()];
+                    lower = this.lower != null ? this.lower.clone() : new long[arity()];
+                    upper = this.upper != null ? this.upper.clone() : new long[arity()];
+                }
+                if (!bounded[i]) {
+                    bounded[i] = true;
+                    lower[i] = Long.MIN_VALUE;
+                    upper[i] = Long.MAX_VALUE;
+                }
+                if (comparison.empty()) {
+                    lower[i] = Long.MAX_VALUE;
+                    upper[i] = Long.MIN_VALUE;
+                } else {
+                    lower[i] = Math.max(lower[i], comparison.lower());
+                    upper[i] = Math.min(upper[i], comparison.upper());
+                }
+            }
+        }
+        return bounded == null ? this
+            : new Atom(predicate, terms, vars, varNames, bounded, lower, upper);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns this atom with its predicate renamed, keeping its bounds.
+     */
+    Atom renamed (String predicate) {
+        return new Atom(predicate, terms, vars, varNames, bounded, lower, upper);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Whether some position of the atom is bounded by a comparison. */
+    public boolean hasBounds() {
+        return bounded != null;
+    }
+
+    /** Whether position {@code i} is bounded by a comparison. */
+    boolean bounded (int i) {
+        return bounded != null && bounded[i];
+    }
+
+    /** The smallest number allowed at position {@code i}, which must be {@link #bounded(int)}. */
+    long lower (int i) {
+        return lower[i];
+    }
+
+    /** The largest number allowed at position {@code i}, which must be {@link #bounded(int)}. */
+    long upper (int i) {
+        return upper[i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the term with id {@code term} is allowed at position {@code i} by the bounds.
+     */
+    boolean inBounds (int i, int term)
+    {
+        if (bounded == null || !bounded[i]) return true;
+        Term t = TermDictionary.GLOBAL.term(term);
+        return t.numeric && lower[i] <= t.number && t.number <= upper[i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the values bound by {@code bindings} at the bounded positions are within the
+     * bounds (unbound positions are not checked).
+     */
+    boolean inBounds (int[] bindings)
+    {
+        if (bounded == null) return true;
+        for (int i = 0; i < vars.length; ++i) {
+            int value = value(i, bindings);
+            if (value != UNBOUND && !inBounds(i, value)) return false;
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public int arity() {
+        return terms.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The {@code name/arity} key of the relation this atom refers to.
+     */
+    public String key() {
+        if (key == null) key = Relation.key(predicate, terms.length);
+        return key;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value at position {@code i} under the given bindings: the constant, the value of
+     * the variable, or {@link #UNBOUND}.
+     */
+    public int value (int i, int[] bindings) {
+        return vars[i] == CONSTANT ? terms[i] : bindings[vars[i]];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Tries to unify this atom with row {@code row} of {@code relation}, binding the atom's unbound
+     * variables in {@code bindings}. Returns false, leaving {@code bindings} unchanged, if
+     * unification fails.
+     *
+     * <p>This works directly on term ids: a constant or bound variable matches a column iff the ids
+     * are equal.
+     */
+    public boolean unify (Relation relation, int row, int[] bindings)
+    {
+        if (!matches(relation, row, bindings)) return false;
+        for (int i = 0; i < terms.length; ++i)
+            if (vars[i] != CONSTANT && bindings[vars[i]] == UNBOUND)
+                bindings[vars[i]] = relation.get(row, i);
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #unify(Relation, int, int[])}, but records the variables it binds on {@code
+     * trail}, so that they can be unbound by backtracking to a mark taken before the call.
+     */
+    public boolean unify (Relation relation, int row, int[] bindings, Trail trail)
+    {
+        if (!matches(relation, row, bindings)) return false;
+        for (int i = 0; i < terms.length; ++i)
+            if (vars[i] != CONSTANT && bindings[vars[i]] == UNBOUND)
+                trail.bind(bindings, vars[i], relation.get(row, i));
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the atom unifies with row {@code row} of {@code relation} under {@code bindings},
+     * and the row is within its bounds.
+     */
+    private boolean matches (Relation relation, int row, int[] bindings)
+    {
+        for (int i = 0; i < terms.length; ++i) {
+            int actual = relation.get(row, i);
+            if (bounded != null && !inBounds(i, actual)) return false;
+            int expected = value(i, bindings);
+            if (expected == UNBOUND) {
+                // repeated unbound variable, e.g. p(x, x): all occurrences must agree
+                for (int j = 0; j < i; ++j)
+                    if (vars[j] == vars[i] && relation.get(row, j) != actual) return false;
+            } else if (expected != actual) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a bindings array with all variables of the atom's rule or query unbound.
+     */
+    public int[] freshBindings()
+    {
+        int[] bindings = new int[varNames.length];
+        Arrays.fill(bindings, UNBOUND);
+        return bindings;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Renders the atom instantiated with the given bindings, e.g. {@code song(#style, #taylor)}.
+     * Term names are only looked up here.
+     */
+    public String toString (int[] bindings)
+    {
+        StringBuilder b = new StringBuilder(predicate).append('(');
+        for (int i = 0; i < terms.length; ++i) {
+            if (i > 0) b.append(", ");
+            int value = value(i, bindings);
+            b.append(value != UNBOUND
+                ? TermDictionary.GLOBAL.name(value)
+                : varNames[vars[i]]);
+        }
+        return b.append(')').toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return toString(freshBindings());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
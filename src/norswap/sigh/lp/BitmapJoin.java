@@ -0,0 +1,89 @@
+package norswap.sigh.lp;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Evaluates a rule over sets of terms, whose head and body atoms are all unary and share their
+ * variable, such as {@code singer(x) :- person(x), sings(x)}, by intersecting the members bitmaps
+ * of the body relations (see {@link TermBitmap}) instead of looking up the members of one relation
+ * in the others one at a time.
+ *
+ * <p>The intersection is computed over the whole relations, smallest first, and its members that
+ * the head relation lacks are added to it in bulk. Rules sharing their head thus add the union of
+ * their intersections. Since the work doesn't depend on the size of the deltas, bottom-up
+ * evaluation only uses a bitmap join when most members of a body relation are new.
+ */
+final class BitmapJoin
+{
+    // ---------------------------------------------------------------------------------------------
+
+    final Rule rule;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private BitmapJoin (Rule rule) {
+        this.rule = rule;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the bitmap join evaluating {@code rule} if it has the shape described in the class
+     * documentation, or null.
+     */
+    static BitmapJoin of (Rule rule)
+    {
+        if (rule.head.arity() != 1 || rule.body.length == 0 || rule.bounded()) return null;
+        int x = rule.head.vars[0];
+        if (x == Atom.CONSTANT) return null;
+        for (Atom atom: rule.body)
+            if (atom.arity() != 1 || atom.vars[0] != x || atom.key().equals(rule.head.key()))
+                return null;
+        return new BitmapJoin(rule);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the relations of the rule in {@code store} all keep their members in bitmaps (which
+     * relations loaded from old snapshots, for instance, don't). Missing relations have no members.
+     */
+    boolean applies (FactStore store)
+    {
+        Relation head = store.find(rule.head.key());
+        if (head != null && head.members() == null) return false;
+        for (Atom atom: rule.body) {
+            Relation relation = store.find(atom.key());
+            if (relation != null && relation.members() == null) return false;
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds to the head relation in {@code store} the terms that are members of all the body
+     * relations, and returns the number of terms added. The join must {@link #applies apply}.
+     */
+    int fire (FactStore store)
+    {
+        Relation[] relations = new Relation[rule.body.length];
+        for (int i = 0; i < relations.length; ++i) {
+            relations[i] = store.find(rule.body[i].key());
+            if (relations[i] == null || relations[i].size() == 0) return 0;
+        }
+        Arrays.sort(relations, Comparator.comparingInt(Relation::size));
+
+        TermBitmap members = relations[0].members();
+        for (int i = 1; i < relations.length && members.cardinality() > 0; ++i)
+            members = TermBitmap.and(members, relations[i].members());
+
+        Relation head = store.relation(rule.head.predicate, 1);
+        int[] added = TermBitmap.andNot(members, head.members()).toArray();
+        store.insertAbsent(head, added, added.length);
+        return added.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,144 @@
+package norswap.sigh.lp;
+
+/**
+ * A Bloom filter over the tuples of a {@link Relation}: a bit array in which each tuple sets
+ * {@link #hashes} bits, chosen by double hashing of a 64-bit hash of the tuple. A tuple none of
+ * whose bits is set is certainly not in the relation; otherwise it may be.
+ *
+ * <p>The filter is sized for {@link #capacity} tuples at the target false-positive rate of its
+ * {@link FilterManager}. Once the relation outgrows it, the relation asks the manager for a bigger
+ * filter (see {@link FilterManager#grow}).
+ */
+final class BloomFilter
+{
+    // ---------------------------------------------------------------------------------------------
+
+    final FilterManager owner;
+
+    /** Number of tuples the filter is sized for. */
+    final int capacity;
+
+    /** Number of bits set per tuple. */
+    final int hashes;
+
+    private final long[] bits;
+    private final long bitCount;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates an empty filter for {@code capacity} tuples with the given false-positive rate.
+     */
+    BloomFilter (FilterManager owner, int capacity, double falsePositiveRate)
+    {
+        this.owner = owner;
+        this.capacity = capacity;
+        long bitCount = bits(capacity, falsePositiveRate);
+        this.bits = new long[(int) ((bitCount + 63) >>> 6)];
+        this.bitCount = (long) bits.length << 6;
+        this.hashes = (int) Math.max(1,
+            Math.round((double) this.bitCount / capacity * Math.log(2)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of bits of an optimal filter for {@code capacity} tuples with the given
+     * false-positive rate: {@code -n ln(p) / ln(2)^2}.
+     */
+    static long bits (int capacity, double falsePositiveRate) {
+        return Math.max(64, (long) Math.ceil(
+            -capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Memory used by a filter for {@code capacity} tuples with the given false-positive rate, in
+     * bytes.
+     */
+    static long memory (int capacity, double falsePositiveRate) {
+        return (bits(capacity, falsePositiveRate) + 63) / 64 * 8;
+    }
+
+    /** Memory used by the filter, in bytes. */
+    long memory() {
+        return 8L * bits.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Adds the tuple with the given hash (see {@link #hash}). */
+    void add (long hash)
+    {
+        int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; ++i) {
+            long bit = reduce(h1 + i * h2);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Whether the tuple with the given hash may have been added (see {@link #hash}). */
+    boolean mightContain (long hash)
+    {
+        int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; ++i) {
+            long bit = reduce(h1 + i * h2);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Maps a 32-bit hash to a bit number, without the bias of a modulo (Lemire's reduction). */
+    private long reduce (int hash) {
+        return ((hash & 0xFFFF_FFFFL) * bitCount) >>> 32;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * 64-bit hash of a tuple, independent from the 32-bit hash of the deduplication set of
+     * relations, so that tuples colliding in that set don't also collide in the filter.
+     */
+    static long hash (int[] tuple)
+    {
+        long h = 0x9E37_79B9_7F4A_7C15L;
+        for (int value: tuple) h = (h ^ value) * 0xBF58_476D_1CE4_E5B9L;
+        return mix(h);
+    }
+
+    /** Like {@link #hash(int[])} for the values of {@code atom} under {@code bindings}. */
+    static long hash (Atom atom, int[] bindings)
+    {
+        long h = 0x9E37_79B9_7F4A_7C15L;
+        for (int i = 0; i < atom.arity(); ++i)
+            h = (h ^ atom.value(i, bindings)) * 0xBF58_476D_1CE4_E5B9L;
+        return mix(h);
+    }
+
+    /** Like {@link #hash(int[])} for row {@code row} of {@code relation}. */
+    static long hash (Relation relation, int row)
+    {
+        long h = 0x9E37_79B9_7F4A_7C15L;
+        for (int i = 0; i < relation.arity; ++i)
+            h = (h ^ relation.get(row, i)) * 0xBF58_476D_1CE4_E5B9L;
+        return mix(h);
+    }
+
+    /** Murmur3's 64-bit finalizer. */
+    private static long mix (long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xFF51_AFD7_ED55_8CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CE_B9FE_1A85_EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,107 @@
+package norswap.sigh.lp;
+
+/**
+ * Lets a query answered by a {@link LogicEngine} be stopped before it completes: either by
+ * calling {@link #cancel()} (from any thread), or automatically once a deadline passes. See
+ * {@link LogicEngine#query(Atom, java.util.function.Consumer, CancellationToken)}.
+ *
+ * <p>Cancellation is cooperative: the engine checks the token between iterations of bottom-up
+ * evaluation, between passes of tabled resolution, and in its join loops, where it throws a
+ * {@link QueryCancelledException}. To keep the checks cheap, the cancellation flag is read at
+ * every check, but the clock is only read every {@link #CLOCK_INTERVAL} checks, so a query can
+ * overrun its deadline by the time taken by as many join steps.
+ */
+public final class CancellationToken
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of checks between two readings of the clock. */
+    private static final int CLOCK_INTERVAL = 1024;
+
+    private volatile boolean cancelled = false;
+
+    /** Deadline, as given by {@link System#nanoTime()}, if {@link #timed}. */
+    private final long deadline;
+    private final boolean timed;
+
+    /**
+     * Number of checks left until the clock is read. The engine's parallel tasks share the token,
+     * and may lose updates to the counter, which only delays the reading.
+     */
+    private int countdown = CLOCK_INTERVAL;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a token without deadline, which only cancels queries when {@link #cancel()} is
+     * called.
+     */
+    public CancellationToken ()
+    {
+        this.deadline = 0;
+        this.timed = false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a token that cancels queries {@code timeoutMillis} milliseconds after its creation,
+     * or when {@link #cancel()} is called.
+     */
+    public CancellationToken (long timeoutMillis)
+    {
+        if (timeoutMillis < 0) throw new IllegalArgumentException("timeout must be >= 0");
+        this.deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        this.timed = true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Cancels the queries using this token: they stop at their next check.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether {@link #cancel()} was called or the deadline passed.
+     */
+    public boolean cancelled() {
+        return cancelled || expired();
+    }
+
+    private boolean expired() {
+        return timed && System.nanoTime() - deadline >= 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Throws a {@link QueryCancelledException} if the token was cancelled, or if the deadline
+     * passed and the clock is due for a reading. Called in the join loops.
+     */
+    void check()
+    {
+        if (cancelled) throw new QueryCancelledException(false);
+        if (--countdown > 0) return;
+        countdown = CLOCK_INTERVAL;
+        if (expired()) throw new QueryCancelledException(true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Throws a {@link QueryCancelledException} if the token was cancelled or the deadline passed.
+     * Called between iterations.
+     */
+    void checkNow()
+    {
+        if (cancelled) throw new QueryCancelledException(false);
+        if (expired()) throw new QueryCancelledException(true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,146 @@
+package norswap.sigh.lp;
+
+import norswap.sigh.ast.ComparisonNode;
+import norswap.sigh.ast.ReferenceNode;
+import norswap.sigh.ast.TermNode;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A comparison between a variable and a number in the body of a rule or query, such as {@code
+ * p < 10} in {@code cheap(x) :- price(x, p), p < 10}. It holds for the numeric terms (see {@link
+ * Term#numeric}) whose number satisfies it, and never holds for other terms.
+ *
+ * <p>Comparisons are not joined like atoms: they restrict the values the atoms of the rule can
+ * bind their variable to (see {@link Atom#bounded}), so that lookups can skip the tuples outside
+ * the range, or only visit those inside it through a {@link RangeIndex}.
+ */
+public final class Comparison
+{
+    // ---------------------------------------------------------------------------------------------
+
+    public enum Operator
+    {
+        LOWER("<"),
+        LOWER_EQUAL("<="),
+        GREATER(">"),
+        GREATER_EQUAL(">=");
+
+        public final String string;
+
+        Operator (String string) {
+            this.string = string;
+        }
+
+        /** The operator of the comparison with swapped operands ({@code <} for {@code >}). */
+        Operator flip()
+        {
+            switch (this) {
+                case LOWER:         return GREATER;
+                case LOWER_EQUAL:   return GREATER_EQUAL;
+                case GREATER:       return LOWER;
+                default:            return LOWER_EQUAL;
+            }
+        }
+
+        static Operator of (String string)
+        {
+            for (Operator operator: values())
+                if (operator.string.equals(string)) return operator;
+            throw new IllegalArgumentException("unknown comparison operator: " + string);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The compared variable. */
+    public final int var;
+
+    public final Operator operator;
+
+    /** The number the variable is compared to. */
+    public final long value;
+
+    /** Variable names, shared with the atoms of the rule or query. */
+    public final String[] varNames;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Comparison (int var, Operator operator, long value, String[] varNames)
+    {
+        this.var = var;
+        this.operator = operator;
+        this.value = value;
+        this.varNames = varNames;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Translates a comparison between a variable and a numeric term (in either order) whose
+     * variable is named in {@code varNames}.
+     */
+    public static Comparison of (ComparisonNode node, String[] varNames)
+    {
+        boolean swapped = node.left instanceof TermNode;
+        ReferenceNode variable = (ReferenceNode) (swapped ? node.right : node.left);
+        Term number = Term.of(((TermNode) (swapped ? node.left : node.right)).id);
+        if (!number.numeric)
+            throw new IllegalArgumentException("not a number: " + number);
+        int var = Arrays.asList(varNames).indexOf(variable.name);
+        if (var < 0)
+            throw new IllegalArgumentException("unknown variable: " + variable.name);
+        Operator operator = Operator.of(node.operator.string);
+        return new Comparison(var, swapped ? operator.flip() : operator, number.number, varNames);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Translates the given comparisons, whose variables are named in {@code varNames}.
+     */
+    public static Comparison[] of (List<ComparisonNode> nodes, String[] varNames)
+    {
+        Comparison[] comparisons = new Comparison[nodes.size()];
+        for (int i = 0; i < comparisons.length; ++i)
+            comparisons[i] = of(nodes.get(i), varNames);
+        return comparisons;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The smallest number satisfying the comparison, unless it is {@link #empty()}. */
+    long lower()
+    {
+        switch (operator) {
+            case GREATER:       return value == Long.MAX_VALUE ? Long.MAX_VALUE : value + 1;
+            case GREATER_EQUAL: return value;
+            default:            return Long.MIN_VALUE;
+        }
+    }
+
+    /** The largest number satisfying the comparison, unless it is {@link #empty()}. */
+    long upper()
+    {
+        switch (operator) {
+            case LOWER:         return value == Long.MIN_VALUE ? Long.MIN_VALUE : value - 1;
+            case LOWER_EQUAL:   return value;
+            default:            return Long.MAX_VALUE;
+        }
+    }
+
+    /** Whether no number satisfies the comparison, e.g. {@code x < Long.MIN_VALUE}. */
+    boolean empty()
+    {
+        return operator == Operator.GREATER && value == Long.MAX_VALUE
+            || operator == Operator.LOWER && value == Long.MIN_VALUE;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return varNames[var] + " " + operator.string + " " + value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,24 @@
+package norswap.sigh.lp;
+
+import java.util.function.Consumer;
+
+/**
+ * A rule compiled to JVM bytecode (see {@code norswap.sigh.bytecode.RuleCompiler}): a specialized
+ * version of the generic join of {@link LogicEngine}, as nested loops over the rows of the body
+ * relations, probing indexes for the atoms that have bound columns.
+ */
+public interface CompiledRule
+{
+    /**
+     * Fires the rule, matching each body atom {@code i} only against the rows in {@code [from[i],
+     * to[i])} of its relation and passing each derived head tuple to {@code out} (the array is
+     * reused between calls).
+     *
+     * <p>{@code first} is the index of the body atom to iterate over in the outermost loop. The
+     * order of the other atoms is fixed at compile time.
+     *
+     * <p>Returns false, without deriving anything, if the rule can't be run because one of the
+     * indexes it needs can't be built (see {@link IndexManager#memoryLimit()}).
+     */
+    boolean fire (int first, FactStore store, int[] from, int[] to, Consumer<int[]> out);
+}
@@ -0,0 +1,67 @@
+package norswap.sigh.lp;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * A set of tuples that can be added to from multiple threads, used to merge the tuples derived by
+ * the workers of a parallel evaluation round before inserting them into their relation.
+ */
+final class ConcurrentTupleSet
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Set<Tuple> tuples = ConcurrentHashMap.newKeySet();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds a copy of {@code tuple} to the set, returning false if it was already present.
+     */
+    boolean add (int[] tuple) {
+        return tuples.add(new Tuple(tuple.clone()));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    int size() {
+        return tuples.size();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    void forEach (Consumer<int[]> consumer) {
+        for (Tuple tuple: tuples) consumer.accept(tuple.values);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    void clear() {
+        tuples.clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Tuple
+    {
+        final int[] values;
+        final int hash;
+
+        Tuple (int[] values) {
+            this.values = values;
+            this.hash = Relation.mix(Arrays.hashCode(values));
+        }
+
+        @Override public boolean equals (Object o) {
+            return o instanceof Tuple && Arrays.equals(values, ((Tuple) o).values);
+        }
+
+        @Override public int hashCode () {
+            return hash;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,83 @@
+package norswap.sigh.lp;
+
+/**
+ * Estimates the number of distinct values added to it in constant memory, using the HyperLogLog
+ * algorithm with 1024 registers (standard error around 3%). Used by {@link Relation} to maintain
+ * per-column distinct-value statistics.
+ */
+final class DistinctCounter
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int P = 10;
+    private static final int M = 1 << P;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / M);
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final byte[] registers;
+
+    /** Cached estimate, -1 if registers changed since it was computed. */
+    private long estimate = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    DistinctCounter() {
+        this.registers = new byte[M];
+    }
+
+    /**
+     * Creates a counter from the registers of another counter (see {@link #registers()}).
+     */
+    DistinctCounter (byte[] registers)
+    {
+        if (registers.length != M)
+            throw new IllegalArgumentException("expected " + M + " registers");
+        this.registers = registers;
+        this.estimate = -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The state of the counter (not a copy), used to save it.
+     */
+    byte[] registers() {
+        return registers;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    void add (int value)
+    {
+        int h = Relation.mix(value ^ 0x9e3779b9);
+        int register = h >>> (32 - P);
+        int rank = Integer.numberOfLeadingZeros((h << P) | (1 << (P - 1))) + 1;
+        if (rank > registers[register]) {
+            registers[register] = (byte) rank;
+            estimate = -1;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the estimated number of distinct values added.
+     */
+    long estimate()
+    {
+        if (estimate >= 0) return estimate;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r: registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) ++zeros;
+        }
+        double e = ALPHA * M * M / sum;
+        if (e <= 2.5 * M && zeros > 0)
+            e = M * Math.log((double) M / zeros); // linear counting for small cardinalities
+        return estimate = Math.round(e);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
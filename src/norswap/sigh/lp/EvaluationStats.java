@@ -0,0 +1,49 @@
+package norswap.sigh.lp;
+
+/**
+ * Statistics about a bottom-up evaluation run of a {@link LogicEngine}.
+ */
+public final class EvaluationStats
+{
+    // ---------------------------------------------------------------------------------------------
+
+    long strata, iterations, closures, bitmapJoins, derived, nanos;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of strata (groups of mutually recursive predicates) that were evaluated. */
+    public long strata() { return strata; }
+
+    /**
+     * Number of iterations, summed over all strata. Each stratum whose input changed since the
+     * last evaluation takes one initial iteration, plus one per round of delta propagation if it
+     * is recursive.
+     */
+    public long iterations() { return iterations; }
+
+    /**
+     * Number of strata evaluated by graph searches (see {@link TransitiveClosure}), which take a
+     * single iteration.
+     */
+    public long closures() { return closures; }
+
+    /** Number of rule firings done by intersecting bitmaps (see {@link BitmapJoin}). */
+    public long bitmapJoins() { return bitmapJoins; }
+
+    /** Number of new tuples derived. */
+    public long derived() { return derived; }
+
+    /** Duration of the evaluation, in nanoseconds. */
+    public long nanos() { return nanos; }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return String.format(
+            "evaluation: %d strata, %d iterations, %d closures, %d bitmap joins, %d tuples derived "
+                + "in %.3f ms",
+            strata, iterations, closures, bitmapJoins, derived, nanos / 1e6);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,541 @@
+package norswap.sigh.lp;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * Holds the relations (sets of fact tuples) of a logic program, keyed by predicate name and arity.
+ *
+ * <p>All values are interned term ids (see {@link TermDictionary}), so matching an atom against
+ * the store never compares term names.
+ *
+ * <p>Matching uses the relation's deduplication set (or members bitmap, for unary relations) when
+ * the atom is fully bound, and a secondary index on the bound columns otherwise, when {@link
+ * #indexes()} decides one is worth building. Fully bound lookups first consult the relation's
+ * Bloom filter (see {@link #filters()}), which rules out most absent tuples without probing the
+ * deduplication set.
+ *
+ * <p>Atoms {@link Atom#bounded bounded} by comparisons only match tuples within their bounds. When
+ * a bounded position is not bound and no secondary index applies, the lookup goes through a {@link
+ * RangeIndex} of the numbers in that column, built on the first such lookup, which visits only the
+ * rows within the bounds. Range indexes are not counted in the memory limit of {@link #indexes()}.
+ *
+ * <p>The store has a single writer: it must be modified and matched from one thread at a time
+ * (matching builds indexes). Other threads read it through {@link #view() views}, immutable
+ * snapshots of its contents which are read without locking, while the writer goes on. Writes take
+ * the write lock of the store, which views never take: they validate their reads against it
+ * instead.
+ */
+public final class FactStore
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final HashMap<String, Relation> relations = new HashMap<>();
+
+    /** Taken for writing by the modifications that {@link StoreView views} must not overlap. */
+    private final StampedLock lock = new StampedLock();
+
+    private final IndexManager indexes = new IndexManager(lock);
+    private final FilterManager filters = new FilterManager();
+
+    /** The last view taken, reused until the store is modified. */
+    private volatile StoreView view;
+
+    /** Number of attempts to take a view without waiting for the writer. */
+    private static final int VIEW_ATTEMPTS = 8;
+
+    /** When set, matching only uses existing indexes and doesn't update index statistics. */
+    private volatile boolean concurrentReads = false;
+
+    private Storage storage = Storage.HEAP;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Where the tuples of relations are stored.
+     */
+    public enum Storage
+    {
+        /** In {@code int} arrays on the Java heap. */
+        HEAP,
+        /**
+         * In direct buffers, outside of the Java heap, so that large relations neither require a
+         * large heap nor slow down garbage collection. The total size of direct buffers is limited
+         * by the {@code -XX:MaxDirectMemorySize} JVM option (by default, the maximum heap size).
+         */
+        OFF_HEAP
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Storage used for the relations created from now on (default: {@link Storage#HEAP}).
+     */
+    public Storage storage() {
+        return storage;
+    }
+
+    public void setStorage (Storage storage) {
+        this.storage = storage;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the manager of the secondary indexes of the relations, which can be used to
+     * configure them and obtain statistics.
+     */
+    public IndexManager indexes() {
+        return indexes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the manager of the Bloom filters guarding fully bound lookups, which can be used to
+     * configure them and obtain statistics.
+     */
+    public FilterManager filters() {
+        return filters;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Enables or disables concurrent reads. While they are enabled, {@link #match} can be called
+     * from multiple threads, but the store must not be modified, and secondary indexes and Bloom
+     * filters are neither built nor tracked: they must have been prepared beforehand.
+     */
+    void setConcurrentReads (boolean concurrentReads) {
+        this.concurrentReads = concurrentReads;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the relation with the given name and arity, creating it if it doesn't exist yet.
+     */
+    public Relation relation (String name, int arity)
+    {
+        String key = Relation.key(name, arity);
+        Relation relation = relations.get(key);
+        if (relation != null) return relation;
+        long stamp = lock.writeLock();
+        try {
+            return relations.computeIfAbsent(key, k -> new Relation(name, arity, storage));
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds a relation created outside the store (e.g. loaded from a snapshot), replacing any
+     * relation with the same key.
+     */
+    void add (Relation relation)
+    {
+        long stamp = lock.writeLock();
+        try {
+            relations.put(Relation.key(relation.name, relation.arity), relation);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Removes the relation with the given {@code name/arity} key, if it exists, along with its
+     * secondary indexes and Bloom filter (e.g. to recompute a derived relation whose contents
+     * became invalid).
+     */
+    void drop (String key)
+    {
+        long stamp = lock.writeLock();
+        try {
+            Relation relation = relations.remove(key);
+            if (relation == null) return;
+            indexes.forget(relation);
+            filters.forget(relation);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Atomically saves the store (its relations, the statistics and list of secondary indexes of
+     * each relation, and the names of the terms they refer to) to the given file, replacing it if
+     * it exists. See {@link Snapshot} for the format.
+     */
+    public void save (Path path) throws IOException {
+        Snapshot.save(this, path);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Loads a store saved with {@link #save}. The relations are memory-mapped rather than read, so
+     * loading takes time proportional to the number of terms and relations, not to the number of
+     * tuples: pages are read lazily, as the relations are accessed. Secondary indexes are rebuilt
+     * the first time they are needed.
+     *
+     * <p>The loaded relations use {@link Storage#OFF_HEAP} storage. The file is never modified:
+     * pages written to (when tuples are added) are first copied off-heap.
+     */
+    public static FactStore load (Path path) throws IOException {
+        return Snapshot.load(path);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the index of {@code relation} on the columns in {@code mask}, building it right away
+     * if needed, or null if it would exceed the index memory limit.
+     */
+    public HashIndex prepareIndex (Relation relation, int mask) {
+        return indexes.prepare(relation, mask);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns an immutable view of the current contents of the store, which can be read from any
+     * thread while the store keeps being written to (see {@link StoreView}). The same view is
+     * returned until the store is modified.
+     *
+     * <p>Taking a view freezes every relation, which costs a few objects per relation, and is
+     * retried if a write intervened. After a few failed attempts, it waits for the write in
+     * progress to complete.
+     */
+    public StoreView view()
+    {
+        StoreView view = this.view;
+        if (view != null && lock.validate(view.stamp)) return view;
+
+        for (int attempt = 0; attempt < VIEW_ATTEMPTS; ++attempt) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0) { // a write is in progress
+                Thread.yield();
+                continue;
+            }
+            try {
+                view = new StoreView(lock, stamp, freeze());
+            } catch (RuntimeException e) {
+                continue; // inconsistent reads, caused by a write
+            }
+            if (lock.validate(stamp)) return this.view = view;
+        }
+
+        long stamp = lock.readLock();
+        try {
+            return this.view = new StoreView(lock, stamp, freeze());
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the {@link Relation#freeze frozen} relations of the store, by key. */
+    private HashMap<String, Relation> freeze()
+    {
+        HashMap<String, Relation> frozen = new HashMap<>();
+        for (Map.Entry<String, Relation> entry: relations.entrySet())
+            frozen.put(entry.getKey(), entry.getValue().freeze());
+        return frozen;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the relation with the given {@code name/arity} key, or null if it doesn't exist.
+     */
+    public Relation find (String key) {
+        return relations.get(key);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns all the relations in the store.
+     */
+    public Collection<Relation> relations() {
+        return Collections.unmodifiableCollection(relations.values());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the fact {@code name(tuple...)} to the store, returning false if it was already present.
+     */
+    public boolean insert (String name, int[] tuple)
+    {
+        Relation relation = relation(name, tuple.length);
+        long stamp = lock.writeLock();
+        try {
+            boolean added = relation.add(tuple);
+            if (added && relation.hasIndexes()) indexes.enforceLimit(null);
+            return added;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the {@code count} tuples stored one after the other in {@code tuples} to {@code
+     * relation}, which must belong to the store. The tuples must be distinct and absent from the
+     * relation (see {@link Relation#addAbsent}).
+     */
+    void insertAbsent (Relation relation, int[] tuples, int count)
+    {
+        long stamp = lock.writeLock();
+        try {
+            relation.addAbsent(tuples, count);
+            if (relation.hasIndexes()) indexes.enforceLimit(null);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls {@code onMatch} with the extended bindings for every tuple that unifies with {@code
+     * atom} under {@code bindings}. The array passed to {@code onMatch} is reused between calls
+     * and restored to its original state when this method returns. Facts inserted by {@code
+     * onMatch} are not visited.
+     */
+    public void match (Atom atom, int[] bindings, Consumer<int[]> onMatch) {
+        match(atom, bindings, 0, Integer.MAX_VALUE, new Trail(atom.arity()), onMatch);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #match(Atom, int[], Consumer)}, but records the variables bound for each match
+     * on {@code trail}, and undoes them by backtracking to the trail's mark once {@code onMatch}
+     * returns. This allocates nothing per match.
+     */
+    public void match (Atom atom, int[] bindings, Trail trail, Consumer<int[]> onMatch) {
+        match(atom, bindings, 0, Integer.MAX_VALUE, trail, onMatch);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #match(Atom, int[], Consumer)}, but only considers the rows in {@code [from,
+     * to)}. Since relations are append-only, this lets bottom-up evaluation restrict an atom to the
+     * tuples derived in a given round.
+     */
+    public void match (Atom atom, int[] bindings, int from, int to, Consumer<int[]> onMatch) {
+        match(atom, bindings, from, to, new Trail(atom.arity()), onMatch);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void match (
+            Atom atom, int[] bindings, int from, int to, Trail trail, Consumer<int[]> onMatch)
+    {
+        Relation relation = find(atom.key());
+        if (relation == null) return;
+        to = Math.min(to, relation.size());
+        if (from >= to) return;
+
+        if (ground(atom, bindings)) {
+            if (atom.inBounds(bindings)
+                    && filters.contains(relation, atom, bindings, from, to, concurrentReads))
+                onMatch.accept(bindings);
+            return;
+        }
+
+        int mask = boundMask(atom, bindings);
+
+        HashIndex index = mask == 0 ? null
+            : concurrentReads ? relation.index(mask)
+            : indexes.lookup(relation, mask);
+
+        if (index != null) {
+            int group = index.find(atom, bindings);
+            if (group < 0) return;
+            int[] rows = index.groupRows(group);
+            int size = index.groupSize(group);
+            for (int i = 0; i < size; ++i) {
+                int row = rows[i];
+                if (row < from) continue;
+                if (row >= to) break; // rows are ascending
+                int mark = trail.mark();
+                if (!atom.unify(relation, row, bindings, trail)) continue;
+                onMatch.accept(bindings);
+                trail.undo(mark);
+            }
+            return;
+        }
+
+        int column = atom.hasBounds() ? rangeColumn(atom, bindings) : -1;
+        RangeIndex range = column < 0 ? null : range(relation, column);
+
+        if (range != null) {
+            // the array and positions are captured, as matches may refresh the index
+            int[] rows = range.rows();
+            int first = range.first(atom.lower(column));
+            int end = range.end(atom.upper(column));
+            int tail = Math.max(from, range.covered());
+            if (end - first + Math.max(0, to - tail) < to - from) {
+                for (int i = first; i < end; ++i) {
+                    int row = rows[i];
+                    if (row < from || row >= to) continue;
+                    int mark = trail.mark();
+                    if (!atom.unify(relation, row, bindings, trail)) continue;
+                    onMatch.accept(bindings);
+                    trail.undo(mark);
+                }
+                from = tail; // scan the tail
+            }
+        }
+
+        for (int row = from; row < to; ++row) {
+            int mark = trail.mark();
+            if (!atom.unify(relation, row, bindings, trail)) continue;
+            onMatch.accept(bindings);
+            trail.undo(mark);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a lazy stream of the extended bindings for the (at most {@code limit}) tuples that
+     * unify with {@code atom} under {@code bindings}, which the stream takes over. The candidate
+     * rows are selected like in {@link #match(Atom, int[], Consumer)}, but are only unified as the
+     * answers are pulled.
+     */
+    public AnswerStream stream (Atom atom, int[] bindings, long limit)
+    {
+        Relation relation = find(atom.key());
+        if (relation == null || limit == 0) return AnswerStream.empty(atom, bindings);
+
+        int mask = boundMask(atom, bindings);
+        if (ground(atom, bindings)) {
+            return atom.inBounds(bindings) && filters.contains(
+                    relation, atom, bindings, 0, relation.size(), concurrentReads)
+                ? AnswerStream.single(atom, bindings, limit)
+                : AnswerStream.empty(atom, bindings);
+        }
+
+        HashIndex index = mask == 0 ? null
+            : concurrentReads ? relation.index(mask)
+            : indexes.lookup(relation, mask);
+
+        int column = index == null && atom.hasBounds() ? rangeColumn(atom, bindings) : -1;
+        RangeIndex range = column < 0 ? null : range(relation, column);
+
+        if (range != null) {
+            int first = range.first(atom.lower(column));
+            int end = range.end(atom.upper(column));
+            int size = relation.size();
+            int[] rows = new int[end - first + size - range.covered()];
+            System.arraycopy(range.rows(), first, rows, 0, end - first);
+            for (int i = end - first, row = range.covered(); row < size; ++i, ++row)
+                rows[i] = row;
+            return new AnswerStream(atom, bindings, relation, rows, 0, rows.length, limit);
+        }
+
+        if (index == null)
+            return new AnswerStream(atom, bindings, relation, null, 0, relation.size(), limit);
+
+        int group = index.find(atom, bindings);
+        return group < 0
+            ? AnswerStream.empty(atom, bindings)
+            : new AnswerStream(atom, bindings, relation, index.groupRows(group), 0,
+                index.groupSize(group), limit);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the range index of {@code relation} over {@code column}, building it or merging its
+     * tail if needed, unless reads are concurrent (in which case it may be null).
+     */
+    private RangeIndex range (Relation relation, int column)
+    {
+        RangeIndex range = relation.range(column);
+        if (concurrentReads || range != null && !range.stale()) return range;
+        long stamp = lock.writeLock();
+        try {
+            return relation.rangeIndex(column);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the bitmask of the positions of {@code atom} that are bound under {@code bindings}.
+     */
+    static int boundMask (Atom atom, int[] bindings)
+    {
+        int mask = 0;
+        for (int i = 0; i < atom.arity() && i < 31; ++i)
+            if (atom.value(i, bindings) != Atom.UNBOUND) mask |= 1 << i;
+        return mask;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the first position of {@code atom} that is bounded but not bound under {@code
+     * bindings}, or -1 if there is none.
+     */
+    static int rangeColumn (Atom atom, int[] bindings)
+    {
+        for (int i = 0; i < atom.arity(); ++i)
+            if (atom.bounded(i) && atom.value(i, bindings) == Atom.UNBOUND) return i;
+        return -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether all the variables of {@code atom} are bound in {@code bindings}.
+     */
+    static boolean ground (Atom atom, int[] bindings)
+    {
+        for (int var: atom.vars)
+            if (var != Atom.CONSTANT && bindings[var] == Atom.UNBOUND) return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the (distinct) variables of {@code atom} that are unbound in {@code bindings}.
+     */
+    static int[] freeVariables (Atom atom, int[] bindings)
+    {
+        int[] free = new int[atom.arity()];
+        int count = 0;
+        outer: for (int var: atom.vars) {
+            if (var == Atom.CONSTANT || bindings[var] != Atom.UNBOUND) continue;
+            for (int i = 0; i < count; ++i)
+                if (free[i] == var) continue outer;
+            free[count++] = var;
+        }
+        return Arrays.copyOf(free, count);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
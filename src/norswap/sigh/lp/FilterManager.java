@@ -0,0 +1,231 @@
+package norswap.sigh.lp;
+
+import java.util.ArrayList;
+
+/**
+ * Manages the {@link BloomFilter Bloom filters} of the relations of a {@link FactStore}, which let
+ * fully bound lookups (e.g. {@code -? parent(#ann, #bob)}) answer "no" without probing the
+ * deduplication set of the relation. The lookups the filter lets through are false positives when
+ * the tuple turns out to be absent. Unary relations have no filter: their members bitmap (see
+ * {@link Relation}) is exact and cheaper to probe.
+ *
+ * <p>The filter of a relation is built the first time the relation is probed for a fully bound
+ * tuple, then maintained as tuples are inserted. It is sized for twice the current number of
+ * tuples, and replaced by a filter twice as big when the relation outgrows it.
+ *
+ * <p>Filters are sized for the target {@link #falsePositiveRate()}, and their total memory is
+ * capped by {@link #memoryLimit()}: a relation whose filter would exceed the cap has none, and its
+ * lookups always probe. Changing either setting drops all filters, which are rebuilt with the new
+ * settings when needed.
+ */
+public final class FilterManager
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Minimum number of tuples a filter is sized for. */
+    private static final int MIN_CAPACITY = 256;
+
+    private final ArrayList<Relation> filtered = new ArrayList<>();
+
+    private boolean enabled = true;
+    private double falsePositiveRate = 0.01;
+    private long memoryLimit = 32L * 1024 * 1024;
+    private long memory = 0;
+
+    // statistics
+    private long probes, rejections, falsePositives, builds, refused, buildNanos;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether fully bound lookups are filtered (default: true). Disabling filters drops them.
+     */
+    public boolean enabled() {
+        return enabled;
+    }
+
+    public void setEnabled (boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Target rate of false positives, i.e. the fraction of absent tuples that the filters let
+     * through (default: 0.01). Each halving of the rate costs about 1.44 bits per tuple.
+     */
+    public double falsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    public void setFalsePositiveRate (double falsePositiveRate)
+    {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+            throw new IllegalArgumentException("false-positive rate must be in (0, 1)");
+        this.falsePositiveRate = falsePositiveRate;
+        clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Cap on the total memory of the filters, in bytes (default: 32 MiB).
+     */
+    public long memoryLimit() {
+        return memoryLimit;
+    }
+
+    public void setMemoryLimit (long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+        clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether one of the rows {@code [from, to)} of {@code relation} holds the values of {@code
+     * atom} under {@code bindings} (which must bind all its variables), probing the relation only
+     * if its filter can't rule the tuple out. The filter is built if needed, except with {@code
+     * concurrent} reads, which neither build filters nor update the statistics.
+     */
+    boolean contains (
+            Relation relation, Atom atom, int[] bindings, int from, int to, boolean concurrent)
+    {
+        if (!enabled || relation.members() != null)
+            return relation.contains(atom, bindings, from, to);
+        BloomFilter filter = relation.filter();
+        if (filter == null && !concurrent)
+            filter = build(relation, Math.max(MIN_CAPACITY, 2 * relation.size()));
+        if (filter == null) return relation.contains(atom, bindings, from, to);
+
+        if (!filter.mightContain(BloomFilter.hash(atom, bindings))) {
+            if (!concurrent) {
+                ++probes;
+                ++rejections;
+            }
+            return false;
+        }
+        int row = relation.rowOf(atom, bindings);
+        if (!concurrent) {
+            ++probes;
+            if (row < 0) ++falsePositives;
+        }
+        return from <= row && row < to;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Replaces the filter of {@code relation}, which the relation outgrew, by one twice as big,
+     * and returns it (or null if it would exceed the memory limit, in which case the relation
+     * loses its filter).
+     */
+    BloomFilter grow (Relation relation) {
+        return build(relation, 2 * relation.size());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Builds a filter for {@code capacity} tuples holding the tuples of {@code relation}, replacing
+     * its current filter, and returns it (or null if it would exceed the memory limit).
+     */
+    private BloomFilter build (Relation relation, int capacity)
+    {
+        BloomFilter old = relation.filter();
+        long freed = old == null ? 0 : old.memory();
+        if (memory - freed + BloomFilter.memory(capacity, falsePositiveRate) > memoryLimit) {
+            ++refused;
+            forget(relation);
+            return null;
+        }
+
+        long start = System.nanoTime();
+        BloomFilter filter = new BloomFilter(this, capacity, falsePositiveRate);
+        for (int row = 0; row < relation.size(); ++row)
+            filter.add(BloomFilter.hash(relation, row));
+        buildNanos += System.nanoTime() - start;
+        ++builds;
+
+        memory += filter.memory() - freed;
+        if (old == null) filtered.add(relation);
+        relation.setFilter(filter);
+        return filter;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Drops the filter of {@code relation}, if it has one (e.g. because it was removed from the
+     * store).
+     */
+    void forget (Relation relation)
+    {
+        BloomFilter filter = relation.filter();
+        if (filter == null) return;
+        memory -= filter.memory();
+        filtered.remove(relation);
+        relation.setFilter(null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Drops all filters.
+     */
+    private void clear()
+    {
+        for (Relation relation: filtered) relation.setFilter(null);
+        filtered.clear();
+        memory = 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Total memory of the live filters, in bytes. */
+    public long memory() { return memory; }
+
+    /** Number of relations that have a filter. */
+    public int filterCount() { return filtered.size(); }
+
+    /** Number of fully bound lookups that went through a filter. */
+    public long probes() { return probes; }
+
+    /** Number of lookups answered by a filter alone (the tuple was certainly absent). */
+    public long rejections() { return rejections; }
+
+    /** Number of lookups let through by a filter for a tuple that was absent. */
+    public long falsePositives() { return falsePositives; }
+
+    /**
+     * Observed rate of false positives: the fraction of the lookups of absent tuples that were
+     * let through by the filters (0 if there were none).
+     */
+    public double observedFalsePositiveRate()
+    {
+        long absent = rejections + falsePositives;
+        return absent == 0 ? 0 : (double) falsePositives / absent;
+    }
+
+    /** Number of filters built (including the replacements of outgrown filters). */
+    public long builds() { return builds; }
+
+    /** Total time spent building filters, in nanoseconds. */
+    public long buildNanos() { return buildNanos; }
+
+    /** Number of filter builds skipped because they would have exceeded the memory limit. */
+    public long refused() { return refused; }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return String.format(
+            "filters: %d live (%d bytes), %d probes, %d rejections, %d false positives "
+                + "(%.4f, target %.4f), %d builds (%.3f ms), %d refused",
+            filtered.size(), memory, probes, rejections, falsePositives,
+            observedFalsePositiveRate(), falsePositiveRate, builds, buildNanos / 1e6, refused);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
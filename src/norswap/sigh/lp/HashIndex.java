@@ -0,0 +1,243 @@
+package norswap.sigh.lp;
+
+import java.util.Arrays;
+
+/**
+ * A secondary hash index over a combination of columns of a {@link Relation}: maps each distinct
+ * combination of values in these columns to the (ascending) list of rows holding it.
+ *
+ * <p>Indexes are built on demand by {@link IndexManager} and kept up to date by {@link
+ * Relation#add} afterwards.
+ *
+ * <p>The index is an open-addressing table of groups (one group per distinct key). Keys are not
+ * stored: they are compared against the first row of each group. Rows of a group are kept in a
+ * plain growable {@code int} array.
+ */
+public final class HashIndex
+{
+    // ---------------------------------------------------------------------------------------------
+
+    public final Relation relation;
+
+    /** Bitmask of the indexed columns (bit {@code i} set = column {@code i} indexed). */
+    public final int mask;
+
+    /** The indexed columns, in increasing order. */
+    private final int[] columns;
+
+    /** Slot → group number, -1 for empty slots. Capacity is a power of two. */
+    private int[] table = new int[16];
+
+    private int[][] groupRows = new int[8][];
+    private int[] groupSizes = new int[8];
+    private int groupCount = 0;
+
+    /** Estimated memory footprint in bytes, maintained incrementally. */
+    private long memory;
+
+    /** Logical time of last use, for LRU eviction by {@link IndexManager}. */
+    long lastUsed;
+
+    // ---------------------------------------------------------------------------------------------
+
+    HashIndex (Relation relation, int mask)
+    {
+        this.relation = relation;
+        this.mask = mask;
+        this.columns = columns(mask);
+        Arrays.fill(table, -1);
+        this.memory = 4L * table.length + 12L * groupSizes.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the columns whose bit is set in {@code mask}, in increasing order.
+     */
+    static int[] columns (int mask)
+    {
+        int[] columns = new int[Integer.bitCount(mask)];
+        for (int i = 0, j = 0; j < columns.length; ++i)
+            if ((mask & (1 << i)) != 0) columns[j++] = i;
+        return columns;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Indexes all rows of the relation.
+     */
+    void build() {
+        for (int row = 0; row < relation.size(); ++row) add(row);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the given row to the index. Rows must be added in increasing order.
+     */
+    void add (int row)
+    {
+        int slotMask = table.length - 1;
+        int slot = rowHash(row) & slotMask;
+        int group;
+        while ((group = table[slot]) >= 0) {
+            if (sameKey(groupRows[group][0], row)) {
+                append(group, row);
+                return;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+
+        if (groupCount == groupSizes.length) {
+            groupRows = Arrays.copyOf(groupRows, groupCount * 2);
+            groupSizes = Arrays.copyOf(groupSizes, groupCount * 2);
+            memory += 12L * groupCount;
+        }
+        group = groupCount++;
+        groupRows[group] = new int[] { row };
+        groupSizes[group] = 1;
+        memory += 20;
+        table[slot] = group;
+        if (groupCount * 2 > table.length) rehash();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void append (int group, int row)
+    {
+        int[] rows = groupRows[group];
+        int size = groupSizes[group];
+        if (size == rows.length) {
+            groupRows[group] = rows = Arrays.copyOf(rows, size * 2);
+            memory += 4L * size;
+        }
+        rows[size] = row;
+        groupSizes[group] = size + 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the group holding the rows whose indexed columns match the values of {@code atom}
+     * under {@code bindings}, or -1 if there is none. All indexed columns must be bound.
+     *
+     * <p>The table is read once, so that a probe racing with an insertion (see {@link StoreView})
+     * ends, even if it may return a wrong group.
+     */
+    public int find (Atom atom, int[] bindings)
+    {
+        int h = 1;
+        for (int column: columns)
+            h = 31 * h + atom.value(column, bindings);
+
+        int[] table = this.table;
+        int slotMask = table.length - 1;
+        int group;
+        outer: for (int slot = Relation.mix(h) & slotMask; (group = table[slot]) >= 0;
+                slot = (slot + 1) & slotMask) {
+            int first = groupRows[group][0];
+            for (int column: columns)
+                if (relation.get(first, column) != atom.value(column, bindings))
+                    continue outer;
+            return group;
+        }
+        return -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the group holding the rows whose indexed columns hold the values of {@code key} (one
+     * value per indexed column, in increasing column order), or -1 if there is none.
+     */
+    public int find (int[] key)
+    {
+        int h = 1;
+        for (int value: key)
+            h = 31 * h + value;
+
+        int slotMask = table.length - 1;
+        int group;
+        outer: for (int slot = Relation.mix(h) & slotMask; (group = table[slot]) >= 0;
+                slot = (slot + 1) & slotMask) {
+            int first = groupRows[group][0];
+            for (int i = 0; i < columns.length; ++i)
+                if (relation.get(first, columns[i]) != key[i])
+                    continue outer;
+            return group;
+        }
+        return -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the array holding the rows of the given group. Only the first {@link
+     * #groupSize(int)} entries are valid.
+     */
+    public int[] groupRows (int group) {
+        return groupRows[group];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of rows in the given group.
+     */
+    public int groupSize (int group) {
+        return groupSizes[group];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Estimated memory footprint of the index, in bytes.
+     */
+    public long memory() {
+        return memory;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean sameKey (int row1, int row2)
+    {
+        for (int column: columns)
+            if (relation.get(row1, column) != relation.get(row2, column)) return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int rowHash (int row)
+    {
+        int h = 1;
+        for (int column: columns)
+            h = 31 * h + relation.get(row, column);
+        return Relation.mix(h);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void rehash()
+    {
+        int[] newTable = new int[table.length * 2];
+        Arrays.fill(newTable, -1);
+        int slotMask = newTable.length - 1;
+        for (int group = 0; group < groupCount; ++group) {
+            int slot = rowHash(groupRows[group][0]) & slotMask;
+            while (newTable[slot] >= 0) slot = (slot + 1) & slotMask;
+            newTable[slot] = group;
+        }
+        memory += 4L * (newTable.length - table.length);
+        table = newTable;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return "index on " + relation.name + Arrays.toString(columns);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,244 @@
+package norswap.sigh.lp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Builds and tracks the secondary {@link HashIndex indexes} of the relations of a {@link
+ * FactStore}.
+ *
+ * <p>Every probe of a relation with some bound columns goes through {@link #lookup}. The first
+ * time a combination of bound columns (a pattern) is seen, the probe falls back to a full scan.
+ * Once the same pattern has been seen {@link #buildThreshold()} times, an index is built for it.
+ *
+ * <p>The total estimated memory of all indexes is kept under {@link #memoryLimit()}: building an
+ * index evicts the least recently used ones if needed, and an index is not built at all if the
+ * relation alone would already exceed the limit.
+ *
+ * <p>Indexes are added to and removed from relations under the write lock of the store, as {@link
+ * StoreView views} of the store read them concurrently.
+ */
+public final class IndexManager
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final ArrayList<HashIndex> indexes = new ArrayList<>();
+
+    /** The lock of the store (see {@link FactStore#view()}). */
+    private final StampedLock lock;
+
+    /** Number of probes per (relation, pattern), for patterns that don't have an index. */
+    private final HashMap<Relation, HashMap<Integer, Integer>> patternUses = new HashMap<>();
+
+    private long clock = 0;
+
+    private int buildThreshold = 2;
+    private long memoryLimit = 256L * 1024 * 1024;
+
+    // statistics
+    private long hits, misses, builds, evictions, refused, buildNanos;
+
+    // ---------------------------------------------------------------------------------------------
+
+    IndexManager (StampedLock lock) {
+        this.lock = lock;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of times a pattern must be probed before an index is built for it (default: 2).
+     */
+    public int buildThreshold() {
+        return buildThreshold;
+    }
+
+    public void setBuildThreshold (int buildThreshold) {
+        if (buildThreshold < 1) throw new IllegalArgumentException("threshold must be >= 1");
+        this.buildThreshold = buildThreshold;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Cap on the total estimated memory of the indexes, in bytes (default: 256 MiB).
+     */
+    public long memoryLimit() {
+        return memoryLimit;
+    }
+
+    public void setMemoryLimit (long memoryLimit)
+    {
+        this.memoryLimit = memoryLimit;
+        long stamp = lock.writeLock();
+        try {
+            enforceLimit(null);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the index of {@code relation} on the columns in {@code mask}, building it if the
+     * pattern recurred enough, or null if the probe has to scan the relation.
+     */
+    HashIndex lookup (Relation relation, int mask)
+    {
+        HashIndex index = relation.index(mask);
+        if (index != null) {
+            ++hits;
+            index.lastUsed = ++clock;
+            return index;
+        }
+
+        ++misses;
+        HashMap<Integer, Integer> uses = patternUses.computeIfAbsent(relation, k -> new HashMap<>());
+        int count = uses.merge(mask, 1, Integer::sum);
+        if (count < buildThreshold) return null;
+        uses.remove(mask);
+        return build(relation, mask);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Makes sure the index of {@code relation} on the columns in {@code mask} exists, building it
+     * regardless of the build threshold, and returns it (or null if it is too big for the memory
+     * limit).
+     *
+     * <p>Used before probing relations from multiple threads, which only use existing indexes.
+     */
+    HashIndex prepare (Relation relation, int mask)
+    {
+        HashIndex index = relation.index(mask);
+        if (index != null) {
+            index.lastUsed = ++clock;
+            return index;
+        }
+        HashMap<Integer, Integer> uses = patternUses.get(relation);
+        if (uses != null) uses.remove(mask);
+        return build(relation, mask);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records that {@code relation} used to have an index on the columns in {@code mask} (e.g.
+     * before being saved to a snapshot), so that the index is rebuilt by the next probe that needs
+     * it, regardless of the build threshold.
+     */
+    void restore (Relation relation, int mask) {
+        patternUses.computeIfAbsent(relation, k -> new HashMap<>()).put(mask, buildThreshold);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Forgets the indexes and pattern statistics of a relation removed from the store.
+     */
+    void forget (Relation relation)
+    {
+        indexes.removeIf(index -> index.relation == relation);
+        patternUses.remove(relation);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private HashIndex build (Relation relation, int mask)
+    {
+        if (relation.arity > 31) return null;
+
+        // rough lower bound: one row reference per tuple
+        if (4L * relation.size() > memoryLimit) {
+            ++refused;
+            return null;
+        }
+
+        long start = System.nanoTime();
+        HashIndex index = new HashIndex(relation, mask);
+        index.build();
+        buildNanos += System.nanoTime() - start;
+        ++builds;
+
+        index.lastUsed = ++clock;
+        long stamp = lock.writeLock();
+        try {
+            relation.addIndex(index);
+            indexes.add(index);
+            enforceLimit(index);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return relation.index(mask); // null if evicted because too large
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evicts least recently used indexes until the memory limit is respected, evicting {@code
+     * keep} (which may be null) only if it is the last index left. Must be called under the write
+     * lock of the store.
+     */
+    void enforceLimit (HashIndex keep)
+    {
+        while (!indexes.isEmpty() && memory() > memoryLimit) {
+            HashIndex victim = null;
+            for (HashIndex index: indexes)
+                if (index != keep && (victim == null || index.lastUsed < victim.lastUsed))
+                    victim = index;
+            if (victim == null) victim = keep;
+            indexes.remove(victim);
+            victim.relation.removeIndex(victim);
+            ++evictions;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Total estimated memory of all live indexes, in bytes.
+     */
+    public long memory()
+    {
+        long memory = 0;
+        for (HashIndex index: indexes) memory += index.memory();
+        return memory;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of live indexes. */
+    public int indexCount() { return indexes.size(); }
+
+    /** Number of probes answered by an existing index. */
+    public long hits() { return hits; }
+
+    /** Number of probes on a pattern without index (answered by a full scan). */
+    public long misses() { return misses; }
+
+    /** Number of indexes built. */
+    public long builds() { return builds; }
+
+    /** Total time spent building indexes, in nanoseconds. */
+    public long buildNanos() { return buildNanos; }
+
+    /** Number of indexes dropped to respect the memory limit. */
+    public long evictions() { return evictions; }
+
+    /** Number of index builds skipped because the relation was too big for the memory limit. */
+    public long refused() { return refused; }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return String.format(
+            "indexes: %d live (%d bytes), %d hits, %d misses, %d builds (%.3f ms), "
+                + "%d evictions, %d refused",
+            indexes.size(), memory(), hits, misses, builds, buildNanos / 1e6, evictions, refused);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
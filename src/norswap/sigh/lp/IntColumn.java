@@ -0,0 +1,202 @@
+package norswap.sigh.lp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable array of {@code int}, used by {@link Relation} to store its columns and its
+ * deduplication table, either on the Java heap or off-heap (see {@link FactStore.Storage}).
+ *
+ * <p>Off-heap columns are made of direct buffers of {@link #CHUNK} values (4 MiB), so that they
+ * never need to be copied to grow once they reach that size, and can hold up to 2^31 values. The
+ * last chunk starts small and doubles until it reaches full size, so that small relations don't
+ * use 4 MiB per column. Chunks can also be mapped from a file (see {@link Snapshot}).
+ */
+abstract class IntColumn
+{
+    // ---------------------------------------------------------------------------------------------
+
+    static final int CHUNK_SHIFT = 20;
+    static final int CHUNK = 1 << CHUNK_SHIFT;
+    static final int CHUNK_MASK = CHUNK - 1;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a column that can hold {@code capacity} values, all zero.
+     */
+    static IntColumn create (FactStore.Storage storage, int capacity) {
+        return storage == FactStore.Storage.HEAP
+            ? new Heap(capacity)
+            : new OffHeap(capacity);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    abstract int get (int index);
+
+    abstract void set (int index, int value);
+
+    /** Number of values the column can hold without growing. */
+    abstract int capacity();
+
+    /** Grows the column so that it can hold at least {@code capacity} values. */
+    abstract void reserve (int capacity);
+
+    /** Sets all values to {@code value}. */
+    abstract void fill (int value);
+
+    /**
+     * Returns a read-only column sharing the storage of this one, which keeps holding the values
+     * written so far while this column is appended to and grown (since growing copies the values
+     * to new storage). Used by {@link StoreView}.
+     */
+    abstract IntColumn freeze();
+
+    /** Memory used by the column, in bytes. */
+    long memory() {
+        return 4L * capacity();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Heap extends IntColumn
+    {
+        private int[] values;
+
+        Heap (int capacity) {
+            values = new int[capacity];
+        }
+
+        private Heap (int[] values) {
+            this.values = values;
+        }
+
+        @Override int get (int index) {
+            return values[index];
+        }
+
+        @Override void set (int index, int value) {
+            values[index] = value;
+        }
+
+        @Override int capacity() {
+            return values.length;
+        }
+
+        @Override void reserve (int capacity) {
+            if (capacity > values.length)
+                values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+        }
+
+        @Override void fill (int value) {
+            Arrays.fill(values, value);
+        }
+
+        @Override IntColumn freeze() {
+            return new Heap(values);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Off-heap column: all chunks hold {@link #CHUNK} values, except the last one, which can be
+     * smaller. Chunks can be read-only (e.g. mapped from a snapshot file): such a chunk is copied
+     * to a direct buffer the first time it is written to.
+     */
+    static final class OffHeap extends IntColumn
+    {
+        private IntBuffer[] chunks;
+        private int capacity;
+
+        OffHeap (int capacity)
+        {
+            chunks = new IntBuffer[] { allocate(Math.max(1, Math.min(CHUNK, capacity))) };
+            this.capacity = chunks[0].capacity();
+            reserve(capacity);
+        }
+
+        /**
+         * Creates a column from existing chunks, which must respect the chunk size constraints.
+         */
+        OffHeap (IntBuffer[] chunks)
+        {
+            this.chunks = chunks;
+            long capacity = 0;
+            for (IntBuffer chunk: chunks) capacity += chunk.capacity();
+            this.capacity = (int) capacity;
+        }
+
+        private static IntBuffer allocate (int size) {
+            return ByteBuffer.allocateDirect(4 * size).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+
+        /** Returns a writable copy of {@code chunk} with the given size (at least its own). */
+        private static IntBuffer copy (IntBuffer chunk, int size)
+        {
+            IntBuffer copy = allocate(size);
+            IntBuffer source = chunk.duplicate();
+            source.rewind();
+            copy.put(source);
+            copy.rewind();
+            return copy;
+        }
+
+        @Override int get (int index) {
+            return chunks[index >>> CHUNK_SHIFT].get(index & CHUNK_MASK);
+        }
+
+        @Override void set (int index, int value)
+        {
+            IntBuffer chunk = chunks[index >>> CHUNK_SHIFT];
+            if (chunk.isReadOnly())
+                chunk = chunks[index >>> CHUNK_SHIFT] = copy(chunk, chunk.capacity());
+            chunk.put(index & CHUNK_MASK, value);
+        }
+
+        @Override int capacity() {
+            return capacity;
+        }
+
+        @Override void reserve (int capacity)
+        {
+            if (capacity <= this.capacity) return;
+
+            int lastIndex = chunks.length - 1;
+            IntBuffer last = chunks[lastIndex];
+            if (last.capacity() < CHUNK) { // grow the last chunk by copying
+                long needed = capacity - ((long) lastIndex << CHUNK_SHIFT);
+                int size = (int) Math.min(CHUNK, Math.max(needed, 2L * last.capacity()));
+                chunks[lastIndex] = copy(last, size);
+                this.capacity += size - last.capacity();
+            }
+
+            int count = (int) ((capacity + (long) CHUNK_MASK) >>> CHUNK_SHIFT);
+            if (count > chunks.length) {
+                int old = chunks.length;
+                chunks = Arrays.copyOf(chunks, count);
+                for (int i = old; i < count; ++i) chunks[i] = allocate(CHUNK);
+                this.capacity = (int) Math.min(Integer.MAX_VALUE, (long) count << CHUNK_SHIFT);
+            }
+        }
+
+        @Override void fill (int value)
+        {
+            for (int c = 0; c < chunks.length; ++c) {
+                if (chunks[c].isReadOnly()) chunks[c] = allocate(chunks[c].capacity());
+                for (int i = 0; i < chunks[c].capacity(); ++i)
+                    chunks[c].put(i, value);
+            }
+        }
+
+        // chunks are replaced rather than modified when copied or grown
+        @Override IntColumn freeze() {
+            return new OffHeap(chunks.clone());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,361 @@
+package norswap.sigh.lp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+
+/**
+ * Chooses the order in which the body atoms of a rule are joined, based on the statistics
+ * maintained by the relations of a {@link FactStore}: their cardinality and the number of distinct
+ * values in their columns.
+ *
+ * <p>Planning is greedy: at each step, the planner picks the atom with the smallest estimated
+ * number of matches given the variables bound so far. The estimate is the number of tuples the
+ * atom ranges over, divided by the number of distinct values of each bound column (assuming
+ * independent, uniformly distributed columns). This favours small extents and atoms whose
+ * variables are already bound, and avoids cross products whenever a connected atom exists. The
+ * estimate is also multiplied by the fraction of tuples within the bounds of each unbound position
+ * bounded by a comparison: the fraction found by its {@link RangeIndex} if it has one, {@link
+ * #RANGE_SELECTIVITY} otherwise.
+ *
+ * <p>Plans are cached per rule and variant (see {@link #plan}), along with the extents they were
+ * computed for. A cached plan is reused until the extent of one of the atoms drifts by more than
+ * {@link #driftFactor()} (in either direction), after which the rule is re-planned.
+ *
+ * <p>The planner also chooses the join algorithm of bottom-up evaluation (see {@link
+ * #algorithm()}): by default, rules whose body is cyclic (e.g. a triangle {@code e(x, y), e(y, z),
+ * e(z, x)}) are joined with the worst-case optimal {@link LeapfrogJoin}, and the others with
+ * pairwise joins in the planned order. Pairwise joins are optimal for acyclic bodies given a good
+ * order, but every order can blow up on cyclic bodies, whose intermediate results can be much
+ * larger than their output.
+ */
+public final class JoinPlanner
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Assumed fraction of tuples within the bounds of a comparison, without a range index. */
+    static final double RANGE_SELECTIVITY = 1 / 3.0;
+
+    private final FactStore store;
+    private final HashMap<PlanKey, Plan> plans = new HashMap<>();
+
+    /** Whether each rule seen by {@link #leapfrog} has a cyclic body. */
+    private final IdentityHashMap<Rule, Boolean> cyclic = new IdentityHashMap<>();
+
+    private boolean enabled = true;
+    private double driftFactor = 2.0;
+    private JoinAlgorithm algorithm = JoinAlgorithm.AUTO;
+
+    // statistics
+    private long planned, reused, replanned, leapfrogs;
+
+    // ---------------------------------------------------------------------------------------------
+
+    JoinPlanner (FactStore store) {
+        this.store = store;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether planning is enabled (default: true). When disabled, atoms are joined in source
+     * order.
+     */
+    public boolean enabled() {
+        return enabled;
+    }
+
+    public void setEnabled (boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Factor by which the extent of an atom must grow or shrink before a cached plan is
+     * recomputed (default: 2).
+     */
+    public double driftFactor() {
+        return driftFactor;
+    }
+
+    public void setDriftFactor (double driftFactor) {
+        if (driftFactor < 1) throw new IllegalArgumentException("drift factor must be >= 1");
+        this.driftFactor = driftFactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Algorithms joining the body atoms of a rule during bottom-up evaluation.
+     */
+    public enum JoinAlgorithm
+    {
+        /** Leapfrog Triejoin for rules with a cyclic body, pairwise joins for the others. */
+        AUTO,
+        /** Joins the atoms one at a time, in the planned order. */
+        PAIRWISE,
+        /** Leapfrog Triejoin for every rule with more than one body atom. */
+        LEAPFROG
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The join algorithm used by bottom-up evaluation (default: {@link JoinAlgorithm#AUTO}).
+     */
+    public JoinAlgorithm algorithm() {
+        return algorithm;
+    }
+
+    public void setAlgorithm (JoinAlgorithm algorithm) {
+        this.algorithm = Objects.requireNonNull(algorithm);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether bottom-up evaluation should join the body of {@code rule} with the {@link
+     * LeapfrogJoin} rather than pairwise, according to the {@link #algorithm()}.
+     */
+    boolean leapfrog (Rule rule)
+    {
+        boolean leapfrog = prefersLeapfrog(rule);
+        if (leapfrog) ++leapfrogs;
+        return leapfrog;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #leapfrog}, but without counting a leapfrog join. Rules with comparisons are
+     * always joined pairwise, as the tries of the Leapfrog Triejoin ignore bounds.
+     */
+    boolean prefersLeapfrog (Rule rule)
+    {
+        if (rule.bounded()) return false;
+        switch (algorithm) {
+            case PAIRWISE: return false;
+            case LEAPFROG: return rule.body.length > 1;
+            default:       return cyclic.computeIfAbsent(rule, JoinPlanner::cyclic);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the body of {@code rule} is a cyclic hypergraph (whose nodes are variables and whose
+     * edges are atoms), as determined by GYO reduction: repeatedly remove the variables that occur
+     * in a single atom, and the atoms whose variables all occur in another atom. The body is
+     * acyclic iff at most one atom remains.
+     */
+    public static boolean cyclic (Rule rule)
+    {
+        ArrayList<HashSet<Integer>> edges = new ArrayList<>();
+        for (Atom atom: rule.body) {
+            HashSet<Integer> edge = new HashSet<>();
+            for (int var: atom.vars) if (var != Atom.CONSTANT) edge.add(var);
+            edges.add(edge);
+        }
+        boolean changed = true;
+        while (changed && edges.size() > 1) {
+            changed = false;
+            HashMap<Integer, Integer> occurrences = new HashMap<>();
+            for (HashSet<Integer> edge: edges)
+                for (int var: edge) occurrences.merge(var, 1, Integer::sum);
+            for (HashSet<Integer> edge: edges)
+                changed |= edge.removeIf(var -> occurrences.get(var) == 1);
+            for (int i = 0; i < edges.size(); ++i)
+                for (int j = 0; j < edges.size(); ++j)
+                    if (i != j && edges.get(j).containsAll(edges.get(i))) {
+                        edges.remove(i--);
+                        changed = true;
+                        break;
+                    }
+        }
+        return edges.size() > 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the order in which to join the body atoms of {@code rule}, as a permutation of the
+     * atom indices.
+     *
+     * @param variant identifies the evaluation context, so that each context has its own cached
+     *                plan: {@code -2 - i} for the bottom-up variant in which atom {@code i} is
+     *                restricted to a delta, the bitmask of the bound head positions for tabled
+     *                resolution
+     * @param bound bitmask of the variables bound before the body is joined (variables above 63
+     *              are never considered bound)
+     * @param extents number of tuples each atom ranges over
+     */
+    public int[] plan (Rule rule, int variant, long bound, long[] extents)
+    {
+        if (!enabled) return identity(rule.body.length);
+
+        PlanKey key = new PlanKey(rule, variant);
+        Plan plan = plans.get(key);
+        if (plan != null && !drifted(plan.extents, extents)) {
+            ++reused;
+            return plan.order;
+        }
+        if (plan != null) ++replanned;
+        ++planned;
+        plan = new Plan(order(rule, bound, extents), extents.clone());
+        plans.put(key, plan);
+        return plan.order;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #plan}, but neither uses nor updates the cached plans.
+     */
+    int[] preview (Rule rule, long bound, long[] extents) {
+        return enabled ? order(rule, bound, extents) : identity(rule.body.length);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean drifted (long[] old, long[] current)
+    {
+        for (int i = 0; i < old.length; ++i) {
+            double ratio = (current[i] + 1.0) / (old[i] + 1.0);
+            if (ratio > driftFactor || ratio * driftFactor < 1) return true;
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int[] order (Rule rule, long bound, long[] extents)
+    {
+        Atom[] body = rule.body;
+        int[] order = new int[body.length];
+        boolean[] placed = new boolean[body.length];
+
+        for (int k = 0; k < body.length; ++k) {
+            int best = -1;
+            double bestEstimate = 0;
+            int bestBound = 0;
+            for (int i = 0; i < body.length; ++i) {
+                if (placed[i]) continue;
+                int boundCount = 0;
+                double estimate = extents[i];
+                Relation relation = store.find(body[i].key());
+                for (int j = 0; j < body[i].arity(); ++j) {
+                    int var = body[i].vars[j];
+                    if (var != Atom.CONSTANT && !isBound(bound, var)) {
+                        if (body[i].bounded(j)) estimate *= selectivity(body[i], relation, j);
+                        continue;
+                    }
+                    ++boundCount;
+                    if (relation != null) estimate /= relation.distinct(j);
+                }
+                if (best < 0 || estimate < bestEstimate
+                        || estimate == bestEstimate && boundCount > bestBound) {
+                    best = i;
+                    bestEstimate = estimate;
+                    bestBound = boundCount;
+                }
+            }
+            order[k] = best;
+            placed[best] = true;
+            for (int var: body[best].vars)
+                if (var != Atom.CONSTANT && var < 64) bound |= 1L << var;
+        }
+        return order;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Estimated fraction of the tuples of {@code relation} within the bounds of position {@code
+     * j} of {@code atom}.
+     */
+    private static double selectivity (Atom atom, Relation relation, int j)
+    {
+        RangeIndex range = relation == null ? null : relation.range(j);
+        return range == null
+            ? RANGE_SELECTIVITY
+            : range.selectivity(atom.lower(j), atom.upper(j));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean isBound (long bound, int var) {
+        return var < 64 && (bound & (1L << var)) != 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static int[] identity (int n)
+    {
+        int[] order = new int[n];
+        for (int i = 0; i < n; ++i) order[i] = i;
+        return order;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of plans computed (including re-plans). */
+    public long planned() { return planned; }
+
+    /** Number of times a cached plan was reused. */
+    public long reused() { return reused; }
+
+    /** Number of cached plans recomputed because the statistics drifted. */
+    public long replanned() { return replanned; }
+
+    /** Number of rule firings joined with the {@link LeapfrogJoin}. */
+    public long leapfrogs() { return leapfrogs; }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return String.format(
+            "planner: %d plans cached, %d planned, %d reused, %d replanned, %d leapfrog joins",
+            plans.size(), planned, reused, replanned, leapfrogs);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class PlanKey
+    {
+        final Rule rule;
+        final int variant;
+
+        PlanKey (Rule rule, int variant) {
+            this.rule = rule;
+            this.variant = variant;
+        }
+
+        @Override public boolean equals (Object o) {
+            if (!(o instanceof PlanKey)) return false;
+            PlanKey other = (PlanKey) o;
+            return rule == other.rule && variant == other.variant;
+        }
+
+        @Override public int hashCode () {
+            return Objects.hash(System.identityHashCode(rule), variant);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Plan
+    {
+        final int[] order;
+        final long[] extents;
+
+        Plan (int[] order, long[] extents) {
+            this.order = order;
+            this.extents = extents;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,476 @@
+package norswap.sigh.lp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Joins the body atoms of a rule with the Leapfrog Triejoin algorithm (Veldhuizen, 2014), a
+ * worst-case optimal join: its running time is bounded by the largest possible output of the body
+ * (e.g. O(n^1.5) for a triangle over n edges), whereas pairwise joins can produce intermediate
+ * results of size O(n^2) for cyclic bodies, whatever the join order.
+ *
+ * <p>Instead of joining one atom at a time, the algorithm binds one variable at a time, in a
+ * fixed global order. Each atom is viewed as a trie whose levels are its variables in that order:
+ * to bind a variable, the algorithm intersects the values available at the current level of the
+ * tries of all atoms containing it, by leapfrogging (repeatedly seeking the iterator with the
+ * smallest value to the largest value of the others).
+ *
+ * <p>The tries are sorted copies of the rows of the relations (restricted to the row ranges used
+ * by semi-naive evaluation, and to the rows matching the constants and repeated variables of the
+ * atom), stored column-wise, in which seeks are galloping searches. They are cached by relation,
+ * row range and atom shape until {@link #clear()} is called, so that the variants of a rule
+ * evaluated in the same iteration share the tries of the ranges they have in common.
+ *
+ * <p>The variable order puts first the variables shared by the most atoms (ties broken by order
+ * of appearance), so that the intersections that prune the most happen first.
+ */
+final class LeapfrogJoin
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final FactStore store;
+
+    private final IdentityHashMap<Rule, int[]> orders = new IdentityHashMap<>();
+
+    private final HashMap<TrieKey, Trie> tries = new HashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    LeapfrogJoin (FactStore store) {
+        this.store = store;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Drops the cached tries.
+     */
+    void clear() {
+        tries.clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Joins the body atoms of {@code rule}, matching each body atom {@code i} only against the
+     * rows in {@code [from[i], to[i])} of its relation, and passes the head tuple of each
+     * derivation to {@code derive} (the array is reused between calls).
+     */
+    void join (Rule rule, int[] from, int[] to, Consumer<int[]> derive)
+    {
+        int[] order = orders.computeIfAbsent(rule, LeapfrogJoin::variableOrder);
+        int[] depthOf = new int[rule.varCount()];
+        for (int d = 0; d < order.length; ++d) depthOf[order[d]] = d;
+
+        Atom[] body = rule.body;
+        Cursor[] cursors = new Cursor[body.length];
+        int[] participants = new int[order.length];
+        for (int i = 0; i < body.length; ++i) {
+            Relation relation = store.find(body[i].key());
+            if (relation == null) return;
+            int start = from[i];
+            int end = Math.min(to[i], relation.size());
+            if (start >= end) return;
+            int[] vars = variables(body[i], depthOf);
+            Trie trie = trie(body[i], relation, start, end, vars);
+            if (trie.size == 0) return;
+            cursors[i] = new Cursor(trie, vars);
+            for (int var: vars) ++participants[depthOf[var]];
+        }
+
+        // cursors of the atoms containing the variable bound at each depth
+        Cursor[][] levels = new Cursor[order.length][];
+        for (int d = 0; d < order.length; ++d) levels[d] = new Cursor[participants[d]];
+        Arrays.fill(participants, 0);
+        for (Cursor cursor: cursors)
+            for (int var: cursor.vars) {
+                int d = depthOf[var];
+                levels[d][participants[d]++] = cursor;
+            }
+
+        new Search(rule, order, levels, derive).run(0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the order in which the variables of the body of {@code rule} are bound.
+     */
+    static int[] variableOrder (Rule rule)
+    {
+        int[] atoms = new int[rule.varCount()]; // number of atoms containing each variable
+        int[] first = new int[rule.varCount()]; // first appearance
+        Arrays.fill(first, Integer.MAX_VALUE);
+        int position = 0;
+        for (Atom atom: rule.body) {
+            boolean[] seen = new boolean[rule.varCount()];
+            for (int var: atom.vars) {
+                if (var == Atom.CONSTANT) continue;
+                first[var] = Math.min(first[var], position++);
+                if (!seen[var]) ++atoms[var];
+                seen[var] = true;
+            }
+        }
+        Integer[] vars = new Integer[rule.varCount()];
+        int count = 0;
+        for (int var = 0; var < vars.length; ++var)
+            if (atoms[var] > 0) vars[count++] = var;
+        Arrays.sort(vars, 0, count, (a, b) -> atoms[a] != atoms[b]
+            ? Integer.compare(atoms[b], atoms[a])
+            : Integer.compare(first[a], first[b]));
+
+        int[] order = new int[count];
+        for (int i = 0; i < count; ++i) order[i] = vars[i];
+        return order;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the distinct variables of {@code atom}, sorted by depth: the variables of the levels
+     * of its trie.
+     */
+    private static int[] variables (Atom atom, int[] depthOf)
+    {
+        int[] vars = FactStore.freeVariables(atom, atom.freshBindings());
+        Integer[] sorted = new Integer[vars.length];
+        for (int i = 0; i < vars.length; ++i) sorted[i] = vars[i];
+        Arrays.sort(sorted, (a, b) -> Integer.compare(depthOf[a], depthOf[b]));
+        for (int i = 0; i < vars.length; ++i) vars[i] = sorted[i];
+        return vars;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the (possibly cached) trie of the rows {@code [start, end)} of {@code relation}
+     * matching {@code atom}, whose levels are {@code vars}.
+     */
+    private Trie trie (Atom atom, Relation relation, int start, int end, int[] vars)
+    {
+        // shape: for each column, its constant, or ~level for a variable
+        int[] shape = new int[atom.arity()];
+        for (int c = 0; c < shape.length; ++c) {
+            if (atom.vars[c] == Atom.CONSTANT) {
+                shape[c] = atom.terms[c];
+                continue;
+            }
+            int level = 0;
+            while (vars[level] != atom.vars[c]) ++level;
+            shape[c] = ~level;
+        }
+
+        TrieKey key = new TrieKey(relation, start, end, atom, shape);
+        Trie trie = tries.get(key);
+        if (trie == null) {
+            trie = Trie.build(atom, relation, start, end, shape, vars.length);
+            tries.put(key, trie);
+        }
+        return trie;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The depth-first search over the variables, binding one variable per depth.
+     */
+    private static final class Search
+    {
+        final Rule rule;
+        final int[] order;
+        final Cursor[][] levels;
+        final Consumer<int[]> derive;
+        final int[] bindings;
+        final int[] tuple;
+
+        Search (Rule rule, int[] order, Cursor[][] levels, Consumer<int[]> derive)
+        {
+            this.rule = rule;
+            this.order = order;
+            this.levels = levels;
+            this.derive = derive;
+            this.bindings = rule.head.freshBindings();
+            this.tuple = new int[rule.head.arity()];
+        }
+
+        void run (int depth)
+        {
+            if (depth == order.length) {
+                for (int j = 0; j < tuple.length; ++j)
+                    tuple[j] = rule.head.value(j, bindings);
+                derive.accept(tuple);
+                return;
+            }
+
+            Cursor[] cursors = levels[depth];
+            for (Cursor cursor: cursors) cursor.open();
+            if (leapfrogInit(cursors)) {
+                int k = cursors.length;
+                int p = 0;
+                int max = cursors[k - 1].key();
+                while (true) {
+                    Cursor cursor = cursors[p];
+                    if (cursor.key() == max) { // all cursors agree
+                        bindings[order[depth]] = max;
+                        run(depth + 1);
+                        cursor.next();
+                    } else {
+                        cursor.seek(max);
+                    }
+                    if (cursor.atEnd()) break;
+                    max = cursor.key();
+                    p = p + 1 == k ? 0 : p + 1;
+                }
+            }
+            for (Cursor cursor: cursors) cursor.up();
+        }
+
+        /**
+         * Sorts the cursors by key, returning false if one of them is empty.
+         */
+        private static boolean leapfrogInit (Cursor[] cursors)
+        {
+            for (Cursor cursor: cursors)
+                if (cursor.atEnd()) return false;
+            for (int i = 1; i < cursors.length; ++i) // insertion sort: there are few cursors
+                for (int j = i; j > 0 && cursors[j - 1].key() > cursors[j].key(); --j) {
+                    Cursor tmp = cursors[j];
+                    cursors[j] = cursors[j - 1];
+                    cursors[j - 1] = tmp;
+                }
+            return true;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The rows of a relation matching an atom, projected on the atom's variables (in depth order)
+     * and sorted lexicographically. The tuples are distinct, since those of the relation are.
+     *
+     * <p>Atoms with the same shape share the trie even if their variables differ, e.g. {@code
+     * edge(x, y)} and {@code edge(y, z)} when {@code x, y, z} are bound in this order.
+     */
+    private static final class Trie
+    {
+        /** {@code columns[l][i]}: value of the level {@code l} variable in the i-th tuple. */
+        final int[][] columns;
+
+        final int size;
+
+        Trie (int[][] columns, int size) {
+            this.columns = columns;
+            this.size = size;
+        }
+
+        static Trie build (Atom atom, Relation relation, int start, int end, int[] shape,
+                           int levels)
+        {
+            int[] source = new int[levels]; // first column of each level
+            Arrays.fill(source, -1);
+            for (int c = 0; c < shape.length; ++c)
+                if (atom.vars[c] != Atom.CONSTANT && source[~shape[c]] < 0) source[~shape[c]] = c;
+
+            int[][] columns = new int[levels][end - start];
+            int size = 0;
+            rows: for (int row = start; row < end; ++row) {
+                for (int c = 0; c < shape.length; ++c) {
+                    int value = relation.get(row, c);
+                    int expected = atom.vars[c] == Atom.CONSTANT
+                        ? shape[c]
+                        : relation.get(row, source[~shape[c]]);
+                    if (value != expected) continue rows;
+                }
+                for (int l = 0; l < levels; ++l)
+                    columns[l][size] = relation.get(row, source[l]);
+                ++size;
+            }
+            sort(columns, size);
+            return new Trie(columns, size);
+        }
+
+        /**
+         * Sorts the first {@code size} tuples lexicographically.
+         */
+        private static void sort (int[][] columns, int size)
+        {
+            if (columns.length == 0) return;
+            if (columns.length == 1) {
+                Arrays.sort(columns[0], 0, size);
+                return;
+            }
+            if (columns.length == 2) { // pack in longs, preserving signed order on both halves
+                long[] packed = new long[size];
+                for (int i = 0; i < size; ++i)
+                    packed[i] = (long) columns[0][i] << 32
+                        | (columns[1][i] ^ Integer.MIN_VALUE) & 0xFFFF_FFFFL;
+                Arrays.sort(packed);
+                for (int i = 0; i < size; ++i) {
+                    columns[0][i] = (int) (packed[i] >> 32);
+                    columns[1][i] = (int) packed[i] ^ Integer.MIN_VALUE;
+                }
+                return;
+            }
+            int[] permutation = new int[size];
+            for (int i = 0; i < size; ++i) permutation[i] = i;
+            mergeSort(columns, permutation, new int[size], 0, size);
+            for (int l = 0; l < columns.length; ++l) {
+                int[] column = columns[l].clone();
+                for (int i = 0; i < size; ++i) columns[l][i] = column[permutation[i]];
+            }
+        }
+
+        private static void mergeSort (int[][] columns, int[] a, int[] tmp, int lo, int hi)
+        {
+            if (hi - lo < 2) return;
+            int mid = (lo + hi) >>> 1;
+            mergeSort(columns, a, tmp, lo, mid);
+            mergeSort(columns, a, tmp, mid, hi);
+            System.arraycopy(a, lo, tmp, lo, hi - lo);
+            for (int i = lo, j = mid, k = lo; k < hi; ++k)
+                a[k] = j >= hi || i < mid && compare(columns, tmp[i], tmp[j]) <= 0
+                    ? tmp[i++]
+                    : tmp[j++];
+        }
+
+        private static int compare (int[][] columns, int x, int y)
+        {
+            for (int[] column: columns) {
+                int c = Integer.compare(column[x], column[y]);
+                if (c != 0) return c;
+            }
+            return 0;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * An iterator over a {@link Trie}, positioned at a level (-1 before the first level is
+     * opened). At each level, the cursor ranges over the distinct values of the level's variable
+     * among the tuples that share the values of the enclosing levels.
+     */
+    private static final class Cursor
+    {
+        final Trie trie;
+
+        /** The variable of each level. */
+        final int[] vars;
+
+        final int[] position;
+        final int[] end;
+        int level = -1;
+
+        Cursor (Trie trie, int[] vars)
+        {
+            this.trie = trie;
+            this.vars = vars;
+            this.position = new int[vars.length];
+            this.end = new int[vars.length];
+        }
+
+        /** Descends to the next level, into the tuples sharing the current value. */
+        void open()
+        {
+            int l = ++level;
+            if (l == 0) {
+                position[0] = 0;
+                end[0] = trie.size;
+            } else {
+                int start = position[l - 1];
+                position[l] = start;
+                end[l] = seek(trie.columns[l - 1], start, end[l - 1], trie.columns[l - 1][start],
+                    true);
+            }
+        }
+
+        void up() {
+            --level;
+        }
+
+        int key() {
+            return trie.columns[level][position[level]];
+        }
+
+        boolean atEnd() {
+            return position[level] >= end[level];
+        }
+
+        /** Moves to the next distinct value. */
+        void next() {
+            position[level] = seek(trie.columns[level], position[level], end[level], key(), true);
+        }
+
+        /** Moves to the first value {@code >= value}. */
+        void seek (int value) {
+            position[level] = seek(trie.columns[level], position[level], end[level], value, false);
+        }
+
+        /**
+         * Returns the first index in {@code [lo, hi)} whose value is {@code > value} (if {@code
+         * strict}) or {@code >= value}, or {@code hi}, using a galloping search from {@code lo}.
+         */
+        private static int seek (int[] column, int lo, int hi, int value, boolean strict)
+        {
+            int step = 1;
+            int bound = lo;
+            while (bound < hi && before(column[bound], value, strict)) {
+                lo = bound + 1;
+                bound += step;
+                step <<= 1;
+            }
+            hi = Math.min(hi, bound);
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (before(column[mid], value, strict)) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        private static boolean before (int x, int value, boolean strict) {
+            return strict ? x <= value : x < value;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class TrieKey
+    {
+        final Relation relation;
+        final int start, end;
+        final int[] shape;
+        final int[] vars;
+        final int hash;
+
+        TrieKey (Relation relation, int start, int end, Atom atom, int[] shape)
+        {
+            this.relation = relation;
+            this.start = start;
+            this.end = end;
+            this.shape = shape;
+            // distinguishes constants from levels with the same encoding
+            this.vars = new int[shape.length];
+            for (int c = 0; c < shape.length; ++c)
+                vars[c] = atom.vars[c] == Atom.CONSTANT ? 0 : 1;
+            this.hash = ((System.identityHashCode(relation) * 31 + start) * 31 + end) * 31
+                + Arrays.hashCode(shape);
+        }
+
+        @Override public boolean equals (Object o)
+        {
+            if (!(o instanceof TrieKey)) return false;
+            TrieKey other = (TrieKey) o;
+            return relation == other.relation && start == other.start && end == other.end
+                && Arrays.equals(shape, other.shape) && Arrays.equals(vars, other.vars);
+        }
+
+        @Override public int hashCode () {
+            return hash;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
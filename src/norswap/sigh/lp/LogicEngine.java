@@ -0,0 +1,1537 @@
+package norswap.sigh.lp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Evaluates logic programs: a {@link FactStore} of facts plus a list of {@link Rule rules}.
+ *
+ * <p>Rules are evaluated bottom-up to fixpoint, Datalog-style, the first time a query is issued
+ * after the program changed. Evaluation is stratified: predicates are grouped into strata of
+ * mutually recursive predicates, which are evaluated in dependency order.
+ *
+ * <p>Within a stratum, evaluation is semi-naive: each iteration only considers the derivations
+ * that use at least one tuple that is new since the previous iteration (the delta). Because
+ * relations are append-only, the delta of a relation is simply a range of rows. For a rule with
+ * body atoms {@code r1, ..., rn}, the iteration fires one variant per atom {@code ri} that has a
+ * delta, in which {@code ri} is restricted to the delta, {@code r1, ..., ri-1} to the tuples known
+ * before the previous iteration, and {@code ri+1, ..., rn} to all tuples known before the current
+ * iteration. This enumerates every new derivation exactly once. The atoms of each variant are
+ * joined in the order chosen by the {@link JoinPlanner}, not necessarily in source order, except
+ * for rules with a cyclic body, which are joined with the worst-case optimal {@link LeapfrogJoin}
+ * (see {@link JoinPlanner#algorithm()}).
+ *
+ * <p>Evaluation is incremental: the engine remembers the size of every relation at the end of the
+ * last evaluation, and the tuples added since then (asserted facts, or tuples derived in lower
+ * strata) form the delta of the first iteration of each stratum. Re-evaluating after inserting a
+ * fact therefore only propagates the consequences of that fact, at a cost proportional to the
+ * change rather than to the size of the program's model. Adding a rule makes the next evaluation
+ * start from scratch (facts derived so far are kept, as they remain valid).
+ *
+ * <p>With a {@link #parallelism()} above 1, the join work of each iteration is split across a
+ * {@link ForkJoinPool}: the tuples matching the first body atom of a plan are partitioned by the
+ * hash of their join key (the values of the variables shared with the rest of the body), and each
+ * partition is joined with the rest of the body by a separate task. Tasks only read the store,
+ * and merge the tuples they derive in a concurrent set, which is inserted into the store at the
+ * end of the iteration.
+ *
+ * <p>A stratum made of the rules of a single binary predicate, one of which computes the
+ * transitive closure of an edge relation by linear recursion (e.g. {@code path(x, y) :- path(x,
+ * z), edge(z, y)}), is evaluated by graph searches over the edges rather than by semi-naive joins
+ * (see {@link TransitiveClosure}), when most of the edges are new, e.g. in a first evaluation.
+ * Smaller changes are propagated semi-naively, at a cost proportional to the change. This can be
+ * disabled with {@link #setTransitiveClosure}.
+ *
+ * <p>Likewise, a rule over sets of terms (e.g. {@code singer(x) :- person(x), sings(x)}) is
+ * evaluated by intersecting the members bitmaps of its unary relations (see {@link BitmapJoin})
+ * when most members of one of them are new. This can be disabled with {@link #setBitmapJoins}.
+ *
+ * <p>Rules can be given a {@link CompiledRule compiled} version, which sequential bottom-up
+ * evaluation runs instead of the generic join, starting with the atom chosen by the planner.
+ *
+ * <p>Alternatively, queries can be answered top-down with tabled resolution (see {@link
+ * TabledResolver}), which only computes the facts relevant to the query. This is the default
+ * {@link #strategy()}. Finally, the {@link Strategy#MAGIC_SETS} strategy combines both approaches:
+ * it evaluates the rules bottom-up, after rewriting them so that only the facts relevant to the
+ * query are derived (see {@link MagicSets}).
+ *
+ * <p>Besides {@link #query}, which pushes every answer to a callback, answers can be pulled one at
+ * a time from an {@link AnswerStream} (see {@link #stream}), optionally with a limit on their
+ * number. With tabled resolution, a limited query stops evaluating as soon as it has enough
+ * answers, so that e.g. {@link #exists} doesn't compute the whole answer set.
+ *
+ * <p>The answers to queries are cached until a fact is asserted for a predicate they depend on, or
+ * a rule is added (see {@link AnswerCache}).
+ *
+ * <p>The {@link Aggregate aggregates} of a rule are replaced by atoms on views: relations holding
+ * the key and result of each group, which are computed by folding the answers to the aggregated
+ * atom as they are produced, before the rules that read them are evaluated (or resolved), and
+ * recomputed when a predicate they depend on changes. Aggregation must be stratified: the
+ * aggregated atom can't depend on the head of the rule. Results change rather than grow, so when
+ * a result changes, the view is replaced, and the predicates that depend on it are derived again
+ * from scratch. The facts asserted on these predicates are kept: the engine keeps a copy of every
+ * fact asserted on the head of a rule, and inserts them again after the predicate is dropped.
+ *
+ * <p>Queries can be given a {@link CancellationToken}, and are given one that expires after
+ * {@link #timeout()} by default, so that a query whose rules derive too many facts can be
+ * stopped. The token is checked between iterations and in the join loops, and throws a {@link
+ * QueryCancelledException} reporting the work done so far. Cancellation keeps the facts derived
+ * before it (they remain valid): the evaluation left half-done resumes at the next query.
+ *
+ * <p>To tune rules and indexes, {@link #explain} describes how a query would be answered (join
+ * algorithms, atom orders, access paths), and {@link #profile} answers a query while recording
+ * what was done for it (probes, tuples, time and memory).
+ */
+public final class LogicEngine
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final FactStore store;
+    private final ArrayList<Rule> rules = new ArrayList<>();
+    private final IdentityHashMap<Rule, CompiledRule> compiled = new IdentityHashMap<>();
+
+    /** Whether facts or rules were added since the last evaluation. */
+    private boolean dirty = false;
+
+    /**
+     * Size of each relation (by key) at the end of the last evaluation: the tuples below have had
+     * their consequences derived. Relations missing from the map have size 0.
+     */
+    private final HashMap<String, Integer> evaluated = new HashMap<>();
+
+    private EvaluationStats stats = new EvaluationStats();
+
+    private final JoinPlanner planner;
+
+    private final LeapfrogJoin leapfrog;
+
+    private final TabledResolver tables;
+
+    private Strategy strategy = Strategy.TABLED;
+
+    private int parallelism = 1;
+    private ForkJoinPool pool;
+
+    private boolean transitiveClosure = true;
+
+    private boolean bitmapJoins = true;
+
+    /**
+     * Engines evaluating the rules rewritten for each query pattern (keyed by the adorned
+     * predicate name and arity) by the {@link Strategy#MAGIC_SETS} strategy. They share the store.
+     */
+    private final HashMap<String, LogicEngine> magic = new HashMap<>();
+
+    private final AnswerCache cache = new AnswerCache();
+
+    /** Predicates each predicate depends on through the rules, see {@link #dependencies}. */
+    private final HashMap<String, String[]> dependencies = new HashMap<>();
+
+    /** The views replacing the aggregates of the rules, by the key of their relation. */
+    private final HashMap<String, View> views = new HashMap<>();
+
+    /**
+     * Facts asserted on the predicates that are heads of rules, by key, which are restored when
+     * these predicates are dropped (see {@link #invalidate}). These copies are kept as long as the
+     * engine, doubling the memory used by the asserted facts of derived predicates, which are
+     * usually few. The facts of predicates without rules are not copied.
+     */
+    private final HashMap<String, List<int[]>> asserted = new HashMap<>();
+
+    /** Records the evaluation work while a query is profiled, null otherwise. */
+    private QueryProfile profile;
+
+    /** Default timeout of queries, in milliseconds (0 for none). */
+    private long timeout = 0;
+
+    /** Token cancelling the query being answered, or null. */
+    private CancellationToken cancellation;
+
+    /** Tuples derived during the current iteration of a parallel evaluation, per relation. */
+    private final HashMap<Relation, ConcurrentTupleSet> pending = new HashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    public LogicEngine () {
+        this(new FactStore());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates an engine over an existing store, e.g. one reloaded with {@link FactStore#load}. Its
+     * facts are considered new: the first evaluation derives all their consequences.
+     */
+    public LogicEngine (FactStore store)
+    {
+        this.store = store;
+        this.planner = new JoinPlanner(store);
+        this.leapfrog = new LeapfrogJoin(store);
+        this.tables = new TabledResolver(store, rules, planner);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * How {@link #query} answers queries.
+     */
+    public enum Strategy
+    {
+        /** Evaluate all rules to fixpoint, then match the query against the facts. */
+        BOTTOM_UP,
+        /** Solve the query top-down, with tabled resolution. */
+        TABLED,
+        /**
+         * Rewrite the rules for the binding pattern of the query (see {@link MagicSets}), then
+         * evaluate the rewritten rules bottom-up: only the facts relevant to the query are derived.
+         */
+        MAGIC_SETS
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Strategy strategy() {
+        return strategy;
+    }
+
+    public void setStrategy (Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of threads used by bottom-up evaluation (default: 1, i.e. sequential evaluation).
+     */
+    public int parallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism (int parallelism)
+    {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be >= 1");
+        if (parallelism == this.parallelism) return;
+        this.parallelism = parallelism;
+        if (pool != null) pool.shutdown();
+        pool = null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether bottom-up evaluation computes transitive closures by graph searches (default: true),
+     * see {@link TransitiveClosure}.
+     */
+    public boolean transitiveClosure() {
+        return transitiveClosure;
+    }
+
+    public void setTransitiveClosure (boolean transitiveClosure) {
+        this.transitiveClosure = transitiveClosure;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether bottom-up evaluation joins unary relations by intersecting their members bitmaps
+     * (default: true), see {@link BitmapJoin}.
+     */
+    public boolean bitmapJoins() {
+        return bitmapJoins;
+    }
+
+    public void setBitmapJoins (boolean bitmapJoins) {
+        this.bitmapJoins = bitmapJoins;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Time after which queries are cancelled, in milliseconds (default: 0, i.e. no timeout). It
+     * doesn't apply to queries given an explicit {@link CancellationToken}.
+     */
+    public long timeout() {
+        return timeout;
+    }
+
+    public void setTimeout (long timeout)
+    {
+        if (timeout < 0) throw new IllegalArgumentException("timeout must be >= 0");
+        this.timeout = timeout;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the planner that orders the body atoms of rules, which can be used to configure it
+     * and obtain statistics.
+     */
+    public JoinPlanner planner() {
+        return planner;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the resolver used by the {@link Strategy#TABLED} strategy, which can be used to
+     * configure its tables and obtain statistics.
+     */
+    public TabledResolver tables() {
+        return tables;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the cache of query answers used by {@link #query}, which can be used to configure it
+     * and obtain statistics.
+     */
+    public AnswerCache cache() {
+        return cache;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the store holding the facts, both asserted and derived.
+     */
+    public FactStore facts() {
+        return store;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the rules of the program, with their aggregates replaced by atoms on views (see the
+     * class documentation).
+     */
+    public List<Rule> rules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the statistics of the last evaluation.
+     */
+    public EvaluationStats lastEvaluation() {
+        return stats;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the fact {@code name(tuple...)}, returning false if it was already known.
+     */
+    public boolean addFact (String name, int[] tuple)
+    {
+        boolean added = store.insert(name, tuple);
+        if (added) cache.bump(Relation.key(name, tuple.length));
+        List<int[]> facts = asserted.get(Relation.key(name, tuple.length));
+        if (added && facts != null) facts.add(tuple.clone());
+        if (added && !rules.isEmpty()) {
+            dirty = true;
+            tables.invalidate(Relation.key(name, tuple.length));
+            for (LogicEngine engine: magic.values()) engine.dirty = true;
+        }
+        return added;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds a rule to the program.
+     *
+     * @throws IllegalArgumentException if an aggregate of the rule depends on its head
+     */
+    public void addRule (Rule rule)
+    {
+        if (rule.aggregates.length > 0) rule = rewrite(rule);
+        for (View view: views.values()) view.versions = null;
+        asserted.computeIfAbsent(rule.head.key(), key -> {
+            // nothing was derived for the predicate yet, so its tuples were asserted
+            List<int[]> facts = new ArrayList<>();
+            Relation relation = store.find(key);
+            for (int row = 0; relation != null && row < relation.size(); ++row)
+                facts.add(relation.tuple(row));
+            return facts;
+        });
+        rules.add(rule);
+        tables.addRule(rule);
+        tables.clear();
+        evaluated.clear();
+        magic.clear();
+        cache.clear();
+        dependencies.clear();
+        dirty = true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds a rule along with its compiled version, which is used by sequential bottom-up
+     * evaluation (unless the rule has aggregates).
+     */
+    public void addRule (Rule rule, CompiledRule compiledRule)
+    {
+        compiled.put(rule, compiledRule);
+        addRule(rule);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Replaces the aggregates of {@code rule} by atoms on new views, which bind the same variables
+     * (see {@link View}), and returns the rewritten rule.
+     */
+    private Rule rewrite (Rule rule)
+    {
+        Atom[] body = Arrays.copyOf(rule.body, rule.body.length + rule.aggregates.length);
+        ArrayList<View> created = new ArrayList<>();
+        for (int a = 0; a < rule.aggregates.length; ++a) {
+            Aggregate aggregate = rule.aggregates[a];
+            ArrayList<Integer> group = new ArrayList<>();
+            for (int var: aggregate.atom.vars)
+                if (var != Atom.CONSTANT && !group.contains(var) && sharedVariable(rule, a, var))
+                    group.add(var);
+            int[] vars = new int[group.size() + 1];
+            for (int i = 0; i < group.size(); ++i) vars[i] = group.get(i);
+            vars[group.size()] = aggregate.result;
+
+            String name = aggregate.function + "$" + views.size();
+            Atom atom = new Atom(name, new int[vars.length], vars, rule.head.varNames);
+            View view = new View(name, atom.key(), aggregate, Arrays.copyOf(vars, group.size()));
+            views.put(view.key, view);
+            created.add(view);
+            body[rule.body.length + a] = atom;
+        }
+
+        Rule rewritten = new Rule(rule.head, body, new Aggregate[0], rule.comparisons);
+        ArrayList<Rule> program = new ArrayList<>(rules);
+        program.add(rewritten);
+        try {
+            stratify(program);
+        } catch (IllegalArgumentException e) {
+            for (View view: created) views.remove(view.key);
+            throw e;
+        }
+        return rewritten;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether variable {@code var} of aggregate {@code a} of {@code rule} appears in the head, the
+     * body atoms or as the result of another aggregate, making it a group variable of {@code a}.
+     */
+    private static boolean sharedVariable (Rule rule, int a, int var)
+    {
+        if (Aggregate.contains(rule.head, var)) return true;
+        for (Atom atom: rule.body)
+            if (Aggregate.contains(atom, var)) return true;
+        for (int i = 0; i < rule.aggregates.length; ++i)
+            if (i != a && rule.aggregates[i].result == var) return true;
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evaluates the rules to fixpoint if facts or rules were added since the last evaluation, so
+     * that the fact store holds all the facts derivable from the program.
+     */
+    public void refresh() {
+        if (dirty) evaluate();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls {@code onAnswer} with the bindings of each answer to {@code atom}, using the current
+     * {@link #strategy()}. See {@link FactStore#match(Atom, int[], Consumer)}.
+     *
+     * <p>The answers are taken from the {@link #cache()} if it holds up-to-date answers to the
+     * query, and stored there otherwise.
+     *
+     * @throws QueryCancelledException if the query takes longer than the {@link #timeout()}
+     */
+    public void query (Atom atom, Consumer<int[]> onAnswer) {
+        query(atom, onAnswer, timeoutToken());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #query(Atom, Consumer)}, but cancelled by {@code token} rather than by the
+     * {@link #timeout()}, or never if {@code token} is null.
+     *
+     * @throws QueryCancelledException if the query is cancelled
+     */
+    public void query (Atom atom, Consumer<int[]> onAnswer, CancellationToken token) {
+        cancellable(token, () -> answer(atom, null, onAnswer));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #query(Atom, Consumer)}, but bottom-up evaluation matches {@code atom} with
+     * {@code compiled}, the compiled version of a rule whose head and body are {@code atom}, rather
+     * than with the fact store.
+     *
+     * @throws QueryCancelledException if the query takes longer than the {@link #timeout()}
+     */
+    public void query (Atom atom, CompiledRule compiled, Consumer<int[]> onAnswer) {
+        cancellable(timeoutToken(), () -> answer(atom, compiled, onAnswer));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void answer (Atom atom, CompiledRule compiled, Consumer<int[]> onAnswer)
+    {
+        if (!cache.enabled()) {
+            solve(atom, compiled, onAnswer);
+            return;
+        }
+
+        Relation answers = cache.get(atom);
+        if (answers != null) {
+            int[] bindings = atom.freshBindings();
+            int[] free = FactStore.freeVariables(atom, bindings);
+            for (int row = 0; row < answers.size(); ++row) {
+                if (!atom.unify(answers, row, bindings)) continue;
+                onAnswer.accept(bindings);
+                for (int var: free) bindings[var] = Atom.UNBOUND;
+            }
+            return;
+        }
+
+        String[] dependencies = dependencies(atom.key());
+        long[] versions = cache.versions(dependencies);
+        Relation computed =
+            new Relation(atom.predicate, atom.arity(), false, FactStore.Storage.HEAP);
+        int[] tuple = new int[atom.arity()];
+        solve(atom, compiled, bindings -> {
+            if (computed.size() <= cache.maxAnswers()) {
+                for (int i = 0; i < tuple.length; ++i) tuple[i] = atom.value(i, bindings);
+                computed.add(tuple);
+            }
+            onAnswer.accept(bindings);
+        });
+        cache.put(atom, dependencies, versions, computed);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls {@code onAnswer} with the bindings of the answer to {@code aggregate} (binding its
+     * result variable), if it has one: nothing is grouped, see {@link Aggregate}. The answers to
+     * the aggregated atom are found with the current {@link #strategy()} and folded into the
+     * result as they are produced. Neither the answers nor the result are cached.
+     */
+    public void query (Aggregate aggregate, Consumer<int[]> onAnswer)
+    {
+        Aggregate.Accumulator accumulator = new Aggregate.Accumulator(aggregate, new int[0]);
+        cancellable(timeoutToken(), () -> solve(aggregate.atom, accumulator::add));
+        int[] bindings = aggregate.atom.freshBindings();
+        accumulator.results(tuple -> {
+            bindings[aggregate.result] = tuple[0];
+            onAnswer.accept(bindings);
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the keys of the predicates the predicate with the given key depends on through the
+     * rules and views (including itself).
+     */
+    private String[] dependencies (String key)
+    {
+        return dependencies.computeIfAbsent(key, k -> {
+            HashSet<String> result = new HashSet<>();
+            ArrayList<String> pending = new ArrayList<>();
+            pending.add(k);
+            result.add(k);
+            while (!pending.isEmpty()) {
+                String pred = pending.remove(pending.size() - 1);
+                for (Rule rule: rules) {
+                    if (!rule.head.key().equals(pred)) continue;
+                    for (Atom atom: rule.body)
+                        if (result.add(atom.key())) pending.add(atom.key());
+                }
+                View view = views.get(pred);
+                if (view != null && result.add(view.aggregate.atom.key()))
+                    pending.add(view.aggregate.atom.key());
+            }
+            return result.toArray(new String[0]);
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a token expiring after the {@link #timeout()}, or null if there is none.
+     */
+    private CancellationToken timeoutToken() {
+        return timeout == 0 ? null : new CancellationToken(timeout);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs {@code query} under {@code token}, unless it is null or a query is already running
+     * (e.g. when answering a query refreshes a view), and returns its result. If the token cancels
+     * the query, the exception is completed with the statistics of the work done so far.
+     */
+    private <T> T cancellable (CancellationToken token, Supplier<T> query)
+    {
+        if (token == null || cancellation != null) return query.get();
+        long start = System.nanoTime();
+        EvaluationStats stats = this.stats;
+        long created = tables.created();
+        long added = tables.answersAdded();
+        cancellation = token;
+        tables.cancellation = token;
+        try {
+            return query.get();
+        } catch (QueryCancelledException e) {
+            e.record(System.nanoTime() - start, this.stats == stats ? null : this.stats,
+                tables.created() - created, tables.answersAdded() - added);
+            throw e;
+        } finally {
+            cancellation = null;
+            tables.cancellation = null;
+        }
+    }
+
+    private void cancellable (CancellationToken token, Runnable query)
+    {
+        cancellable(token, () -> {
+            query.run();
+            return null;
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void solve (Atom atom, Consumer<int[]> onAnswer) {
+        solve(atom, null, onAnswer);
+    }
+
+    /**
+     * Calls {@code onAnswer} with the bindings of each answer to {@code atom}, using the current
+     * {@link #strategy()}. If it is bottom-up and {@code compiled} isn't null, the atom is matched
+     * with it (see {@link #query(Atom, CompiledRule, Consumer)}).
+     */
+    private void solve (Atom atom, CompiledRule compiled, Consumer<int[]> onAnswer)
+    {
+        if (strategy != Strategy.BOTTOM_UP) refreshViews(atom.key());
+        if (strategy == Strategy.TABLED) {
+            tables.solve(atom, atom.freshBindings(), onAnswer);
+            return;
+        }
+        if (strategy == Strategy.MAGIC_SETS) {
+            store.match(magic(atom), atom.freshBindings(), onAnswer);
+            return;
+        }
+        refresh();
+        if (compiled != null && matchCompiled(atom, compiled, onAnswer)) return;
+        store.match(atom, atom.freshBindings(), onAnswer);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls {@code onAnswer} with the bindings of each answer to {@code atom} found by {@code
+     * compiled}, returning false (without any answer) if it can't be run, see {@link
+     * CompiledRule#fire}.
+     */
+    private boolean matchCompiled (Atom atom, CompiledRule compiled, Consumer<int[]> onAnswer)
+    {
+        int[] bindings = atom.freshBindings();
+        return compiled.fire(0, store, new int[1], new int[] { Integer.MAX_VALUE }, tuple -> {
+            if (cancellation != null) cancellation.check();
+            for (int i = 0; i < tuple.length; ++i)
+                if (atom.vars[i] != Atom.CONSTANT) bindings[atom.vars[i]] = tuple[i];
+            onAnswer.accept(bindings);
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a lazy stream of the answers to {@code atom}, using the current {@link #strategy()}.
+     * See {@link AnswerStream}.
+     */
+    public AnswerStream stream (Atom atom) {
+        return stream(atom, Long.MAX_VALUE);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a lazy stream of at most {@code limit} answers to {@code atom}, using the current
+     * {@link #strategy()}.
+     *
+     * <p>With the {@link Strategy#TABLED} strategy, resolution stops as soon as {@code limit}
+     * answers are found (see {@link TabledResolver#stream}). With the {@link Strategy#BOTTOM_UP}
+     * strategy, the rules are evaluated to fixpoint first, then the answers are matched one at a
+     * time as they are pulled.
+     *
+     * <p>Up-to-date answers in the {@link #cache()} are used, but streams do not populate the
+     * cache.
+     *
+     * @throws QueryCancelledException if opening the stream (which is when the answers are
+     * computed) takes longer than the {@link #timeout()}
+     */
+    public AnswerStream stream (Atom atom, long limit) {
+        return stream(atom, limit, timeoutToken());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #stream(Atom, long)}, but the opening of the stream is cancelled by {@code
+     * token} rather than by the {@link #timeout()}, or never if {@code token} is null.
+     *
+     * @throws QueryCancelledException if the query is cancelled
+     */
+    public AnswerStream stream (Atom atom, long limit, CancellationToken token) {
+        return cancellable(token, () -> open(atom, limit));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private AnswerStream open (Atom atom, long limit)
+    {
+        if (limit < 0) throw new IllegalArgumentException("limit must be >= 0");
+        Relation cached = cache.enabled() ? cache.get(atom) : null;
+        if (cached != null)
+            return new AnswerStream(atom, atom.freshBindings(), cached, null, 0, cached.size(),
+                limit);
+        if (strategy != Strategy.BOTTOM_UP) refreshViews(atom.key());
+        if (strategy == Strategy.TABLED)
+            return tables.stream(atom, atom.freshBindings(), limit);
+        if (strategy == Strategy.MAGIC_SETS)
+            return store.stream(magic(atom), atom.freshBindings(), limit);
+        refresh();
+        return store.stream(atom, atom.freshBindings(), limit);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Derives the answers to {@code query} with the rules rewritten for its binding pattern, and
+     * returns the atom to match against the store to obtain them: {@code query} itself if its
+     * predicate has no rules, otherwise the same atom on the adorned predicate.
+     *
+     * <p>The rewritten rules are evaluated by a separate engine over the same store, created the
+     * first time the pattern is queried. Each query adds its constants to the magic predicate of
+     * the pattern, and the evaluation is incremental: answers derived for earlier queries are
+     * kept, and only the consequences of the new constants (and of facts inserted since the last
+     * query) are derived.
+     */
+    private Atom magic (Atom query)
+    {
+        String key = query.key();
+        boolean defined = false;
+        for (Rule rule: rules) defined |= rule.head.key().equals(key);
+        if (!defined) return query;
+
+        boolean[] pattern = MagicSets.pattern(query);
+        String adorned = MagicSets.adorned(query.predicate, pattern);
+        LogicEngine engine = magic.get(Relation.key(adorned, query.arity()));
+        if (engine == null) {
+            engine = new LogicEngine(store);
+            engine.setStrategy(Strategy.BOTTOM_UP);
+            for (Rule rule: MagicSets.rewrite(rules, key, pattern)) engine.addRule(rule);
+            magic.put(Relation.key(adorned, query.arity()), engine);
+        }
+        engine.addFact(MagicSets.magic(adorned), MagicSets.seed(query));
+        engine.profile = profile;
+        engine.cancellation = cancellation;
+        boolean dirty = engine.dirty;
+        try {
+            if (dirty) engine.evaluate();
+        } finally {
+            if (dirty) stats = engine.stats; // partial if cancelled
+            engine.profile = null;
+            engine.cancellation = null;
+        }
+        return MagicSets.rename(query, adorned);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns how the query would be answered given the current rules, relations and indexes,
+     * without answering it. See {@link QueryPlan}.
+     */
+    public QueryPlan explain (Atom query)
+    {
+        List<Rule> relevant = new ArrayList<>();
+        boolean defined = false;
+        for (Rule rule: rules) defined |= rule.head.key().equals(query.key());
+        Atom answers = query;
+        if (strategy == Strategy.MAGIC_SETS && defined) {
+            boolean[] pattern = MagicSets.pattern(query);
+            relevant.addAll(MagicSets.rewrite(rules, query.key(), pattern));
+            answers = MagicSets.rename(query, MagicSets.adorned(query.predicate, pattern));
+        } else {
+            List<String> keys = Arrays.asList(dependencies(query.key()));
+            for (Rule rule: rules)
+                if (keys.contains(rule.head.key())) relevant.add(rule);
+        }
+
+        List<QueryPlan.RulePlan> plans = new ArrayList<>();
+        for (Rule rule: relevant) {
+            QueryPlan.Join join =
+                strategy == Strategy.TABLED ? QueryPlan.Join.PAIRWISE : join(rule);
+            boolean[] bound = new boolean[rule.varCount()];
+            if (strategy == Strategy.TABLED && rule.head.key().equals(query.key()))
+                for (int i = 0; i < query.arity(); ++i)
+                    if (query.vars[i] == Atom.CONSTANT && rule.head.vars[i] != Atom.CONSTANT)
+                        bound[rule.head.vars[i]] = true;
+            plans.add(new QueryPlan.RulePlan(rule, join, steps(rule, join, bound)));
+        }
+        boolean subgoal = strategy == Strategy.TABLED && defined;
+        boolean[] bound = new boolean[answers.varNames.length];
+        return new QueryPlan(query, strategy,
+            new QueryPlan.Step(answers, -1, boundMask(answers, bound), access(answers, bound,
+                subgoal)),
+            plans);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the steps of the join of the body of {@code rule}, with the given initially bound
+     * variables.
+     */
+    private List<QueryPlan.Step> steps (Rule rule, QueryPlan.Join join, boolean[] bound)
+    {
+        List<QueryPlan.Step> steps = new ArrayList<>();
+        if (join == QueryPlan.Join.LEAPFROG || join == QueryPlan.Join.CLOSURE
+                || join == QueryPlan.Join.BITMAP) {
+            QueryPlan.Access access = join == QueryPlan.Join.LEAPFROG
+                ? QueryPlan.Access.TRIE
+                : QueryPlan.Access.SCAN;
+            for (int i = 0; i < rule.body.length; ++i)
+                steps.add(new QueryPlan.Step(rule.body[i], i, 0, access));
+            return steps;
+        }
+        long[] extents = new long[rule.body.length];
+        long boundMask = 0;
+        for (int i = 0; i < extents.length; ++i) {
+            Relation relation = store.find(rule.body[i].key());
+            extents[i] = relation == null ? 0 : relation.size();
+        }
+        for (int var = 0; var < bound.length && var < 64; ++var)
+            if (bound[var]) boundMask |= 1L << var;
+        for (int i: planner.preview(rule, boundMask, extents)) {
+            Atom atom = rule.body[i];
+            boolean subgoal = strategy == Strategy.TABLED && isDefined(atom.key());
+            steps.add(new QueryPlan.Step(atom, i, boundMask(atom, bound),
+                access(atom, bound, subgoal)));
+            for (int var: atom.vars) if (var != Atom.CONSTANT) bound[var] = true;
+        }
+        return steps;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean isDefined (String key)
+    {
+        for (Rule rule: rules) if (rule.head.key().equals(key)) return true;
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the bitmask of the positions of {@code atom} that are bound when the given variables
+     * are bound.
+     */
+    private static int boundMask (Atom atom, boolean[] bound)
+    {
+        int mask = 0;
+        for (int j = 0; j < atom.arity() && j < 31; ++j)
+            if (atom.vars[j] == Atom.CONSTANT || bound[atom.vars[j]]) mask |= 1 << j;
+        return mask;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns how the tuples matching {@code atom} are found when the given variables are bound.
+     */
+    private QueryPlan.Access access (Atom atom, boolean[] bound, boolean subgoal)
+    {
+        if (subgoal) return QueryPlan.Access.SUBGOAL;
+        boolean ground = true;
+        for (int j = 0; j < atom.arity(); ++j)
+            ground &= atom.vars[j] == Atom.CONSTANT || bound[atom.vars[j]];
+        int mask = boundMask(atom, bound);
+        if (ground) return QueryPlan.Access.LOOKUP;
+        Relation relation = store.find(atom.key());
+        if (mask != 0 && relation != null && relation.index(mask) != null)
+            return QueryPlan.Access.INDEX;
+        for (int j = 0; j < atom.arity(); ++j)
+            if (atom.bounded(j) && atom.vars[j] != Atom.CONSTANT && !bound[atom.vars[j]])
+                return QueryPlan.Access.RANGE;
+        return QueryPlan.Access.SCAN;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the algorithm bottom-up evaluation uses to join the body of {@code rule}.
+     */
+    private QueryPlan.Join join (Rule rule)
+    {
+        if (transitiveClosure) {
+            List<Rule> heads = new ArrayList<>();
+            for (Rule r: this.rules) if (r.head.key().equals(rule.head.key())) heads.add(r);
+            TransitiveClosure closure = TransitiveClosure.of(heads);
+            if (closure != null && closure.rule == rule && !Arrays.asList(
+                    dependencies(closure.edgeKey)).contains(rule.head.key()))
+                return QueryPlan.Join.CLOSURE;
+        }
+        BitmapJoin bitmap = bitmapJoins ? BitmapJoin.of(rule) : null;
+        if (bitmap != null && bitmap.applies(store))
+            return QueryPlan.Join.BITMAP;
+        return planner.prefersLeapfrog(rule) ? QueryPlan.Join.LEAPFROG
+            : compiled.containsKey(rule) ? QueryPlan.Join.COMPILED
+            : QueryPlan.Join.PAIRWISE;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #query}, but records what the engine does to answer the query, and returns the
+     * recording. See {@link QueryProfile}.
+     */
+    public QueryProfile profile (Atom atom, Consumer<int[]> onAnswer)
+    {
+        QueryProfile profile = new QueryProfile(atom, strategy);
+        long tuples = tupleCount();
+        long indexMemory = store.indexes().memory();
+        long allocated = QueryProfile.threadAllocatedBytes();
+        long start = System.nanoTime();
+        this.profile = profile;
+        tables.profile = profile;
+        try {
+            cancellable(timeoutToken(), () -> solve(atom, b -> {
+                ++profile.answers;
+                onAnswer.accept(b);
+            }));
+        } finally {
+            this.profile = null;
+            tables.profile = null;
+        }
+        profile.nanos = System.nanoTime() - start;
+        profile.allocatedBytes =
+            allocated < 0 ? -1 : QueryProfile.threadAllocatedBytes() - allocated;
+        profile.tuplesAdded = tupleCount() - tuples;
+        profile.indexMemory = store.indexes().memory() - indexMemory;
+        return profile;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private long tupleCount()
+    {
+        long count = 0;
+        for (Relation relation: store.relations()) count += relation.size();
+        return count;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether {@code atom} has at least one answer. Stops at the first answer found.
+     */
+    public boolean exists (Atom atom)
+    {
+        try (AnswerStream answers = stream(atom, 1)) {
+            return answers.hasNext();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evaluates the rules to fixpoint, deriving the consequences of the facts added since the last
+     * evaluation, and returns the statistics of the evaluation.
+     *
+     * <p>If the query being answered is cancelled, the tuples derived so far are kept, but the
+     * program stays out of date: the next evaluation derives the consequences of all the tuples
+     * added since the last complete evaluation (including those derived by this one).
+     */
+    public EvaluationStats evaluate()
+    {
+        long start = System.nanoTime();
+        stats = new EvaluationStats();
+        try {
+            for (List<Rule> stratum: stratify())
+                evaluateStratum(stratum);
+        } catch (QueryCancelledException e) {
+            leapfrog.clear();
+            pending.values().forEach(ConcurrentTupleSet::clear);
+            throw e;
+        } finally {
+            stats.nanos = System.nanoTime() - start;
+        }
+        for (Relation relation: store.relations())
+            evaluated.put(Relation.key(relation.name, relation.arity), relation.size());
+        dirty = false;
+        return stats;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evaluates a single stratum to fixpoint (see the class documentation).
+     */
+    private void evaluateStratum (List<Rule> stratum)
+    {
+        ++stats.strata;
+        for (Rule rule: stratum)
+            for (Atom atom: rule.body) {
+                View view = views.get(atom.key());
+                if (view != null) refresh(view, true);
+            }
+
+        HashSet<String> heads = new HashSet<>();
+        for (Rule rule: stratum) heads.add(rule.head.key());
+
+        // relations read by the stratum, of which only those of the stratum grow during its
+        // evaluation; the first delta of each holds the tuples added since the last evaluation
+        HashMap<String, Integer> starts = new HashMap<>();
+        HashMap<String, Integer> ends = new HashMap<>();
+        for (Rule rule: stratum)
+            for (Atom atom: rule.body) {
+                String key = atom.key();
+                Relation relation = store.find(key);
+                starts.put(key, evaluated.getOrDefault(key, 0));
+                ends.put(key, relation == null ? 0 : relation.size());
+            }
+
+        TransitiveClosure closure = transitiveClosure ? TransitiveClosure.of(stratum) : null;
+        if (closure != null && hasDelta(starts.keySet(), starts, ends)
+                && starts.get(closure.edgeKey) * 2 <= ends.get(closure.edgeKey)) {
+            // most edges are new: fire the other rules once, then close the predicate
+            ++stats.iterations;
+            ++stats.closures;
+            for (Rule rule: stratum)
+                if (rule != closure.rule) fireIteration(rule, starts, ends);
+            flush();
+            if (profile == null)
+                stats.derived += closure.close(store, cancellation);
+            else
+                profile.fire(closure.rule, QueryPlan.Join.CLOSURE, store,
+                    () -> stats.derived += closure.close(store, cancellation));
+            return;
+        }
+
+        while (hasDelta(starts.keySet(), starts, ends)) {
+            if (cancellation != null) cancellation.checkNow();
+            ++stats.iterations;
+            for (Rule rule: stratum) fireIteration(rule, starts, ends);
+            flush();
+            starts.putAll(ends);
+            for (String key: heads) {
+                Relation relation = store.find(key);
+                if (ends.containsKey(key) && relation != null) ends.put(key, relation.size());
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Fires {@code rule} for an iteration where each relation has delta {@code [starts, ends)}:
+     * with a {@link BitmapJoin} if it has one and most members of one of its body relations are
+     * new, with {@link #fireDeltas} otherwise.
+     */
+    private void fireIteration (
+            Rule rule, HashMap<String, Integer> starts, HashMap<String, Integer> ends)
+    {
+        BitmapJoin bitmap = bitmapJoins ? BitmapJoin.of(rule) : null;
+        boolean fresh = false;
+        for (Atom atom: rule.body) {
+            int start = starts.get(atom.key()), end = ends.get(atom.key());
+            fresh |= start < end && start * 2 <= end;
+        }
+        if (bitmap == null || !fresh || !bitmap.applies(store)) {
+            fireDeltas(rule, starts, ends);
+            return;
+        }
+        ++stats.bitmapJoins;
+        if (profile == null)
+            stats.derived += bitmap.fire(store);
+        else
+            profile.fire(rule, QueryPlan.Join.BITMAP, store,
+                () -> stats.derived += bitmap.fire(store));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Fires one variant of {@code rule} per body atom whose relation has a delta, for an iteration
+     * where each relation has delta {@code [starts, ends)} (see the class documentation).
+     */
+    private void fireDeltas (
+            Rule rule, HashMap<String, Integer> starts, HashMap<String, Integer> ends)
+    {
+        Atom[] body = rule.body;
+        for (int i = 0; i < body.length; ++i) {
+            String key = body[i].key();
+            if (starts.get(key).equals(ends.get(key))) continue;
+            int[] from = new int[body.length];
+            int[] to = new int[body.length];
+            for (int j = 0; j < body.length; ++j) {
+                String k = body[j].key();
+                to[j] = j < i ? starts.get(k) : ends.get(k);
+            }
+            from[i] = starts.get(key);
+            int delta = i;
+            if (profile == null)
+                fire(rule, delta, from, to);
+            else
+                profile.fire(rule, join(rule), store, () -> fire(rule, delta, from, to));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean hasDelta (
+            Set<String> keys, HashMap<String, Integer> starts, HashMap<String, Integer> ends)
+    {
+        for (String key: keys)
+            if (!starts.get(key).equals(ends.get(key))) return true;
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Fires {@code rule}, matching each body atom {@code i} only against the rows in {@code
+     * [from[i], to[i])} of its relation, and inserts the derived facts (or adds them to {@link
+     * #pending} in parallel mode). The body atoms are joined in the order chosen by the {@link
+     * #planner()}, or with the {@link LeapfrogJoin} if the planner says so (always sequentially,
+     * inserting directly); {@code delta} is the index of the atom restricted to a delta.
+     */
+    private void fire (Rule rule, int delta, int[] from, int[] to)
+    {
+        Consumer<int[]> derive = t -> {
+            if (cancellation != null) cancellation.check();
+            if (store.insert(rule.head.predicate, t)) ++stats.derived;
+        };
+        if (planner.leapfrog(rule)) {
+            leapfrog.join(rule, from, to, derive);
+            return;
+        }
+        long[] extents = new long[rule.body.length];
+        for (int i = 0; i < extents.length; ++i) {
+            Relation relation = store.find(rule.body[i].key());
+            extents[i] = relation == null ? 0
+                : Math.max(0, Math.min(to[i], relation.size()) - from[i]);
+        }
+        int[] order = planner.plan(rule, -2 - delta, 0, extents);
+
+        if (parallelism > 1 && profile == null) {
+            fireParallel(rule, order, from, to);
+            return;
+        }
+        CompiledRule compiledRule = compiled.get(rule);
+        if (compiledRule != null && compiledRule.fire(order[0], store, from, to, derive))
+            return;
+        int[] bindings = rule.head.freshBindings();
+        int[] tuple = new int[rule.head.arity()];
+        join(rule, order, 0, bindings, from, to, tuple, derive);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Joins body atoms {@code order[k]} and following under {@code bindings}, passing the head
+     * tuple of each derivation to {@code derive}. The tuple array is reused between calls.
+     */
+    private void join (
+            Rule rule, int[] order, int k, int[] bindings, int[] from, int[] to, int[] tuple,
+            Consumer<int[]> derive)
+    {
+        if (cancellation != null) cancellation.check();
+        if (k == order.length) {
+            for (int j = 0; j < tuple.length; ++j)
+                tuple[j] = rule.head.value(j, bindings);
+            derive.accept(tuple);
+            return;
+        }
+        int i = order[k];
+        Consumer<int[]> next = b -> join(rule, order, k + 1, b, from, to, tuple, derive);
+        if (profile == null)
+            store.match(rule.body[i], bindings, from[i], to[i], next);
+        else
+            profile.probe(store, rule, i, bindings, false,
+                m -> store.match(rule.body[i], bindings, from[i], to[i], m), next);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parallel version of {@link #fire}: partitions the matching rows of the first body atom by
+     * join key and joins each partition in a separate task.
+     */
+    private void fireParallel (Rule rule, int[] order, int[] from, int[] to)
+    {
+        Atom first = rule.body[order[0]];
+        Relation relation = store.find(first.key());
+        if (relation == null) return;
+        int start = from[order[0]];
+        int end = Math.min(to[order[0]], relation.size());
+        if (start >= end) return;
+
+        prepareIndexes(rule, order);
+        Relation target = store.relation(rule.head.predicate, rule.head.arity());
+        ConcurrentTupleSet derived = pending.computeIfAbsent(target, k -> new ConcurrentTupleSet());
+        if (pool == null) pool = new ForkJoinPool(parallelism);
+
+        ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+        store.setConcurrentReads(true);
+        try {
+            for (int[] rows: partition(rule, order, relation, start, end, parallelism * 4)) {
+                if (rows.length == 0) continue;
+                tasks.add(pool.submit(() -> {
+                    int[] bindings = rule.head.freshBindings();
+                    int[] tuple = new int[rule.head.arity()];
+                    int[] free = FactStore.freeVariables(first, bindings);
+                    for (int row: rows) {
+                        if (cancellation != null) cancellation.check();
+                        if (!first.unify(relation, row, bindings)) continue;
+                        join(rule, order, 1, bindings, from, to, tuple, t -> {
+                            if (!target.contains(t)) derived.add(t);
+                        });
+                        for (int var: free) bindings[var] = Atom.UNBOUND;
+                    }
+                }));
+            }
+            // the tasks read the store: they must all be done before a failure is rethrown
+            for (ForkJoinTask<?> task: tasks) task.quietlyJoin();
+            for (ForkJoinTask<?> task: tasks) task.join();
+        } finally {
+            store.setConcurrentReads(false);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Splits rows {@code [start, end)} of {@code relation}, which holds the tuples of the first
+     * body atom of {@code rule} in {@code order}, into {@code n} partitions by hash of the join
+     * key: the columns holding variables that also appear in other body atoms (or all columns if
+     * there are none).
+     */
+    private static int[][] partition (
+            Rule rule, int[] order, Relation relation, int start, int end, int n)
+    {
+        Atom first = rule.body[order[0]];
+        int[] key = new int[first.arity()];
+        int keySize = 0;
+        for (int i = 0; i < first.arity(); ++i)
+            if (first.vars[i] != Atom.CONSTANT && usedElsewhere(rule, order[0], first.vars[i]))
+                key[keySize++] = i;
+        if (keySize == 0)
+            for (int i = 0; i < first.arity(); ++i) key[keySize++] = i;
+
+        int[][] partitions = new int[n][16];
+        int[] sizes = new int[n];
+        for (int row = start; row < end; ++row) {
+            int h = 1;
+            for (int i = 0; i < keySize; ++i)
+                h = 31 * h + relation.get(row, key[i]);
+            int p = (Relation.mix(h) & 0x7fffffff) % n;
+            if (sizes[p] == partitions[p].length)
+                partitions[p] = Arrays.copyOf(partitions[p], sizes[p] * 2);
+            partitions[p][sizes[p]++] = row;
+        }
+        for (int p = 0; p < n; ++p)
+            partitions[p] = Arrays.copyOf(partitions[p], sizes[p]);
+        return partitions;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean usedElsewhere (Rule rule, int atom, int var)
+    {
+        for (int i = 0; i < rule.body.length; ++i)
+            if (i != atom)
+                for (int v: rule.body[i].vars)
+                    if (v == var) return true;
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Builds the indexes that will be used to probe the body atoms of {@code rule} after the
+     * first in {@code order}, since they can't be built on demand by concurrent tasks.
+     */
+    private void prepareIndexes (Rule rule, int[] order)
+    {
+        boolean[] bound = new boolean[rule.varCount()];
+        for (int var: rule.body[order[0]].vars)
+            if (var != Atom.CONSTANT) bound[var] = true;
+
+        for (int k = 1; k < order.length; ++k) {
+            Atom atom = rule.body[order[k]];
+            int mask = 0;
+            boolean hasFree = false;
+            for (int j = 0; j < atom.arity() && j < 31; ++j) {
+                int var = atom.vars[j];
+                if (var == Atom.CONSTANT || bound[var]) mask |= 1 << j;
+                else hasFree = true;
+            }
+            Relation relation = store.find(atom.key());
+            if (relation != null && mask != 0 && hasFree)
+                store.indexes().prepare(relation, mask);
+            for (int var: atom.vars)
+                if (var != Atom.CONSTANT) bound[var] = true;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Inserts the tuples derived by the parallel tasks of the current iteration, and drops the
+     * tries built by the leapfrog joins of the iteration.
+     */
+    private void flush()
+    {
+        leapfrog.clear();
+        pending.forEach((relation, tuples) -> {
+            tuples.forEach(t -> {
+                if (store.insert(relation.name, t)) ++stats.derived;
+            });
+            tuples.clear();
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Brings the views the predicate with the given key depends on up to date, for the strategies
+     * that don't evaluate all the rules bottom-up.
+     */
+    private void refreshViews (String key)
+    {
+        if (views.isEmpty()) return;
+        for (String dependency: dependencies(key)) {
+            View view = views.get(dependency);
+            if (view != null) refresh(view, false);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Recomputes {@code view} if a predicate its aggregate depends on changed since it was last
+     * computed. The answers to the aggregated atom are matched against the store during bottom-up
+     * evaluation ({@code evaluating}), where the lower strata are complete, and solved with the
+     * current strategy otherwise.
+     *
+     * <p>If the view only gained tuples, they are inserted like new facts. Otherwise, the view is
+     * replaced and everything derived from it is dropped (see {@link #invalidate}).
+     */
+    private void refresh (View view, boolean evaluating)
+    {
+        long[] versions = cache.versions(dependencies(view.aggregate.atom.key()));
+        if (Arrays.equals(versions, view.versions)) return;
+
+        Atom atom = view.aggregate.atom;
+        Aggregate.Accumulator accumulator = new Aggregate.Accumulator(view.aggregate, view.group);
+        if (evaluating) store.match(atom, atom.freshBindings(), accumulator::add);
+        else solve(atom, accumulator::add);
+        view.versions = versions;
+
+        Relation results =
+            new Relation(view.name, view.group.length + 1, false, FactStore.Storage.HEAP);
+        accumulator.results(results::add);
+        Relation old = store.find(view.key);
+        boolean grew = true;
+        for (int row = 0; old != null && row < old.size() && grew; ++row)
+            grew = results.contains(old.tuple(row));
+        if (!grew) invalidate(view.key);
+
+        boolean added = false;
+        for (int row = 0; row < results.size(); ++row)
+            added |= store.insert(view.name, results.tuple(row));
+        if (!added) return;
+        dirty = true;
+        tables.invalidate(view.key);
+        for (LogicEngine engine: magic.values()) engine.dirty = true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Drops the view with the given key along with everything derived from it: the relations of
+     * the predicates that depend on it (keeping the facts asserted on them), their tables, the
+     * engines of the magic-sets strategy and their relations, and the sizes of the evaluated
+     * relations, so that the rest of the current evaluation (or the next one) starts from scratch.
+     */
+    private void invalidate (String key)
+    {
+        HashMap<String, String> dropped = new HashMap<>();
+        for (Rule rule: rules)
+            if (Arrays.asList(dependencies(rule.head.key())).contains(key))
+                dropped.put(rule.head.key(), rule.head.predicate);
+        for (Map.Entry<String, String> head: dropped.entrySet()) {
+            store.drop(head.getKey());
+            for (int[] tuple: asserted.get(head.getKey()))
+                store.insert(head.getValue(), tuple);
+        }
+        store.drop(key);
+        for (Relation relation: new ArrayList<>(store.relations()))
+            if (relation.name.contains("@"))
+                store.drop(Relation.key(relation.name, relation.arity));
+        magic.clear();
+        evaluated.clear();
+        tables.invalidate(key);
+        dirty = true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Partitions the rules into strata: the rules of each strongly connected component of the
+     * predicate dependency graph, in dependency order (Tarjan's algorithm yields components in
+     * reverse topological order, i.e. dependencies first).
+     *
+     * <p>Views are nodes of the graph, which depend on the predicate of their aggregated atom.
+     *
+     * @throws IllegalArgumentException if a view is part of a cycle (recursion through an
+     * aggregate)
+     */
+    private List<List<Rule>> stratify() {
+        return stratify(rules);
+    }
+
+    private List<List<Rule>> stratify (List<Rule> rules)
+    {
+        HashMap<String, List<Rule>> byHead = new HashMap<>();
+        for (Rule rule: rules)
+            byHead.computeIfAbsent(rule.head.key(), k -> new ArrayList<>()).add(rule);
+
+        Tarjan tarjan = new Tarjan(byHead, views);
+        for (String key: byHead.keySet())
+            if (!tarjan.index.containsKey(key)) tarjan.visit(key);
+        return tarjan.strata;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Tarjan
+    {
+        final HashMap<String, List<Rule>> byHead;
+        final HashMap<String, View> views;
+        final HashMap<String, Integer> index = new HashMap<>();
+        final HashMap<String, Integer> low = new HashMap<>();
+        final ArrayList<String> stack = new ArrayList<>();
+        final HashSet<String> onStack = new HashSet<>();
+        final List<List<Rule>> strata = new ArrayList<>();
+
+        Tarjan (HashMap<String, List<Rule>> byHead, HashMap<String, View> views) {
+            this.byHead = byHead;
+            this.views = views;
+        }
+
+        List<String> dependencies (String key)
+        {
+            View view = views.get(key);
+            if (view != null) return Collections.singletonList(view.aggregate.atom.key());
+            ArrayList<String> dependencies = new ArrayList<>();
+            for (Rule rule: byHead.get(key))
+                for (Atom atom: rule.body) dependencies.add(atom.key());
+            return dependencies;
+        }
+
+        void visit (String key)
+        {
+            index.put(key, index.size());
+            low.put(key, index.get(key));
+            stack.add(key);
+            onStack.add(key);
+
+            for (String dep: dependencies(key)) {
+                if (!byHead.containsKey(dep) && !views.containsKey(dep))
+                    continue; // extensional predicate
+                if (!index.containsKey(dep)) {
+                    visit(dep);
+                    low.put(key, Math.min(low.get(key), low.get(dep)));
+                } else if (onStack.contains(dep)) {
+                    low.put(key, Math.min(low.get(key), index.get(dep)));
+                }
+            }
+
+            if (!low.get(key).equals(index.get(key))) return;
+            List<Rule> stratum = new ArrayList<>();
+            String member, view = null;
+            int size = 0;
+            do {
+                member = stack.remove(stack.size() - 1);
+                onStack.remove(member);
+                ++size;
+                if (views.containsKey(member)) view = member;
+                else stratum.addAll(byHead.get(member));
+            } while (!member.equals(key));
+            if (view != null && size > 1)
+                throw new IllegalArgumentException(
+                    "recursion through aggregate " + views.get(view).aggregate);
+            if (!stratum.isEmpty()) strata.add(stratum);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The relation replacing an aggregate of a rule, named after its function (e.g. {@code
+     * count$0}), which holds the values of the group variables of each group followed by its
+     * result. The group variables are the variables of the aggregated atom that appear in the
+     * head, the body atoms, or as the result of another aggregate of the rule.
+     */
+    private static final class View
+    {
+        final String name, key;
+        final Aggregate aggregate;
+        final int[] group;
+
+        /**
+         * Versions of the predicates the aggregated atom depends on when the view was computed
+         * (see {@link AnswerCache}), or null if it must be recomputed.
+         */
+        long[] versions;
+
+        View (String name, String key, Aggregate aggregate, int[] group)
+        {
+            this.name = name;
+            this.key = key;
+            this.aggregate = aggregate;
+            this.group = group;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,244 @@
+package norswap.sigh.lp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Rewrites the rules of a program for a query binding pattern with the magic sets transformation,
+ * so that bottom-up evaluation of the rewritten rules only derives the facts relevant to queries
+ * with that pattern (see {@link LogicEngine.Strategy#MAGIC_SETS}).
+ *
+ * <p>A binding pattern (adornment) records which arguments of a predicate are bound, e.g. {@code
+ * bf} for {@code ancestor(#alice, y)}. Each predicate with rules reachable from the query gets an
+ * adorned copy per pattern it is called with (e.g. {@code ancestor@bf}), and a magic predicate
+ * (e.g. {@code magic@ancestor@bf}) holding the values of the bound arguments it is called with.
+ * Every rule for the adorned predicate is guarded by the magic predicate, and for each body atom
+ * on a predicate with rules, a magic rule derives the bindings that atom is called with, from the
+ * head's magic predicate and the atoms to its left (left-to-right sideways information passing).
+ * Asserted facts of predicates with rules are copied into the adorned predicate when their bound
+ * arguments are in the magic predicate.
+ *
+ * <p>Evaluation starts from a seed fact in the magic predicate of the query, holding the query's
+ * constants (see {@link #seed}).
+ */
+final class MagicSets
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private MagicSets () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the name of the copy of {@code predicate} for the given binding pattern.
+     */
+    static String adorned (String predicate, boolean[] bound)
+    {
+        StringBuilder b = new StringBuilder(predicate).append('@');
+        for (boolean x: bound) b.append(x ? 'b' : 'f');
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the name of the magic predicate for the given adorned predicate name.
+     */
+    static String magic (String adorned) {
+        return "magic@" + adorned;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the binding pattern of {@code query}: the positions holding constants.
+     */
+    static boolean[] pattern (Atom query)
+    {
+        boolean[] bound = new boolean[query.arity()];
+        for (int i = 0; i < bound.length; ++i)
+            bound[i] = query.vars[i] == Atom.CONSTANT;
+        return bound;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the seed tuple of the magic predicate for {@code query}: its constants.
+     */
+    static int[] seed (Atom query)
+    {
+        boolean[] bound = pattern(query);
+        int[] seed = new int[count(bound)];
+        for (int i = 0, j = 0; i < bound.length; ++i)
+            if (bound[i]) seed[j++] = query.terms[i];
+        return seed;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns {@code atom} with its predicate renamed (keeping its bounds).
+     */
+    static Atom rename (Atom atom, String predicate) {
+        return atom.renamed(predicate);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Rewrites {@code rules} for queries on the predicate with the given {@code name/arity} key,
+     * with the given binding pattern.
+     */
+    static List<Rule> rewrite (List<Rule> rules, String key, boolean[] bound)
+    {
+        HashMap<String, List<Rule>> byHead = new HashMap<>();
+        for (Rule rule: rules)
+            byHead.computeIfAbsent(rule.head.key(), k -> new ArrayList<>()).add(rule);
+
+        ArrayList<Rule> rewritten = new ArrayList<>();
+        HashSet<String> seen = new HashSet<>();
+        // adorned predicates to rewrite, as predicate keys and patterns
+        ArrayDeque<String> pending = new ArrayDeque<>();
+        ArrayDeque<boolean[]> patterns = new ArrayDeque<>();
+        pending.add(key);
+        patterns.add(bound);
+        seen.add(adorned(key, bound));
+
+        while (!pending.isEmpty()) {
+            List<Rule> defining = byHead.get(pending.poll());
+            boolean[] pattern = patterns.poll();
+            String predicate = defining.get(0).head.predicate;
+            String name = adorned(predicate, pattern);
+            rewritten.add(copyFacts(predicate, pattern, name));
+
+            for (Rule rule: defining) {
+                boolean[] boundVars = new boolean[rule.varCount()];
+                markBound(rule.head, pattern, boundVars);
+
+                Atom[] body = new Atom[rule.body.length + 1];
+                body[0] = magicAtom(rule.head, pattern, name);
+                for (int i = 0; i < rule.body.length; ++i) {
+                    Atom atom = rule.body[i];
+                    List<Rule> called = byHead.get(atom.key());
+                    if (called == null) {
+                        body[i + 1] = atom;
+                    } else {
+                        boolean[] adornment = adornment(atom, boundVars);
+                        String adorned = adorned(atom.predicate, adornment);
+                        Atom magic = magicAtom(atom, adornment, adorned);
+                        if (i > 0 || !sameAtom(magic, body[0]))
+                            rewritten.add(new Rule(magic, copy(body, i + 1)));
+                        if (seen.add(adorned(atom.key(), adornment))) {
+                            pending.add(atom.key());
+                            patterns.add(adornment);
+                        }
+                        body[i + 1] = rename(atom, adorned);
+                    }
+                    markBound(atom, null, boundVars);
+                }
+                rewritten.add(new Rule(rename(rule.head, name), body, new Aggregate[0],
+                    rule.comparisons));
+            }
+        }
+        return rewritten;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the rule {@code name(x1, ..., xn) :- magic@name(bound xi), predicate(x1, ..., xn)},
+     * which copies the relevant asserted facts of {@code predicate} to its adorned copy.
+     */
+    private static Rule copyFacts (String predicate, boolean[] pattern, String name)
+    {
+        int[] vars = new int[pattern.length];
+        String[] names = new String[pattern.length];
+        for (int i = 0; i < vars.length; ++i) {
+            vars[i] = i;
+            names[i] = "x" + i;
+        }
+        Atom atom = new Atom(predicate, new int[pattern.length], vars, names);
+        return new Rule(rename(atom, name), magicAtom(atom, pattern, name), atom);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the atom of the magic predicate of {@code adorned}, whose arguments are the
+     * arguments of {@code atom} at the bound positions of {@code pattern}.
+     */
+    private static Atom magicAtom (Atom atom, boolean[] pattern, String adorned)
+    {
+        int count = count(pattern);
+        int[] terms = new int[count];
+        int[] vars = new int[count];
+        for (int i = 0, j = 0; i < pattern.length; ++i)
+            if (pattern[i]) {
+                terms[j] = atom.terms[i];
+                vars[j++] = atom.vars[i];
+            }
+        return new Atom(magic(adorned), terms, vars, atom.varNames);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the binding pattern of {@code atom} given the bound variables.
+     */
+    private static boolean[] adornment (Atom atom, boolean[] boundVars)
+    {
+        boolean[] pattern = new boolean[atom.arity()];
+        for (int i = 0; i < pattern.length; ++i)
+            pattern[i] = atom.vars[i] == Atom.CONSTANT || boundVars[atom.vars[i]];
+        return pattern;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Marks the variables of {@code atom} as bound (only at the bound positions of {@code
+     * pattern}, if not null).
+     */
+    private static void markBound (Atom atom, boolean[] pattern, boolean[] boundVars)
+    {
+        for (int i = 0; i < atom.arity(); ++i)
+            if (atom.vars[i] != Atom.CONSTANT && (pattern == null || pattern[i]))
+                boundVars[atom.vars[i]] = true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean sameAtom (Atom a, Atom b)
+    {
+        if (!a.predicate.equals(b.predicate) || a.arity() != b.arity()) return false;
+        for (int i = 0; i < a.arity(); ++i)
+            if (a.vars[i] != b.vars[i]
+                    || a.vars[i] == Atom.CONSTANT && a.terms[i] != b.terms[i])
+                return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Atom[] copy (Atom[] atoms, int length)
+    {
+        Atom[] copy = new Atom[length];
+        System.arraycopy(atoms, 0, copy, 0, length);
+        return copy;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int count (boolean[] pattern)
+    {
+        int count = 0;
+        for (boolean b: pattern) if (b) ++count;
+        return count;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,71 @@
+package norswap.sigh.lp;
+
+/**
+ * Thrown by a {@link LogicEngine} when a query is cancelled by its {@link CancellationToken}, or
+ * times out (see {@link LogicEngine#timeout()}).
+ *
+ * <p>The exception reports what was done for the query before it was stopped: the statistics of
+ * the interrupted bottom-up evaluation, if any, and the tables created and the answers added to
+ * them by tabled resolution. The work left half-done is dropped by the engine, while what was
+ * completed is kept (derived facts, complete tables), so that a later query resumes from there.
+ */
+public final class QueryCancelledException extends RuntimeException
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final boolean timedOut;
+
+    private long nanos;
+    private EvaluationStats evaluation;
+    private long tablesCreated, tableAnswers;
+
+    // ---------------------------------------------------------------------------------------------
+
+    QueryCancelledException (boolean timedOut) {
+        this.timedOut = timedOut;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records the partial statistics of the query.
+     */
+    void record (long nanos, EvaluationStats evaluation, long tablesCreated, long tableAnswers)
+    {
+        this.nanos = nanos;
+        this.evaluation = evaluation;
+        this.tablesCreated = tablesCreated;
+        this.tableAnswers = tableAnswers;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Whether the query was stopped by its deadline rather than by a call to cancel. */
+    public boolean timedOut() { return timedOut; }
+
+    /** Time spent on the query before it was stopped, in nanoseconds. */
+    public long nanos() { return nanos; }
+
+    /**
+     * Statistics of the bottom-up evaluation interrupted by the cancellation, or null if none was
+     * running (e.g. with tabled resolution).
+     */
+    public EvaluationStats evaluation() { return evaluation; }
+
+    /** Number of tables created by tabled resolution for the query. */
+    public long tablesCreated() { return tablesCreated; }
+
+    /** Number of answers added to tables by tabled resolution for the query. */
+    public long tableAnswers() { return tableAnswers; }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String getMessage ()
+    {
+        String message = String.format("query %s after %.3f ms: %d tables created (%d answers)",
+            timedOut ? "timed out" : "cancelled", nanos / 1e6, tablesCreated, tableAnswers);
+        return evaluation == null ? message : message + ", " + evaluation;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,214 @@
+package norswap.sigh.lp;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes how a {@link LogicEngine} would answer a query, without answering it (see {@link
+ * LogicEngine#explain}): for each rule the query depends on, the join algorithm, and for pairwise
+ * joins, the order in which the body atoms are matched and how each of them is accessed.
+ *
+ * <p>The plans are computed like the engine would compute them for a full evaluation of the rules
+ * given the current size of the relations, and the access paths reflect the indexes that exist
+ * right now. Bottom-up evaluation plans every semi-naive variant of a rule separately, and tabled
+ * resolution every call pattern: the actual plans can differ from these when the relations grow
+ * or shrink a lot during evaluation (see {@link JoinPlanner#driftFactor()}). Only the head
+ * arguments bound by the query's constants are considered bound (for the rules of the queried
+ * predicate, with tabled resolution).
+ *
+ * <p>With the {@link LogicEngine.Strategy#MAGIC_SETS} strategy, the rules are the ones rewritten
+ * for the query's binding pattern (see {@link MagicSets}).
+ */
+public final class QueryPlan
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * How the body atoms of a rule are joined.
+     */
+    public enum Join
+    {
+        /** One atom at a time, in the planned order. */
+        PAIRWISE,
+        /** With the worst-case optimal {@link LeapfrogJoin}, one variable at a time. */
+        LEAPFROG,
+        /** By the rule's {@link CompiledRule compiled version}, starting with the planned atom. */
+        COMPILED,
+        /**
+         * By graph searches over the scanned relations, when most edges are new (see {@link
+         * TransitiveClosure}).
+         */
+        CLOSURE,
+        /**
+         * By intersecting the members bitmaps of the unary relations of the body, when most of
+         * their members are new (see {@link BitmapJoin}).
+         */
+        BITMAP
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * How the tuples matching an atom are found.
+     */
+    public enum Access
+    {
+        /** All arguments are bound: a single hash lookup in the deduplication table. */
+        LOOKUP,
+        /** A probe in an existing index on the bound arguments. */
+        INDEX,
+        /** A scan of the relation (no argument is bound, or no index exists yet). */
+        SCAN,
+        /** A scan of the rows within the bounds of a comparison, through a range index. */
+        RANGE,
+        /** A call to a predicate with rules, answered from its table (tabled resolution). */
+        SUBGOAL,
+        /** Through a sorted trie of the relation (Leapfrog Triejoin). */
+        TRIE;
+
+        @Override public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    final Atom query;
+    final LogicEngine.Strategy strategy;
+    final Step answers;
+    final List<RulePlan> rules;
+
+    // ---------------------------------------------------------------------------------------------
+
+    QueryPlan (Atom query, LogicEngine.Strategy strategy, Step answers, List<RulePlan> rules)
+    {
+        this.query = query;
+        this.strategy = strategy;
+        this.answers = answers;
+        this.rules = Collections.unmodifiableList(rules);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The explained query. */
+    public Atom query() { return query; }
+
+    /** The strategy used to answer the query. */
+    public LogicEngine.Strategy strategy() { return strategy; }
+
+    /**
+     * How the answers are matched once the rules have been evaluated (the atom can be an adorned
+     * copy of the query, with {@link LogicEngine.Strategy#MAGIC_SETS}). Its index is -1.
+     */
+    public Step answers() { return answers; }
+
+    /** The plans of the rules the query depends on. */
+    public List<RulePlan> rules() { return rules; }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString ()
+    {
+        StringBuilder b = new StringBuilder();
+        b.append("explain ").append(query).append(" (").append(strategy.toString().toLowerCase())
+            .append(")\n  answers: ").append(answers).append('\n');
+        for (RulePlan rule: rules) b.append(rule);
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The plan of a rule: its join algorithm and the steps of the join.
+     */
+    public static final class RulePlan
+    {
+        final Rule rule;
+        final Join join;
+        final List<Step> steps;
+
+        RulePlan (Rule rule, Join join, List<Step> steps)
+        {
+            this.rule = rule;
+            this.join = join;
+            this.steps = Collections.unmodifiableList(steps);
+        }
+
+        /** The planned rule. */
+        public Rule rule() { return rule; }
+
+        /** The algorithm joining the body atoms. */
+        public Join join() { return join; }
+
+        /**
+         * The steps of the join: the body atoms in the order they are matched (for the leapfrog
+         * join, in source order, since all atoms are matched together).
+         */
+        public List<Step> steps() { return steps; }
+
+        @Override public String toString ()
+        {
+            StringBuilder b = new StringBuilder();
+            b.append("  ").append(rule).append(" [").append(join.toString().toLowerCase())
+                .append("]\n");
+            for (int i = 0; i < steps.size(); ++i)
+                b.append("    ").append(i + 1).append(". ").append(steps.get(i)).append('\n');
+            return b.toString();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A step of a join: a body atom, with the arguments bound when it is matched.
+     */
+    public static final class Step
+    {
+        final Atom atom;
+        final int index;
+        final int boundMask;
+        final Access access;
+
+        Step (Atom atom, int index, int boundMask, Access access)
+        {
+            this.atom = atom;
+            this.index = index;
+            this.boundMask = boundMask;
+            this.access = access;
+        }
+
+        /** The matched atom. */
+        public Atom atom() { return atom; }
+
+        /** Index of the atom in the rule body. */
+        public int index() { return index; }
+
+        /** Bitmask of the arguments bound when the atom is matched. */
+        public int boundMask() { return boundMask; }
+
+        /** How the matching tuples are found. */
+        public Access access() { return access; }
+
+        @Override public String toString ()
+        {
+            StringBuilder b = new StringBuilder();
+            b.append(atom).append(": ").append(access);
+            if (access == Access.INDEX || access == Access.SCAN && boundMask != 0) {
+                b.append(access == Access.INDEX ? " on (" : ", bound (");
+                for (int i = 0, n = 0; i < atom.arity(); ++i)
+                    if ((boundMask & (1 << i)) != 0)
+                        b.append(n++ == 0 ? "" : ", ").append(i);
+                b.append(')');
+            }
+            if (access == Access.RANGE)
+                for (int i = 0; i < atom.arity(); ++i)
+                    if (atom.bounded(i) && (boundMask & (1 << i)) == 0) {
+                        b.append(" on ").append(i);
+                        break;
+                    }
+            return b.toString();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,273 @@
+package norswap.sigh.lp;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reports what a {@link LogicEngine} did to answer a query (see {@link LogicEngine#profile}): for
+ * each rule that was fired, how many times and for how long, and for each body atom of the
+ * pairwise joins, the number of probes (times the atom was matched), the number of tuples they
+ * produced, how they were served (lookup, index or scan), and the time spent in them.
+ *
+ * <p>Atom times exclude the time spent joining the rest of the body with the produced tuples, but
+ * include the resolution of the subgoals of tabled resolution. Rule times are inclusive, so the
+ * times of nested subgoals are counted in the rules that called them. Leapfrog joins and compiled
+ * rules are only profiled at the rule level.
+ *
+ * <p>Only the work done for this query is reported: rules evaluated (or tables completed) by
+ * earlier queries are not evaluated again. Profiled queries bypass the {@link AnswerCache}, and
+ * bottom-up evaluation runs sequentially while profiling.
+ *
+ * <p>Memory is reported as the number of bytes allocated by the querying thread (if the JVM
+ * supports measuring it, -1 otherwise), the number of tuples added to the fact store, and the
+ * change in the memory used by indexes.
+ */
+public final class QueryProfile
+{
+    // ---------------------------------------------------------------------------------------------
+
+    final Atom query;
+    final LogicEngine.Strategy strategy;
+
+    private final IdentityHashMap<Rule, RuleProfile> byRule = new IdentityHashMap<>();
+    private final ArrayList<RuleProfile> rules = new ArrayList<>();
+
+    long answers, nanos, allocatedBytes, tuplesAdded, indexMemory;
+
+    // ---------------------------------------------------------------------------------------------
+
+    QueryProfile (Atom query, LogicEngine.Strategy strategy)
+    {
+        this.query = query;
+        this.strategy = strategy;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of bytes allocated by the current thread so far, or -1 if the JVM can't
+     * tell.
+     */
+    static long threadAllocatedBytes()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+        return sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()
+            ? sun.getThreadAllocatedBytes(Thread.currentThread().getId())
+            : -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private RuleProfile profileOf (Rule rule, QueryPlan.Join join)
+    {
+        RuleProfile profile = byRule.get(rule);
+        if (profile == null) {
+            profile = new RuleProfile(rule, join);
+            byRule.put(rule, profile);
+            rules.add(profile);
+        }
+        return profile;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs {@code firing}, which fires {@code rule} with the given join algorithm, recording its
+     * duration and the number of facts it adds to {@code store}.
+     */
+    void fire (Rule rule, QueryPlan.Join join, FactStore store, Runnable firing)
+    {
+        RuleProfile profile = profileOf(rule, join);
+        Relation head = store.find(rule.head.key());
+        int size = head == null ? 0 : head.size();
+        long start = System.nanoTime();
+        firing.run();
+        profile.nanos += System.nanoTime() - start;
+        ++profile.firings;
+        head = store.find(rule.head.key());
+        profile.added += (head == null ? 0 : head.size()) - size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Matches body atom {@code i} of {@code rule} under {@code bindings} by calling {@code
+     * matcher} with {@code onMatch}, recording the probe. {@code subgoal} tells whether the atom
+     * is resolved as a subgoal of tabled resolution rather than matched against the store.
+     */
+    void probe (FactStore store, Rule rule, int i, int[] bindings, boolean subgoal,
+                Consumer<Consumer<int[]>> matcher, Consumer<int[]> onMatch)
+    {
+        AtomProfile atom = profileOf(rule, QueryPlan.Join.PAIRWISE).atoms[i];
+        Atom body = rule.body[i];
+        int mask = FactStore.boundMask(body, bindings);
+        boolean ground = FactStore.ground(body, bindings);
+        ++atom.probes;
+
+        long[] inner = new long[1];
+        long start = System.nanoTime();
+        matcher.accept(b -> {
+            ++atom.tuples;
+            long before = System.nanoTime();
+            onMatch.accept(b);
+            inner[0] += System.nanoTime() - before;
+        });
+        atom.nanos += System.nanoTime() - start - inner[0];
+
+        Relation relation = store.find(body.key());
+        if (subgoal) ++atom.subgoals;
+        else if (ground) ++atom.lookups;
+        else if (mask != 0 && relation != null && relation.index(mask) != null) ++atom.indexed;
+        else ++atom.scans;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The profiled query. */
+    public Atom query() { return query; }
+
+    /** The strategy used to answer the query. */
+    public LogicEngine.Strategy strategy() { return strategy; }
+
+    /** The profiles of the rules fired to answer the query, in order of first firing. */
+    public List<RuleProfile> rules() { return Collections.unmodifiableList(rules); }
+
+    /** Number of answers to the query. */
+    public long answers() { return answers; }
+
+    /** Duration of the query, in nanoseconds. */
+    public long nanos() { return nanos; }
+
+    /** Number of bytes allocated by the query, or -1 if the JVM doesn't support measuring it. */
+    public long allocatedBytes() { return allocatedBytes; }
+
+    /** Number of tuples added to the fact store by the query. */
+    public long tuplesAdded() { return tuplesAdded; }
+
+    /** Change in the memory used by indexes during the query, in bytes. */
+    public long indexMemory() { return indexMemory; }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString ()
+    {
+        StringBuilder b = new StringBuilder();
+        b.append(String.format(
+            "profile %s (%s): %d answers in %.3f ms, %d tuples added, %s allocated, "
+                + "%+d bytes of indexes%n",
+            query, strategy.toString().toLowerCase(), answers, nanos / 1e6, tuplesAdded,
+            allocatedBytes < 0 ? "? bytes" : allocatedBytes + " bytes", indexMemory));
+        for (RuleProfile rule: rules) b.append(rule);
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * What was done for a rule.
+     */
+    public static final class RuleProfile
+    {
+        final Rule rule;
+        final QueryPlan.Join join;
+        final AtomProfile[] atoms;
+        long firings, added, nanos;
+
+        RuleProfile (Rule rule, QueryPlan.Join join)
+        {
+            this.rule = rule;
+            this.join = join;
+            this.atoms = new AtomProfile[rule.body.length];
+            for (int i = 0; i < atoms.length; ++i) atoms[i] = new AtomProfile(rule.body[i]);
+        }
+
+        /** The profiled rule. */
+        public Rule rule() { return rule; }
+
+        /** The algorithm that joined the body atoms. */
+        public QueryPlan.Join join() { return join; }
+
+        /** The profiles of the body atoms, in source order. */
+        public List<AtomProfile> atoms() {
+            return Collections.unmodifiableList(Arrays.asList(atoms));
+        }
+
+        /**
+         * Number of times the rule was fired: per semi-naive variant and iteration bottom-up, per
+         * resolution pass of a table with tabled resolution.
+         */
+        public long firings() { return firings; }
+
+        /** Number of new facts added to the store by the rule (0 with tabled resolution). */
+        public long added() { return added; }
+
+        /** Time spent firing the rule, in nanoseconds (inclusive). */
+        public long nanos() { return nanos; }
+
+        @Override public String toString ()
+        {
+            StringBuilder b = new StringBuilder();
+            b.append(String.format("  %s [%s]: %d firings, %d facts added, %.3f ms%n",
+                rule, join.toString().toLowerCase(), firings, added, nanos / 1e6));
+            for (AtomProfile atom: atoms)
+                if (atom.probes > 0) b.append("    ").append(atom).append('\n');
+            return b.toString();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * What was done for a body atom of a pairwise join.
+     */
+    public static final class AtomProfile
+    {
+        final Atom atom;
+        long probes, tuples, nanos, lookups, indexed, scans, subgoals;
+
+        AtomProfile (Atom atom) {
+            this.atom = atom;
+        }
+
+        /** The profiled atom. */
+        public Atom atom() { return atom; }
+
+        /** Number of times the atom was matched. */
+        public long probes() { return probes; }
+
+        /** Number of tuples that matched the atom, summed over all probes. */
+        public long tuples() { return tuples; }
+
+        /** Time spent matching the atom, in nanoseconds (excluding the rest of the body). */
+        public long nanos() { return nanos; }
+
+        /** Number of probes with all arguments bound, answered by a hash lookup. */
+        public long lookups() { return lookups; }
+
+        /** Number of probes answered by an index. */
+        public long indexed() { return indexed; }
+
+        /** Number of probes that scanned the relation. */
+        public long scans() { return scans; }
+
+        /** Number of probes resolved as subgoals of tabled resolution. */
+        public long subgoals() { return subgoals; }
+
+        @Override public String toString () {
+            return String.format(
+                "%s: %d probes (%d lookups, %d indexed, %d scans, %d subgoals), %d tuples, "
+                    + "%.3f ms",
+                atom, probes, lookups, indexed, scans, subgoals, tuples, nanos / 1e6);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
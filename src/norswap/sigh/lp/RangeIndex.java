@@ -0,0 +1,180 @@
+package norswap.sigh.lp;
+
+/**
+ * A secondary index over the numbers held by a column of a {@link Relation} (see {@link
+ * Term#numeric}): its rows sorted by number, so that the rows whose number lies in a range are
+ * found by a binary search, then read in sequence. Rows holding non-numeric terms are left out, as
+ * they never satisfy a {@link Comparison}.
+ *
+ * <p>The index covers the rows {@code [0, covered())} of the relation. Since relations are
+ * append-only, the newer rows form an unsorted tail, which lookups scan. The tail is sorted and
+ * merged into the index (see {@link #refresh}) once it exceeds a fraction of the index, so that the
+ * cost of merging is amortized over the appended rows.
+ *
+ * <p>Range indexes are built by {@link FactStore} the first time a column is looked up with a
+ * bound on a number it doesn't bind (e.g. {@code price(x, p), p < 10}).
+ */
+final class RangeIndex
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Minimum size of the unsorted tail before it is merged. */
+    private static final int MIN_TAIL = 64;
+
+    final Relation relation;
+    final int column;
+
+    /** Numbers of the indexed rows, in increasing order. */
+    private long[] numbers = new long[16];
+
+    /** Indexed rows, in the order of their numbers (ascending for equal numbers). */
+    private int[] rows = new int[16];
+
+    private int size = 0;
+    private int covered = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    RangeIndex (Relation relation, int column)
+    {
+        this.relation = relation;
+        this.column = column;
+        merge();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of rows of the relation covered by the index (the others form its tail). */
+    int covered() {
+        return covered;
+    }
+
+    /**
+     * The indexed rows, in order of their numbers, at positions {@code [0, size)}. Merges replace
+     * the array rather than modify it, so it can be read while the index is refreshed.
+     */
+    int[] rows() {
+        return rows;
+    }
+
+    /** Approximate memory used by the index, in bytes. */
+    long memory() {
+        return 32 + 12L * numbers.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Whether the tail outgrew its allowed fraction of the index. */
+    boolean stale() {
+        return relation.size() - covered > MIN_TAIL + size / 16;
+    }
+
+    /**
+     * Merges the tail into the index if it is {@link #stale()}.
+     */
+    void refresh()
+    {
+        if (stale()) merge();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the position of the first indexed row whose number is at least {@code lower}.
+     */
+    int first (long lower)
+    {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (numbers[mid] < lower) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the position after the last indexed row whose number is at most {@code upper}.
+     */
+    int end (long upper) {
+        return upper == Long.MAX_VALUE ? size : first(upper + 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Estimated fraction of the rows of the relation whose number lies in {@code [lower, upper]}.
+     */
+    double selectivity (long lower, long upper)
+    {
+        if (lower > upper) return 0;
+        return (end(upper) - first(lower) + 1.0) / (size + 1.0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sorts the numeric rows of the tail by number and merges them with the indexed rows.
+     */
+    private void merge()
+    {
+        int end = relation.size();
+        long[] tailNumbers = new long[end - covered];
+        int[] tailRows = new int[end - covered];
+        int count = 0;
+        for (int row = covered; row < end; ++row) {
+            Term term = Term.of(relation.get(row, column));
+            if (!term.numeric) continue;
+            tailNumbers[count] = term.number;
+            tailRows[count++] = row;
+        }
+        sort(tailNumbers, tailRows, new long[count], new int[count], 0, count);
+
+        long[] mergedNumbers = new long[Math.max(16, size + count + (size + count) / 4)];
+        int[] mergedRows = new int[mergedNumbers.length];
+        int i = 0, j = 0, k = 0;
+        while (i < size || j < count) {
+            // tail rows come after the indexed rows with the same number
+            if (j == count || i < size && numbers[i] <= tailNumbers[j]) {
+                mergedNumbers[k] = numbers[i];
+                mergedRows[k++] = rows[i++];
+            } else {
+                mergedNumbers[k] = tailNumbers[j];
+                mergedRows[k++] = tailRows[j++];
+            }
+        }
+        numbers = mergedNumbers;
+        rows = mergedRows;
+        size = k;
+        covered = end;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Stable merge sort of {@code numbers[lo, hi)} along with {@code rows[lo, hi)}, using the
+     * scratch arrays.
+     */
+    private static void sort (
+            long[] numbers, int[] rows, long[] numbersTmp, int[] rowsTmp, int lo, int hi)
+    {
+        if (hi - lo < 2) return;
+        int mid = (lo + hi) >>> 1;
+        sort(numbers, rows, numbersTmp, rowsTmp, lo, mid);
+        sort(numbers, rows, numbersTmp, rowsTmp, mid, hi);
+        if (numbers[mid - 1] <= numbers[mid]) return; // already in order
+        System.arraycopy(numbers, lo, numbersTmp, lo, hi - lo);
+        System.arraycopy(rows, lo, rowsTmp, lo, hi - lo);
+        for (int i = lo, j = mid, k = lo; k < hi; ++k) {
+            if (j == hi || i < mid && numbersTmp[i] <= numbersTmp[j]) {
+                numbers[k] = numbersTmp[i];
+                rows[k] = rowsTmp[i++];
+            } else {
+                numbers[k] = numbersTmp[j];
+                rows[k] = rowsTmp[j++];
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
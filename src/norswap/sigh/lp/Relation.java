@@ -0,0 +1,643 @@
+package norswap.sigh.lp;
+
+import java.util.ArrayList;
+
+/**
+ * The set of tuples of a single predicate (identified by its name and arity).
+ *
+ * <p>Tuples are made of interned term ids (see {@link TermDictionary}) and are stored column-wise,
+ * one {@code int} array per argument position. Relations are append-only: a tuple keeps its row
+ * number forever, and rows {@code [0, size())} are always valid.
+ *
+ * <p>The columns and the deduplication set are {@link IntColumn}s, which live either on the Java
+ * heap or off-heap, depending on the {@link FactStore.Storage storage} the relation was created
+ * with. In both cases, adding or reading a tuple allocates nothing.
+ *
+ * <p>Duplicate tuples are rejected using an open-addressing hash set of row numbers, so no object is
+ * allocated per tuple. This set doubles as an index for fully bound lookups ({@link #contains}),
+ * while other combinations of bound columns use secondary {@link HashIndex indexes}, built on
+ * demand by {@link IndexManager} and maintained here. Likewise, fully bound lookups can first
+ * consult a {@link BloomFilter}, built on demand by {@link FilterManager} and maintained here.
+ *
+ * <p>Unary relations (sets of terms) of a {@link FactStore} keep their members in a compressed
+ * {@link TermBitmap} instead of the hash set, which needs neither a hash nor a comparison per
+ * lookup, and takes a few bits per member instead of 8 to 16 bytes. Their column is still needed
+ * to number the members in insertion order. The bitmap says whether a term is a member, but not
+ * in which row: to restrict lookups to a range of rows, the members of the rows from a given row
+ * on are kept in a few cached bitmaps ({@link #tail}), extended as the relation grows.
+ *
+ * <p>A relation can be {@link #freeze frozen} into a read-only relation holding its current rows,
+ * which shares its storage and keeps reading the same values while the relation grows (see {@link
+ * StoreView}).
+ */
+public final class Relation
+{
+    // ---------------------------------------------------------------------------------------------
+
+    public final String name;
+    public final int arity;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public final FactStore.Storage storage;
+
+    private final IntColumn[] columns;
+    private int size = 0;
+
+    /**
+     * Open-addressing hash set of row numbers (-1 = empty slot), capacity is a power of two. Null
+     * if the relation has {@link #members}.
+     */
+    private IntColumn table;
+
+    /** The members of a unary relation, replacing {@link #table}, or null. */
+    private final TermBitmap members;
+
+    /** Cached members of the rows from a given row on, see {@link #tail}. */
+    private final Tail[] tails;
+
+    private final ArrayList<HashIndex> indexes = new ArrayList<>(2);
+
+    /** Range index over the numbers of each column, or null (see {@link #rangeIndex}). */
+    private RangeIndex[] ranges;
+
+    /** Bloom filter over the tuples, or null if none was built. */
+    private BloomFilter filter;
+
+    /** Distinct-value statistics for each column, used for query planning. */
+    private final DistinctCounter[] distinct;
+
+    /** The relation this relation is a frozen view of, or null. */
+    private final Relation source;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Relation (String name, int arity) {
+        this(name, arity, true, arity == 1, FactStore.Storage.HEAP);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Relation (String name, int arity, FactStore.Storage storage) {
+        this(name, arity, true, arity == 1, storage);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a relation, with or without distinct-value statistics (which cost about 1 KiB per
+     * column). Without statistics, {@link #distinct(int)} returns {@link #size()}. The relation
+     * deduplicates its tuples with a hash set, even if it is unary, so that {@link #rowOf(int[])}
+     * is always fast.
+     */
+    Relation (String name, int arity, boolean statistics, FactStore.Storage storage) {
+        this(name, arity, statistics, false, storage);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Relation (
+            String name, int arity, boolean statistics, boolean bitmap, FactStore.Storage storage)
+    {
+        this.name = name;
+        this.arity = arity;
+        this.storage = storage;
+        this.columns = new IntColumn[arity];
+        for (int i = 0; i < arity; ++i)
+            columns[i] = IntColumn.create(storage, 8);
+        this.distinct = statistics ? new DistinctCounter[arity] : null;
+        if (statistics)
+            for (int i = 0; i < arity; ++i) distinct[i] = new DistinctCounter();
+        this.members = bitmap ? new TermBitmap() : null;
+        this.tails = bitmap ? new Tail[TAILS] : null;
+        this.source = null;
+        if (!bitmap) {
+            this.table = IntColumn.create(storage, 16);
+            table.fill(-1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates an off-heap relation from existing storage (see {@link Snapshot}): {@code columns}
+     * hold {@code size} tuples, {@code table} is their deduplication set, and {@code distinct}
+     * (which may be null) the statistics of the columns. If {@code table} is null, the relation
+     * must be unary, and its members bitmap is rebuilt from its column.
+     */
+    Relation (String name, int arity, int size, IntColumn[] columns, IntColumn table,
+              DistinctCounter[] distinct)
+    {
+        this.name = name;
+        this.arity = arity;
+        this.storage = FactStore.Storage.OFF_HEAP;
+        this.size = size;
+        this.columns = columns;
+        this.table = table;
+        this.distinct = distinct;
+        this.members = table == null ? new TermBitmap() : null;
+        this.tails = table == null ? new Tail[TAILS] : null;
+        this.source = null;
+        if (members != null)
+            for (int row = 0; row < size; ++row) members.add(columns[0].get(row));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a frozen view of {@code source}, see {@link #freeze}.
+     */
+    private Relation (Relation source)
+    {
+        this.name = source.name;
+        this.arity = source.arity;
+        this.storage = source.storage;
+        this.size = source.size;
+        this.columns = new IntColumn[arity];
+        for (int i = 0; i < arity; ++i) columns[i] = source.columns[i].freeze();
+        this.table = source.table == null ? null : source.table.freeze();
+        this.members = source.members;
+        this.tails = null;
+        this.indexes.addAll(source.indexes);
+        this.ranges = source.ranges == null ? null : source.ranges.clone();
+        this.distinct = null;
+        this.source = source;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a read-only relation holding the current rows of this relation, which shares its
+     * storage: appending to this relation only writes past the rows of the frozen relation, and
+     * growing it copies the rows to new storage.
+     *
+     * <p>The deduplication set, secondary indexes, range indexes and members bitmap of the frozen
+     * relation are those of this relation, and keep being updated with its new rows: readers must
+     * ignore rows past {@link #size()}. Its deduplication set can be read while this relation is
+     * written to, since its slots only go from empty to holding a row, but the other structures
+     * are modified in place: {@link StoreView} validates its reads of them.
+     */
+    Relation freeze() {
+        return new Relation(this);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The relation this relation is a {@link #freeze frozen} view of, or null. */
+    Relation source() {
+        return source;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the {@code name/arity} key used to identify the relation.
+     */
+    public static String key (String name, int arity) {
+        return name + "/" + arity;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of tuples in the relation.
+     */
+    public int size() {
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value at the given column of the given row.
+     */
+    public int get (int row, int column) {
+        return columns[column].get(row);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a copy of the tuple at the given row.
+     */
+    public int[] tuple (int row)
+    {
+        int[] tuple = new int[arity];
+        for (int i = 0; i < arity; ++i)
+            tuple[i] = columns[i].get(row);
+        return tuple;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the tuple to the relation, returning false if it was already present.
+     */
+    public boolean add (int[] tuple)
+    {
+        if (source != null)
+            throw new IllegalStateException("read-only view of relation " + key(name, arity));
+        if (tuple.length != arity)
+            throw new IllegalArgumentException(
+                "tuple of size " + tuple.length + " for relation " + key(name, arity));
+
+        if (members != null) {
+            if (!members.add(tuple[0])) return false;
+            insert(tuple, -1, 0);
+            return true;
+        }
+
+        // a tuple rejected by the filter is new: skip the comparisons while looking for a slot
+        long bloom = filter == null ? 0 : BloomFilter.hash(tuple);
+        boolean known = filter == null || filter.mightContain(bloom);
+
+        int mask = table.capacity() - 1;
+        int slot = hash(tuple) & mask;
+        for (int row; (row = table.get(slot)) >= 0; slot = (slot + 1) & mask)
+            if (known && rowEquals(row, tuple)) return false;
+
+        insert(tuple, slot, bloom);
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the {@code count} tuples stored one after the other in {@code tuples}, which must be
+     * distinct and absent from the relation: duplicate checks are skipped, and the storage is
+     * grown once for all tuples.
+     */
+    void addAbsent (int[] tuples, int count)
+    {
+        if (source != null)
+            throw new IllegalStateException("read-only view of relation " + key(name, arity));
+        int total = size + count;
+        for (IntColumn column: columns) column.reserve(total);
+        int[] tuple = new int[arity];
+        if (members != null) {
+            for (int k = 0; k < count; ++k) {
+                tuple[0] = tuples[k];
+                members.add(tuple[0]);
+                insert(tuple, -1, 0);
+            }
+            return;
+        }
+
+        int capacity = table.capacity();
+        while (total * 2 > capacity) capacity *= 2;
+        if (capacity != table.capacity()) rehash(capacity);
+
+        for (int k = 0; k < count; ++k) {
+            System.arraycopy(tuples, k * arity, tuple, 0, arity);
+            int mask = table.capacity() - 1;
+            int slot = hash(tuple) & mask;
+            while (table.get(slot) >= 0) slot = (slot + 1) & mask;
+            insert(tuple, slot, filter == null ? 0 : BloomFilter.hash(tuple));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Stores {@code tuple} in a new row, referenced from the free {@code slot} of the deduplication
+     * set (if there is one), and updates the statistics, indexes and filter ({@code bloom} is the
+     * filter hash of the tuple, if there is a filter).
+     */
+    private void insert (int[] tuple, int slot, long bloom)
+    {
+        for (int i = 0; i < arity; ++i) {
+            if (size == columns[i].capacity()) columns[i].reserve(size + 1);
+            columns[i].set(size, tuple[i]);
+            if (distinct != null) distinct[i].add(tuple[i]);
+        }
+
+        if (table != null) table.set(slot, size);
+        for (HashIndex index: indexes) index.add(size);
+        ++size;
+        if (table != null && size * 2 > table.capacity()) rehash(table.capacity() * 2);
+        if (filter != null) {
+            if (size > filter.capacity) filter = filter.owner.grow(this);
+            else filter.add(bloom);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the Bloom filter over the tuples, or null if none was built. */
+    BloomFilter filter() {
+        return filter;
+    }
+
+    void setFilter (BloomFilter filter) {
+        this.filter = filter;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the estimated number of distinct values in the given column (between 1 and {@link
+     * #size()} for non-empty relations).
+     */
+    public long distinct (int column)
+    {
+        if (distinct == null) return Math.max(1, size);
+        return Math.max(1, Math.min(size, distinct[column].estimate()));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the relation contains the given tuple.
+     */
+    public boolean contains (int[] tuple) {
+        return rowOf(tuple) >= 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the row holding the given tuple, or -1 if the relation doesn't contain it. For a
+     * unary relation of a {@link FactStore}, whose members are kept in a bitmap, finding the row of
+     * a member takes a scan (as does finding whether a term is a member, if the relation is {@link
+     * #freeze frozen}).
+     */
+    public int rowOf (int[] tuple)
+    {
+        if (members != null)
+            return source != null || members.contains(tuple[0]) ? scan(tuple[0]) : -1;
+        int mask = table.capacity() - 1;
+        for (int slot = hash(tuple) & mask, row; (row = table.get(slot)) >= 0;
+                slot = (slot + 1) & mask)
+            if (row < size && rowEquals(row, tuple)) return row; // frozen: skip newer rows
+        return -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #rowOf(int[])} for the values of {@code atom} under {@code bindings}, which must
+     * bind all its variables, without building the tuple.
+     */
+    int rowOf (Atom atom, int[] bindings)
+    {
+        if (members != null) {
+            int id = atom.value(0, bindings);
+            return source != null || members.contains(id) ? scan(id) : -1;
+        }
+        int h = 1;
+        for (int i = 0; i < arity; ++i)
+            h = 31 * h + atom.value(i, bindings);
+        int mask = table.capacity() - 1;
+        for (int slot = mix(h) & mask, row; (row = table.get(slot)) >= 0;
+                slot = (slot + 1) & mask)
+            if (row < size && rowEquals(row, atom, bindings)) return row;
+        return -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the values of {@code atom} under {@code bindings} (which must bind all its variables)
+     * are in one of the rows {@code [from, to)}.
+     */
+    boolean contains (Atom atom, int[] bindings, int from, int to)
+    {
+        if (members == null || source != null) {
+            int row = rowOf(atom, bindings);
+            return from <= row && row < to;
+        }
+        int id = atom.value(0, bindings);
+        return members.contains(id)
+            && (from <= 0 || tail(from).contains(id))
+            && (to >= size || !tail(to).contains(id));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the first row holding {@code id} in a unary relation, or -1. */
+    private int scan (int id)
+    {
+        for (int row = 0; row < size; ++row)
+            if (columns[0].get(row) == id) return row;
+        return -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of cached {@link Tail tails} of a unary relation. */
+    private static final int TAILS = 4;
+
+    /** The members of the rows {@code [from, end)} of a unary relation. */
+    private static final class Tail
+    {
+        final int from;
+        int end;
+        final TermBitmap members = new TermBitmap();
+
+        Tail (int from) {
+            this.from = this.end = from;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the members of the rows from {@code from} on of a unary relation. Since each member
+     * is in a single row, a member is in rows {@code [from, to)} if it is in {@code tail(from)} but
+     * not in {@code tail(to)}.
+     *
+     * <p>Lookups use few distinct bounds: those of the deltas of bottom-up evaluation, which move
+     * forward. The tails of the last {@link #TAILS} bounds are cached (the one with the smallest
+     * bound is replaced), and brought up to date when the relation grew. Synchronized, because
+     * concurrent readers may share the cache.
+     */
+    private synchronized TermBitmap tail (int from)
+    {
+        Tail tail = null;
+        int victim = 0;
+        for (int i = 0; i < TAILS && tail == null; ++i) {
+            if (tails[i] == null || tails[i].from == from) {
+                if (tails[i] == null) tails[i] = new Tail(from);
+                tail = tails[i];
+            } else if (tails[i].from < tails[victim].from)
+                victim = i;
+        }
+        if (tail == null) tail = tails[victim] = new Tail(from);
+        for (; tail.end < size; ++tail.end)
+            tail.members.add(columns[0].get(tail.end));
+        return tail.members;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the secondary index on the columns in {@code mask}, or null if there is none.
+     */
+    public HashIndex index (int mask)
+    {
+        for (HashIndex index: indexes)
+            if (index.mask == mask) return index;
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the range index over the numbers of column {@code column}, or null if there is none.
+     */
+    RangeIndex range (int column) {
+        return ranges == null ? null : ranges[column];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the range index over the numbers of column {@code column}, building it if needed,
+     * and merging its tail into it if it grew too long.
+     */
+    RangeIndex rangeIndex (int column)
+    {
+        if (ranges == null) ranges = new RangeIndex[arity];
+        if (ranges[column] == null) ranges[column] = new RangeIndex(this, column);
+        else ranges[column].refresh();
+        return ranges[column];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether this relation has any secondary index.
+     */
+    public boolean hasIndexes() {
+        return !indexes.isEmpty();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    IntColumn column (int column) {
+        return columns[column];
+    }
+
+    /** The deduplication set, or null if the relation has {@link #members()}. */
+    IntColumn table() {
+        return table;
+    }
+
+    /** The members of a unary relation of a {@link FactStore}, or null. Must not be modified. */
+    TermBitmap members() {
+        return members;
+    }
+
+    /** Statistics of the given column, or null if the relation doesn't maintain statistics. */
+    DistinctCounter counter (int column) {
+        return distinct == null ? null : distinct[column];
+    }
+
+    /** Masks of the secondary indexes of the relation. */
+    int[] indexMasks()
+    {
+        int[] masks = new int[indexes.size()];
+        for (int i = 0; i < masks.length; ++i) masks[i] = indexes.get(i).mask;
+        return masks;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    void addIndex (HashIndex index) {
+        indexes.add(index);
+    }
+
+    void removeIndex (HashIndex index) {
+        indexes.remove(index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Memory used by the columns and deduplication set (or members bitmap) of the relation, in
+     * bytes (excluding secondary indexes). Depending on {@link #storage}, the columns and set are
+     * on or off the Java heap. Bitmaps are always on the heap.
+     */
+    public long memory()
+    {
+        long memory = 0;
+        if (table != null) memory += table.memory();
+        if (members != null) memory += members.memory();
+        if (tails != null)
+            for (Tail tail: tails) if (tail != null) memory += tail.members.memory();
+        for (IntColumn column: columns) memory += column.memory();
+        return memory;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean rowEquals (int row, int[] tuple)
+    {
+        for (int i = 0; i < arity; ++i)
+            if (columns[i].get(row) != tuple[i]) return false;
+        return true;
+    }
+
+    private boolean rowEquals (int row, Atom atom, int[] bindings)
+    {
+        for (int i = 0; i < arity; ++i)
+            if (columns[i].get(row) != atom.value(i, bindings)) return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int rowHash (int row)
+    {
+        int h = 1;
+        for (int i = 0; i < arity; ++i)
+            h = 31 * h + columns[i].get(row);
+        return mix(h);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int hash (int[] tuple)
+    {
+        int h = 1;
+        for (int value: tuple)
+            h = 31 * h + value;
+        return mix(h);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Murmur3 finalizer: term ids are dense, so their raw combination clusters badly. */
+    static int mix (int h)
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void rehash (int capacity)
+    {
+        IntColumn newTable = IntColumn.create(storage, capacity);
+        newTable.fill(-1);
+        int mask = newTable.capacity() - 1;
+        for (int row = 0; row < size; ++row) {
+            int slot = rowHash(row) & mask;
+            while (newTable.get(slot) >= 0) slot = (slot + 1) & mask;
+            newTable.set(slot, row);
+        }
+        table = newTable;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return key(name, arity) + " (" + size + " tuples)";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
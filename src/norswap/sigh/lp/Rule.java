@@ -0,0 +1,314 @@
+package norswap.sigh.lp;
+
+import norswap.sigh.ast.AggregateNode;
+import norswap.sigh.ast.AtomNode;
+import norswap.sigh.ast.ClauseDeclarationNode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The engine representation of a clause {@code head :- body1, ..., bodyN}. The atoms of a rule
+ * share their variable numbering.
+ *
+ * <p>Besides atoms, the body can hold {@link Aggregate aggregates}, whose result variables are
+ * bound to a value per group of answers to their atom. The {@link LogicEngine} evaluates them
+ * before the rest of the body.
+ *
+ * <p>The body can also hold {@link Comparison comparisons} between a variable and a number (e.g.
+ * {@code p < 10}), which bound the body atoms holding their variable (see {@link Atom#bounded}).
+ *
+ * <p>Rules must be range-restricted: every variable of the head must appear in the body (in an
+ * atom, or in an aggregate's atom or result), so that every derived fact is ground.
+ */
+public final class Rule
+{
+    // ---------------------------------------------------------------------------------------------
+
+    public final Atom head;
+    public final Atom[] body;
+
+    /** The aggregates of the body (empty for most rules). */
+    public final Aggregate[] aggregates;
+
+    /** The comparisons of the body (empty for most rules). */
+    public final Comparison[] comparisons;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Rule (Atom head, Atom... body) {
+        this(head, body, new Aggregate[0]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Rule (Atom head, Atom[] body, Aggregate[] aggregates) {
+        this(head, body, aggregates, new Comparison[0]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a rule whose body atoms are {@link Atom#bounded bounded} by {@code comparisons}.
+     * The variable of each comparison must appear in a body atom or as the result of an aggregate,
+     * whose view atom is bounded when {@link LogicEngine} replaces the aggregate.
+     */
+    public Rule (Atom head, Atom[] body, Aggregate[] aggregates, Comparison[] comparisons)
+    {
+        if (body.length == 0 && aggregates.length == 0)
+            throw new IllegalArgumentException("a rule must have a body");
+        for (int var: head.vars)
+            if (var != Atom.CONSTANT && !appearsInBody(var, body, aggregates))
+                throw new IllegalArgumentException(
+                    "head variable " + head.varNames[var] + " does not appear in the body");
+        for (Comparison comparison: comparisons)
+            if (!compared(comparison.var, body, aggregates))
+                throw new IllegalArgumentException("compared variable "
+                    + comparison.varNames[comparison.var]
+                    + " does not appear in a body atom or as an aggregate result");
+        this.head = head;
+        this.body = body.clone();
+        for (int i = 0; i < body.length; ++i)
+            this.body[i] = body[i].bounded(comparisons);
+        this.aggregates = aggregates;
+        this.comparisons = comparisons;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Translates the given clause to a rule.
+     */
+    public static Rule of (ClauseDeclarationNode node)
+    {
+        // an aggregate is translated as an atom holding its result and value variables, named
+        // after its function, followed by its aggregated atom
+        ArrayList<AtomNode> nodes = new ArrayList<>();
+        ArrayList<Boolean> aggregates = new ArrayList<>();
+        nodes.add(node.left_atom);
+        aggregates.add(false);
+        for (AtomNode atom: node.right_atoms) {
+            nodes.add(atom);
+            aggregates.add(atom instanceof AggregateNode);
+            if (atom instanceof AggregateNode) {
+                nodes.add(((AggregateNode) atom).atom);
+                aggregates.add(false);
+            }
+        }
+        Atom[] atoms = Atom.translate(nodes);
+        return assemble(atoms, aggregates, Comparison.of(node.comparisons, atoms[0].varNames));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Builds a rule from its head and body atoms, where the atoms flagged in {@code aggregates}
+     * stand for an aggregate whose atom follows them (see {@link #of}), and its comparisons.
+     */
+    private static Rule assemble (Atom[] atoms, List<Boolean> aggregates, Comparison[] comparisons)
+    {
+        ArrayList<Atom> body = new ArrayList<>();
+        ArrayList<Aggregate> aggs = new ArrayList<>();
+        for (int i = 1; i < atoms.length; ++i) {
+            if (!aggregates.get(i)) {
+                body.add(atoms[i]);
+                continue;
+            }
+            aggs.add(Aggregate.of(atoms[i], atoms[++i]));
+        }
+        return new Rule(atoms[0], body.toArray(new Atom[0]), aggs.toArray(new Aggregate[0]),
+            comparisons);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final Pattern ATOM = Pattern.compile("\\s*(\\w+)\\s*\\(([^)]*)\\)\\s*");
+
+    private static final Pattern AGGREGATE =
+        Pattern.compile("\\s*(\\w+)\\s*\\(([^|()]*)\\|(.*)\\)\\s*");
+
+    private static final Pattern COMPARISON =
+        Pattern.compile("\\s*(\\w+)\\s*(<=|>=|<|>)\\s*(-?\\d+)\\s*");
+
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+");
+
+    /**
+     * Parses a rule written like its {@link #toString()}, e.g. {@code path(x, y) :- edge(x, y)},
+     * {@code degree(x, n) :- count(n | edge(x, y))} or {@code cheap(x) :- price(x, p), p < 10}.
+     * Arguments starting with {@code #} are terms, numbers are numeric terms ({@code 10} is {@code
+     * #10}), and the others are variables.
+     */
+    public static Rule parse (String rule)
+    {
+        int sep = rule.indexOf(":-");
+        if (sep < 0) throw new IllegalArgumentException("missing :- in rule: " + rule);
+
+        ArrayList<String[]> atoms = new ArrayList<>(); // predicate followed by arguments
+        ArrayList<Boolean> aggregates = new ArrayList<>();
+        Matcher matcher = ATOM.matcher(rule.substring(0, sep));
+        if (!matcher.matches()) throw new IllegalArgumentException("malformed head: " + rule);
+        atoms.add(parts(matcher));
+        aggregates.add(false);
+        ArrayList<String[]> compared = new ArrayList<>(); // variable, operator and number
+        for (String atom: split(rule.substring(sep + 2))) {
+            matcher = COMPARISON.matcher(atom);
+            if (matcher.matches()) {
+                compared.add(new String[] { matcher.group(1), matcher.group(2), matcher.group(3) });
+                continue;
+            }
+            matcher = AGGREGATE.matcher(atom);
+            boolean aggregate = matcher.matches();
+            if (aggregate) {
+                atoms.add(parts(matcher));
+                aggregates.add(true);
+                atom = matcher.group(3);
+            }
+            matcher = ATOM.matcher(atom);
+            if (!matcher.matches()) throw new IllegalArgumentException("malformed body: " + rule);
+            atoms.add(parts(matcher));
+            aggregates.add(false);
+        }
+
+        ArrayList<String> names = new ArrayList<>();
+        for (String[] atom: atoms)
+            for (int i = 1; i < atom.length; ++i)
+                if (!atom[i].startsWith("#") && !NUMBER.matcher(atom[i]).matches()
+                        && !names.contains(atom[i]))
+                    names.add(atom[i]);
+        String[] varNames = names.toArray(new String[0]);
+
+        Atom[] parsed = new Atom[atoms.size()];
+        for (int a = 0; a < parsed.length; ++a) {
+            String[] atom = atoms.get(a);
+            int[] terms = new int[atom.length - 1];
+            int[] vars = new int[terms.length];
+            for (int i = 0; i < terms.length; ++i) {
+                String arg = atom[i + 1];
+                if (arg.startsWith("#")) {
+                    terms[i] = TermDictionary.GLOBAL.intern(arg);
+                    vars[i] = Atom.CONSTANT;
+                } else if (NUMBER.matcher(arg).matches()) {
+                    terms[i] = TermDictionary.GLOBAL.intern("#" + Long.parseLong(arg));
+                    vars[i] = Atom.CONSTANT;
+                } else {
+                    vars[i] = names.indexOf(arg);
+                }
+            }
+            parsed[a] = new Atom(atom[0], terms, vars, varNames);
+        }
+
+        Comparison[] comparisons = new Comparison[compared.size()];
+        for (int i = 0; i < comparisons.length; ++i) {
+            String[] comparison = compared.get(i);
+            int var = names.indexOf(comparison[0]);
+            if (var < 0) throw new IllegalArgumentException("unknown variable in: " + rule);
+            comparisons[i] = new Comparison(var, Comparison.Operator.of(comparison[1]),
+                Long.parseLong(comparison[2]), varNames);
+        }
+        return assemble(parsed, aggregates, comparisons);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Splits a rule body at the commas that are not nested in parentheses.
+     */
+    private static List<String> split (String body)
+    {
+        ArrayList<String> parts = new ArrayList<>();
+        int depth = 0, start = 0;
+        for (int i = 0; i < body.length(); ++i) {
+            char c = body.charAt(i);
+            if (c == '(') ++depth;
+            else if (c == ')') --depth;
+            else if (c == ',' && depth == 0) {
+                parts.add(body.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(body.substring(start));
+        return parts;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static String[] parts (Matcher matcher)
+    {
+        String args = matcher.group(2).trim();
+        String[] split = args.isEmpty() ? new String[0] : args.split("\\s*,\\s*");
+        String[] parts = new String[split.length + 1];
+        parts[0] = matcher.group(1);
+        System.arraycopy(split, 0, parts, 1, split.length);
+        return parts;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean compared (int var, Atom[] body, Aggregate[] aggregates)
+    {
+        for (Atom atom: body)
+            for (int v: atom.vars)
+                if (v == var) return true;
+        for (Aggregate aggregate: aggregates)
+            if (aggregate.result == var) return true;
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean appearsInBody (int var, Atom[] body, Aggregate[] aggregates)
+    {
+        for (Atom atom: body)
+            for (int v: atom.vars)
+                if (v == var) return true;
+        for (Aggregate aggregate: aggregates) {
+            if (aggregate.result == var) return true;
+            for (int v: aggregate.atom.vars)
+                if (v == var) return true;
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether some body atom is bounded by a comparison, which only the joins that match atoms
+     * one tuple at a time (see {@link FactStore#match}) take into account.
+     */
+    boolean bounded()
+    {
+        for (Atom atom: body)
+            if (atom.hasBounds()) return true;
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of distinct variables in the rule.
+     */
+    public int varCount() {
+        return head.varNames.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString ()
+    {
+        StringBuilder b = new StringBuilder(head.toString()).append(" :- ");
+        for (int i = 0; i < body.length; ++i) {
+            if (i > 0) b.append(", ");
+            b.append(body[i]);
+        }
+        for (int i = 0; i < aggregates.length; ++i) {
+            if (i > 0 || body.length > 0) b.append(", ");
+            b.append(aggregates[i]);
+        }
+        for (Comparison comparison: comparisons)
+            b.append(", ").append(comparison);
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
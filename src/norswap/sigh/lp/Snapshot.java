@@ -0,0 +1,322 @@
+package norswap.sigh.lp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves a {@link FactStore} to a file and loads it back by memory-mapping the file (see {@link
+ * FactStore#save} and {@link FactStore#load}).
+ *
+ * <p>The file is written to a temporary file next to the destination, forced to disk, then moved
+ * over the destination atomically, so that readers (and a crash) always see either the old or the
+ * new snapshot, never a partial one.
+ *
+ * <p>All numbers are little-endian {@code int}s (except the term bytes, a {@code long}), and every
+ * section starts at an offset that is a multiple of 4. The layout is:
+ *
+ * <pre>
+ * header:   magic "SIGHLP01" (8 bytes), version, term count, relation count, term bytes
+ * terms:    for each term id in order: byte length, UTF-8 name (term bytes in total, padded)
+ * relation: name byte length, UTF-8 name (padded), arity, size, table capacity,
+ *           statistics flag, index count, index masks,
+ *           [if statistics: arity x 1024 bytes of HyperLogLog registers]
+ *           arity columns of size values, then the deduplication table (table capacity values)
+ * </pre>
+ *
+ * <p>Unary relations have no deduplication table (their table capacity is 0): the bitmap of their
+ * members is rebuilt from their column when loading.
+ *
+ * <p>Tuples refer to terms by id, and ids are only meaningful relative to the {@link
+ * TermDictionary#GLOBAL global dictionary} of the saving process. Loading interns the terms in id
+ * order: in a process that hasn't interned other terms before (or that interned the same terms in
+ * the same order), every term gets back its saved id, and the columns and deduplication table are
+ * mapped as is, in chunks of {@link IntColumn#CHUNK} values. Otherwise, the tuples are copied into
+ * regular relations, translating their ids — this is correct but takes time proportional to the
+ * size of the store.
+ *
+ * <p>Secondary indexes are not saved, only the list of the columns they covered: their groups are
+ * growable heap arrays, which cannot be mapped. They are rebuilt lazily, by the first probe that
+ * needs each of them (see {@link IndexManager}).
+ */
+final class Snapshot
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final byte[] MAGIC = "SIGHLP01".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int REGISTERS = 1024;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Snapshot () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    static void save (FactStore store, Path path) throws IOException
+    {
+        Path tmp = Paths.get(path.toString() + ".tmp");
+        TermDictionary dictionary = TermDictionary.GLOBAL;
+        int termCount = dictionary.size();
+
+        byte[][] names = new byte[termCount][];
+        long termBytes = 0;
+        for (int id = 0; id < termCount; ++id) {
+            names[id] = dictionary.name(id).getBytes(StandardCharsets.UTF_8);
+            termBytes += 4 + names[id].length;
+        }
+        termBytes = pad(termBytes);
+
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer out = new Writer(channel);
+            out.bytes(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(termCount);
+            out.putInt(store.relations().size());
+            out.putLong(termBytes);
+
+            for (byte[] name: names) {
+                out.putInt(name.length);
+                out.bytes(name);
+            }
+            out.align();
+
+            for (Relation relation: store.relations()) {
+                byte[] name = relation.name.getBytes(StandardCharsets.UTF_8);
+                out.putInt(name.length);
+                out.bytes(name);
+                out.align();
+                out.putInt(relation.arity);
+                out.putInt(relation.size());
+                out.putInt(relation.table() == null ? 0 : relation.table().capacity());
+                boolean statistics = relation.arity > 0 && relation.counter(0) != null;
+                out.putInt(statistics ? 1 : 0);
+                int[] masks = relation.indexMasks();
+                out.putInt(masks.length);
+                for (int mask: masks) out.putInt(mask);
+                if (statistics)
+                    for (int i = 0; i < relation.arity; ++i)
+                        out.bytes(relation.counter(i).registers());
+                for (int i = 0; i < relation.arity; ++i)
+                    out.column(relation.column(i), relation.size());
+                if (relation.table() != null)
+                    out.column(relation.table(), relation.table().capacity());
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static FactStore load (Path path) throws IOException
+    {
+        FactStore store = new FactStore();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Reader in = new Reader(channel);
+            byte[] magic = in.bytes(MAGIC.length);
+            for (int i = 0; i < MAGIC.length; ++i)
+                if (magic[i] != MAGIC[i])
+                    throw new IOException("not a fact store snapshot: " + path);
+            int version = in.getInt();
+            if (version != VERSION)
+                throw new IOException("unsupported snapshot version " + version + ": " + path);
+            int termCount = in.getInt();
+            int relationCount = in.getInt();
+            long termBytes = in.getLong();
+            if (termBytes > Integer.MAX_VALUE) throw new IOException("term section too large");
+
+            // intern the terms, checking whether they keep their ids
+            int[] ids = new int[termCount];
+            boolean identity = true;
+            ByteBuffer terms = in.map((int) termBytes);
+            for (int id = 0; id < termCount; ++id) {
+                byte[] name = new byte[terms.getInt()];
+                terms.get(name);
+                ids[id] = TermDictionary.GLOBAL.intern(new String(name, StandardCharsets.UTF_8));
+                identity &= ids[id] == id;
+            }
+
+            for (int r = 0; r < relationCount; ++r) {
+                String name = new String(in.bytes(in.getInt()), StandardCharsets.UTF_8);
+                in.align();
+                int arity = in.getInt();
+                int size = in.getInt();
+                int capacity = in.getInt();
+                boolean statistics = in.getInt() != 0;
+                int[] masks = new int[in.getInt()];
+                for (int i = 0; i < masks.length; ++i) masks[i] = in.getInt();
+
+                DistinctCounter[] distinct = statistics ? new DistinctCounter[arity] : null;
+                if (statistics)
+                    for (int i = 0; i < arity; ++i)
+                        distinct[i] = new DistinctCounter(in.bytes(REGISTERS));
+
+                IntColumn[] columns = new IntColumn[arity];
+                for (int i = 0; i < arity; ++i)
+                    columns[i] = in.column(size);
+                IntColumn table = capacity == 0 ? null : in.column(capacity);
+
+                Relation relation;
+                if (identity) {
+                    relation = new Relation(name, arity, size, columns, table, distinct);
+                    store.add(relation);
+                } else {
+                    relation = store.relation(name, arity);
+                    int[] tuple = new int[arity];
+                    for (int row = 0; row < size; ++row) {
+                        for (int i = 0; i < arity; ++i) tuple[i] = ids[columns[i].get(row)];
+                        relation.add(tuple);
+                    }
+                }
+                for (int mask: masks) store.indexes().restore(relation, mask);
+            }
+        }
+        return store;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static long pad (long offset) {
+        return (offset + 3) & ~3L;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Buffered little-endian writer on a channel. */
+    private static final class Writer
+    {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        long position = 0;
+
+        Writer (FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void ensure (int bytes) throws IOException {
+            if (buffer.remaining() < bytes) flush();
+        }
+
+        void flush() throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        void putInt (int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+            position += 4;
+        }
+
+        void putLong (long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+            position += 8;
+        }
+
+        void bytes (byte[] bytes) throws IOException
+        {
+            for (int offset = 0; offset < bytes.length; ) {
+                ensure(1);
+                int n = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, n);
+                offset += n;
+            }
+            position += bytes.length;
+        }
+
+        void align() throws IOException {
+            while (position != pad(position)) {
+                ensure(1);
+                buffer.put((byte) 0);
+                ++position;
+            }
+        }
+
+        void column (IntColumn column, int size) throws IOException {
+            for (int i = 0; i < size; ++i) putInt(column.get(i));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Little-endian reader on a channel, which maps the large sections instead of reading them. */
+    private static final class Reader
+    {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        long position = 0;
+
+        Reader (FileChannel channel) {
+            this.channel = channel;
+        }
+
+        ByteBuffer read (int bytes) throws IOException
+        {
+            ByteBuffer buffer = bytes <= 8 ? this.buffer : ByteBuffer.allocate(bytes);
+            buffer.clear().limit(bytes);
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new IOException("truncated snapshot");
+            position += bytes;
+            buffer.flip();
+            return buffer;
+        }
+
+        int getInt() throws IOException {
+            return read(4).getInt();
+        }
+
+        long getLong() throws IOException {
+            return read(8).getLong();
+        }
+
+        byte[] bytes (int length) throws IOException
+        {
+            byte[] bytes = new byte[length];
+            read(length).get(bytes);
+            return bytes;
+        }
+
+        void align() {
+            position = pad(position);
+        }
+
+        /** Maps the next {@code bytes} bytes of the file, read-only. */
+        ByteBuffer map (int bytes) throws IOException
+        {
+            if (position + bytes > channel.size()) throw new IOException("truncated snapshot");
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, bytes);
+            position += bytes;
+            return map.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /** Maps the next {@code size} values of the file as a column, one chunk at a time. */
+        IntColumn column (int size) throws IOException
+        {
+            if (size == 0) return IntColumn.create(FactStore.Storage.OFF_HEAP, 8);
+            int count = (int) ((size + (long) IntColumn.CHUNK_MASK) >>> IntColumn.CHUNK_SHIFT);
+            IntBuffer[] chunks = new IntBuffer[count];
+            for (int c = 0; c < chunks.length; ++c) {
+                int values = Math.min(IntColumn.CHUNK, size - c * IntColumn.CHUNK);
+                chunks[c] = map(4 * values).asIntBuffer();
+            }
+            return new IntColumn.OffHeap(chunks);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
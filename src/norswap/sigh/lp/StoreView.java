@@ -0,0 +1,233 @@
+package norswap.sigh.lp;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * An immutable snapshot of the contents of a {@link FactStore}, taken by {@link FactStore#view()},
+ * which any number of threads can read while the store keeps being written to.
+ *
+ * <p>A view holds a {@link Relation#freeze frozen} copy of each relation of the store, which shares
+ * the storage of the relation but only holds the rows it had when the view was taken. Since
+ * relations are append-only, this is all a snapshot needs: taking a view costs a few objects per
+ * relation, whatever the number of tuples. All relations are frozen between the same two writes,
+ * so the view is a consistent version of the store.
+ *
+ * <p>Reads never take a lock, and never make the writer wait. Scans and fully bound lookups only
+ * read memory that writes don't modify (the deduplication sets of relations are only filled).
+ * Lookups through the secondary indexes, range indexes and members bitmaps of the relations read
+ * structures the writer modifies in place: they are made optimistically, then validated against
+ * the lock of the store. If a write intervened, the lookup is retried, and after {@link
+ * #ATTEMPTS} failed attempts, falls back to a scan of the rows of the view.
+ *
+ * <p>Views use the indexes their relations had when they were taken, but never build any: indexes
+ * are built by the matches of the writer, or ahead of time by {@link FactStore#prepareIndex}.
+ */
+public final class StoreView
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of attempts to read an index before falling back to a scan. */
+    private static final int ATTEMPTS = 8;
+
+    private final StampedLock lock;
+
+    /** Stamp of the lock when the view was taken, still valid if the store wasn't modified. */
+    final long stamp;
+
+    private final HashMap<String, Relation> relations;
+
+    // ---------------------------------------------------------------------------------------------
+
+    StoreView (StampedLock lock, long stamp, HashMap<String, Relation> relations)
+    {
+        this.lock = lock;
+        this.stamp = stamp;
+        this.relations = relations;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the read-only relation with the given {@code name/arity} key, as of the view, or
+     * null if the store had no such relation.
+     */
+    public Relation find (String key) {
+        return relations.get(key);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns all the (read-only) relations of the view.
+     */
+    public Collection<Relation> relations() {
+        return Collections.unmodifiableCollection(relations.values());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls {@code onMatch} with the extended bindings for every tuple of the view that unifies
+     * with {@code atom} under {@code bindings}, like {@link FactStore#match(Atom, int[],
+     * Consumer)}.
+     */
+    public void match (Atom atom, int[] bindings, Consumer<int[]> onMatch) {
+        match(atom, bindings, new Trail(atom.arity()), onMatch);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #match(Atom, int[], Consumer)}, but records the variables bound for each match
+     * on {@code trail}, like {@link FactStore#match(Atom, int[], Trail, Consumer)}.
+     */
+    public void match (Atom atom, int[] bindings, Trail trail, Consumer<int[]> onMatch)
+    {
+        Relation relation = relations.get(atom.key());
+        if (relation == null || relation.size() == 0) return;
+
+        if (FactStore.ground(atom, bindings)) {
+            if (atom.inBounds(bindings) && contains(relation, atom, bindings))
+                onMatch.accept(bindings);
+            return;
+        }
+
+        int mask = FactStore.boundMask(atom, bindings);
+        HashIndex index = mask == 0 ? null : relation.index(mask);
+        if (index != null) {
+            if (matchIndex(relation, index, atom, bindings, trail, onMatch)) return;
+        } else {
+            int column = atom.hasBounds() ? FactStore.rangeColumn(atom, bindings) : -1;
+            RangeIndex range = column < 0 ? null : relation.range(column);
+            if (range != null && matchRange(relation, range, atom, bindings, trail, onMatch))
+                return;
+        }
+
+        for (int row = 0; row < relation.size(); ++row)
+            unify(relation, row, atom, bindings, trail, onMatch);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Matches {@code atom} against the rows of the view found through {@code index}, returning
+     * false if the index couldn't be read without interference from the writer.
+     */
+    private boolean matchIndex (Relation relation, HashIndex index, Atom atom, int[] bindings,
+            Trail trail, Consumer<int[]> onMatch)
+    {
+        for (int attempt = 0; attempt < ATTEMPTS; ++attempt) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0) { // a write is in progress
+                Thread.yield();
+                continue;
+            }
+            int[] rows;
+            int count;
+            try {
+                int group = index.find(atom, bindings);
+                rows = group < 0 ? null : index.groupRows(group);
+                count = group < 0 ? 0 : index.groupSize(group);
+            } catch (RuntimeException e) {
+                continue; // inconsistent reads, caused by a write
+            }
+            if (!lock.validate(stamp)) continue;
+
+            // the group only grows past count, or moves to a new array
+            for (int i = 0; i < count; ++i) {
+                if (rows[i] >= relation.size()) break; // rows are ascending
+                unify(relation, rows[i], atom, bindings, trail, onMatch);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Matches {@code atom} against the rows of the view within its bounds on the column of {@code
+     * range}, returning false if the index couldn't be read without interference from the writer.
+     */
+    private boolean matchRange (Relation relation, RangeIndex range, Atom atom, int[] bindings,
+            Trail trail, Consumer<int[]> onMatch)
+    {
+        for (int attempt = 0; attempt < ATTEMPTS; ++attempt) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0) {
+                Thread.yield();
+                continue;
+            }
+            int[] rows;
+            int first, end, covered;
+            try {
+                rows = range.rows();
+                first = range.first(atom.lower(range.column));
+                end = range.end(atom.upper(range.column));
+                covered = range.covered();
+            } catch (RuntimeException e) {
+                continue;
+            }
+            if (!lock.validate(stamp)) continue;
+
+            // merges replace the rows array, they don't modify it
+            for (int i = first; i < end; ++i)
+                if (rows[i] < relation.size())
+                    unify(relation, rows[i], atom, bindings, trail, onMatch);
+            for (int row = covered; row < relation.size(); ++row)
+                unify(relation, row, atom, bindings, trail, onMatch);
+            return true;
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the view holds the values of {@code atom} under {@code bindings}, which must bind all
+     * its variables.
+     */
+    private boolean contains (Relation relation, Atom atom, int[] bindings)
+    {
+        TermBitmap members = relation.members();
+        if (members == null) return relation.rowOf(atom, bindings) >= 0;
+
+        Relation source = relation.source();
+        int id = atom.value(0, bindings);
+        for (int attempt = 0; attempt < ATTEMPTS; ++attempt) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0) {
+                Thread.yield();
+                continue;
+            }
+            boolean found;
+            try {
+                found = members.contains(id);
+                // the bitmap also holds the members added since the view was taken
+                for (int row = relation.size(); found && row < source.size(); ++row)
+                    if (source.get(row, 0) == id) found = false;
+            } catch (RuntimeException e) {
+                continue;
+            }
+            if (lock.validate(stamp)) return found;
+        }
+        return relation.rowOf(atom, bindings) >= 0; // scans the view
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void unify (Relation relation, int row, Atom atom, int[] bindings, Trail trail,
+            Consumer<int[]> onMatch)
+    {
+        int mark = trail.mark();
+        if (!atom.unify(relation, row, bindings, trail)) return;
+        onMatch.accept(bindings);
+        trail.undo(mark);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
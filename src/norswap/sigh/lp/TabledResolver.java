@@ -0,0 +1,695 @@
+package norswap.sigh.lp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Answers queries top-down, by resolution against the rules of a {@link LogicEngine}, with
+ * tabling: the answers of each subgoal are memoized in a table, so that recursive subgoals
+ * (including left-recursive ones such as {@code path(x, y) :- path(x, z), edge(z, y)}) terminate
+ * and repeated subgoals are only solved once.
+ *
+ * <p>A subgoal is identified by its call pattern: its predicate and the values of its bound
+ * arguments. Calling a subgoal whose table is being filled doesn't recurse: the call consumes the
+ * answers found so far, including the ones added while it consumes them. Tables that depend on
+ * each other are completed together: as in Tarjan's algorithm, the first called table of such a
+ * group (its leader) re-runs its rules until a whole pass adds no answers to the tables of the
+ * group, then marks them all complete. Complete tables are reused as-is by later calls.
+ *
+ * <p>Predicates without rules are not tabled: they are matched directly against the fact store.
+ * Rules whose body only contains such predicates have their atoms ordered by the {@link
+ * JoinPlanner}. Other rules are resolved in source order, since their atom order determines which
+ * subgoals are called, hence which tables are created.
+ *
+ * <p>When a fact is inserted, only the tables of the predicates that depend on the fact's
+ * predicate (through the rules) are dropped: the others remain valid.
+ *
+ * <p>Queries can also be answered lazily, with a limit on the number of answers (see {@link
+ * #stream}). The table of the query is then filled until it holds enough answers to the query, at
+ * which point evaluation stops: the tables left incomplete are dropped, while the tables completed
+ * in the meantime are kept.
+ *
+ * <p>Resolution checks the {@link CancellationToken} of the query between the passes of the
+ * leaders and at each resolution step. When the query is cancelled, the tables left incomplete
+ * are dropped, like when a limited query stops, while the complete tables are kept.
+ *
+ * <p>The total number of answers held in complete tables is bounded by {@link #maxAnswers()}.
+ * When it is exceeded, the least recently used complete tables are evicted (and recomputed if
+ * called again). Eviction waits until no table is being filled: evicting a table that a leader
+ * relies on would make its next pass recompute the table, and the leader might never stop.
+ *
+ * <p>Variables are bound in place, in bindings arrays recycled by the resolver's {@link Trail},
+ * which records the bindings so that backtracking undoes them. Together with a reused call key for
+ * table lookups and body continuations built once per table and rule, this makes a resolution
+ * step (a unification with a fact, an answer or a rule head) allocation-free.
+ */
+public final class TabledResolver
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final FactStore store;
+    private final HashMap<String, List<Rule>> rules;
+    private final JoinPlanner planner;
+
+    /** All tables, in access order (least recently used first). */
+    private final LinkedHashMap<CallKey, Table> tables = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Predicates that depend on each predicate (including itself), computed on demand. */
+    private final HashMap<String, HashSet<String>> dependents = new HashMap<>();
+
+    /** Records the variables bound during resolution, and recycles bindings arrays. */
+    private final Trail trail = new Trail();
+
+    /** Key used to look tables up, overwritten at each call. */
+    private final CallKey probe = new CallKey();
+
+    /** Tables being filled, in call order. */
+    private final ArrayList<Table> stack = new ArrayList<>();
+
+    /** Incremented every time an answer is added to any table. */
+    private long answersAdded = 0;
+
+    /** Table of a limited query being solved (see {@link #stream}), or null. */
+    private Table watched;
+    private Atom watchedAtom;
+    private int[] watchedBindings;
+    private long watchedMissing;
+
+    /** Records the resolution work while a query is profiled, null otherwise. */
+    QueryProfile profile;
+
+    /** Token cancelling the query being solved, or null. */
+    CancellationToken cancellation;
+
+    private long maxAnswers = 1L << 24;
+    private long completeAnswers = 0;
+
+    // statistics
+    private long calls, hits, created, completed, evictions, stops;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a resolver for the given facts and rules. {@link #invalidate} must be called whenever
+     * a fact is inserted, and {@link #clear()} whenever the rules change.
+     */
+    TabledResolver (FactStore store, List<Rule> rules, JoinPlanner planner)
+    {
+        this.store = store;
+        this.planner = planner;
+        this.rules = new HashMap<>();
+        for (Rule rule: rules) addRule(rule);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    void addRule (Rule rule) {
+        rules.computeIfAbsent(rule.head.key(), k -> new ArrayList<>()).add(rule);
+        dependents.clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Drops all tables.
+     */
+    void clear()
+    {
+        tables.clear();
+        completeAnswers = 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Drops the tables that may be affected by a change to the relation with the given {@code
+     * name/arity} key: those of the predicates that depend on it.
+     */
+    void invalidate (String key)
+    {
+        HashSet<String> affected = dependents.computeIfAbsent(key, this::dependentsOf);
+        Iterator<Table> it = tables.values().iterator();
+        while (it.hasNext()) {
+            Table table = it.next();
+            if (!affected.contains(table.key.predicateKey)) continue;
+            it.remove();
+            if (table.complete) completeAnswers -= table.answers.size();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private HashSet<String> dependentsOf (String key)
+    {
+        HashSet<String> result = new HashSet<>();
+        result.add(key);
+        boolean changed;
+        do {
+            changed = false;
+            for (List<Rule> heads: rules.values())
+                for (Rule rule: heads) {
+                    if (result.contains(rule.head.key())) continue;
+                    for (Atom atom: rule.body)
+                        if (result.contains(atom.key())) {
+                            changed |= result.add(rule.head.key());
+                            break;
+                        }
+                }
+        } while (changed);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Maximum total number of answers kept in complete tables (default: 2^24).
+     */
+    public long maxAnswers() {
+        return maxAnswers;
+    }
+
+    public void setMaxAnswers (long maxAnswers) {
+        if (maxAnswers < 0) throw new IllegalArgumentException("max answers must be >= 0");
+        this.maxAnswers = maxAnswers;
+        enforceLimit();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls {@code onAnswer} with the extended bindings for each answer to {@code atom} under
+     * {@code bindings}, with the same conventions as {@link FactStore#match(Atom, int[],
+     * Consumer)}.
+     */
+    public void solve (Atom atom, int[] bindings, Consumer<int[]> onAnswer)
+    {
+        if (!rules.containsKey(atom.key())) {
+            store.match(atom, bindings, trail, onAnswer);
+            return;
+        }
+
+        ++calls;
+        Table table = tables.get(probe.set(atom, bindings));
+        if (table == null) {
+            ++created;
+            table = new Table(new CallKey(probe));
+            tables.put(table.key, table);
+            fill(table);
+        } else if (table.complete) {
+            ++hits;
+        } else if (table.position < 0) {
+            fill(table); // incomplete table of a group whose leader is still running
+        } else {
+            // table being filled: consume the answers found so far, and depend on it
+            Table caller = stack.get(stack.size() - 1);
+            caller.low = Math.min(caller.low, table.position);
+        }
+
+        Relation answers = table.answers;
+        // answers added while consuming are consumed as well
+        for (int row = 0; row < answers.size(); ++row) {
+            int mark = trail.mark();
+            if (!atom.unify(answers, row, bindings, trail)) continue;
+            onAnswer.accept(bindings);
+            trail.undo(mark);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a lazy stream of the (at most {@code limit}) answers to {@code atom} under {@code
+     * bindings}, which the stream takes over.
+     *
+     * <p>If the table for the call doesn't exist yet and {@code limit} is finite, evaluation
+     * stops as soon as the table holds {@code limit} answers to {@code atom}: the stream then
+     * iterates over these answers, and the tables left incomplete are dropped.
+     */
+    public AnswerStream stream (Atom atom, int[] bindings, long limit)
+    {
+        if (!rules.containsKey(atom.key()))
+            return store.stream(atom, bindings, limit);
+        if (limit == 0)
+            return AnswerStream.empty(atom, bindings);
+
+        ++calls;
+        Table table = tables.get(probe.set(atom, bindings));
+        if (table == null) {
+            ++created;
+            table = new Table(new CallKey(probe));
+            tables.put(table.key, table);
+            if (limit == Long.MAX_VALUE || !stack.isEmpty())
+                fill(table);
+            else
+                fillUntil(table, atom, bindings, limit);
+        } else if (table.complete) {
+            ++hits;
+        } else if (table.position < 0) {
+            fill(table);
+        }
+        Relation answers = table.answers;
+        return new AnswerStream(atom, bindings, answers, null, 0, answers.size(), limit);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #fill}, but stops as soon as {@code table} holds {@code limit} answers that
+     * unify with {@code atom} under {@code bindings}, dropping the tables left incomplete.
+     */
+    private void fillUntil (Table table, Atom atom, int[] bindings, long limit)
+    {
+        watched = table;
+        watchedAtom = atom;
+        watchedBindings = bindings;
+        watchedMissing = limit;
+        int mark = trail.mark();
+        try {
+            fill(table);
+        } catch (Stop stop) {
+            ++stops;
+            abandon(mark);
+        } finally {
+            watched = null;
+            watchedAtom = null;
+            watchedBindings = null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the rules of {@code table} until they yield no new answers for it or the tables it
+     * depends on, then completes it and the tables it depends on if it is their leader.
+     */
+    private void fill (Table table)
+    {
+        int mark = trail.mark();
+        table.position = stack.size();
+        table.low = table.position;
+        stack.add(table);
+
+        long before;
+        try {
+            do {
+                if (cancellation != null) cancellation.checkNow();
+                before = groupAnswers(table);
+                resolve(table);
+            } while (groupAnswers(table) != before);
+        } catch (QueryCancelledException e) {
+            if (table.position == 0) abandon(mark); // outermost table
+            throw e;
+        }
+
+        stack.remove(stack.size() - 1);
+        table.position = -1;
+
+        if (table.low < stack.size()) {
+            // depends on a table being filled: its leader will complete it
+            Table caller = stack.get(stack.size() - 1);
+            caller.low = Math.min(caller.low, table.low);
+            caller.group.add(table);
+            caller.group.addAll(table.group);
+            table.group.clear();
+            return;
+        }
+
+        complete(table);
+        for (Table member: table.group) complete(member);
+        table.group.clear();
+        if (stack.isEmpty()) enforceLimit();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of answers in {@code table} and the tables of its group: its leader
+     * stops once a pass leaves this number unchanged. Tables completed by other leaders during the
+     * pass are not counted, since they don't change afterwards.
+     */
+    private static long groupAnswers (Table table)
+    {
+        long answers = table.answers.size();
+        for (Table member: table.group) answers += member.answers.size();
+        return answers;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Drops the state of an interrupted resolution: undoes the bindings made since {@code mark},
+     * empties the stack and drops the tables left incomplete.
+     */
+    private void abandon (int mark)
+    {
+        trail.undo(mark);
+        stack.clear();
+        tables.values().removeIf(t -> !t.complete);
+        enforceLimit();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void complete (Table table)
+    {
+        if (table.complete) return; // completed with a nested group
+        table.complete = true;
+        completeAnswers += table.answers.size();
+        ++completed;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Does a single pass over the facts and rules of the table's predicate, adding the answers
+     * to the table.
+     */
+    private void resolve (Table table)
+    {
+        CallKey key = table.key;
+        int[] facts = trail.frame(table.call.varNames.length);
+        store.match(table.call, facts, trail, table.onFact);
+        trail.release(facts);
+
+        List<Rule> heads = rules.get(key.predicateKey);
+        if (table.bodies == null || table.bodies.length != heads.size())
+            table.bodies = new Body[heads.size()];
+
+        for (int r = 0; r < heads.size(); ++r) {
+            Rule rule = heads.get(r);
+            int mark = trail.mark();
+            int[] bindings = trail.frame(rule.head.varNames.length);
+            if (unifyHead(rule.head, key.values, bindings, trail)) {
+                int[] order = order(rule, key, bindings);
+                Body body = table.bodies[r];
+                if (body == null || body.rule != rule || !Arrays.equals(body.order, order))
+                    body = table.bodies[r] = new Body(table, rule, order, 0);
+                if (profile == null) {
+                    body.accept(bindings);
+                } else {
+                    Body start = body;
+                    profile.fire(rule, QueryPlan.Join.PAIRWISE, store,
+                        () -> start.accept(bindings));
+                }
+            }
+            trail.undo(mark);
+            trail.release(bindings);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the order in which to solve the body of {@code rule} for the given call, whose
+     * values are bound in {@code bindings}.
+     */
+    private int[] order (Rule rule, CallKey key, int[] bindings)
+    {
+        long[] extents = new long[rule.body.length];
+        for (int i = 0; i < extents.length; ++i) {
+            if (rules.containsKey(rule.body[i].key()))
+                return JoinPlanner.identity(rule.body.length);
+            Relation relation = store.find(rule.body[i].key());
+            extents[i] = relation == null ? 0 : relation.size();
+        }
+        long bound = 0;
+        int variant = 0;
+        for (int var = 0; var < bindings.length && var < 64; ++var)
+            if (bindings[var] != Atom.UNBOUND) bound |= 1L << var;
+        for (int i = 0; i < key.values.length && i < 31; ++i)
+            if (key.values[i] != Atom.UNBOUND) variant |= 1 << i;
+        return planner.plan(rule, variant, bound, extents);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void addAnswer (Table table, Atom atom, int[] bindings)
+    {
+        int[] tuple = table.scratch;
+        for (int i = 0; i < tuple.length; ++i)
+            tuple[i] = atom.value(i, bindings);
+        if (!table.answers.add(tuple)) return;
+        ++answersAdded;
+        if (table != watched) return;
+
+        int mark = trail.mark();
+        boolean match =
+            watchedAtom.unify(table.answers, table.answers.size() - 1, watchedBindings, trail);
+        trail.undo(mark);
+        if (match && --watchedMissing == 0) throw Stop.INSTANCE;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Binds the variables of {@code head} to the bound values of a call, recording the bindings
+     * on {@code trail}, and returns false if the head can't match the call.
+     */
+    private static boolean unifyHead (Atom head, int[] values, int[] bindings, Trail trail)
+    {
+        for (int i = 0; i < values.length; ++i) {
+            if (values[i] == Atom.UNBOUND) continue;
+            int expected = head.value(i, bindings);
+            if (expected == Atom.UNBOUND)
+                trail.bind(bindings, head.vars[i], values[i]);
+            else if (expected != values[i])
+                return false;
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evicts least recently used complete tables until the answer limit is respected.
+     */
+    private void enforceLimit()
+    {
+        Iterator<Table> it = tables.values().iterator();
+        while (completeAnswers > maxAnswers && it.hasNext()) {
+            Table table = it.next();
+            if (!table.complete) continue;
+            it.remove();
+            completeAnswers -= table.answers.size();
+            ++evictions;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of live tables. */
+    public int tableCount() { return tables.size(); }
+
+    /** Number of answers held in complete tables. */
+    public long answerCount() { return completeAnswers; }
+
+    /** Number of calls to tabled subgoals. */
+    public long calls() { return calls; }
+
+    /** Number of calls answered by a complete table. */
+    public long hits() { return hits; }
+
+    /** Number of tables created. */
+    public long created() { return created; }
+
+    /** Number of tables completed. */
+    public long completed() { return completed; }
+
+    /** Number of answers added to tables, complete or not (including dropped tables). */
+    public long answersAdded() { return answersAdded; }
+
+    /** Number of complete tables dropped to respect the answer limit. */
+    public long evictions() { return evictions; }
+
+    /** Number of limited queries whose evaluation stopped early, once they had enough answers. */
+    public long stops() { return stops; }
+
+    /** The trail recording the bindings made during resolution. */
+    public Trail trail() { return trail; }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return String.format(
+            "tables: %d live (%d answers), %d calls, %d hits, %d created, %d completed, "
+                + "%d evictions, %d stops",
+            tables.size(), completeAnswers, calls, hits, created, completed, evictions, stops);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A call pattern: a predicate and, for each argument, its value or {@link Atom#UNBOUND}.
+     *
+     * <p>Keys are only mutated by {@link #set}, which is only called on the resolver's {@link
+     * #probe}: the keys of the tables are copies.
+     */
+    private static final class CallKey
+    {
+        String predicate;
+        String predicateKey;
+        int[] values;
+        int arity;
+        int hash;
+
+        /** Creates a probe key, to be {@link #set} before use. */
+        CallKey () {
+            this.values = new int[8];
+        }
+
+        CallKey (CallKey key)
+        {
+            this.predicate = key.predicate;
+            this.predicateKey = key.predicateKey;
+            this.values = Arrays.copyOf(key.values, key.arity);
+            this.arity = key.arity;
+            this.hash = key.hash;
+        }
+
+        /** Sets this key to the call pattern of {@code atom} under {@code bindings}. */
+        CallKey set (Atom atom, int[] bindings)
+        {
+            predicate = atom.predicate;
+            predicateKey = atom.key();
+            arity = atom.arity();
+            if (values.length < arity) values = new int[Math.max(arity, values.length * 2)];
+            int h = 1;
+            for (int i = 0; i < arity; ++i) {
+                values[i] = atom.value(i, bindings);
+                h = 31 * h + values[i];
+            }
+            hash = 31 * predicateKey.hashCode() + h;
+            return this;
+        }
+
+        /** An atom matching the call: bound values become constants, others distinct variables. */
+        Atom atom()
+        {
+            int[] vars = new int[arity];
+            String[] names = new String[arity];
+            int count = 0;
+            for (int i = 0; i < arity; ++i)
+                if (values[i] == Atom.UNBOUND) {
+                    names[count] = "_" + count;
+                    vars[i] = count++;
+                } else {
+                    vars[i] = Atom.CONSTANT;
+                }
+            return new Atom(predicate, Arrays.copyOf(values, arity), vars,
+                Arrays.copyOf(names, count));
+        }
+
+        @Override public boolean equals (Object o)
+        {
+            if (!(o instanceof CallKey)) return false;
+            CallKey other = (CallKey) o;
+            if (hash != other.hash || arity != other.arity
+                    || !predicateKey.equals(other.predicateKey))
+                return false;
+            for (int i = 0; i < arity; ++i)
+                if (values[i] != other.values[i]) return false;
+            return true;
+        }
+
+        @Override public int hashCode () {
+            return hash;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final class Table
+    {
+        final CallKey key;
+        final Relation answers;
+        final int[] scratch;
+
+        /** An atom matching the call, and the consumer adding the facts matching it. */
+        final Atom call;
+        final Consumer<int[]> onFact;
+
+        /** The body continuation of each rule of the predicate, built on demand. */
+        Body[] bodies;
+
+        boolean complete = false;
+
+        /** Position on the stack of tables being filled, or -1. */
+        int position = -1;
+
+        /** Lowest stack position of a table this table depends on (while being filled). */
+        int low;
+
+        /** Incomplete tables that depend on this one and will be completed with it. */
+        final LinkedHashSet<Table> group = new LinkedHashSet<>();
+
+        Table (CallKey key)
+        {
+            this.key = key;
+            this.answers =
+                new Relation(key.predicate, key.values.length, false, FactStore.Storage.HEAP);
+            this.scratch = new int[key.values.length];
+            this.call = key.atom();
+            this.onFact = b -> addAnswer(this, call, b);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Solves the body atoms of a rule from the {@code k}-th one in the planned order, then adds
+     * the instantiated head to the table: this is the continuation of the previous atom.
+     */
+    private final class Body implements Consumer<int[]>
+    {
+        final Table table;
+        final Rule rule;
+        final int[] order;
+        final int k;
+        final Body next;
+
+        Body (Table table, Rule rule, int[] order, int k)
+        {
+            this.table = table;
+            this.rule = rule;
+            this.order = order;
+            this.k = k;
+            this.next = k == order.length ? null : new Body(table, rule, order, k + 1);
+        }
+
+        @Override public void accept (int[] bindings)
+        {
+            if (cancellation != null) cancellation.check();
+            if (next == null) {
+                addAnswer(table, rule.head, bindings);
+                return;
+            }
+            Atom atom = rule.body[order[k]];
+            if (profile == null)
+                solve(atom, bindings, next);
+            else
+                profile.probe(store, rule, order[k], bindings, rules.containsKey(atom.key()),
+                    m -> solve(atom, bindings, m), next);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Unwinds the resolution of a limited query once it has enough answers. */
+    private static final class Stop extends RuntimeException
+    {
+        static final Stop INSTANCE = new Stop();
+
+        private Stop () {
+            super(null, null, false, false);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
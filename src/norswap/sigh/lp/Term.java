@@ -0,0 +1,81 @@
+package norswap.sigh.lp;
+
+import java.util.regex.Pattern;
+
+/**
+ * Runtime representation of values of the Sigh {@code Term} type.
+ *
+ * <p>Terms are interned in {@link TermDictionary#GLOBAL}: there is a single instance per distinct
+ * term, so they can be compared by identity, and their hash code is their dense {@link #id}.
+ */
+public final class Term
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final Pattern NUMBER = Pattern.compile("#-?[0-9]+");
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Dense id assigned by {@link TermDictionary#GLOBAL}. */
+    public final int id;
+
+    /** Name of the term, including the leading {@code #}. */
+    public final String name;
+
+    /** Whether the term denotes a number, like {@code #42} or {@code #-3}. */
+    public final boolean numeric;
+
+    /** The number the term denotes if it is {@link #numeric}, 0 otherwise. */
+    public final long number;
+
+    // ---------------------------------------------------------------------------------------------
+
+    Term (int id, String name)
+    {
+        this.id = id;
+        this.name = name;
+        long number = 0;
+        boolean numeric = NUMBER.matcher(name).matches();
+        if (numeric) {
+            try {
+                number = Long.parseLong(name.substring(1));
+            } catch (NumberFormatException e) {
+                numeric = false; // out of range
+            }
+        }
+        this.numeric = numeric;
+        this.number = number;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the canonical term with the given name, interning it if needed.
+     */
+    public static Term of (String name) {
+        return TermDictionary.GLOBAL.term(name);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the canonical term with the given id.
+     */
+    public static Term of (int id) {
+        return TermDictionary.GLOBAL.term(id);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int hashCode () {
+        return id;
+    }
+
+    // equals: identity (inherited), as terms are interned
+
+    @Override public String toString () {
+        return name;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,324 @@
+package norswap.sigh.lp;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of term ids (see {@link TermDictionary}), in the style of Roaring bitmaps: ids
+ * are split by their 16 high bits into chunks of 65536 ids, and each non-empty chunk is held in a
+ * container suited to its density. Sparse containers are sorted arrays of the 16 low bits of their
+ * ids (2 bytes per id, up to {@link #ARRAY_MAX} ids), dense containers are bitmaps of 65536 bits
+ * (8 KiB). A set thus costs at most 16 bits per id, and about one bit per id when it holds most
+ * ids of its chunks — which is common, since term ids are allocated in sequence.
+ *
+ * <p>Intersections and differences work container by container: dense containers are combined a
+ * 64-bit word at a time, and sparse containers are merged or probed.
+ */
+final class TermBitmap
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Maximum number of ids in a sparse container. */
+    static final int ARRAY_MAX = 4096;
+
+    /** Number of {@code long} words in a dense container. */
+    private static final int WORDS = 1024;
+
+    /** High bits of the chunks of the containers, in increasing order. */
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size = 0;
+    private long cardinality = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds {@code id} (which must not be negative) to the set, returning false if it was already
+     * present.
+     */
+    boolean add (int id)
+    {
+        char key = (char) (id >>> 16);
+        int i = find(key);
+        if (i < 0) {
+            i = -i - 1;
+            insert(i, key, new Container());
+        }
+        if (!containers[i].add((char) id)) return false;
+        ++cardinality;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Whether the set contains {@code id}. */
+    boolean contains (int id)
+    {
+        int i = find((char) (id >>> 16));
+        return i >= 0 && containers[i].contains((char) id);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of ids in the set. */
+    long cardinality() {
+        return cardinality;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Approximate memory used by the set, in bytes. */
+    long memory()
+    {
+        long memory = 16 + 6L * keys.length;
+        for (int i = 0; i < size; ++i) memory += containers[i].memory();
+        return memory;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Calls {@code action} with each id of the set, in increasing order. */
+    void forEach (IntConsumer action)
+    {
+        for (int i = 0; i < size; ++i)
+            containers[i].forEach(keys[i] << 16, action);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the ids of the set, in increasing order. */
+    int[] toArray()
+    {
+        int[] ids = new int[(int) cardinality];
+        int[] count = { 0 };
+        forEach(id -> ids[count[0]++] = id);
+        return ids;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns a new set holding the ids that are both in {@code a} and in {@code b}. */
+    static TermBitmap and (TermBitmap a, TermBitmap b)
+    {
+        TermBitmap result = new TermBitmap();
+        for (int i = 0, j = 0; i < a.size && j < b.size; ) {
+            if (a.keys[i] < b.keys[j]) ++i;
+            else if (a.keys[i] > b.keys[j]) ++j;
+            else result.append(a.keys[i], Container.and(a.containers[i++], b.containers[j++]));
+        }
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns a new set holding the ids that are in {@code a} but not in {@code b}. */
+    static TermBitmap andNot (TermBitmap a, TermBitmap b)
+    {
+        TermBitmap result = new TermBitmap();
+        for (int i = 0, j = 0; i < a.size; ++i) {
+            while (j < b.size && b.keys[j] < a.keys[i]) ++j;
+            result.append(a.keys[i], j < b.size && b.keys[j] == a.keys[i]
+                ? Container.andNot(a.containers[i], b.containers[j])
+                : a.containers[i].copy());
+        }
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the index of the container for {@code key}, or {@code -(insertion point) - 1}. */
+    private int find (char key)
+    {
+        if (size > 0 && keys[size - 1] == key) return size - 1; // ids mostly come in sequence
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void insert (int i, char key, Container container)
+    {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = container;
+        ++size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Adds {@code container} for {@code key}, greater than all keys, unless it is empty. */
+    private void append (char key, Container container)
+    {
+        if (container.count == 0) return;
+        insert(size, key, container);
+        cardinality += container.count;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The ids of a chunk: a sorted array of their low bits while there are at most {@link
+     * #ARRAY_MAX} of them (which take less space than a bitmap), a bitmap otherwise.
+     */
+    private static final class Container
+    {
+        /** Sorted low bits of the ids, or null for a bitmap container. */
+        char[] array;
+
+        /** Bitmap of the ids, or null for an array container. */
+        long[] bits;
+
+        int count;
+
+        Container () {
+            this.array = new char[4];
+        }
+
+        Container (char[] array, long[] bits, int count)
+        {
+            this.array = array;
+            this.bits = bits;
+            this.count = count;
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        boolean add (char low)
+        {
+            if (bits != null) {
+                long bit = 1L << low;
+                if ((bits[low >>> 6] & bit) != 0) return false;
+                bits[low >>> 6] |= bit;
+                ++count;
+                return true;
+            }
+            int i = Arrays.binarySearch(array, 0, count, low);
+            if (i >= 0) return false;
+            if (count == ARRAY_MAX) {
+                bits = toBits(array, count);
+                array = null;
+                return add(low);
+            }
+            i = -i - 1;
+            if (count == array.length)
+                array = Arrays.copyOf(array, Math.min(ARRAY_MAX, count * 2));
+            System.arraycopy(array, i, array, i + 1, count - i);
+            array[i] = low;
+            ++count;
+            return true;
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        boolean contains (char low)
+        {
+            return bits != null
+                ? (bits[low >>> 6] & (1L << low)) != 0
+                : Arrays.binarySearch(array, 0, count, low) >= 0;
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        long memory() {
+            return 24 + (bits != null ? 8L * bits.length : 2L * array.length);
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        void forEach (int high, IntConsumer action)
+        {
+            if (bits == null) {
+                for (int i = 0; i < count; ++i) action.accept(high | array[i]);
+                return;
+            }
+            for (int w = 0; w < WORDS; ++w)
+                for (long word = bits[w]; word != 0; word &= word - 1)
+                    action.accept(high | w << 6 | Long.numberOfTrailingZeros(word));
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        Container copy()
+        {
+            return bits != null
+                ? new Container(null, bits.clone(), count)
+                : new Container(Arrays.copyOf(array, count), null, count);
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        static Container and (Container a, Container b)
+        {
+            if (a.bits != null && b.bits != null) {
+                long[] bits = new long[WORDS];
+                for (int w = 0; w < WORDS; ++w) bits[w] = a.bits[w] & b.bits[w];
+                return of(bits);
+            }
+            if (a.bits != null) return and(b, a);
+            char[] array = new char[Math.min(a.count, b.count)];
+            int count = 0;
+            if (b.bits != null) {
+                for (int i = 0; i < a.count; ++i)
+                    if (b.contains(a.array[i])) array[count++] = a.array[i];
+            } else {
+                for (int i = 0, j = 0; i < a.count && j < b.count; ) {
+                    if (a.array[i] < b.array[j]) ++i;
+                    else if (a.array[i] > b.array[j]) ++j;
+                    else { array[count++] = a.array[i++]; ++j; }
+                }
+            }
+            return new Container(array, null, count);
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        static Container andNot (Container a, Container b)
+        {
+            if (a.bits != null) {
+                long[] bits = a.bits.clone();
+                if (b.bits != null)
+                    for (int w = 0; w < WORDS; ++w) bits[w] &= ~b.bits[w];
+                else
+                    for (int i = 0; i < b.count; ++i)
+                        bits[b.array[i] >>> 6] &= ~(1L << b.array[i]);
+                return of(bits);
+            }
+            char[] array = new char[a.count];
+            int count = 0;
+            for (int i = 0; i < a.count; ++i)
+                if (!b.contains(a.array[i])) array[count++] = a.array[i];
+            return new Container(array, null, count);
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /** Returns a container for the ids in {@code bits}, as an array if there are few. */
+        private static Container of (long[] bits)
+        {
+            int count = 0;
+            for (long word: bits) count += Long.bitCount(word);
+            if (count > ARRAY_MAX) return new Container(null, bits, count);
+            char[] array = new char[count];
+            int i = 0;
+            for (int w = 0; w < WORDS; ++w)
+                for (long word = bits[w]; word != 0; word &= word - 1)
+                    array[i++] = (char) (w << 6 | Long.numberOfTrailingZeros(word));
+            return new Container(array, null, count);
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        private static long[] toBits (char[] array, int count)
+        {
+            long[] bits = new long[WORDS];
+            for (int i = 0; i < count; ++i) bits[array[i] >>> 6] |= 1L << array[i];
+            return bits;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
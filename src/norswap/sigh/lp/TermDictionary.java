@@ -0,0 +1,111 @@
+package norswap.sigh.lp;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns a dense integer id to each distinct term (e.g. {@code #harry}), so that the logic
+ * programming engine never has to compare or hash term names.
+ *
+ * <p>Ids are handed out in increasing order starting from 0. The mapping from id back to name is
+ * only needed when printing terms.
+ *
+ * <p>Lookups of already interned terms are lock-free, interning a new term takes a lock.
+ */
+public final class TermDictionary
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The dictionary shared by the whole process: term ids stored in AST nodes, runtime values and
+     * fact tuples all refer to this dictionary.
+     */
+    public static final TermDictionary GLOBAL = new TermDictionary();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final ConcurrentHashMap<String, Term> ids = new ConcurrentHashMap<>();
+
+    /** Indexed by id. Replaced (never mutated past {@link #size}) when growing. */
+    private volatile Term[] terms = new Term[64];
+
+    private volatile int size = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the id of the term with the given name, assigning it a fresh id if it wasn't
+     * interned yet.
+     */
+    public int intern (String name) {
+        return term(name).id;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the canonical {@link Term} object for the given name, interning it if needed.
+     */
+    public Term term (String name)
+    {
+        Term term = ids.get(name);
+        if (term != null) return term;
+
+        synchronized (this) {
+            term = ids.get(name);
+            if (term != null) return term;
+
+            int id = size;
+            Term[] array = terms;
+            if (id == array.length)
+                array = terms = Arrays.copyOf(array, array.length * 2);
+            term = new Term(id, name);
+            array[id] = term;
+            ids.put(name, term);
+            size = id + 1; // publishes the array write
+            return term;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the canonical {@link Term} object for the given id.
+     */
+    public Term term (int id)
+    {
+        if (id < 0 || id >= size)
+            throw new IllegalArgumentException("unknown term id: " + id);
+        return terms[id];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the name of the term with the given id (reverse lookup).
+     */
+    public String name (int id) {
+        return term(id).name;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the id of the term with the given name, or -1 if it was never interned.
+     */
+    public int lookup (String name) {
+        Term term = ids.get(name);
+        return term == null ? -1 : term.id;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of interned terms, which is also the next id to be assigned.
+     */
+    public int size() {
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,142 @@
+package norswap.sigh.lp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Records the variables bound during resolution, so that backtracking can unbind them in constant
+ * time per binding, and recycles the bindings arrays (frames) of rule applications.
+ *
+ * <p>Variables are binding cells: slots of a frame, holding a term id or {@link Atom#UNBOUND}.
+ * Since LP terms are flat (term ids, never compound terms), unifying an atom with a tuple only
+ * ever binds cells to the tuple's values, and never copies the atom: each binding is pushed on the
+ * trail as its frame and variable number. Backtracking to a {@link #mark()} pops the bindings made
+ * since, restoring the cells to {@link Atom#UNBOUND}.
+ *
+ * <p>Frames released once fully unbound are handed out again by {@link #frame(int)}, so that
+ * applying a rule allocates nothing once the trail has warmed up.
+ *
+ * <p>A trail is not thread-safe: each resolver (or thread) must use its own.
+ */
+public final class Trail
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private int[][] frames;
+    private int[] vars;
+    private int size = 0;
+
+    /** Released frames, indexed by length. */
+    private final ArrayList<ArrayList<int[]>> pool = new ArrayList<>();
+
+    // statistics
+    private long bound, undone;
+    private int maxSize;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Trail () {
+        this(64);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Trail (int capacity)
+    {
+        this.frames = new int[Math.max(1, capacity)][];
+        this.vars = new int[frames.length];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Binds variable {@code var} of {@code bindings} to {@code value}, recording the binding.
+     */
+    public void bind (int[] bindings, int var, int value)
+    {
+        if (size == vars.length) {
+            frames = Arrays.copyOf(frames, size * 2);
+            vars = Arrays.copyOf(vars, size * 2);
+        }
+        bindings[var] = value;
+        frames[size] = bindings;
+        vars[size++] = var;
+        ++bound;
+        if (size > maxSize) maxSize = size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the current position of the trail, to backtrack to with {@link #undo}.
+     */
+    public int mark() {
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Unbinds the variables bound since {@code mark} was obtained, most recent first.
+     */
+    public void undo (int mark)
+    {
+        undone += size - mark;
+        while (size > mark) {
+            --size;
+            frames[size][vars[size]] = Atom.UNBOUND;
+            frames[size] = null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a frame of {@code size} unbound variables, reusing a released frame if possible.
+     */
+    public int[] frame (int size)
+    {
+        if (size < pool.size()) {
+            ArrayList<int[]> free = pool.get(size);
+            if (!free.isEmpty()) return free.remove(free.size() - 1);
+        }
+        int[] frame = new int[size];
+        Arrays.fill(frame, Atom.UNBOUND);
+        return frame;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Hands {@code frame} back for reuse. All its variables must be unbound (i.e. the bindings made
+     * in it must have been undone), and it must not be used anymore.
+     */
+    public void release (int[] frame)
+    {
+        while (pool.size() <= frame.length) pool.add(new ArrayList<>());
+        pool.get(frame.length).add(frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of bindings currently recorded. */
+    public int size() { return size; }
+
+    /** Largest number of bindings recorded at once. */
+    public int maxSize() { return maxSize; }
+
+    /** Total number of bindings recorded. */
+    public long bound() { return bound; }
+
+    /** Total number of bindings undone. */
+    public long undone() { return undone; }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return String.format("trail: %d bindings (max %d), %d bound, %d undone",
+            size, maxSize, bound, undone);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,191 @@
+package norswap.sigh.lp;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Evaluates a binary predicate defined by linear recursion over a binary edge relation, such as
+ * {@code path(x, y) :- path(x, z), edge(z, y)} (right-linear) or {@code path(x, y) :- edge(x, z),
+ * path(z, y)} (left-linear), with one breadth-first search per path source (resp. target) rather
+ * than by semi-naive joins.
+ *
+ * <p>Whatever its non-recursive rules (e.g. {@code path(x, y) :- edge(x, y)}) and asserted facts,
+ * the least fixpoint of such a predicate is obtained by extending each of its tuples {@code (x,
+ * z)} with all the nodes reachable from {@code z} through the edges (for a right-linear rule; a
+ * left-linear rule extends {@code (z, y)} backwards). Since the recursive rule is the only one to
+ * read the predicate, the closure can run once its non-recursive rules have been fired.
+ *
+ * <p>The edges are laid out as adjacency lists indexed by term id (which are dense, see {@link
+ * TermDictionary}), and the tuples of the predicate are grouped by their fixed column. Each search
+ * marks the nodes it visits in a bitset over term ids, and its frontier is a queue of the newly
+ * visited nodes; the bits are cleared after each search by walking the queue.
+ *
+ * <p>A search is seeded with all the tuples of the predicate that share its fixed value, so the
+ * nodes it reaches beyond its seeds are new tuples. They are added to the predicate in bulk,
+ * without duplicate checks.
+ */
+final class TransitiveClosure
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** The recursive rule. */
+    final Rule rule;
+
+    /** The {@code name/arity} key of the edge relation. */
+    final String edgeKey;
+
+    /**
+     * The column of the predicate kept fixed by the recursion (0 for right-linear rules, 1 for
+     * left-linear rules), which is also the column edges are followed from.
+     */
+    final int fixed;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private TransitiveClosure (Rule rule, String edgeKey, int fixed)
+    {
+        this.rule = rule;
+        this.edgeKey = edgeKey;
+        this.fixed = fixed;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the closure evaluating {@code rules} if they are the rules of a single binary
+     * predicate, only one of which is recursive, and has one of the shapes described in the
+     * class documentation. Returns null otherwise.
+     */
+    static TransitiveClosure of (List<Rule> rules)
+    {
+        if (rules == null || rules.isEmpty()) return null;
+        TransitiveClosure closure = null;
+        String key = rules.get(0).head.key();
+        for (Rule rule: rules) {
+            if (!rule.head.key().equals(key)) return null;
+            boolean recursive = false;
+            for (Atom atom: rule.body) recursive |= atom.key().equals(key);
+            if (!recursive) continue;
+            if (closure != null) return null;
+            closure = recursive(rule);
+            if (closure == null) return null;
+        }
+        return closure;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the closure for {@code rule} if it has the shape {@code p(x, y) :- p(x, z), e(z, y)}
+     * or {@code p(x, y) :- e(x, z), p(z, y)} (in any body order), or null.
+     */
+    private static TransitiveClosure recursive (Rule rule)
+    {
+        Atom head = rule.head;
+        if (head.arity() != 2 || rule.body.length != 2 || rule.bounded()) return null;
+        int x = head.vars[0], y = head.vars[1];
+        if (x == Atom.CONSTANT || y == Atom.CONSTANT || x == y) return null;
+
+        int self = rule.body[0].key().equals(head.key()) ? 0 : 1;
+        Atom path = rule.body[self];
+        Atom edge = rule.body[1 - self];
+        if (edge.arity() != 2 || edge.key().equals(head.key())) return null;
+        for (int var: path.vars) if (var == Atom.CONSTANT) return null;
+        for (int var: edge.vars) if (var == Atom.CONSTANT) return null;
+
+        int z = path.vars[0] == x ? path.vars[1] : path.vars[0];
+        if (z == x || z == y) return null;
+        if (path.vars[0] == x && path.vars[1] == z && edge.vars[0] == z && edge.vars[1] == y)
+            return new TransitiveClosure(rule, edge.key(), 0);
+        if (path.vars[0] == z && path.vars[1] == y && edge.vars[0] == x && edge.vars[1] == z)
+            return new TransitiveClosure(rule, edge.key(), 1);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds to the predicate in {@code store} all the tuples the recursive rule derives from its
+     * current tuples, up to fixpoint, and returns their number. The search from each node checks
+     * {@code cancellation} (if not null), and nothing is added if the query is cancelled.
+     */
+    int close (FactStore store, CancellationToken cancellation)
+    {
+        Relation paths = store.find(rule.head.key());
+        Relation edges = store.find(edgeKey);
+        if (paths == null || edges == null || paths.size() == 0 || edges.size() == 0) return 0;
+
+        int nodes = TermDictionary.GLOBAL.size();
+        int other = 1 - fixed;
+        int[] adjacencyStart = new int[nodes + 1];
+        int[] adjacency = group(edges, edges.size(), fixed, adjacencyStart);
+        int[] seedsStart = new int[nodes + 1];
+        int[] seeds = group(paths, paths.size(), fixed, seedsStart);
+
+        long[] visited = new long[(nodes + 63) >>> 6];
+        int[] queue = new int[nodes];
+        int[] derived = new int[2 * Math.max(16, paths.size())];
+        int count = 0;
+
+        for (int node = 0; node < nodes; ++node) {
+            if (seedsStart[node] == seedsStart[node + 1]) continue;
+            if (cancellation != null) cancellation.check();
+            int tail = 0;
+            for (int i = seedsStart[node]; i < seedsStart[node + 1]; ++i)
+                tail = visit(seeds[i], visited, queue, tail);
+            int seeded = tail;
+            for (int head = 0; head < tail; ++head) {
+                int from = queue[head];
+                for (int i = adjacencyStart[from]; i < adjacencyStart[from + 1]; ++i)
+                    tail = visit(adjacency[i], visited, queue, tail);
+            }
+            if (2 * (count + tail - seeded) > derived.length)
+                derived = Arrays.copyOf(derived,
+                    Math.max(2 * derived.length, 2 * (count + tail - seeded)));
+            for (int i = seeded; i < tail; ++i, ++count) {
+                derived[2 * count + fixed] = node;
+                derived[2 * count + other] = queue[i];
+            }
+            for (int i = 0; i < tail; ++i)
+                visited[queue[i] >>> 6] &= ~(1L << queue[i]);
+        }
+        store.insertAbsent(paths, derived, count);
+        return count;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Marks {@code node} visited and enqueues it if it wasn't, and returns the queue's tail. */
+    private static int visit (int node, long[] visited, int[] queue, int tail)
+    {
+        long bit = 1L << node;
+        if ((visited[node >>> 6] & bit) != 0) return tail;
+        visited[node >>> 6] |= bit;
+        queue[tail] = node;
+        return tail + 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Groups the first {@code size} rows of the binary {@code relation} by their value in column
+     * {@code key}: returns the values of the other column, ordered by key, and fills {@code start}
+     * so that the values for key {@code k} are at indices {@code [start[k], start[k + 1])}.
+     */
+    private static int[] group (Relation relation, int size, int key, int[] start)
+    {
+        int other = 1 - key;
+        for (int row = 0; row < size; ++row)
+            ++start[relation.get(row, key) + 1];
+        for (int k = 1; k < start.length; ++k)
+            start[k] += start[k - 1];
+        int[] values = new int[size];
+        int[] next = new int[start.length - 1];
+        System.arraycopy(start, 0, next, 0, next.length);
+        for (int row = 0; row < size; ++row)
+            values[next[relation.get(row, key)]++] = relation.get(row, other);
+        return values;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -7,6 +7,7 @@ import norswap.sigh.ast.SighNode;
 import norswap.sigh.bytecode.ByteArrayClassLoader;
 import norswap.sigh.bytecode.BytecodeCompiler;
 import norswap.sigh.bytecode.CompilationResult;
+import norswap.sigh.lp.LogicEngine;
 import norswap.uranium.Reactor;
 import norswap.utils.IO;
 import norswap.utils.visitors.Walker;
@@ -14,6 +15,7 @@ import org.testng.annotations.Test;
 
 import static norswap.utils.Util.cast;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 @SuppressWarnings("FieldCanBeLocal")
 public class BytecodeTests
@@ -26,7 +28,50 @@ public class BytecodeTests
      * Checks that the input program can be compiled, run and prints the {@code expected} string if
      * non-null (to which a newline is appended if not empty).
      */
-    public void check (String input, String expected)
+    public void check (String input, String expected) {
+        check(input, expected, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #check(String, String)}, but the logic programming queries are answered with
+     * the given strategy (if non-null) rather than the engine's default one.
+     */
+    public void check (String input, String expected, LogicEngine.Strategy strategy)
+    {
+        Class<?> mainClass = compile(input);
+        if (strategy != null) {
+            try {
+                ((LogicEngine) mainClass.getField("logic").get(null)).setStrategy(strategy);
+            } catch (ReflectiveOperationException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        if (expected == null) {
+            CompilationResult.callMain(mainClass);
+            return;
+        }
+
+        // TODO utils capture stdout with runnable
+        String capture = IO.captureStdout(() -> {
+            CompilationResult.callMain(mainClass);
+            return null;
+        }).a;
+
+        if (!expected.isEmpty())
+            expected = expected + "\n";
+
+        assertEquals(capture, expected);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the input program and loads its main class.
+     */
+    private Class<?> compile (String input)
     {
         SighGrammar grammar = new SighGrammar();
         ParseOptions options = ParseOptions.builder().recordCallStack(true).get();
@@ -47,23 +92,7 @@ public class BytecodeTests
         CompilationResult result = compiler.compile(className, tree);
 
         // using a new loader each time allows to overwrite the class every time.
-        Class<?> mainClass = result.load(new ByteArrayClassLoader());
-
-        if (expected == null) {
-            CompilationResult.callMain(mainClass);
-            return;
-        }
-
-        // TODO utils capture stdout with runnable
-        String capture = IO.captureStdout(() -> {
-            CompilationResult.callMain(mainClass);
-            return null;
-        }).a;
-
-        if (!expected.isEmpty())
-            expected = expected + "\n";
-
-        assertEquals(capture, expected);
+        return result.load(new ByteArrayClassLoader());
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -258,6 +287,49 @@ public class BytecodeTests
         check("fun test () { fun foo() { print(\"a\") } foo() foo() } test()", "a\na");
     }
 
+    @Test public void testFunctionValues() {
+        String add = "fun add (a: Int, b: Int): Int { return a + b } ";
+        check(add + "print(\"\" + (add)(1, 2))", "3");
+        check(add + "print(\"\" + [add, add][1](3, 4))", "7");
+        check("[print][0](\"a\")", "a");
+    }
+
+    @Test public void testTypesAsValues() {
+        checkExpr("Int", "Int");
+        checkExpr("[Float, String][0]", "Float");
+        check("struct S {} ; var t: Type = S ; print(\"\" + t)", "S");
+    }
+
+    @Test public void testClosures() {
+        // read-only captures
+        check("fun outer (x: Int): Int { fun inner (y: Int): Int { return x + y } return inner(2) }"
+            + "print(\"\" + outer(1))", "3");
+        check("var n: String = \"a\"; fun f (): String { return n + n } print(f())", "aa");
+
+        // captures needed to call a function that captures
+        check("fun outer (x: Int): Int { fun a (): Int { return b() } fun b (): Int { return x } "
+            + "return a() } print(\"\" + outer(4))", "4");
+        check("fun outer (x: Int): Int { fun down (n: Int): Int { "
+            + "if (n == 0) return x else return down(n - 1) } return down(3) } "
+            + "print(\"\" + outer(5))", "5");
+
+        // assigned captures, held in cells
+        check("fun count (): Int { var n: Int = 0; fun inc () { n = n + 1 } inc() inc() return n }"
+            + "print(\"\" + count())", "2");
+        check("fun twice (x: Float): Float { fun double () { x = x * 2 } double() return x }"
+            + "print(\"\" + twice(1.5))", "3.0");
+        check("var k: Int = 1; fun get (): Int { return k } k = 2; print(\"\" + get())", "2");
+
+        // capturing functions as values
+        check("fun outer (x: Int): Int { fun inner (y: Int): Int { return x * y } "
+            + "return (inner)(3) } print(\"\" + outer(2))", "6");
+        check("var k: Int = 1; fun get (): Int { return k } var f: Int = [get][0](); k = 2; "
+            + "print(\"\" + f + [get][0]())", "12");
+
+        check(IO.slurp("examples/kitchensink.si"),
+            "It's just right.\nWe wanted 5 but got: 6\nIt was too big.\nPair\nIt's just right.");
+    }
+
     private final String makePair =
         "struct Pair { var x: Int ; var y: Float }" +
         "var x: Pair = $Pair(1, 2.0) ;";
@@ -267,4 +339,92 @@ public class BytecodeTests
         check(makePair + "x.x = 3; print(\"\" + x.x)", "3");
         check(makePair + "x.y = 3; print(\"\" + x.y)", "3.0");
     }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testLogicProgramming() {
+        checkExpr("#a", "#a");
+        check("var x: Term = #a; print(\"\" + x)", "#a");
+        check("LP letter(#a); LP letter(#b); LP letter(#a); var x: Term = #c; -? letter(x)",
+            "letter(#a)\nletter(#b)");
+        check("var x: Term = #a; LP letter(x); x = #b; LP letter(x); -? letter(#b); -? letter(#c)",
+            "letter(#b)");
+        check("LP same(#a, #a); LP same(#a, #b); var x: Term = #a; -? same(x, x)",
+            "same(#a, #a)");
+
+        String graph = "LP edge(#a, #b); LP edge(#b, #c); LP edge(#c, #a); LP edge(#d, #a); "
+            + "var x: Term = #x; var y: Term = #y; var z: Term = #z; "
+            + "LPC path(x, y) :- edge(x, y); LPC path(x, y) :- path(x, z), edge(z, y); ";
+        check(graph + "-? path(#d, y)", "path(#d, #a)\npath(#d, #b)\npath(#d, #c)");
+        check(graph + "-? path(x, #d)", "");
+        check(graph + "-? path(x, x)", "path(#a, #a)\npath(#b, #b)\npath(#c, #c)");
+        check(graph + "LPC cyclic(x) :- path(x, x); LP edge(#e, #e); -? cyclic(x)",
+            "cyclic(#e)\ncyclic(#a)\ncyclic(#b)\ncyclic(#c)");
+        check(graph + "-?[2] path(#d, y); -?[1] path(x, #d)", "path(#d, #a)\npath(#d, #b)");
+        check(graph + "-?[explain] path(#d, y)", "explain path(#d, y) (tabled)\n"
+            + "  answers: path(#d, y): subgoal\n"
+            + "  path(x, y) :- edge(x, y) [pairwise]\n"
+            + "    1. edge(x, y): scan, bound (0)\n"
+            + "  path(x, y) :- path(x, z), edge(z, y) [pairwise]\n"
+            + "    1. path(x, z): subgoal\n"
+            + "    2. edge(z, y): scan, bound (0)");
+
+        // compiled rules are used by bottom-up evaluation
+        check(graph + "-?[explain] path(#d, y); -? path(#d, y)", "explain path(#d, y) (bottom_up)\n"
+            + "  answers: path(#d, y): scan, bound (0)\n"
+            + "  path(x, y) :- edge(x, y) [compiled]\n"
+            + "    1. edge(x, y): scan\n"
+            + "  path(x, y) :- path(x, z), edge(z, y) [closure]\n"
+            + "    1. path(x, z): scan\n"
+            + "    2. edge(z, y): scan\n"
+            + "path(#d, #a)\npath(#d, #b)\npath(#d, #c)",
+            LogicEngine.Strategy.BOTTOM_UP);
+
+        // rules with constants, all-bound atoms and repeated variables
+        check(graph + "LPC two(x, y) :- edge(x, z), edge(z, y), path(y, x); "
+            + "LPC loop(x) :- edge(x, #a), path(#a, x), edge(x, x); -? two(x, y); -? loop(x)",
+            "two(#a, #c)\ntwo(#b, #a)\ntwo(#c, #b)");
+
+        // rules and queries are parsed once, when the class is initialized, and reused
+        check(graph + "var i: Int = 0; while (i < 2) { -? path(x, #d); -? path(#d, #b); "
+            + "-?[1] path(#a, y); i = i + 1 }",
+            "path(#d, #b)\npath(#a, #b)\npath(#d, #b)\npath(#a, #b)");
+
+        // aggregates: the clauses and queries are not compiled
+        check(graph + "var n: Term = #n; LPC degree(x, n) :- count(n | path(x, y)); "
+            + "-? degree(#d, n); -? count(n | edge(x, #a)); -? count(n | edge(x, #d))",
+            "degree(#d, #3)\ncount(#2 | edge(x, #a))\ncount(#0 | edge(x, #d))");
+
+        // comparisons: the clauses are not compiled, the queries filter through a stream
+        String prices = "var x: Term = #x; var p: Term = #p; "
+            + "LP price(#apple, 3); LP price(#pear, 12); LP price(#fig, -1); LP price(#kiwi, #p); "
+            + "LPC cheap(x) :- price(x, p), p < 10; ";
+        check(prices + "-? cheap(x); -?[1] price(x, p), p > 2", "cheap(#fig)\ncheap(#apple)\n"
+            + "price(#apple, #3)");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testQueryTimeout() throws ReflectiveOperationException
+    {
+        // 30^5 tuples, far more than the timeout allows
+        StringBuilder program = new StringBuilder();
+        for (int i = 0; i < 30; ++i)
+            program.append("LP node(#n").append(i).append("); ");
+        program.append("var a: Term = #a; var b: Term = #b; var c: Term = #c; "
+            + "var d: Term = #d; var e: Term = #e; "
+            + "LPC big(a, b, c, d, e) :- node(a), node(b), node(c), node(d), node(e); "
+            + "-? big(#n0, b, c, d, e); print(\"done\")");
+
+        Class<?> mainClass = compile(program.toString());
+        LogicEngine logic = (LogicEngine) mainClass.getField("logic").get(null);
+        logic.setStrategy(LogicEngine.Strategy.BOTTOM_UP); // runs the compiled rule and query
+        logic.setTimeout(20);
+        String output = IO.captureStdout(() -> {
+            CompilationResult.callMain(mainClass);
+            return null;
+        }).a;
+        assertTrue(output.startsWith("query timed out after"), output);
+        assertTrue(output.endsWith("\ndone\n"), output);
+    }
 }
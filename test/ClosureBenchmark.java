@@ -0,0 +1,90 @@
+import norswap.sigh.lp.LogicEngine;
+import norswap.sigh.lp.Rule;
+import norswap.sigh.lp.Term;
+import java.util.Random;
+
+/**
+ * Compares semi-naive joins with the transitive-closure operator of bottom-up evaluation on
+ * reachability ({@code reach(x, y) :- reach(x, z), edge(z, y)}) over forests of random trees, a
+ * long chain and a random graph. Not a test: run its {@link #main} manually.
+ *
+ * <p>Each case is run a few times per method after a warm-up run, and the best time is reported,
+ * along with the number of derived facts (which must agree between methods).
+ */
+public final class ClosureBenchmark
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int RUNS = 3;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        int edges = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        run("random trees", forest(edges, 16));
+        run("chain", chain(edges / 500));
+        run("random graph", random(edges / 100, edges / 100));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Random trees of {@code size} nodes, each node linked to a random earlier node. */
+    private static int[][] forest (int count, int size)
+    {
+        Random random = new Random(1);
+        int[][] edges = new int[count][];
+        for (int i = 0; i < count; ++i) {
+            int tree = i / (size - 1) * size, node = i % (size - 1) + 1;
+            edges[i] = new int[] { tree + random.nextInt(node), tree + node };
+        }
+        return edges;
+    }
+
+    /** A single path of {@code count} edges. */
+    private static int[][] chain (int count)
+    {
+        int[][] edges = new int[count][];
+        for (int i = 0; i < count; ++i)
+            edges[i] = new int[] { i, i + 1 };
+        return edges;
+    }
+
+    /** Random edges between {@code nodes} nodes. */
+    private static int[][] random (int count, int nodes)
+    {
+        Random random = new Random(1);
+        int[][] edges = new int[count][];
+        for (int i = 0; i < count; ++i)
+            edges[i] = new int[] { random.nextInt(nodes), random.nextInt(nodes) };
+        return edges;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void run (String name, int[][] edges)
+    {
+        System.out.printf("%s (%d edges)%n", name, edges.length);
+        for (boolean closure: new boolean[] { false, true }) {
+            long best = Long.MAX_VALUE;
+            long derived = 0;
+            for (int i = 0; i <= RUNS; ++i) {
+                LogicEngine engine = new LogicEngine();
+                engine.setStrategy(LogicEngine.Strategy.BOTTOM_UP);
+                engine.setTransitiveClosure(closure);
+                for (int[] edge: edges)
+                    engine.addFact("edge", new int[] {
+                        Term.of("#n" + edge[0]).id, Term.of("#n" + edge[1]).id });
+                engine.addRule(Rule.parse("reach(x, y) :- edge(x, y)"));
+                engine.addRule(Rule.parse("reach(x, y) :- reach(x, z), edge(z, y)"));
+                long nanos = engine.evaluate().nanos();
+                derived = engine.lastEvaluation().derived();
+                if (i > 0) best = Math.min(best, nanos); // first run is warm-up
+            }
+            System.out.printf("  %-8s %10.1f ms  %,d derived%n",
+                closure ? "closure" : "joins", best / 1e6, derived);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -82,6 +82,61 @@ public class GrammarTests extends AutumnTestFixture {
             new TermNode(null,"#lilly"),
             new TermNode(null,"#harry")
         ))));
+        successExpect("-?[2] boy( x )", new QueryDeclarationNode(null,new AtomNode(null,"boy", asList(
+            new ReferenceNode(null,"x"))), new IntLiteralNode(null, 2)
+        ));
+        successExpect("-?[explain] boy( x )", new QueryDeclarationNode(null,new AtomNode(null,"boy",
+            asList(new ReferenceNode(null,"x"))), QueryDeclarationNode.Mode.EXPLAIN
+        ));
+        successExpect("-?[profile] boy( x )", new QueryDeclarationNode(null,new AtomNode(null,"boy",
+            asList(new ReferenceNode(null,"x"))), QueryDeclarationNode.Mode.PROFILE
+        ));
+        successExpect("-? sum(s, t | sale(#a, t))", new QueryDeclarationNode(null,
+            new AggregateNode(null, "sum", asList(new ReferenceNode(null, "s"),
+                new ReferenceNode(null, "t")), new AtomNode(null, "sale",
+                asList(new TermNode(null, "#a"), new ReferenceNode(null, "t"))))));
+    }
+
+    @Test void testAggregate(){
+        rule= grammar.statement;
+        successExpect("LPC degree(x, n) :- node(x), count(n | edge(x, y))",
+            new ClauseDeclarationNode(null,
+                new AtomNode(null, "degree", asList(new ReferenceNode(null, "x"),
+                    new ReferenceNode(null, "n"))),
+                asList(
+                    new AtomNode(null, "node", asList(new ReferenceNode(null, "x"))),
+                    new AggregateNode(null, "count", asList(new ReferenceNode(null, "n")),
+                        new AtomNode(null, "edge", asList(new ReferenceNode(null, "x"),
+                            new ReferenceNode(null, "y")))))));
+        successExpect("LP price(#a, #-42)", new FactDeclarationNode(null, "price",
+            asList(new TermNode(null, "#a"), new TermNode(null, "#-42"))));
+        failure("LPC degree(x, n) :- count(| edge(x, y))");
+    }
+
+    @Test void testComparison(){
+        rule= grammar.statement;
+        successExpect("LP price(#a, 42)", new FactDeclarationNode(null, "price",
+            asList(new TermNode(null, "#a"), new TermNode(null, "#42"))));
+        successExpect("LPC cheap(x) :- price(x, p), p < 10",
+            new ClauseDeclarationNode(null,
+                new AtomNode(null, "cheap", asList(new ReferenceNode(null, "x"))),
+                asList(
+                    new AtomNode(null, "price", asList(new ReferenceNode(null, "x"),
+                        new ReferenceNode(null, "p"))),
+                    new ComparisonNode(null, new ReferenceNode(null, "p"), LOWER,
+                        new TermNode(null, "#10")))));
+        successExpect("-? price(x, p), 3 <= p, p <= -1",
+            new QueryDeclarationNode(null,
+                new AtomNode(null, "price", asList(new ReferenceNode(null, "x"),
+                    new ReferenceNode(null, "p"))),
+                null,
+                asList(
+                    new ComparisonNode(null, new TermNode(null, "#3"), LOWER_EQUAL,
+                        new ReferenceNode(null, "p")),
+                    new ComparisonNode(null, new ReferenceNode(null, "p"), LOWER_EQUAL,
+                        new TermNode(null, "#-1")))));
+        failure("LPC cheap(x) :- price(x, p), p == 10");
+        failure("-? price(x, p), cheap(x)");
     }
     //----------------------------------------------------------------------------------------//
 
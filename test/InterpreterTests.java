@@ -6,8 +6,13 @@ import norswap.autumn.positions.LineMapString;
 import norswap.sigh.SemanticAnalysis;
 import norswap.sigh.SighGrammar;
 import norswap.sigh.ast.SighNode;
+import norswap.sigh.bytecode.ByteArrayClassLoader;
+import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.CompilationResult;
 import norswap.sigh.interpreter.Interpreter;
 import norswap.sigh.interpreter.Null;
+import norswap.sigh.lp.AggregateException;
+import norswap.sigh.lp.Term;
 import norswap.uranium.Reactor;
 import norswap.uranium.SemanticError;
 import norswap.utils.IO;
@@ -15,6 +20,9 @@ import norswap.utils.TestFixture;
 import norswap.utils.data.wrappers.Pair;
 import norswap.utils.visitors.Walker;
 import org.testng.annotations.Test;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -55,7 +63,19 @@ public final class InterpreterTests extends TestFixture {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Checks that the input returns {@code expectedReturn} and prints {@code expectedOutput} (if
+     * non-null), both when interpreted and when compiled to bytecode.
+     */
     private void check (rule rule, String input, Object expectedReturn, String expectedOutput) {
+        check(rule, input, expectedReturn, expectedOutput, false);
+        check(rule, input, expectedReturn, expectedOutput, true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void check (rule rule, String input, Object expectedReturn, String expectedOutput,
+            boolean compiled) {
         // TODO
         // (1) write proper parsing tests
         // (2) write some kind of automated runner, and use it here
@@ -81,13 +101,68 @@ public final class InterpreterTests extends TestFixture {
             throw new AssertionError(report);
         }
 
-        Pair<String, Object> result = IO.captureStdout(() -> interpreter.interpret(root));
+        Pair<String, Object> result = compiled
+            ? IO.captureStdout(() -> normalize(runCompiled(root, reactor)))
+            : IO.captureStdout(() -> interpreter.interpret(root));
         assertEquals(result.b, expectedReturn);
         if (expectedOutput != null) assertEquals(result.a, expectedOutput);
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Compiles the program and returns the value returned by its {@code run} method, letting
+     * through the exceptions thrown by the program.
+     */
+    private static Object runCompiled (SighNode root, Reactor reactor)
+    {
+        BytecodeCompiler compiler = new BytecodeCompiler(reactor);
+        CompilationResult result = compiler.compile("InterpreterTestsRun", root);
+        Class<?> mainClass = result.load(new ByteArrayClassLoader());
+        try {
+            return mainClass.getMethod("run", String[].class).invoke(null, (Object) new String[0]);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw (RuntimeException) e.getCause();
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Converts a value returned by a compiled program to its representation in the interpreter:
+     * arrays hold objects, structures are maps of their fields, and null is {@link Null#INSTANCE}.
+     */
+    private static Object normalize (Object value)
+    {
+        if (value == norswap.sigh.bytecode.Null.INSTANCE)
+            return Null.INSTANCE;
+        if (value == null)
+            return null;
+        if (value.getClass().isArray()) {
+            Object[] array = new Object[Array.getLength(value)];
+            for (int i = 0; i < array.length; ++i)
+                array[i] = normalize(Array.get(value, i));
+            return array;
+        }
+        if (value.getClass().getClassLoader() instanceof ByteArrayClassLoader) { // structure
+            HashMap<String, Object> fields = new HashMap<>();
+            for (Field field: value.getClass().getFields()) {
+                try {
+                    fields.put(field.getName(), normalize(field.get(value)));
+                } catch (IllegalAccessException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            return fields;
+        }
+        return value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private void checkExpr (String input, Object expectedReturn, String expectedOutput) {
         rule = grammar.root;
         check("return " + input, expectedReturn, expectedOutput);
@@ -103,7 +178,9 @@ public final class InterpreterTests extends TestFixture {
     // ---------------------------------------------------------------------------------------------
 
     private void checkThrows (String input, Class<? extends Throwable> expected) {
-        assertThrows(expected, () -> check(input, null));
+        assertNotNull(rule, "You forgot to initialize the rule field.");
+        assertThrows(expected, () -> check(rule, input, null, null, false));
+        assertThrows(expected, () -> check(rule, input, null, null, true));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -111,10 +188,69 @@ public final class InterpreterTests extends TestFixture {
     @Test
     public void testLP(){
         rule=grammar.root;
-        check("return #a","#a");
-        check("return #a; return #b","#a");
-        check("var X :Term = #a; return X","#a");
-        check("var x: Term = #a; return x= #b","#b");
+        check("return #a", Term.of("#a"));
+        check("return #a; return #b", Term.of("#a"));
+        check("var X :Term = #a; return X", Term.of("#a"));
+        check("var x: Term = #a; return x= #b", Term.of("#b"));
+        check("var x: Term = #a; return x == #a", true);
+        check("var x: Term = #a; return x != #a", false);
+        check("return \"\" + #a", "#a");
+
+        check("LP letter(#a); LP letter(#b); LP letter(#a); var x: Term = #c; -? letter(x)",
+            null, "letter(#a)\nletter(#b)\n");
+        check("var x: Term = #a; LP letter(x); x = #b; LP letter(x); -? letter(#b); -? letter(#c)",
+            null, "letter(#b)\n");
+        check("LP song(#style, #taylor); LP song(#hello, #adele); var x: Term = #a; -? song(x, #taylor)",
+            null, "song(#style, #taylor)\n");
+        check("LP same(#a, #a); LP same(#a, #b); var x: Term = #a; -? same(x, x)",
+            null, "same(#a, #a)\n");
+
+        String graph = "LP edge(#a, #b); LP edge(#b, #c); LP edge(#c, #a); LP edge(#d, #a); "
+            + "var x: Term = #x; var y: Term = #y; var z: Term = #z; "
+            + "LPC path(x, y) :- edge(x, y); LPC path(x, y) :- path(x, z), edge(z, y); ";
+        check(graph + "-? path(#d, y)", null, "path(#d, #a)\npath(#d, #b)\npath(#d, #c)\n");
+        check(graph + "-? path(x, #d)", null, "");
+        check(graph + "-? path(x, x)", null, "path(#a, #a)\npath(#b, #b)\npath(#c, #c)\n");
+        check(graph + "LPC cyclic(x) :- path(x, x); LP edge(#e, #e); -? cyclic(x)",
+            null, "cyclic(#e)\ncyclic(#a)\ncyclic(#b)\ncyclic(#c)\n");
+        check(graph + "-?[2] path(#d, y)", null, "path(#d, #a)\npath(#d, #b)\n");
+        check(graph + "-?[1] path(x, x); -?[5] edge(#a, y)", null, "path(#a, #a)\nedge(#a, #b)\n");
+        check(graph + "-?[explain] path(#d, y)", null,
+            "explain path(#d, y) (tabled)\n"
+            + "  answers: path(#d, y): subgoal\n"
+            + "  path(x, y) :- edge(x, y) [pairwise]\n"
+            + "    1. edge(x, y): scan, bound (0)\n"
+            + "  path(x, y) :- path(x, z), edge(z, y) [pairwise]\n"
+            + "    1. path(x, z): subgoal\n"
+            + "    2. edge(z, y): scan, bound (0)\n");
+
+
+        String aggregates = graph + "var n: Term = #n; var s: Term = #s; "
+            + "LP sale(#a, #3); LP sale(#a, #4); LP sale(#b, #-2); "
+            + "LPC degree(x, n) :- count(n | edge(x, y)); "
+            + "LPC spent(x, s) :- sum(s, y | sale(x, y)); ";
+        check(aggregates + "-? degree(x, n); -? spent(x, s)", null,
+            "degree(#a, #1)\ndegree(#b, #1)\ndegree(#c, #1)\ndegree(#d, #1)\n"
+            + "spent(#a, #7)\nspent(#b, #-2)\n");
+        check(aggregates + "-? count(n | path(#d, y)); -? max(s, y | sale(x, y)); "
+            + "-? min(s, y | sale(#c, y))", null,
+            "count(#3 | path(#d, y))\nmax(#4, y | sale(x, y))\n");
+        check(aggregates + "LPC big(x) :- sum(s, y | sale(x, y)), s > 0; -? big(x)", null,
+            "big(#a)\n");
+        checkThrows(aggregates + "LP sale(#c, #foo); -? spent(x, s)", AggregateException.class);
+        checkThrows(aggregates + "LP sale(#c, #foo); -? max(s, y | sale(x, y))",
+            AggregateException.class);
+
+        String prices = "var x: Term = #x; var p: Term = #p; "
+            + "LP price(#apple, 3); LP price(#pear, 12); LP price(#fig, -1); LP price(#kiwi, #p); "
+            + "LPC cheap(x) :- price(x, p), p < 10; ";
+        check(prices + "-? cheap(x)", null, "cheap(#fig)\ncheap(#apple)\n");
+        check(prices + "-? price(x, p), 0 <= p, p <= 12", null,
+            "price(#apple, #3)\nprice(#pear, #12)\n");
+        check(prices + "-? price(#pear, p), p < 12; -? price(#fig, p), p > -1", null, "");
+        check(prices + "-?[explain] price(x, p), p > 5", null,
+            "explain price(x, p) (tabled)\n"
+            + "  answers: price(x, p): range on 1\n");
 
      //   successInput("var X:Term = #a; var Y:Term = #b; LPC sibling(X,Y) :- mother(#a,X), mother(#a,Y)");
     }
@@ -131,8 +267,8 @@ public final class InterpreterTests extends TestFixture {
         checkExpr("!false", true);
         checkExpr("!true", false);
         checkExpr("!!true", true);
-        checkExpr("++2", 3);
-        checkExpr("--2", 1);
+        checkExpr("++2", 3L);
+        checkExpr("--2", 1L);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -0,0 +1,94 @@
+import norswap.sigh.lp.JoinPlanner.JoinAlgorithm;
+import norswap.sigh.lp.LogicEngine;
+import norswap.sigh.lp.Rule;
+import norswap.sigh.lp.Term;
+import java.util.Random;
+
+/**
+ * Compares the pairwise and Leapfrog Triejoin algorithms of bottom-up evaluation on cyclic rule
+ * bodies (triangles and 4-cliques) over random and skewed graphs. Not a test: run its {@link
+ * #main} manually.
+ *
+ * <p>Each case is run a few times per algorithm after a warm-up run, and the best time is
+ * reported, along with the number of derived facts (which must agree between algorithms).
+ */
+public final class JoinBenchmark
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int RUNS = 3;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        int edges = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        String triangle = "triangle(x, y, z) :- edge(x, y), edge(y, z), edge(x, z)";
+        String clique = "clique(w, x, y, z) :- edge(w, x), edge(w, y), edge(w, z), "
+            + "edge(x, y), edge(x, z), edge(y, z)";
+
+        run("triangle, uniform", triangle, uniform(edges, edges / 10));
+        run("triangle, skewed", triangle, skewed(edges, edges / 10));
+        run("4-clique, uniform", clique, uniform(edges / 4, edges / 80));
+        run("4-clique, skewed", clique, skewed(edges / 4, edges / 80));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Random edges between {@code nodes} nodes, picked uniformly. */
+    private static int[][] uniform (int count, int nodes)
+    {
+        Random random = new Random(1);
+        int[][] edges = new int[count][];
+        for (int i = 0; i < count; ++i)
+            edges[i] = new int[] { random.nextInt(nodes), random.nextInt(nodes) };
+        return edges;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Random edges whose source and destination nodes follow a power law: a few hubs have most of
+     * the edges, which makes the intermediate results of pairwise joins explode.
+     */
+    private static int[][] skewed (int count, int nodes)
+    {
+        Random random = new Random(1);
+        int[][] edges = new int[count][];
+        for (int i = 0; i < count; ++i)
+            edges[i] = new int[] { powerLaw(random, nodes), powerLaw(random, nodes) };
+        return edges;
+    }
+
+    private static int powerLaw (Random random, int nodes) {
+        return (int) Math.min(nodes - 1, Math.floor(Math.pow(nodes, random.nextDouble())) - 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void run (String name, String rule, int[][] edges)
+    {
+        System.out.printf("%s (%d edges)%n", name, edges.length);
+        for (JoinAlgorithm algorithm: new JoinAlgorithm[] {
+                JoinAlgorithm.PAIRWISE, JoinAlgorithm.LEAPFROG }) {
+            long best = Long.MAX_VALUE;
+            long derived = 0;
+            for (int i = 0; i <= RUNS; ++i) {
+                LogicEngine engine = new LogicEngine();
+                engine.setStrategy(LogicEngine.Strategy.BOTTOM_UP);
+                engine.planner().setAlgorithm(algorithm);
+                for (int[] edge: edges)
+                    engine.addFact("edge", new int[] {
+                        Term.of("#n" + edge[0]).id, Term.of("#n" + edge[1]).id });
+                engine.addRule(Rule.parse(rule));
+                long nanos = engine.evaluate().nanos();
+                derived = engine.lastEvaluation().derived();
+                if (i > 0) best = Math.min(best, nanos); // first run is warm-up
+            }
+            System.out.printf("  %-8s %10.1f ms  %,d derived%n",
+                algorithm.toString().toLowerCase(), best / 1e6, derived);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
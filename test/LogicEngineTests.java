@@ -0,0 +1,1502 @@
+import norswap.sigh.lp.Aggregate;
+import norswap.sigh.lp.AggregateException;
+import norswap.sigh.lp.AnswerCache;
+import norswap.sigh.lp.AnswerStream;
+import norswap.sigh.lp.CancellationToken;
+import norswap.sigh.lp.Atom;
+import norswap.sigh.lp.Comparison;
+import norswap.sigh.lp.FactStore;
+import norswap.sigh.lp.EvaluationStats;
+import norswap.sigh.lp.FilterManager;
+import norswap.sigh.lp.IndexManager;
+import norswap.sigh.lp.JoinPlanner;
+import norswap.sigh.lp.LogicEngine;
+import norswap.sigh.lp.QueryCancelledException;
+import norswap.sigh.lp.QueryPlan;
+import norswap.sigh.lp.QueryProfile;
+import norswap.sigh.lp.Relation;
+import norswap.sigh.lp.Rule;
+import norswap.sigh.lp.StoreView;
+import norswap.sigh.lp.TabledResolver;
+import norswap.sigh.lp.Term;
+import norswap.sigh.lp.Trail;
+import com.sun.management.ThreadMXBean;
+import org.testng.annotations.Test;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the logic programming engine through its Java API. The language-level behaviour of LP
+ * statements is tested in {@link InterpreterTests}.
+ */
+public final class LogicEngineTests
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Builds an atom from its predicate and arguments: arguments starting with {@code #} are
+     * terms, others are variables.
+     */
+    private static Atom atom (String predicate, String... args) {
+        return atom(new ArrayList<>(), predicate, args);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #atom(String, String...)}, but numbers variables using (and extending) {@code
+     * names}, which will be used as the atom's variable names.
+     */
+    private static Atom atom (ArrayList<String> names, String predicate, String... args)
+    {
+        int[] terms = new int[args.length];
+        int[] vars = new int[args.length];
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].startsWith("#")) {
+                terms[i] = Term.of(args[i]).id;
+                vars[i] = Atom.CONSTANT;
+            } else {
+                if (!names.contains(args[i])) names.add(args[i]);
+                vars[i] = names.indexOf(args[i]);
+            }
+        }
+        return new Atom(predicate, terms, vars, names.toArray(new String[0]));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Builds a rule from atoms written like {@code "path(x, #a)"}, the first one being the head.
+     */
+    private static Rule rule (String... atoms)
+    {
+        // collect all variable names first, so that all atoms share the same names array
+        ArrayList<String> names = new ArrayList<>();
+        for (String atom: atoms) atom(names, name(atom), args(atom));
+        Atom[] parsed = new Atom[atoms.length];
+        for (int i = 0; i < atoms.length; ++i)
+            parsed[i] = atom(names, name(atoms[i]), args(atoms[i]));
+        return new Rule(parsed[0], Arrays.copyOfRange(parsed, 1, parsed.length));
+    }
+
+    private static String name (String atom) {
+        return atom.substring(0, atom.indexOf('(')).trim();
+    }
+
+    private static String[] args (String atom) {
+        return atom.substring(atom.indexOf('(') + 1, atom.lastIndexOf(')')).split("\\s*,\\s*");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int[] tuple (String... terms) {
+        return Arrays.stream(terms).mapToInt(it -> Term.of(it).id).toArray();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static List<String> answers (FactStore store, Atom atom)
+    {
+        List<String> answers = new ArrayList<>();
+        store.match(atom, atom.freshBindings(), b -> answers.add(atom.toString(b)));
+        return answers;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static List<String> answers (StoreView view, Atom atom)
+    {
+        List<String> answers = new ArrayList<>();
+        view.match(atom, atom.freshBindings(), b -> answers.add(atom.toString(b)));
+        return answers;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testSecondaryIndexes()
+    {
+        FactStore store = new FactStore();
+        IndexManager indexes = store.indexes();
+        for (int i = 0; i < 100; ++i)
+            store.insert("song", tuple("#s" + i, i % 10 == 0 ? "#taylor" : "#adele"));
+
+        Atom query = atom("song", "x", "#taylor");
+
+        // first probe: full scan
+        assertEquals(answers(store, query).size(), 10);
+        assertEquals(indexes.misses(), 1);
+        assertEquals(indexes.builds(), 0);
+
+        // pattern recurs: the index is built
+        assertEquals(answers(store, query).size(), 10);
+        assertEquals(indexes.builds(), 1);
+        assertEquals(indexes.indexCount(), 1);
+
+        assertEquals(answers(store, query).size(), 10);
+        assertEquals(indexes.hits(), 1);
+
+        // maintained on insertion
+        store.insert("song", tuple("#shake", "#taylor"));
+        assertTrue(answers(store, query).contains("song(#shake, #taylor)"));
+        assertEquals(answers(store, atom("song", "x", "#nobody")).size(), 0);
+
+        // fully bound atoms use the deduplication set and don't count as index probes
+        long probes = indexes.hits() + indexes.misses();
+        assertEquals(answers(store, atom("song", "#shake", "#taylor")).size(), 1);
+        assertEquals(indexes.hits() + indexes.misses(), probes);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testIndexMemoryLimit()
+    {
+        FactStore store = new FactStore();
+        IndexManager indexes = store.indexes();
+        for (int i = 0; i < 1000; ++i)
+            store.insert("edge", tuple("#n" + i, "#n" + (i + 1) % 1000));
+
+        Atom from = atom("edge", "#n5", "y");
+        Atom to = atom("edge", "x", "#n5");
+        answers(store, from);
+        answers(store, from);
+        answers(store, to);
+        answers(store, to);
+        assertEquals(indexes.indexCount(), 2);
+
+        // only room for one index: the least recently used one goes
+        indexes.setMemoryLimit(indexes.memory() * 2 / 3);
+        assertEquals(indexes.indexCount(), 1);
+        assertEquals(indexes.evictions(), 1);
+        assertTrue(indexes.memory() <= indexes.memoryLimit());
+        assertEquals(answers(store, to), Arrays.asList("edge(#n4, #n5)"));
+
+        // too small for any index: probes keep scanning, results are unaffected
+        indexes.setMemoryLimit(16);
+        answers(store, from);
+        assertEquals(answers(store, from), Arrays.asList("edge(#n5, #n6)"));
+        assertEquals(indexes.indexCount(), 0);
+        assertTrue(indexes.refused() > 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testBloomFilters()
+    {
+        FactStore store = new FactStore();
+        FilterManager filters = store.filters();
+        // binary: unary relations are bitmaps, which need no filter
+        for (int i = 0; i < 1000; i += 2)
+            store.insert("even", tuple("#n" + i, "#n" + i));
+
+        // built on the first fully bound lookup
+        assertEquals(answers(store, atom("even", "#n4", "#n4")).size(), 1);
+        assertEquals(filters.filterCount(), 1);
+        assertEquals(filters.builds(), 1);
+
+        // absent tuples are nearly all rejected without probing the relation
+        for (int i = 1; i < 1000; i += 2)
+            assertEquals(answers(store, atom("even", "#n" + i, "#n" + i)).size(), 0);
+        assertEquals(filters.rejections() + filters.falsePositives(), 500);
+        assertTrue(filters.observedFalsePositiveRate() < 3 * filters.falsePositiveRate(),
+            filters.toString());
+
+        // maintained on insertion, and grown when outgrown: no false negatives
+        for (int i = 1; i < 4000; i += 2)
+            store.insert("even", tuple("#n" + i, "#n" + i));
+        assertTrue(filters.builds() > 1);
+        for (int i = 0; i < 4000; ++i)
+            assertEquals(answers(store, atom("even", "#n" + i, "#n" + i)).size(),
+                i < 1000 || i % 2 == 1 ? 1 : 0, "#n" + i);
+
+        // a lower false-positive rate takes more memory
+        long memory = filters.memory();
+        filters.setFalsePositiveRate(0.001);
+        assertEquals(filters.filterCount(), 0);
+        answers(store, atom("even", "#n0", "#n0"));
+        assertTrue(filters.memory() > memory);
+        assertThrows(IllegalArgumentException.class, () -> filters.setFalsePositiveRate(1));
+
+        // too small for any filter: lookups probe the relation, results are unaffected
+        filters.setMemoryLimit(16);
+        assertEquals(answers(store, atom("even", "#n3", "#n3")).size(), 1);
+        assertEquals(answers(store, atom("even", "#n5000", "#n5000")).size(), 0);
+        assertEquals(filters.filterCount(), 0);
+        assertTrue(filters.refused() > 0);
+
+        // disabled: nothing is filtered or counted
+        filters.setMemoryLimit(1 << 20);
+        filters.setEnabled(false);
+        long probes = filters.probes();
+        assertEquals(answers(store, atom("even", "#n5000", "#n5000")).size(), 0);
+        assertEquals(filters.probes(), probes);
+        assertEquals(filters.filterCount(), 0);
+
+        // fully bound body atoms go through the filters
+        LogicEngine engine = new LogicEngine();
+        for (int i = 0; i < 20; ++i) {
+            engine.addFact("edge", tuple("#n" + i, "#n" + (i + 1) % 20));
+            if (i % 4 == 0) engine.addFact("edge", tuple("#n" + (i + 1) % 20, "#n" + i));
+        }
+        engine.addRule(Rule.parse("mutual(x, y) :- edge(x, y), edge(y, x)"));
+        assertEquals(answers(engine, atom("mutual", "x", "y")).size(), 10);
+        assertTrue(engine.facts().filters().probes() > 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    @Test public void testSemiNaiveEvaluation()
+    {
+        LogicEngine engine = new LogicEngine();
+        engine.setStrategy(LogicEngine.Strategy.BOTTOM_UP);
+        engine.setTransitiveClosure(false); // see testClosureOperator
+        for (int i = 0; i < 10; ++i)
+            engine.addFact("edge", tuple("#n" + i, "#n" + (i + 1)));
+        engine.addRule(rule("path(x, y)", "edge(x, y)"));
+        engine.addRule(rule("path(x, y)", "path(x, z)", "edge(z, y)"));
+        engine.addRule(rule("reaches0(y)", "path(#n0, y)"));
+
+        EvaluationStats stats = engine.evaluate();
+        assertEquals(stats.strata(), 2);
+        assertEquals(stats.derived(), 55 + 10);
+        // 1 initial iteration + 9 productive rounds + 1 round to detect the fixpoint, then 1
+        // iteration for the non-recursive stratum
+        assertEquals(stats.iterations(), 12);
+        assertEquals(engine.facts().find("path/2").size(), 55);
+
+        List<String> answers = new ArrayList<>();
+        Atom query = atom("path", "#n7", "y");
+        engine.query(query, b -> answers.add(query.toString(b)));
+        Collections.sort(answers);
+        assertEquals(answers, Arrays.asList("path(#n7, #n10)", "path(#n7, #n8)", "path(#n7, #n9)"));
+
+        // re-evaluation after a new fact only derives the new tuples
+        engine.addFact("edge", tuple("#n10", "#n11"));
+        List<String> reached = new ArrayList<>();
+        Atom reaches = atom("reaches0", "y");
+        engine.query(reaches, b -> reached.add(reaches.toString(b)));
+        assertEquals(reached.size(), 11);
+        assertEquals(engine.lastEvaluation().derived(), 11 + 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testClosureOperator()
+    {
+        String[][] shapes = {
+            { "path(x, z)", "edge(z, y)" },  // right-linear
+            { "edge(z, y)", "path(x, z)" },  // right-linear, other body order
+            { "edge(x, z)", "path(z, y)" }}; // left-linear
+
+        for (String[] body: shapes) {
+            String name = Arrays.toString(body);
+            LogicEngine closed = new LogicEngine();
+            LogicEngine joined = new LogicEngine();
+            joined.setTransitiveClosure(false);
+            for (LogicEngine engine: Arrays.asList(closed, joined)) {
+                engine.setStrategy(LogicEngine.Strategy.BOTTOM_UP);
+                // a cycle with a tail, an asserted path fact, and an unrelated base rule
+                for (int i = 0; i < 30; ++i)
+                    engine.addFact("edge", tuple("#n" + i, "#n" + (i + 1) % 20));
+                engine.addFact("link", tuple("#a", "#n25"));
+                engine.addFact("path", tuple("#b", "#n27"));
+                engine.addRule(rule("path(x, y)", "edge(x, y)"));
+                engine.addRule(rule("path(x, y)", "link(x, y)"));
+                engine.addRule(rule("path(x, y)", body[0], body[1]));
+                engine.evaluate();
+            }
+            assertEquals(closed.lastEvaluation().closures(), 1, name);
+            assertEquals(joined.lastEvaluation().closures(), 0, name);
+            assertEquals(closed.lastEvaluation().derived(), joined.lastEvaluation().derived(),
+                name);
+            Atom path = atom("path", "x", "y");
+            assertEquals(answers(closed, path), answers(joined, path), name);
+            // extended forwards by right-linear rules, backwards by left-linear ones
+            boolean right = Arrays.asList(body).contains("path(x, z)");
+            assertEquals(answers(closed, atom("path", "x", "#n5")).size(), right ? 32 : 30, name);
+
+            // small changes are propagated semi-naively, large ones by a new closure
+            for (LogicEngine engine: Arrays.asList(closed, joined)) {
+                engine.addFact("edge", tuple("#n5", "#c"));
+                engine.evaluate();
+            }
+            assertEquals(closed.lastEvaluation().closures(), 0, name);
+            assertEquals(answers(closed, path), answers(joined, path), name);
+            for (LogicEngine engine: Arrays.asList(closed, joined)) {
+                for (int i = 0; i < 40; ++i)
+                    engine.addFact("edge", tuple("#c", "#m" + i));
+                engine.evaluate();
+            }
+            assertEquals(closed.lastEvaluation().closures(), 1, name);
+            assertEquals(answers(closed, path), answers(joined, path), name);
+            assertEquals(answers(closed, atom("path", "x", "#m0")).size(), right ? 33 : 31, name);
+
+            QueryPlan plan = closed.explain(atom("path", "#a", "y"));
+            assertEquals(plan.rules().get(2).join(), QueryPlan.Join.CLOSURE, name);
+        }
+
+        // other shapes are joined
+        LogicEngine engine = new LogicEngine();
+        engine.setStrategy(LogicEngine.Strategy.BOTTOM_UP);
+        for (int i = 0; i < 10; ++i)
+            engine.addFact("edge", tuple("#n" + i, "#n" + (i + 1)));
+        engine.addRule(rule("path(x, y)", "edge(x, y)"));
+        engine.addRule(rule("path(x, y)", "path(x, z)", "path(z, y)"));
+        engine.addRule(rule("from(x, y)", "edge(x, y)"));
+        engine.addRule(rule("from(x, y)", "from(x, z)", "edge(y, z)"));
+        engine.evaluate();
+        assertEquals(engine.lastEvaluation().closures(), 0);
+        assertEquals(answers(engine, atom("path", "x", "y")).size(), 55);
+
+        // the adorned rules of magic sets aren't closed, and explaining them doesn't fail
+        LogicEngine magic = new LogicEngine();
+        magic.setStrategy(LogicEngine.Strategy.MAGIC_SETS);
+        magic.addFact("edge", tuple("#a", "#b"));
+        magic.addRule(rule("path(x, y)", "edge(x, y)"));
+        magic.addRule(rule("path(x, y)", "path(x, z)", "edge(z, y)"));
+        QueryPlan plan = magic.explain(atom("path", "#a", "y"));
+        assertTrue(plan.toString().startsWith("explain path(#a, y)"), plan.toString());
+        for (QueryPlan.RulePlan rule: plan.rules())
+            assertTrue(rule.join() != QueryPlan.Join.CLOSURE, rule.toString());
+        assertEquals(answers(magic, atom("path", "#a", "y")).size(), 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testBitmapJoins()
+    {
+        LogicEngine bitmaps = new LogicEngine();
+        LogicEngine joined = new LogicEngine();
+        joined.setBitmapJoins(false);
+        for (LogicEngine engine: Arrays.asList(bitmaps, joined)) {
+            engine.setStrategy(LogicEngine.Strategy.BOTTOM_UP);
+            // dense and sparse chunks of term ids
+            for (int i = 0; i < 100_000; ++i) {
+                engine.addFact("person", tuple("#p" + i));
+                if (i % 3 == 0) engine.addFact("sings", tuple("#p" + i));
+                if (i % 5 == 0) engine.addFact("dances", tuple("#p" + i));
+                if (i % 1000 == 0) engine.addFact("famous", tuple("#p" + i));
+            }
+            engine.addRule(rule("singer(x)", "person(x)", "sings(x)"));
+            engine.addRule(rule("star(x)", "singer(x)", "dances(x)"));
+            engine.addRule(rule("star(x)", "famous(x)"));
+            // unary lookups restricted to deltas, in a recursive stratum
+            engine.addRule(rule("chain(x, y)", "next(x, y)", "singer(y)"));
+            engine.addRule(rule("chain(x, y)", "chain(x, z)", "next(z, y)", "singer(y)"));
+            for (int i = 0; i < 30; ++i)
+                engine.addFact("next", tuple("#p" + i, "#p" + (i + 1)));
+            engine.evaluate();
+        }
+        assertEquals(bitmaps.lastEvaluation().bitmapJoins(), 3);
+        assertEquals(joined.lastEvaluation().bitmapJoins(), 0);
+        for (String predicate: new String[] { "singer", "star" })
+            assertEquals(answers(bitmaps, atom(predicate, "x")),
+                answers(joined, atom(predicate, "x")), predicate);
+        // multiples of 15, and of 1000 but not of 3000
+        assertEquals(answers(bitmaps, atom("star", "x")).size(), 6667 + 100 - 34);
+        assertEquals(answers(bitmaps, atom("chain", "x", "y")),
+            answers(joined, atom("chain", "x", "y")));
+        assertTrue(bitmaps.exists(atom("singer", "#p99")));
+        assertTrue(!bitmaps.exists(atom("singer", "#p98")));
+        assertEquals(bitmaps.explain(atom("star", "x")).rules().get(0).join(),
+            QueryPlan.Join.BITMAP);
+
+        // small changes are propagated semi-naively
+        for (LogicEngine engine: Arrays.asList(bitmaps, joined)) {
+            engine.addFact("sings", tuple("#p1"));
+            engine.addFact("dances", tuple("#p1"));
+            engine.evaluate();
+        }
+        assertEquals(bitmaps.lastEvaluation().bitmapJoins(), 0);
+        assertEquals(answers(bitmaps, atom("star", "x")), answers(joined, atom("star", "x")));
+
+        // a few bits per member for the bitmap, plus the column (about 15 bytes with a hash set)
+        Relation person = bitmaps.facts().find("person/1");
+        assertTrue(person.memory() < 6L * person.size(), "" + person.memory());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testTransitiveClosure()
+    {
+        // 100k edges: 10k disjoint chains of 10 edges, plus 1k edges forming a single cycle
+        LogicEngine engine = new LogicEngine();
+        for (int c = 0; c < 9_900; ++c)
+            for (int i = 0; i < 10; ++i)
+                engine.addFact("edge", tuple("#c" + c + "_" + i, "#c" + c + "_" + (i + 1)));
+        for (int i = 0; i < 1_000; ++i)
+            engine.addFact("edge", tuple("#cycle" + i, "#cycle" + (i + 1) % 1_000));
+        assertEquals(engine.facts().find("edge/2").size(), 100_000);
+
+        engine.addRule(rule("path(x, y)", "edge(x, y)"));
+        engine.addRule(rule("path(x, y)", "path(x, z)", "edge(z, y)"));
+
+        EvaluationStats stats = engine.evaluate();
+        assertEquals(stats.derived(), 9_900 * 55 + 1_000 * 1_000);
+        assertTrue(stats.nanos() < 30_000_000_000L, stats.toString());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testIncrementalMaintenance()
+    {
+        LogicEngine engine = new LogicEngine();
+        engine.setStrategy(LogicEngine.Strategy.BOTTOM_UP);
+        for (int i = 0; i < 1_000; ++i)
+            engine.addFact("edge", tuple("#n" + i, "#n" + (i + 1)));
+        engine.addRule(rule("path(x, y)", "edge(x, y)"));
+        engine.addRule(rule("path(x, y)", "path(x, z)", "edge(z, y)"));
+        engine.addRule(rule("root(x)", "path(x, #n1000)"));
+        assertEquals(engine.evaluate().derived(), 1_000 * 1_001 / 2 + 1_000);
+
+        // only the consequences of the new fact are derived, without re-running the full join
+        engine.addFact("edge", tuple("#n1000", "#n1001"));
+        EvaluationStats stats = engine.evaluate();
+        assertEquals(stats.derived(), 1_001);
+        // path: 1 round + 1 to detect the fixpoint, root: 1 round
+        assertEquals(stats.iterations(), 3);
+        assertEquals(engine.facts().find("path/2").size(), 1_001 * 1_002 / 2);
+
+        // nothing to do if nothing changed
+        assertEquals(engine.evaluate().iterations(), 0);
+
+        // facts asserted for derived predicates are propagated as well
+        engine.addFact("path", tuple("#x", "#n0"));
+        engine.addFact("edge", tuple("#n1001", "#n1000"));
+        stats = engine.evaluate();
+        // path(#x, _) to #n1 ... #n1001, 3 paths through the new cycle, 3 new roots
+        assertEquals(stats.derived(), 1_001 + 3 + 3);
+        assertEquals(answers(engine, atom("root", "x")).size(), 1_002 + 1);
+
+        // tabled resolution only drops the tables that depend on the new fact
+        engine.setStrategy(LogicEngine.Strategy.TABLED);
+        TabledResolver tables = engine.tables();
+        assertEquals(answers(engine, atom("path", "#n0", "y")).size(), 1_001);
+        assertEquals(answers(engine, atom("edge", "#n0", "y")).size(), 1);
+        int count = tables.tableCount();
+        engine.addFact("other", tuple("#n0"));
+        assertEquals(tables.tableCount(), count);
+        engine.addFact("edge", tuple("#n0", "#n2000"));
+        assertEquals(tables.tableCount(), 0);
+        assertEquals(answers(engine, atom("path", "#n0", "y")).size(), 1_002);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    private static List<String> answers (LogicEngine engine, Atom atom)
+    {
+        List<String> answers = new ArrayList<>();
+        engine.query(atom, b -> answers.add(atom.toString(b)));
+        Collections.sort(answers);
+        return answers;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testTabledResolution()
+    {
+        LogicEngine engine = new LogicEngine();
+        engine.cache().setEnabled(false); // repeated queries must reach the tables
+        TabledResolver tables = engine.tables();
+        for (int i = 0; i < 100; ++i) // a cycle
+            engine.addFact("edge", tuple("#n" + i, "#n" + (i + 1) % 100));
+        engine.addFact("edge", tuple("#x", "#n0"));
+
+        // left recursive, would loop without tabling
+        engine.addRule(rule("path(x, y)", "path(x, z)", "edge(z, y)"));
+        engine.addRule(rule("path(x, y)", "edge(x, y)"));
+        // mutual recursion
+        engine.addRule(rule("even(x, y)", "edge(x, y)"));
+        engine.addRule(rule("even(x, y)", "odd(x, z)", "edge(z, y)"));
+        engine.addRule(rule("odd(x, y)", "even(x, z)", "edge(z, y)"));
+
+        assertEquals(answers(engine, atom("path", "#x", "y")).size(), 100);
+        assertEquals(answers(engine, atom("path", "x", "#x")).size(), 0);
+        assertEquals(answers(engine, atom("path", "#n3", "#n2")), Arrays.asList("path(#n3, #n2)"));
+        assertEquals(answers(engine, atom("path", "#x", "#x")).size(), 0);
+        assertEquals(engine.lastEvaluation().derived(), 0); // no bottom-up evaluation
+
+        // only the called subgoals were tabled: path(#x, _), path(_, #x), path(_, _),
+        // path(#n3, #n2), path(#n3, _) and path(#x, #x)
+        assertEquals(tables.created(), 6);
+        assertEquals(tables.completed(), 6);
+        assertEquals(tables.tableCount(), 6);
+
+        // repeated subgoals are answered from the table
+        long hits = tables.hits();
+        assertEquals(answers(engine, atom("path", "#x", "y")).size(), 100);
+        assertEquals(tables.hits(), hits + 1);
+
+        // even(x, y): odd-length path, odd(x, y): even-length path (mutually recursive tables)
+        // the cycle has an even length, so each node is reached with a single parity
+        List<String> even = answers(engine, atom("even", "#n0", "y"));
+        List<String> odd = answers(engine, atom("odd", "#n0", "y"));
+        assertEquals(even.size(), 50);
+        assertEquals(odd.size(), 50);
+        assertTrue(even.contains("even(#n0, #n1)"));
+        assertTrue(odd.contains("odd(#n0, #n0)"));
+
+        // new facts invalidate the tables
+        engine.addFact("edge", tuple("#n5", "#y"));
+        assertEquals(tables.tableCount(), 0);
+        assertTrue(answers(engine, atom("path", "#x", "y")).contains("path(#x, #y)"));
+
+        // same results as bottom-up evaluation
+        List<String> tabled = answers(engine, atom("path", "x", "y"));
+        engine.setStrategy(LogicEngine.Strategy.BOTTOM_UP);
+        assertEquals(answers(engine, atom("path", "x", "y")), tabled);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testTableEviction()
+    {
+        LogicEngine engine = new LogicEngine();
+        TabledResolver tables = engine.tables();
+        for (int i = 0; i < 10; ++i)
+            engine.addFact("edge", tuple("#n" + i, "#n" + (i + 1)));
+        engine.addRule(rule("path(x, y)", "edge(x, y)"));
+        engine.addRule(rule("path(x, y)", "edge(x, z)", "path(z, y)"));
+
+        // path(#n0, y) calls path(#n1, y), ... path(#n10, y): 11 tables, 55 answers
+        assertEquals(answers(engine, atom("path", "#n0", "y")).size(), 10);
+        assertEquals(tables.tableCount(), 11);
+        assertEquals(tables.answerCount(), 55);
+
+        tables.setMaxAnswers(50);
+        assertTrue(tables.answerCount() <= 50);
+        assertEquals(tables.evictions(), 1); // path(#n0, y), the least recently used
+        assertEquals(tables.tableCount(), 10);
+
+        // evicted tables are recomputed when needed
+        assertEquals(answers(engine, atom("path", "#n8", "y")).size(), 2);
+        assertEquals(answers(engine, atom("path", "#n0", "y")).size(), 10);
+
+        // tables aren't evicted while a query is being answered, even if it needs more answers
+        // than the limit, so that its leaders reach their fixpoint
+        LogicEngine small = new LogicEngine();
+        small.tables().setMaxAnswers(5);
+        for (int i = 0; i < 10; ++i)
+            small.addFact("edge", tuple("#n" + i, "#n" + (i + 1)));
+        small.addRule(rule("path(x, y)", "edge(x, y)"));
+        small.addRule(rule("path(x, y)", "path(x, z)", "path(z, y)"));
+        small.setTimeout(60_000);
+        assertEquals(answers(small, atom("path", "x", "y")).size(), 55);
+        assertEquals(answers(small, atom("path", "#n3", "y")).size(), 7);
+        assertTrue(small.tables().answerCount() <= 5);
+        assertTrue(small.tables().evictions() > 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    @Test public void testTrail()
+    {
+        // bindings are recorded and undone in place
+        Relation edge = new Relation("edge", 2);
+        edge.add(tuple("#a", "#b"));
+        Atom loop = atom("edge", "x", "x");
+        Atom any = atom("edge", "x", "y");
+        Trail trail = new Trail(1);
+        int[] bindings = trail.frame(any.varNames.length);
+        int mark = trail.mark();
+        assertTrue(!loop.unify(edge, 0, loop.freshBindings(), trail));
+        assertEquals(trail.size(), mark);
+        assertTrue(any.unify(edge, 0, bindings, trail));
+        assertEquals(any.toString(bindings), "edge(#a, #b)");
+        assertEquals(trail.size(), 2);
+        trail.undo(mark);
+        assertEquals(any.toString(bindings), "edge(x, y)");
+        assertEquals(trail.undone(), 2);
+
+        // released frames are reused
+        trail.release(bindings);
+        assertTrue(trail.frame(2) == bindings);
+
+        // top-down resolution leaves no binding behind, and allocates nothing per answer once its
+        // tables are complete
+        LogicEngine engine = new LogicEngine();
+        engine.cache().setEnabled(false);
+        for (int i = 0; i < 300; ++i)
+            engine.addFact("edge", tuple("#n" + i, "#n" + (i + 1)));
+        engine.addRule(rule("path(x, y)", "path(x, z)", "edge(z, y)"));
+        engine.addRule(rule("path(x, y)", "edge(x, y)"));
+        engine.addRule(rule("reach(y)", "path(#n0, y)"));
+        Atom reach = atom("reach", "y");
+        long[] count = new long[1];
+        engine.query(reach, b -> ++count[0]);
+        assertEquals(count[0], 300);
+        assertEquals(engine.tables().trail().size(), 0);
+        assertTrue(engine.tables().trail().bound() > 0);
+
+        if (!(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean)) return;
+        ThreadMXBean mx = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        for (int i = 0; i < 20; ++i) engine.query(reach, b -> ++count[0]); // warm up
+        long before = mx.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 100; ++i) engine.query(reach, b -> ++count[0]);
+        long allocated = mx.getThreadAllocatedBytes(id) - before;
+        assertTrue(allocated / 100 < 300 * 4, allocated / 100 + " bytes per query");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testParallelEvaluation()
+    {
+        LogicEngine sequential = new LogicEngine();
+        LogicEngine parallel = new LogicEngine();
+        parallel.setParallelism(4);
+
+        for (LogicEngine engine: Arrays.asList(sequential, parallel)) {
+            engine.setStrategy(LogicEngine.Strategy.BOTTOM_UP);
+            engine.setTransitiveClosure(false); // path must be joined in parallel
+            // a binary tree: up(child, parent), down(parent, child), flat(x, x) for the root
+            for (int i = 1; i < 500; ++i) {
+                engine.addFact("up", tuple("#t" + i, "#t" + (i - 1) / 2));
+                engine.addFact("down", tuple("#t" + (i - 1) / 2, "#t" + i));
+                engine.addFact("edge", tuple("#t" + i % 300, "#t" + (i * 7) % 300));
+            }
+            engine.addFact("flat", tuple("#t0", "#t0"));
+            engine.addRule(rule("sg(x, y)", "flat(x, y)"));
+            engine.addRule(rule("sg(x, y)", "up(x, a)", "sg(a, b)", "down(b, y)"));
+            engine.addRule(rule("path(x, y)", "edge(x, y)"));
+            engine.addRule(rule("path(x, y)", "path(x, z)", "edge(z, y)"));
+            engine.evaluate();
+        }
+
+        EvaluationStats s = sequential.lastEvaluation();
+        EvaluationStats p = parallel.lastEvaluation();
+        assertEquals(p.derived(), s.derived());
+        assertEquals(p.iterations(), s.iterations());
+
+        for (String relation: Arrays.asList("sg", "path")) {
+            Atom atom = atom(relation, "x", "y");
+            assertEquals(answers(parallel, atom), answers(sequential, atom));
+        }
+        // same generation: all nodes at the same depth of the tree
+        assertEquals(answers(parallel, atom("sg", "#t3", "y")),
+            Arrays.asList("sg(#t3, #t3)", "sg(#t3, #t4)", "sg(#t3, #t5)", "sg(#t3, #t6)"));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    @Test public void testJoinOrdering()
+    {
+        LogicEngine engine = new LogicEngine();
+        JoinPlanner planner = engine.planner();
+        for (int i = 0; i < 300; ++i)
+            engine.addFact("singer", tuple("#p" + i));
+        for (int i = 0; i < 100; ++i) {
+            engine.addFact("song", tuple("#s" + i, "#p" + i));
+            engine.addFact("song", tuple("#s" + i, "#p" + (i + 1)));
+        }
+        Rule feat = rule("feat(x, y)", "singer(x)", "singer(y)", "song(z, x)", "song(z, y)");
+        engine.addRule(feat);
+
+        // a song atom is the smallest, then each atom is bound by the previous ones:
+        // song(z, x), singer(x), song(z, y), singer(y)
+        int[] order = planner.plan(feat, -1, 0, new long[] { 300, 300, 200, 200 });
+        assertEquals(order, new int[] { 2, 0, 3, 1 });
+        assertEquals(planner.planned(), 1);
+
+        // cached, then re-planned when the statistics drift
+        planner.plan(feat, -1, 0, new long[] { 300, 300, 300, 300 });
+        assertEquals(planner.reused(), 1);
+        planner.plan(feat, -1, 0, new long[] { 300, 300, 2_000, 2_000 });
+        assertEquals(planner.replanned(), 1);
+
+        // same answers in both modes, with and without planning
+        List<String> expected = null;
+        for (LogicEngine.Strategy strategy: LogicEngine.Strategy.values()) {
+            for (boolean enabled: new boolean[] { true, false }) {
+                LogicEngine e = new LogicEngine();
+                e.setStrategy(strategy);
+                e.planner().setEnabled(enabled);
+                for (Relation relation: engine.facts().relations())
+                    for (int row = 0; row < relation.size(); ++row)
+                        e.addFact(relation.name, relation.tuple(row));
+                e.addRule(feat);
+                List<String> answers = answers(e, atom("feat", "x", "y"));
+                if (expected == null) expected = answers;
+                assertEquals(answers, expected);
+            }
+        }
+        assertEquals(expected.size(), 101 + 2 * 100); // (pi, pi), (pi, pi+1), (pi+1, pi)
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testLeapfrogJoin()
+    {
+        Rule triangle = rule("triangle(x, y, z)", "edge(x, y)", "edge(y, z)", "edge(z, x)");
+        Rule path = rule("path2(x, z)", "edge(x, y)", "edge(y, z)");
+        List<Rule> rules = Arrays.asList(
+            triangle, path,
+            rule("tri(x, z)", "edge(x, z)"), // recursive and cyclic
+            rule("tri(x, z)", "tri(x, y)", "edge(y, z)", "edge(x, z)"),
+            rule("wedge(x, y, z)", "triple(x, y, z)", "edge(x, y)", "edge(y, z)", "edge(z, x)"),
+            rule("back(y)", "edge(#v1, y)", "edge(y, z)", "edge(z, #v1)"),
+            rule("loop(x, y)", "edge(x, x)", "edge(x, y)", "edge(y, x)"));
+
+        assertTrue(JoinPlanner.cyclic(triangle));
+        assertTrue(!JoinPlanner.cyclic(path));
+
+        Random random = new Random(42);
+        List<int[]> edges = new ArrayList<>();
+        List<int[]> triples = new ArrayList<>();
+        for (int i = 0; i < 400; ++i)
+            edges.add(tuple("#v" + random.nextInt(40), "#v" + random.nextInt(40)));
+        for (int i = 0; i < 400; ++i)
+            triples.add(tuple("#v" + random.nextInt(10), "#v" + random.nextInt(10),
+                "#v" + random.nextInt(10)));
+
+        List<List<String>> expected = null;
+        for (JoinPlanner.JoinAlgorithm algorithm: JoinPlanner.JoinAlgorithm.values()) {
+            LogicEngine engine = new LogicEngine();
+            engine.setStrategy(LogicEngine.Strategy.BOTTOM_UP);
+            engine.planner().setAlgorithm(algorithm);
+            for (int[] edge: edges) engine.addFact("edge", edge);
+            for (int[] triple: triples) engine.addFact("triple", triple);
+            for (Rule rule: rules) engine.addRule(rule);
+
+            List<List<String>> results = new ArrayList<>();
+            for (Atom query: Arrays.asList(
+                    atom("triangle", "x", "y", "z"), atom("path2", "x", "y"),
+                    atom("tri", "x", "y"),
+                    atom("wedge", "x", "y", "z"), atom("back", "x"), atom("loop", "x", "y")))
+                results.add(answers(engine, query));
+            if (expected == null) expected = results;
+            assertEquals(results, expected, algorithm.toString());
+
+            long leapfrogs = engine.planner().leapfrogs();
+            if (algorithm == JoinPlanner.JoinAlgorithm.PAIRWISE) assertEquals(leapfrogs, 0);
+            else assertTrue(leapfrogs > 0);
+
+            // incremental: new facts are joined from their delta
+            engine.addFact("edge", tuple("#w0", "#w1"));
+            engine.addFact("edge", tuple("#w1", "#w2"));
+            engine.addFact("edge", tuple("#w2", "#w0"));
+            assertTrue(answers(engine, atom("triangle", "#w0", "y", "z"))
+                .contains("triangle(#w0, #w1, #w2)"));
+        }
+        assertTrue(expected.get(0).size() > 0);
+        assertTrue(expected.get(3).size() > 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testExplainAndProfile()
+    {
+        Rule path = rule("path(x, y)", "path(x, z)", "edge(z, y)");
+        Rule triangle = rule("triangle(x, y, z)", "edge(x, y)", "edge(y, z)", "edge(z, x)");
+        Rule labelled = rule("labelled(x, l)", "edge(x, y)", "label(y, l)");
+
+        for (LogicEngine.Strategy strategy: LogicEngine.Strategy.values()) {
+            LogicEngine engine = new LogicEngine();
+            engine.setStrategy(strategy);
+            engine.setTransitiveClosure(false); // see testClosureOperator
+            for (int i = 0; i < 50; ++i) {
+                engine.addFact("edge", tuple("#n" + i, "#n" + (i + 1) % 50));
+                engine.addFact("label", tuple("#n" + i, "#l" + i % 3));
+            }
+            engine.addRule(rule("path(x, y)", "edge(x, y)"));
+            engine.addRule(path);
+            engine.addRule(triangle);
+            engine.addRule(labelled);
+
+            // explain doesn't answer the query
+            QueryPlan plan = engine.explain(atom("path", "#n0", "y"));
+            assertEquals(engine.facts().find("path/2"), null, strategy.toString());
+            assertEquals(plan.strategy(), strategy);
+            assertTrue(plan.toString().startsWith("explain path(#n0, y)"), plan.toString());
+
+            if (strategy != LogicEngine.Strategy.MAGIC_SETS) {
+                // only the rules the query depends on
+                assertEquals(plan.rules().size(), 2);
+                QueryPlan.RulePlan recursive = plan.rules().get(1);
+                assertEquals(recursive.rule(), path);
+                assertEquals(recursive.join(), QueryPlan.Join.PAIRWISE);
+                assertEquals(recursive.steps().size(), 2);
+                QueryPlan.Step edge = recursive.steps().get(1);
+                assertEquals(edge.atom(), path.body[1]);
+                assertEquals(edge.boundMask(), 1); // z is bound by path(x, z)
+                assertEquals(plan.answers().access(), strategy == LogicEngine.Strategy.TABLED
+                    ? QueryPlan.Access.SUBGOAL
+                    : QueryPlan.Access.SCAN);
+                if (strategy == LogicEngine.Strategy.TABLED)
+                    assertEquals(recursive.steps().get(0).access(), QueryPlan.Access.SUBGOAL);
+            } else {
+                assertTrue(plan.answers().atom().predicate.startsWith("path@"));
+                assertTrue(plan.rules().size() > 2);
+            }
+
+            // cyclic bodies are joined with leapfrog bottom-up
+            QueryPlan.RulePlan tri = engine.explain(atom("triangle", "x", "y", "z")).rules().get(0);
+            assertEquals(tri.join(), strategy == LogicEngine.Strategy.BOTTOM_UP
+                ? QueryPlan.Join.LEAPFROG
+                : QueryPlan.Join.PAIRWISE);
+
+            // profile answers the query like query does, without using or filling the cache
+            List<String> answers = new ArrayList<>();
+            Atom query = atom("labelled", "x", "#l1");
+            QueryProfile profile = engine.profile(query, b -> answers.add(query.toString(b)));
+            Collections.sort(answers);
+            assertEquals(engine.cache().entryCount(), 0);
+            assertEquals(answers, answers(engine, query));
+            assertEquals(profile.answers(), 17);
+            assertTrue(profile.nanos() > 0);
+            assertTrue(profile.toString().startsWith("profile labelled(x, #l1)"));
+
+            // the (possibly rewritten) rule that joins label(y, l)
+            QueryProfile.RuleProfile rule = null;
+            QueryProfile.AtomProfile label = null;
+            for (QueryProfile.RuleProfile r: profile.rules())
+                for (QueryProfile.AtomProfile a: r.atoms())
+                    if (a.atom().predicate.equals("label")) {
+                        rule = r;
+                        label = a;
+                    }
+            assertTrue(rule != null && rule.firings() > 0, profile.toString());
+            assertTrue(label.probes() > 0);
+            assertEquals(label.probes(),
+                label.lookups() + label.indexed() + label.scans() + label.subgoals());
+            if (strategy == LogicEngine.Strategy.BOTTOM_UP) {
+                // one firing per semi-naive variant (both atoms have a delta)
+                assertEquals(rule.rule(), labelled);
+                assertEquals(rule.firings(), 2);
+                assertEquals(rule.added(), 50);
+                assertTrue(label.tuples() >= 50);
+                // bottom-up evaluation derives all rules: 50 labelled + 50 x 50 path
+                assertEquals(profile.tuplesAdded(), 2550);
+            }
+
+            // indexes built by the query show up in the plans
+            if (strategy == LogicEngine.Strategy.BOTTOM_UP) {
+                engine.facts().prepareIndex(engine.facts().find("label/2"), 1);
+                QueryPlan.Step step = engine.explain(query).rules().get(0).steps().get(1);
+                assertEquals(step.atom(), labelled.body[1]);
+                assertEquals(step.access(), QueryPlan.Access.INDEX);
+                assertTrue(step.toString().endsWith("index on (0)"), step.toString());
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testDistinctStatistics()
+    {
+        Relation relation = new Relation("r", 2);
+        for (int i = 0; i < 50_000; ++i)
+            relation.add(tuple("#d" + i % 10_000, "#d" + i % 7));
+        assertTrue(Math.abs(relation.distinct(0) - 10_000) < 10_000 * 0.1, "" + relation.distinct(0));
+        assertEquals(relation.distinct(1), 7);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testOffHeapStorage()
+    {
+        // enough tuples for the columns and deduplication set to span several chunks
+        Relation heap = new Relation("r", 2, FactStore.Storage.HEAP);
+        Relation offHeap = new Relation("r", 2, FactStore.Storage.OFF_HEAP);
+        for (Relation relation: Arrays.asList(heap, offHeap))
+            for (int i = 0; i < 1_500_000; ++i) {
+                assertTrue(relation.add(new int[] { i, i % 1_000 }));
+                assertTrue(!relation.add(new int[] { i / 2, i / 2 % 1_000 }));
+            }
+        assertEquals(offHeap.size(), 1_500_000);
+        for (int row = 0; row < offHeap.size(); row += 997)
+            assertEquals(offHeap.tuple(row), heap.tuple(row));
+        assertEquals(offHeap.rowOf(new int[] { 1_234_567, 567 }), 1_234_567);
+        assertEquals(offHeap.rowOf(new int[] { 1_234_567, 568 }), -1);
+
+        LogicEngine engine = new LogicEngine();
+        engine.facts().setStorage(FactStore.Storage.OFF_HEAP);
+        engine.setStrategy(LogicEngine.Strategy.BOTTOM_UP);
+        for (int i = 0; i < 100; ++i)
+            engine.addFact("edge", tuple("#n" + i, "#n" + (i + 1)));
+        engine.addRule(rule("path(x, y)", "edge(x, y)"));
+        engine.addRule(rule("path(x, y)", "path(x, z)", "edge(z, y)"));
+        assertEquals(answers(engine, atom("path", "#n90", "y")).size(), 10);
+        assertEquals(engine.facts().find("path/2").storage, FactStore.Storage.OFF_HEAP);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testSnapshot() throws IOException
+    {
+        LogicEngine engine = new LogicEngine();
+        engine.setStrategy(LogicEngine.Strategy.BOTTOM_UP);
+        for (int i = 0; i < 100; ++i) {
+            engine.addFact("edge", tuple("#s" + i, "#s" + (i + 1)));
+            engine.addFact("node", tuple("#s" + i));
+        }
+        engine.addRule(rule("path(x, y)", "edge(x, y)"));
+        engine.addRule(rule("path(x, y)", "path(x, z)", "edge(z, y)"));
+        assertEquals(answers(engine, atom("path", "#s90", "y")).size(), 10);
+        // enough tuples for the columns to span several chunks
+        for (int i = 0; i < 1_500_000; ++i)
+            engine.addFact("big", new int[] { i, i % 1_000 });
+
+        Path path = Files.createTempFile("facts", ".snapshot");
+        try {
+            engine.facts().save(path);
+            FactStore store = FactStore.load(path);
+            assertEquals(store.relations().size(), engine.facts().relations().size());
+            for (Relation relation: engine.facts().relations()) {
+                Relation loaded = store.find(Relation.key(relation.name, relation.arity));
+                assertEquals(loaded.size(), relation.size());
+                assertEquals(loaded.storage, FactStore.Storage.OFF_HEAP);
+                assertEquals(loaded.distinct(0), relation.distinct(0));
+                for (int row = 0; row < relation.size(); row += 997)
+                    assertEquals(loaded.tuple(row), relation.tuple(row));
+            }
+            Relation big = store.find("big/2");
+            assertEquals(big.rowOf(new int[] { 1_234_567, 567 }), 1_234_567);
+            assertTrue(!big.add(new int[] { 42, 42 }));
+            assertTrue(big.add(new int[] { 42, 43 }));
+            assertEquals(big.rowOf(new int[] { 42, 43 }), 1_500_000);
+            // unary relations rebuild their bitmap
+            Relation node = store.find("node/1");
+            assertEquals(node.rowOf(tuple("#s7")), 7);
+            assertTrue(!node.add(tuple("#s7")));
+            assertTrue(node.add(tuple("#s100")));
+
+            // adding tuples to the loaded store leaves the file untouched
+            assertEquals(FactStore.load(path).find("big/2").size(), 1_500_000);
+
+            LogicEngine reloaded = new LogicEngine(store);
+            reloaded.setStrategy(LogicEngine.Strategy.BOTTOM_UP);
+            reloaded.addRule(rule("path(x, y)", "edge(x, y)"));
+            reloaded.addRule(rule("path(x, y)", "path(x, z)", "edge(z, y)"));
+            assertEquals(answers(reloaded, atom("path", "#s90", "y")).size(), 10);
+            reloaded.addFact("edge", tuple("#s100", "#s101"));
+            assertEquals(answers(reloaded, atom("path", "#s90", "y")).size(), 11);
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testAnswerStreams()
+    {
+        for (LogicEngine.Strategy strategy: LogicEngine.Strategy.values()) {
+            LogicEngine engine = new LogicEngine();
+            engine.setStrategy(strategy);
+            for (int i = 0; i < 1_000; ++i)
+                engine.addFact("edge", tuple("#t" + i, "#t" + (i + 1)));
+            engine.addRule(rule("path(x, y)", "edge(x, y)"));
+            engine.addRule(rule("path(x, y)", "path(x, z)", "edge(z, y)"));
+
+            // the stream yields the same answers as query
+            List<String> expected = answers(engine, atom("path", "#t990", "y"));
+            List<String> streamed = new ArrayList<>();
+            Atom query = atom("path", "#t990", "y");
+            try (AnswerStream answers = engine.stream(query)) {
+                while (answers.hasNext()) streamed.add(query.toString(answers.next()));
+                assertTrue(!answers.hasNext());
+            }
+            Collections.sort(streamed);
+            assertEquals(streamed, expected);
+
+            try (AnswerStream answers = engine.stream(atom("path", "#t990", "y"), 3)) {
+                int count = 0;
+                while (answers.hasNext()) {
+                    answers.next();
+                    ++count;
+                }
+                assertEquals(count, 3);
+            }
+
+            AnswerStream closed = engine.stream(atom("edge", "x", "y"));
+            assertTrue(closed.hasNext());
+            closed.close();
+            assertTrue(!closed.hasNext());
+
+            assertTrue(engine.exists(atom("path", "#t0", "#t1000")));
+            assertTrue(!engine.exists(atom("path", "#t1000", "#t0")));
+            assertTrue(!engine.exists(atom("edge", "x", "x")));
+            assertEquals(engine.stream(atom("path", "x", "y"), 0).hasNext(), false);
+        }
+
+        // with tabling, a limited query stops before computing the whole table
+        LogicEngine engine = new LogicEngine();
+        for (int i = 0; i < 1_000; ++i)
+            engine.addFact("edge", tuple("#u" + i, "#u" + (i + 1)));
+        engine.addRule(rule("path(x, y)", "edge(x, y)"));
+        engine.addRule(rule("path(x, y)", "path(x, z)", "edge(z, y)"));
+        assertTrue(engine.exists(atom("path", "#u0", "y")));
+        assertEquals(engine.tables().stops(), 1);
+        assertEquals(engine.tables().tableCount(), 0); // the incomplete table was dropped
+        assertEquals(answers(engine, atom("path", "#u0", "y")).size(), 1_000);
+        assertTrue(engine.exists(atom("path", "#u0", "y"))); // complete table: no stop
+        assertEquals(engine.tables().stops(), 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testMagicSets()
+    {
+        List<Rule> rules = Arrays.asList(
+            rule("path(x, y)", "edge(x, y)"),
+            rule("path(x, y)", "path(x, z)", "edge(z, y)"),
+            rule("reach(x, y)", "edge(x, y)"),
+            rule("reach(x, y)", "edge(x, z)", "reach(z, y)"),
+            rule("sg(x, y)", "flat(x, y)"),
+            rule("sg(x, y)", "up(x, u)", "sg(u, v)", "down(v, y)"),
+            rule("linked(x)", "reach(x, #g3)"));
+
+        LogicEngine reference = null;
+        for (LogicEngine.Strategy strategy: LogicEngine.Strategy.values()) {
+            LogicEngine engine = new LogicEngine();
+            engine.setStrategy(strategy);
+            for (int i = 0; i < 200; ++i) // 10 chains of 20 nodes
+                if (i % 20 != 19) engine.addFact("edge", tuple("#g" + i, "#g" + (i + 1)));
+            for (int i = 0; i < 30; ++i) {
+                engine.addFact("up", tuple("#g" + i, "#g" + (i + 1)));
+                engine.addFact("down", tuple("#g" + (i + 1), "#g" + i));
+            }
+            engine.addFact("flat", tuple("#g30", "#g31"));
+            engine.addFact("sg", tuple("#g40", "#g41")); // asserted fact of a derived predicate
+            for (Rule rule: rules) engine.addRule(rule);
+
+            if (reference == null) reference = engine;
+            for (Atom query: Arrays.asList(
+                    atom("path", "#g3", "y"), atom("path", "x", "#g17"), atom("path", "x", "x"),
+                    atom("reach", "#g41", "y"), atom("reach", "#g2", "#g9"),
+                    atom("reach", "x", "y"),
+                    atom("sg", "#g0", "y"), atom("sg", "x", "#g41"), atom("linked", "x"),
+                    atom("edge", "#g5", "y")))
+                assertEquals(answers(engine, query), answers(reference, query), query.toString());
+        }
+
+        // only the facts relevant to the query are derived
+        LogicEngine engine = new LogicEngine();
+        engine.setStrategy(LogicEngine.Strategy.MAGIC_SETS);
+        for (int i = 0; i < 1_000; ++i)
+            engine.addFact("edge", tuple("#h" + i, "#h" + (i + 1)));
+        engine.addRule(rule("path(x, y)", "edge(x, y)"));
+        engine.addRule(rule("path(x, y)", "path(x, z)", "edge(z, y)"));
+        assertEquals(answers(engine, atom("path", "#h990", "y")).size(), 10);
+        assertTrue(engine.lastEvaluation().derived() < 20, "" + engine.lastEvaluation());
+        assertEquals(engine.facts().find("path/2"), null);
+
+        // later queries with the same pattern reuse the rewritten rules incrementally
+        assertEquals(answers(engine, atom("path", "#h980", "y")).size(), 20);
+        assertTrue(engine.lastEvaluation().derived() < 40, "" + engine.lastEvaluation());
+        engine.addFact("edge", tuple("#h1000", "#h1001"));
+        assertEquals(answers(engine, atom("path", "#h990", "y")).size(), 11);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testAnswerCache()
+    {
+        for (LogicEngine.Strategy strategy: LogicEngine.Strategy.values()) {
+            LogicEngine engine = new LogicEngine();
+            engine.setStrategy(strategy);
+            AnswerCache cache = engine.cache();
+            for (int i = 0; i < 100; ++i)
+                engine.addFact("edge", tuple("#c" + i, "#c" + (i + 1)));
+            engine.addFact("color", tuple("#c0", "#red"));
+            engine.addRule(rule("path(x, y)", "edge(x, y)"));
+            engine.addRule(rule("path(x, y)", "path(x, z)", "edge(z, y)"));
+
+            List<String> first = answers(engine, atom("path", "#c90", "y"));
+            assertEquals(first.size(), 10);
+            assertEquals(cache.misses(), 1);
+            assertEquals(answers(engine, atom("path", "#c90", "y")), first);
+            assertEquals(cache.hits(), 1);
+
+            // the key is the atom: other constants or variable patterns are other entries
+            assertEquals(answers(engine, atom("path", "#c95", "y")).size(), 5);
+            assertEquals(answers(engine, atom("path", "x", "x")).size(), 0);
+            assertEquals(cache.misses(), 3);
+            assertEquals(cache.entryCount(), 3);
+            try (AnswerStream answers = engine.stream(atom("path", "#c95", "y"), 2)) {
+                assertTrue(answers.hasNext());
+            }
+            assertEquals(cache.hits(), 2);
+
+            // inserting into a predicate invalidates exactly the dependent entries
+            answers(engine, atom("color", "x", "y"));
+            long version = cache.version("color/2");
+            engine.addFact("color", tuple("#c1", "#blue"));
+            assertEquals(cache.version("color/2"), version + 1);
+            assertEquals(answers(engine, atom("path", "#c90", "y")), first);
+            assertEquals(cache.hits(), 3);
+            assertEquals(answers(engine, atom("color", "x", "y")).size(), 2);
+            assertEquals(cache.invalidations(), 1);
+
+            engine.addFact("edge", tuple("#c100", "#c101"));
+            assertEquals(answers(engine, atom("path", "#c90", "y")).size(), 11);
+            assertEquals(cache.invalidations(), 2);
+
+            // adding a rule clears the cache
+            engine.addRule(rule("path(x, y)", "edge(y, x)"));
+            assertEquals(cache.entryCount(), 0);
+            assertEquals(answers(engine, atom("path", "#c90", "y")).size(), 13);
+
+            // the cache is bounded by the number of answers it holds
+            cache.setMaxAnswers(15);
+            assertTrue(cache.answerCount() <= 15);
+            answers(engine, atom("path", "#c95", "y"));
+            assertTrue(cache.answerCount() <= 15);
+            assertTrue(cache.evictions() > 0, cache.toString());
+            answers(engine, atom("path", "#c0", "y"));
+            assertTrue(cache.answerCount() <= 15);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static List<String> answers (LogicEngine engine, Aggregate aggregate)
+    {
+        List<String> answers = new ArrayList<>();
+        engine.query(aggregate, b -> answers.add(aggregate.toString(b)));
+        return answers;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testAggregates()
+    {
+        String total = "total(x, s, lo, hi) :- sum(s, t | sale(x, t)), min(lo, t | sale(x, t)), "
+            + "max(hi, t | sale(x, t))";
+        assertEquals(Rule.parse(total).toString(), total);
+        String count = "count(n | edge(#a, y))";
+        assertEquals(Aggregate.parse(count).toString(), count);
+
+        for (LogicEngine.Strategy strategy: LogicEngine.Strategy.values()) {
+            LogicEngine engine = new LogicEngine();
+            engine.setStrategy(strategy);
+            for (String[] edge: new String[][] {
+                    {"#a", "#b"}, {"#a", "#c"}, {"#b", "#c"}, {"#c", "#a"}})
+                engine.addFact("edge", tuple(edge));
+            engine.addFact("sale", tuple("#a", "#3"));
+            engine.addFact("sale", tuple("#a", "#4"));
+            engine.addFact("sale", tuple("#b", "#-2"));
+            engine.addFact("node", tuple("#d"));
+            engine.addFact("node", tuple("#a"));
+            engine.addRule(Rule.parse("degree(x, n) :- count(n | edge(x, y))"));
+            engine.addRule(Rule.parse("path(x, y) :- edge(x, y)"));
+            engine.addRule(Rule.parse("path(x, y) :- path(x, z), edge(z, y)"));
+            engine.addRule(Rule.parse("reach(x, n) :- count(n | path(x, y))"));
+            engine.addRule(Rule.parse(total));
+            engine.addRule(Rule.parse("out(x, n) :- node(x), count(n | edge(x, y))"));
+            engine.addRule(Rule.parse("size(n) :- count(n | edge(x, y))"));
+            engine.addRule(Rule.parse("none(n) :- count(n | missing(x))"));
+            engine.addRule(Rule.parse("top(x) :- degree(x, #2)"));
+            String name = strategy.toString();
+
+            assertEquals(answers(engine, atom("degree", "x", "n")),
+                Arrays.asList("degree(#a, #2)", "degree(#b, #1)", "degree(#c, #1)"), name);
+            assertEquals(answers(engine, atom("reach", "x", "n")),
+                Arrays.asList("reach(#a, #3)", "reach(#b, #3)", "reach(#c, #3)"), name);
+            assertEquals(answers(engine, atom("total", "x", "s", "lo", "hi")),
+                Arrays.asList("total(#a, #7, #3, #4)", "total(#b, #-2, #-2, #-2)"), name);
+            assertEquals(answers(engine, atom("out", "x", "n")),
+                Collections.singletonList("out(#a, #2)"), name); // no group for #d
+            assertEquals(answers(engine, atom("size", "n")),
+                Collections.singletonList("size(#4)"), name);
+            assertEquals(answers(engine, atom("none", "n")),
+                Collections.singletonList("none(#0)"), name);
+            assertEquals(answers(engine, atom("top", "x")),
+                Collections.singletonList("top(#a)"), name);
+
+            // queries aggregate over all answers
+            assertEquals(answers(engine, Aggregate.parse("count(n | edge(#a, y))")),
+                Collections.singletonList("count(#2 | edge(#a, y))"), name);
+            assertEquals(answers(engine, Aggregate.parse("sum(s, t | sale(x, t))")),
+                Collections.singletonList("sum(#5, t | sale(x, t))"), name);
+            assertEquals(answers(engine, Aggregate.parse("count(n | path(x, #a))")),
+                Collections.singletonList("count(#3 | path(x, #a))"), name);
+            assertEquals(answers(engine, Aggregate.parse("max(m, t | sale(#c, t))")),
+                Collections.emptyList(), name);
+            assertThrows(AggregateException.class,
+                () -> answers(engine, Aggregate.parse("sum(s, y | edge(x, y))")));
+
+            // results are recomputed when the aggregated relations change, and so is everything
+            // derived from them
+            engine.addFact("edge", tuple("#c", "#d"));
+            engine.addFact("sale", tuple("#c", "#10"));
+            assertEquals(answers(engine, atom("degree", "x", "n")),
+                Arrays.asList("degree(#a, #2)", "degree(#b, #1)", "degree(#c, #2)"), name);
+            assertEquals(answers(engine, atom("reach", "x", "n")),
+                Arrays.asList("reach(#a, #4)", "reach(#b, #4)", "reach(#c, #4)"), name);
+            assertEquals(answers(engine, atom("top", "x")),
+                Arrays.asList("top(#a)", "top(#c)"), name);
+            engine.addFact("edge", tuple("#d", "#a"));
+            engine.addFact("edge", tuple("#b", "#d"));
+            assertEquals(answers(engine, atom("degree", "x", "n")),
+                Arrays.asList("degree(#a, #2)", "degree(#b, #2)", "degree(#c, #2)",
+                    "degree(#d, #1)"), name);
+            assertEquals(answers(engine, atom("size", "n")),
+                Collections.singletonList("size(#7)"), name);
+            assertEquals(answers(engine, atom("total", "#c", "s", "lo", "hi")),
+                Collections.singletonList("total(#c, #10, #10, #10)"), name);
+            assertEquals(answers(engine, Aggregate.parse("sum(s, t | sale(x, t))")),
+                Collections.singletonList("sum(#15, t | sale(x, t))"), name);
+
+            // views only hold one tuple per group
+            engine.evaluate();
+            assertEquals(engine.facts().find("count$0/2").size(), 4, name);
+            assertEquals(answers(engine, atom("top", "x")),
+                Arrays.asList("top(#a)", "top(#b)", "top(#c)"), name);
+
+            // aggregation must be stratified
+            Rule recursive = Rule.parse("path(x, y) :- edge(x, z), count(y | path(z, w))");
+            assertThrows(IllegalArgumentException.class, () -> engine.addRule(recursive));
+            assertEquals(answers(engine, atom("size", "n")),
+                Collections.singletonList("size(#7)"), name);
+
+            // facts asserted on predicates derived from aggregates (before or after their rules)
+            // survive the recomputation of these aggregates
+            LogicEngine asserted = new LogicEngine();
+            asserted.setStrategy(strategy);
+            asserted.addFact("deg", tuple("#yy", "#4"));
+            asserted.addRule(Rule.parse("deg(x, n) :- count(n | edge(x, y))"));
+            asserted.addFact("deg", tuple("#zz", "#5"));
+            asserted.addFact("edge", tuple("#a", "#b"));
+            assertEquals(answers(asserted, atom("deg", "x", "n")),
+                Arrays.asList("deg(#a, #1)", "deg(#yy, #4)", "deg(#zz, #5)"), name);
+            asserted.addFact("edge", tuple("#a", "#c"));
+            assertEquals(answers(asserted, atom("deg", "x", "n")),
+                Arrays.asList("deg(#a, #2)", "deg(#yy, #4)", "deg(#zz, #5)"), name);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testRangeIndex()
+    {
+        String cheap = "cheap(x) :- price(x, p), p < 100, p >= 10";
+        assertEquals(Rule.parse(cheap).toString(), cheap);
+        assertEquals(Rule.parse("dear(x) :- price(x, 500)").body[0].toString(), "price(x, #500)");
+        assertThrows(IllegalArgumentException.class,
+            () -> Rule.parse("cheap(x) :- price(x, p), y < 100"));
+
+        Random random = new Random(42);
+        int[] prices = new int[5_000];
+        for (int i = 0; i < prices.length; ++i) prices[i] = random.nextInt(2_000) - 500;
+
+        LogicEngine reference = null;
+        for (LogicEngine.Strategy strategy: LogicEngine.Strategy.values()) {
+            LogicEngine engine = new LogicEngine();
+            engine.setStrategy(strategy);
+            for (int i = 0; i < prices.length; ++i)
+                engine.addFact("price", tuple("#i" + i, "#" + prices[i]));
+            engine.addFact("price", tuple("#gift", "#free")); // never compares
+            for (int i = 0; i < 100; ++i)
+                engine.addFact("stock", tuple("#i" + i, "#" + (i % 7)));
+            engine.addRule(Rule.parse(cheap));
+            engine.addRule(Rule.parse("sale(x) :- stock(x, n), n >= 3, price(x, p), p <= 0"));
+            engine.addRule(Rule.parse("rare(n) :- count(n | stock(x, 0)), n < 20"));
+            String name = strategy.toString();
+
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < prices.length; ++i)
+                if (10 <= prices[i] && prices[i] < 100) expected.add("cheap(#i" + i + ")");
+            Collections.sort(expected);
+            assertEquals(answers(engine, atom("cheap", "x")), expected, name);
+
+            expected.clear();
+            for (int i = 0; i < 100; ++i)
+                if (i % 7 >= 3 && prices[i] <= 0) expected.add("sale(#i" + i + ")");
+            Collections.sort(expected);
+            assertEquals(answers(engine, atom("sale", "x")), expected, name);
+            assertEquals(answers(engine, atom("rare", "n")),
+                Collections.singletonList("rare(#15)"), name);
+
+            // bounded queries, through the answer cache and streams
+            Atom price = atom("price", "x", "p");
+            Atom negative = price.bounded(
+                new Comparison(1, Comparison.Operator.LOWER, 0, price.varNames));
+            long count = Arrays.stream(prices).filter(it -> it < 0).count();
+            assertEquals(answers(engine, negative).size(), count, name);
+            assertEquals(answers(engine, price).size(), prices.length + 1, name);
+            assertEquals(answers(engine, negative).size(), count, name);
+            try (AnswerStream answers = engine.stream(negative, 3)) {
+                for (int i = 0; i < 3; ++i)
+                    assertTrue(Term.of(answers.next()[1]).number < 0, name);
+            }
+            Atom empty = negative.bounded(
+                new Comparison(1, Comparison.Operator.GREATER, 5, price.varNames));
+            assertEquals(answers(engine, empty).size(), 0, name);
+
+            // rows appended after the index was built are seen
+            engine.addFact("price", tuple("#late", "#50"));
+            engine.addFact("price", tuple("#early", "#-1"));
+            assertTrue(answers(engine, atom("cheap", "x")).contains("cheap(#late)"), name);
+            assertEquals(answers(engine, negative).size(), count + 1, name);
+
+            if (reference == null) reference = engine;
+            assertEquals(answers(engine, atom("cheap", "x")),
+                answers(reference, atom("cheap", "x")), name);
+        }
+
+        LogicEngine engine = new LogicEngine();
+        engine.setStrategy(LogicEngine.Strategy.BOTTOM_UP);
+        engine.addRule(Rule.parse(cheap));
+        QueryPlan.Step step = engine.explain(atom("cheap", "x")).rules().get(0).steps().get(0);
+        assertEquals(step.access(), QueryPlan.Access.RANGE);
+        assertEquals(step.toString(), "price(x, p): range on 1");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testStoreViews() throws InterruptedException
+    {
+        FactStore store = new FactStore();
+        for (int i = 0; i < 1_000; ++i) {
+            store.insert("edge", tuple("#n" + i, "#n" + (i + 1)));
+            store.insert("price", tuple("#n" + i, "#" + i));
+            store.insert("node", tuple("#n" + i));
+        }
+        store.prepareIndex(store.find("edge/2"), 1);
+        Atom price = atom("price", "x", "p");
+        Atom cheap = price.bounded(
+            new Comparison(1, Comparison.Operator.LOWER, 100, price.varNames));
+        assertEquals(answers(store, cheap).size(), 100); // builds the range index
+
+        StoreView view = store.view();
+        assertTrue(store.view() == view);
+        store.insert("edge", tuple("#n1000", "#n1001"));
+        store.insert("price", tuple("#late", "#-1"));
+        store.insert("node", tuple("#late"));
+        assertTrue(store.view() != view);
+
+        // the view doesn't see the facts inserted after it was taken
+        assertEquals(view.find("edge/2").size(), 1_000);
+        assertEquals(answers(view, atom("edge", "#n5", "y")),
+            Collections.singletonList("edge(#n5, #n6)"));
+        assertEquals(answers(view, atom("edge", "#n1000", "y")).size(), 0);
+        assertEquals(answers(view, cheap).size(), 100);
+        assertEquals(answers(view, atom("node", "#n5")).size(), 1);
+        assertEquals(answers(view, atom("node", "#late")).size(), 0);
+        assertEquals(answers(view, atom("node", "x")).size(), 1_000);
+        assertEquals(answers(store.view(), atom("edge", "#n1000", "y")).size(), 1);
+        assertEquals(answers(store.view(), cheap).size(), 101);
+        assertEquals(answers(store.view(), atom("node", "#late")).size(), 1);
+        assertThrows(IllegalStateException.class, () -> view.find("node/1").add(tuple("#x")));
+
+        // readers see consistent versions while the writer appends
+        FactStore facts = new FactStore();
+        facts.prepareIndex(facts.relation("link", 2), 1);
+        facts.relation("member", 1);
+        int count = 20_000;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[3];
+        for (int t = 0; t < readers.length; ++t) {
+            Random random = new Random(t);
+            readers[t] = new Thread(() -> {
+                try {
+                    int members;
+                    do {
+                        StoreView version = facts.view();
+                        int links = version.find("link/2").size();
+                        members = version.find("member/1").size();
+                        // links are inserted before members
+                        assertTrue(members <= links && links <= members + 1);
+                        if (members == 0) continue;
+                        String node = "#m" + random.nextInt(members);
+                        assertEquals(answers(version, atom("link", node, "y")).size(), 1);
+                        assertEquals(answers(version, atom("member", node)).size(), 1);
+                        assertEquals(answers(version, atom("member", "#m" + members)).size(), 0);
+                    } while (members < count && failure.get() == null);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            readers[t].start();
+        }
+        for (int i = 0; i < count && failure.get() == null; ++i) {
+            facts.insert("link", tuple("#m" + i, "#m" + (i + 1)));
+            facts.insert("member", tuple("#m" + i));
+        }
+        for (Thread reader: readers) reader.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testCancellation() throws InterruptedException
+    {
+        // paths over a cycle: a million tuples, far more than the timeout allows
+        int n = 1_000;
+        Rule base = rule("path(x, y)", "edge(x, y)");
+        Rule step = rule("path(x, y)", "path(x, z)", "edge(z, y)");
+
+        for (LogicEngine.Strategy strategy: LogicEngine.Strategy.values()) {
+            LogicEngine engine = new LogicEngine();
+            engine.setStrategy(strategy);
+            engine.setTransitiveClosure(false);
+            for (int i = 0; i < n; ++i)
+                engine.addFact("edge", tuple("#v" + i, "#v" + (i + 1) % n));
+            engine.addRule(base);
+            engine.addRule(step);
+            String name = strategy.toString();
+
+            engine.setTimeout(20);
+            QueryCancelledException e = null;
+            try {
+                engine.query(atom("path", "x", "y"), b -> {});
+            } catch (QueryCancelledException cancelled) {
+                e = cancelled;
+            }
+            assertTrue(e != null && e.timedOut(), name);
+            assertTrue(e.nanos() >= 20_000_000, name);
+            assertTrue(e.getMessage().startsWith("query timed out after"), name);
+            if (strategy == LogicEngine.Strategy.TABLED)
+                assertTrue(e.tablesCreated() == 1 && e.tableAnswers() > 0, name);
+            else
+                assertTrue(e.evaluation().iterations() > 0, name);
+
+            // the work kept by the engine is consistent: later queries have all their answers
+            engine.setTimeout(0);
+            assertEquals(answers(engine, atom("path", "#v0", "y")).size(), n, name);
+            assertTrue(engine.tables().tableCount() <= 1, name);
+        }
+
+        // cancellation from another thread, and before the query starts
+        LogicEngine engine = new LogicEngine();
+        for (int i = 0; i < n; ++i)
+            engine.addFact("edge", tuple("#v" + i, "#v" + (i + 1) % n));
+        engine.addRule(base);
+        engine.addRule(step);
+        CancellationToken token = new CancellationToken();
+        Thread canceller = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ignored) {}
+            token.cancel();
+        });
+        canceller.start();
+        QueryCancelledException e = null;
+        try {
+            engine.query(atom("path", "x", "y"), b -> {}, token);
+        } catch (QueryCancelledException cancelled) {
+            e = cancelled;
+        }
+        canceller.join();
+        assertTrue(e != null && !e.timedOut() && token.cancelled());
+        assertThrows(QueryCancelledException.class,
+            () -> engine.stream(atom("path", "#v1", "y"), Long.MAX_VALUE, token));
+
+        engine.setStrategy(LogicEngine.Strategy.BOTTOM_UP); // by graph searches
+        assertThrows(QueryCancelledException.class,
+            () -> engine.query(atom("path", "#v1", "y"), b -> {}, token));
+        assertEquals(answers(engine, atom("path", "#v1", "y")).size(), n);
+        assertTrue(new CancellationToken(0).cancelled());
+        assertTrue(!new CancellationToken(60_000).cancelled());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -182,6 +182,36 @@ public final class SemanticAnalysisTests extends UraniumTestFixture
 
         failureInputWith(" -? present(student)","Could not resolve: student");
         failureInputWith("var X: String= \"student\"; -? present(X) ", "non term type found where term type required instead of String");
+
+        successInput("-?[1] boy( #baby )");
+        failureInputWith("-?[0] boy( #baby )", "query limit must be at least 1");
+
+        String vars = "var n: Term = #n; var s: Term = #s; var t: Term = #t; ";
+        successInput(vars + "-? count(n | boy(t))");
+        successInput(vars + "-? sum(s, t | price(#a, t))");
+        failureInputWith(vars + "-? avg(s, t | price(#a, t))", "unknown aggregate: avg");
+        failureInputWith(vars + "-? sum(s | price(#a, t))",
+            "sum takes a result and a value variable");
+        failureInputWith(vars + "-? count(n | boy(n))",
+            "result variable n appears in the aggregated atom");
+        failureInputWith(vars + "-? max(s, n | price(#a, t))",
+            "value variable n does not appear in the aggregated atom");
+        failureInputWith(vars + "-?[2] count(n | boy(t))", "aggregate queries take no modifier");
+        failureInputWith("var n: Int = 1; -? count(n | boy(#a))",
+            "non term type found where term type required instead of Int");
+
+        String prices = "var x: Term = #x; var p: Term = #p; var q: Term = #q; ";
+        successInput(prices + "-? price(x, p), p < 10, 2 <= p");
+        failureInputWith(prices + "-? price(x, p), q < 10",
+            "compared variable q does not appear in the query");
+        failureInputWith(prices + "-? price(x, p), p < q",
+            "a comparison must be between a variable and a number");
+        failureInputWith(prices + "-? price(x, p), p < #a",
+            "a comparison must be between a variable and a number");
+        failureInputWith(vars + "-? count(n | boy(t)), n > 1",
+            "aggregate queries take no comparison");
+        failureInputWith("var p: Int = 1; -? price(#a, p), p < 10",
+            "non term type found where term type required instead of Int");
     }
 
     @Test void  testClause(){
@@ -196,7 +226,20 @@ public final class SemanticAnalysisTests extends UraniumTestFixture
 
         failureInputWith("LPC animal(  puppy) :- dog( puppy)","Could not resolve: puppy");
         failureInputWith("var X :Int = 1; LPC animal(X) :- dog(X)","non term type found where term type required instead of Int");
-
+        failureInputWith("var X: Term = #a; var Y: Term = #b; LPC owns(X, Y) :- person(X)",
+            "head variable Y does not appear in the clause body");
+        successInput("var X: Term = #a; var N: Term = #n; var Y: Term = #b; "
+            + "LPC degree(X, N) :- count(N | edge(X, Y))");
+
+        String prices = "var X: Term = #a; var P: Term = #p; var N: Term = #n; ";
+        successInput(prices + "LPC cheap(X) :- price(X, P), P < 10");
+        successInput(prices + "LPC busy(X) :- count(N | order(X, P)), N >= 2");
+        failureInputWith(prices + "LPC cheap(X) :- price(X, 3), P < 10",
+            "compared variable P does not appear in a body atom or as an aggregate result");
+        failureInputWith(prices + "LPC busy(X) :- count(N | order(X, P)), P > 2",
+            "compared variable P does not appear in a body atom or as an aggregate result");
+        failureInputWith(prices + "LPC cheap(X) :- price(X, P), 10 > 2",
+            "a comparison must be between a variable and a number");
 
     }
 